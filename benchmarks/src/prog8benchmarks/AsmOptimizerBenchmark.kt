@@ -0,0 +1,45 @@
+package prog8benchmarks
+
+import org.openjdk.jmh.annotations.*
+import prog8.compiler.target.c64.codegen.AsmSourceOptimizer
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class AsmOptimizerBenchmark {
+
+    @Param("primes", "tehtriz", "all")
+    lateinit var listing: String
+
+    private lateinit var optimizer: AsmSourceOptimizer
+
+    @Setup
+    fun setup() {
+        initCompilationTarget()
+        // the unoptimized assembly listings, generated by the compiler from the examples
+        val outputDir = Files.createTempDirectory("prog8bench")
+        try {
+            val examples = if(listing=="all") {
+                Files.list(examplesDir).use { files ->
+                    files.map { it.fileName.toString() }.filter { it.endsWith(".p8") }.map { it.removeSuffix(".p8") }.sorted().toArray()
+                }.map { it as String }
+            } else listOf(listing)
+            val lines = examples.flatMap {
+                compileExample(it, optimize = false, writeAssembly = true, outputDir = outputDir)
+                outputDir.resolve("$it.asm").toFile().readLines()
+            }
+            optimizer = AsmSourceOptimizer(lines)
+        } finally {
+            outputDir.toFile().deleteRecursively()
+        }
+    }
+
+    @Benchmark
+    fun optimizeAssembly(): Int {
+        // the optimizer modifies the listing, so every run works on a fresh copy
+        return optimizer.optimize()
+    }
+}
@@ -0,0 +1,47 @@
+package prog8benchmarks
+
+import org.openjdk.jmh.annotations.*
+import prog8.ast.Program
+import prog8.vm.astvm.AstVm
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+open class AstVmBenchmark {
+
+    @Param("primes", "mandelbrot")
+    lateinit var example: String
+
+    private lateinit var outputDir: Path
+    private lateinit var program: Program
+
+    @Setup(Level.Trial)
+    fun setupTrial() {
+        initCompilationTarget()
+        outputDir = Files.createTempDirectory("prog8bench")
+    }
+
+    @Setup(Level.Invocation)
+    fun compile() {
+        // every run gets a freshly compiled program, so runs can't influence each other
+        program = compileExample(example, optimize = true, writeAssembly = false, outputDir = outputDir)
+    }
+
+    @TearDown(Level.Trial)
+    fun teardown() {
+        outputDir.toFile().deleteRecursively()
+    }
+
+    @Benchmark
+    fun run() {
+        quietly {
+            AstVm(program, "c64", headless = true).run()
+        }
+    }
+}
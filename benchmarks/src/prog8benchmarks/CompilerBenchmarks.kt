@@ -0,0 +1,41 @@
+package prog8benchmarks
+
+import org.openjdk.jmh.annotations.*
+import prog8.ast.Program
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class CompilerBenchmarks {
+
+    @Param("bdmusic-irq", "bdmusic", "comparison_ifs_byte", "comparison_ifs_float", "comparison_ifs_ubyte", "comparison_ifs_uword",
+            "comparison_ifs_word", "comparisons_byte", "comparisons_float", "comparisons_ubyte", "comparisons_uword", "comparisons_word",
+            "cube3d-float", "cube3d-sprites", "cube3d", "fibonacci", "hello", "mandelbrot",
+            "numbergame", "primes", "rasterbars", "romfloats", "sorting", "sprites",
+            "structs", "swirl-float", "swirl", "tehtriz", "test", "testarrays",
+            "testforloops", "testprints", "wizzine")
+    lateinit var example: String
+
+    private lateinit var outputDir: Path
+
+    @Setup
+    fun setup() {
+        initCompilationTarget()
+        outputDir = Files.createTempDirectory("prog8bench")
+    }
+
+    @TearDown
+    fun teardown() {
+        outputDir.toFile().deleteRecursively()
+    }
+
+    @Benchmark
+    fun compileWithoutAssembly(): Program = compileExample(example, optimize = true, writeAssembly = false, outputDir = outputDir)
+
+    @Benchmark
+    fun compileWithAssembly(): Program = compileExample(example, optimize = true, writeAssembly = true, outputDir = outputDir)
+}
@@ -0,0 +1,44 @@
+package prog8benchmarks
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import prog8.ast.expressions.IdentifierReference
+import prog8.ast.processing.IAstVisitor
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class LookupBenchmark {
+
+    @Param("primes", "tehtriz", "cube3d-float")
+    lateinit var example: String
+
+    private val identifiers = mutableListOf<IdentifierReference>()
+
+    @Setup
+    fun setup() {
+        initCompilationTarget()
+        val outputDir = Files.createTempDirectory("prog8bench")
+        try {
+            val program = compileExample(example, optimize = true, writeAssembly = false, outputDir = outputDir)
+            identifiers.clear()
+            val collector = object : IAstVisitor {
+                override fun visit(identifier: IdentifierReference) {
+                    identifiers.add(identifier)
+                }
+            }
+            collector.visit(program)
+        } finally {
+            outputDir.toFile().deleteRecursively()
+        }
+    }
+
+    @Benchmark
+    fun lookupAllIdentifiers(blackhole: Blackhole) {
+        for(identifier in identifiers)
+            blackhole.consume(identifier.definingScope().lookup(identifier.nameInSource, identifier))
+    }
+}
@@ -0,0 +1,31 @@
+package prog8benchmarks
+
+import org.openjdk.jmh.annotations.*
+import prog8.compiler.target.c64.Petscii
+import java.util.concurrent.TimeUnit
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class PetsciiBenchmark {
+
+    @Param("true", "false")
+    var lowercase: Boolean = false
+
+    private val text = (1..50).joinToString("\n") {
+        "Line $it: The Quick Brown Fox Jumps Over The Lazy Dog! 0123456789 @#$%&*()[]+-=<>?/.,:;"
+    }
+    private lateinit var encoded: List<Short>
+
+    @Setup
+    fun setup() {
+        encoded = Petscii.encodePetscii(text, lowercase)
+    }
+
+    @Benchmark
+    fun encode(): List<Short> = Petscii.encodePetscii(text, lowercase)
+
+    @Benchmark
+    fun decode(): String = Petscii.decodePetscii(encoded, lowercase)
+}
@@ -0,0 +1,43 @@
+package prog8benchmarks
+
+import prog8.ast.Program
+import prog8.compiler.compileProgram
+import prog8.setCompilationTarget
+import java.io.OutputStream
+import java.io.PrintStream
+import java.nio.file.Path
+import java.nio.file.Paths
+
+
+internal val examplesDir: Path = Paths.get(System.getProperty("prog8.examples") ?: "examples")
+
+
+internal fun initCompilationTarget() {
+    if(!setCompilationTarget("c64"))
+        throw IllegalStateException("can't set compilation target")
+}
+
+
+internal fun compileExample(name: String, optimize: Boolean, writeAssembly: Boolean, outputDir: Path): Program {
+    val result = quietly {
+        compileProgram(examplesDir.resolve("$name.p8"), optimize, writeAssembly, outputDir)
+    }
+    if(!result.success)
+        throw IllegalStateException("compilation of example '$name' failed")
+    return result.programAst
+}
+
+
+// the compiler and vm are quite chatty, that's not something we want to measure
+internal fun <T> quietly(action: () -> T): T {
+    val originalOut = System.out
+    System.setOut(PrintStream(object: OutputStream() {
+        override fun write(b: Int) {}
+        override fun write(b: ByteArray, off: Int, len: Int) {}
+    }))
+    try {
+        return action()
+    } finally {
+        System.setOut(originalOut)
+    }
+}
@@ -9,12 +9,18 @@ import prog8.compiler.target.c64.Petscii
 import prog8.compiler.target.c64.codegen.AsmGen
 import prog8.compiler.target.clang.ClangGen
 import prog8.compiler.target.clang.ClangMachineDefinition
+import prog8.parser.AstCache
 import prog8.parser.ParsingFailedError
 import prog8.vm.astvm.AstVm
 import java.nio.file.FileSystems
 import java.nio.file.Path
 import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchService
 import java.time.LocalDateTime
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 import kotlin.system.exitProcess
 
 
@@ -34,6 +40,30 @@ internal fun printSoftwareHeader(what: String) {
 fun pathFrom(stringPath: String, vararg rest: String): Path  = FileSystems.getDefault().getPath(stringPath, *rest)
 
 
+fun setCompilationTarget(name: String): Boolean {
+    when(name) {
+        "c64" -> {
+            with(CompilationTarget) {
+                this.name = "c64"
+                machine = C64MachineDefinition
+                encodeString = { str -> Petscii.encodePetscii(str, true) }
+                asmGenerator = ::AsmGen
+            }
+        }
+        "clang" -> {
+            with(CompilationTarget) {
+                this.name = "clang"
+                machine = ClangMachineDefinition
+                encodeString = { str -> str.toByteArray().map { it.toShort()} }
+                asmGenerator = ::ClangGen
+            }
+        }
+        else -> return false
+    }
+    return true
+}
+
+
 private fun compileMain(args: Array<String>) {
     val cli = CommandLineInterface("prog8compiler")
     val startEmulator1 by cli.flagArgument("-emu", "auto-start the 'x64' C-64 emulator after successful compilation")
@@ -43,6 +73,11 @@ private fun compileMain(args: Array<String>) {
     val dontOptimize by cli.flagArgument("-noopt", "don't perform any optimizations")
     val launchSimulator by cli.flagArgument("-sim", "launch the prog8 virtual machine/simulator after compilation")
     val watchMode by cli.flagArgument("-watch", "continuous compilation mode (watches for file changes)")
+    val useAstCache by cli.flagArgument("-cache", "keep parsed modules in a cache directory in the output directory, to speed up subsequent compilations")
+    val showStats by cli.flagArgument("-stats", "print time, memory and ast size statistics of the compiler phases")
+    val writeStatsJson by cli.flagArgument("-statsjson", "write the compiler statistics to a json file in the output directory")
+    val builtinAssembler by cli.flagArgument("-builtinasm", "use the built-in assembler instead of 64tass")
+    val threads by cli.flagValueArgument("-j", "threads", "number of main modules to compile concurrently (default=1)", 1) { it.toInt() }
     val compilationTarget by cli.flagValueArgument("-target", "compilationtgt", "target output of the compiler, one of: c64, clang. default=c64", "c64")
     val moduleFiles by cli.positionalArgumentsList("modules", "main module file(s) to compile", minArgs = 1)
 
@@ -52,27 +87,9 @@ private fun compileMain(args: Array<String>) {
         exitProcess(1)
     }
 
-    when(compilationTarget) {
-        "c64" -> {
-            with(CompilationTarget) {
-                name = "c64"
-                machine = C64MachineDefinition
-                encodeString = { str -> Petscii.encodePetscii(str, true) }
-                asmGenerator = ::AsmGen
-            }
-        }
-        "clang" -> {
-            with(CompilationTarget) {
-                name = "clang"
-                machine = ClangMachineDefinition
-                encodeString = { str -> str.toByteArray().map { it.toShort()} }
-                asmGenerator = ::ClangGen
-            }
-        }
-        else -> {
-            System.err.println("invalid compilation target")
-            exitProcess(1)
-        }
+    if(!setCompilationTarget(compilationTarget)) {
+        System.err.println("invalid compilation target")
+        exitProcess(1)
     }
 
     val outputPath = pathFrom(outputDir)
@@ -82,6 +99,8 @@ private fun compileMain(args: Array<String>) {
     }
 
     if(watchMode && moduleFiles.size<=1) {
+        // the watch mode keeps the parsed modules in memory, so only the changed ones have to be parsed again
+        val astCache = AstCache(if(useAstCache) outputPath.resolve(".prog8cache") else null, keepInMemory = true)
         val watchservice = FileSystems.getDefault().newWatchService()
 
         while(true) {
@@ -89,32 +108,57 @@ private fun compileMain(args: Array<String>) {
             println("Continuous watch mode active. Main module: $filepath")
 
             try {
-                val compilationResult = compileProgram(filepath, !dontOptimize, !dontWriteAssembly, outputDir=outputPath)
+                val stats = if(showStats || writeStatsJson) CompilerStats() else null
+                val compilationResult = compileProgram(filepath, !dontOptimize, !dontWriteAssembly, outputDir=outputPath, astCache=astCache, stats=stats, builtinAssembler=builtinAssembler)
+                if(stats!=null)
+                    reportStats(stats, compilationResult.programAst.name, showStats, if(writeStatsJson) outputPath else null)
                 println("Imported files (now watching:)")
                 for (importedFile in compilationResult.importedFiles) {
                     print("  ")
                     println(importedFile)
-                    importedFile.parent.register(watchservice, StandardWatchEventKinds.ENTRY_MODIFY)
+                    importedFile.toAbsolutePath().parent.register(watchservice, StandardWatchEventKinds.ENTRY_MODIFY)
                 }
+                filepath.toAbsolutePath().parent.register(watchservice, StandardWatchEventKinds.ENTRY_MODIFY)
+                val watchedFiles = (compilationResult.importedFiles + filepath).map { it.toAbsolutePath().normalize() }.toSet()
                 println("[${LocalDateTime.now().withNano(0)}]  Waiting for file changes.")
-                val event = watchservice.take()
-                for(changed in event.pollEvents()) {
-                    val changedPath = changed.context() as Path
-                    println("  change detected: $changedPath")
-                }
-                event.reset()
-                println("\u001b[H\u001b[2J")      // clear the screen
+                waitForChanges(watchservice, watchedFiles)
+                println()
             } catch (x: Exception) {
                 throw x
             }
         }
 
     } else {
-        for(filepathRaw in moduleFiles) {
+        val astCache = if(useAstCache) AstCache(outputPath.resolve(".prog8cache")) else null
+        val compile = { filepathRaw: String ->
             val filepath = pathFrom(filepathRaw).normalize()
+            val stats = if(showStats || writeStatsJson) CompilerStats() else null
+            val result = compileProgram(filepath, !dontOptimize, !dontWriteAssembly, outputDir=outputPath, astCache=astCache, stats=stats, builtinAssembler=builtinAssembler)
+            if(stats!=null)
+                reportStats(stats, result.programAst.name, showStats, if(writeStatsJson) outputPath else null)
+            result
+        }
+        val compilations: List<() -> CompilationResult> =
+            if(threads>1 && moduleFiles.size>1) {
+                // all compiler state of a single compilation is confined to the thread it runs on
+                val executor = Executors.newFixedThreadPool(threads)
+                val futures = moduleFiles.map { executor.submit(Callable { compile(it) }) }
+                executor.shutdown()
+                futures.map { {
+                    try {
+                        it.get()
+                    } catch (x: ExecutionException) {
+                        throw x.cause ?: x
+                    }
+                } }
+            } else {
+                moduleFiles.map { { compile(it) } }
+            }
+
+        for(compilation in compilations) {
             val compilationResult: CompilationResult
             try {
-                compilationResult = compileProgram(filepath, !dontOptimize, !dontWriteAssembly, outputDir=outputPath)
+                compilationResult = compilation()
                 if(!compilationResult.success)
                     exitProcess(1)
             } catch (x: ParsingFailedError) {
@@ -144,3 +188,32 @@ private fun compileMain(args: Array<String>) {
         }
     }
 }
+
+
+private fun waitForChanges(watchservice: WatchService, watchedFiles: Set<Path>) {
+    val changes = mutableSetOf<Path>()
+    var key = watchservice.take()
+    while(true) {
+        val dir = key.watchable() as Path
+        for(event in key.pollEvents()) {
+            val changedPath = dir.resolve(event.context() as Path).toAbsolutePath().normalize()
+            if(changedPath in watchedFiles && changes.add(changedPath))
+                println("  change detected: $changedPath")
+        }
+        key.reset()
+        // editors often write a file in several steps, wait until things have settled down a bit
+        key = watchservice.poll(200, TimeUnit.MILLISECONDS) ?: if(changes.isEmpty()) watchservice.take() else return
+    }
+}
+
+
+private val statsOutputLock = Any()
+
+private fun reportStats(stats: CompilerStats, programName: String, print: Boolean, jsonOutputDir: Path?) {
+    synchronized(statsOutputLock) {
+        if(print)
+            stats.print()
+        if(jsonOutputDir!=null)
+            stats.writeJson(programName, jsonOutputDir.resolve("$programName.stats.json"))
+    }
+}
@@ -0,0 +1,755 @@
+package prog8.ast
+
+import prog8.ast.base.*
+import prog8.ast.expressions.*
+import prog8.ast.statements.*
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.file.Path
+
+
+/*
+ * Compact binary encoding of a module's Ast, as it is produced by the parser.
+ * Parent links are not stored, they're re-established with linkParents() after reading.
+ * Strings are written only once and referred to by index afterwards.
+ */
+
+private object Tag {
+    const val NULL = 0
+
+    const val BLOCK = 1
+    const val DIRECTIVE = 2
+    const val LABEL = 3
+    const val RETURN = 4
+    const val RETURNFROMIRQ = 5
+    const val CONTINUE = 6
+    const val BREAK = 7
+    const val VARDECL = 8
+    const val ASSIGNMENT = 9
+    const val VARINITASSIGNMENT = 10
+    const val POSTINCRDECR = 11
+    const val JUMP = 12
+    const val FUNCTIONCALLSTATEMENT = 13
+    const val INLINEASSEMBLY = 14
+    const val ANONYMOUSSCOPE = 15
+    const val NOP = 16
+    const val SUBROUTINE = 17
+    const val IF = 18
+    const val BRANCH = 19
+    const val FORLOOP = 20
+    const val WHILELOOP = 21
+    const val REPEATLOOP = 22
+    const val WHEN = 23
+    const val STRUCTDECL = 24
+
+    const val PREFIX = 40
+    const val BINARY = 41
+    const val ARRAYINDEXED = 42
+    const val TYPECAST = 43
+    const val ADDRESSOF = 44
+    const val MEMORYREAD = 45
+    const val NUMERIC = 46
+    const val STRUCTLITERAL = 47
+    const val STRING = 48
+    const val ARRAY = 49
+    const val RANGE = 50
+    const val REGISTER = 51
+    const val IDENTIFIER = 52
+    const val FUNCTIONCALL = 53
+
+    const val NUMBER_INT = 0
+    const val NUMBER_SHORT = 1
+    const val NUMBER_BYTE = 2
+    const val NUMBER_LONG = 3
+    const val NUMBER_DOUBLE = 4
+    const val NUMBER_FLOAT = 5
+}
+
+
+class AstBinaryWriter(private val out: DataOutputStream,
+                      private val anonymousScopeOrdinal: (AnonymousScope) -> Int) {
+
+    private val strings = mutableMapOf<String, Int>()
+
+    fun write(module: Module) {
+        writeString(module.name)
+        writePosition(module.position)
+        out.writeBoolean(module.isLibraryModule)
+        writeStatements(module.statements)
+    }
+
+    fun write(stmt: Statement) = writeStatement(stmt)
+
+    private fun writeInt(value: Int) {
+        // zigzag + variable length encoding, small numbers take a single byte
+        var v = (value shl 1) xor (value shr 31)
+        while(v and 0x7f.inv() != 0) {
+            out.writeByte((v and 0x7f) or 0x80)
+            v = v ushr 7
+        }
+        out.writeByte(v)
+    }
+
+    private fun writeNullableInt(value: Int?) {
+        out.writeBoolean(value!=null)
+        if(value!=null)
+            writeInt(value)
+    }
+
+    private fun writeString(str: String?) {
+        if(str==null) {
+            writeInt(0)
+            return
+        }
+        val index = strings[str]
+        if(index!=null) {
+            writeInt(index + 2)
+        } else {
+            strings[str] = strings.size
+            writeInt(1)
+            val bytes = str.toByteArray(Charsets.UTF_8)
+            writeInt(bytes.size)
+            out.write(bytes)
+        }
+    }
+
+    private fun writeEnum(value: Enum<*>?) = writeInt(value?.ordinal ?: -1)
+
+    private fun writePosition(position: Position) {
+        writeString(position.file)
+        writeInt(position.line)
+        writeInt(position.startCol)
+        writeInt(position.endCol)
+    }
+
+    private fun writeNumber(number: Number) {
+        when(number) {
+            is Int -> { out.writeByte(Tag.NUMBER_INT); writeInt(number) }
+            is Short -> { out.writeByte(Tag.NUMBER_SHORT); writeInt(number.toInt()) }
+            is Byte -> { out.writeByte(Tag.NUMBER_BYTE); writeInt(number.toInt()) }
+            is Long -> { out.writeByte(Tag.NUMBER_LONG); out.writeLong(number) }
+            is Double -> { out.writeByte(Tag.NUMBER_DOUBLE); out.writeDouble(number) }
+            is Float -> { out.writeByte(Tag.NUMBER_FLOAT); out.writeFloat(number) }
+            else -> throw IOException("can't encode number of type ${number.javaClass}")
+        }
+    }
+
+    private fun writeStatements(statements: List<Statement>) {
+        writeInt(statements.size)
+        statements.forEach { writeStatement(it) }
+    }
+
+    private fun writeExpressions(expressions: List<Expression>?) {
+        if(expressions==null) {
+            writeInt(-1)
+            return
+        }
+        writeInt(expressions.size)
+        expressions.forEach { writeExpression(it) }
+    }
+
+    private fun writeStatement(stmt: Statement) {
+        when(stmt) {
+            is Block -> {
+                out.writeByte(Tag.BLOCK)
+                writeString(stmt.name)
+                writeNullableInt(stmt.address)
+                out.writeBoolean(stmt.isInLibrary)
+                writeStatements(stmt.statements)
+            }
+            is Directive -> {
+                out.writeByte(Tag.DIRECTIVE)
+                writeString(stmt.directive)
+                writeInt(stmt.args.size)
+                for(arg in stmt.args) {
+                    writeString(arg.str)
+                    writeString(arg.name)
+                    writeNullableInt(arg.int)
+                    writePosition(arg.position)
+                }
+            }
+            is Label -> {
+                out.writeByte(Tag.LABEL)
+                writeString(stmt.name)
+            }
+            is ReturnFromIrq -> out.writeByte(Tag.RETURNFROMIRQ)
+            is Return -> {
+                out.writeByte(Tag.RETURN)
+                writeExpression(stmt.value)
+            }
+            is Continue -> out.writeByte(Tag.CONTINUE)
+            is Break -> out.writeByte(Tag.BREAK)
+            is VarDecl -> {
+                out.writeByte(Tag.VARDECL)
+                writeEnum(stmt.type)
+                writeEnum(stmt.declaredDatatype)
+                writeEnum(stmt.zeropage)
+                writeArrayIndex(stmt.arraysize)
+                writeString(stmt.name)
+                writeString(stmt.structName)
+                writeExpression(stmt.value)
+                out.writeBoolean(stmt.isArray)
+                out.writeBoolean(stmt.autogeneratedDontRemove)
+            }
+            is Assignment -> {
+                out.writeByte(if(stmt is VariableInitializationAssignment) Tag.VARINITASSIGNMENT else Tag.ASSIGNMENT)
+                writeAssignTarget(stmt.target)
+                writeString(stmt.aug_op)
+                writeExpression(stmt.value)
+            }
+            is PostIncrDecr -> {
+                out.writeByte(Tag.POSTINCRDECR)
+                writeAssignTarget(stmt.target)
+                writeString(stmt.operator)
+            }
+            is Jump -> {
+                out.writeByte(Tag.JUMP)
+                writeNullableInt(stmt.address)
+                writeExpression(stmt.identifier)
+                writeString(stmt.generatedLabel)
+            }
+            is FunctionCallStatement -> {
+                out.writeByte(Tag.FUNCTIONCALLSTATEMENT)
+                writeExpression(stmt.target)
+                writeExpressions(stmt.arglist)
+            }
+            is InlineAssembly -> {
+                out.writeByte(Tag.INLINEASSEMBLY)
+                writeString(stmt.assembly)
+            }
+            is AnonymousScope -> {
+                out.writeByte(Tag.ANONYMOUSSCOPE)
+                writeAnonymousScopeContents(stmt)
+            }
+            is NopStatement -> out.writeByte(Tag.NOP)
+            is Subroutine -> {
+                out.writeByte(Tag.SUBROUTINE)
+                writeString(stmt.name)
+                writeInt(stmt.parameters.size)
+                for(param in stmt.parameters) {
+                    writeString(param.name)
+                    writeEnum(param.type)
+                    writePosition(param.position)
+                }
+                writeInt(stmt.returntypes.size)
+                stmt.returntypes.forEach { writeEnum(it) }
+                writeRegisterOrStatusflags(stmt.asmParameterRegisters)
+                writeRegisterOrStatusflags(stmt.asmReturnvaluesRegisters)
+                writeInt(stmt.asmClobbers.size)
+                stmt.asmClobbers.forEach { writeEnum(it) }
+                writeNullableInt(stmt.asmAddress)
+                out.writeBoolean(stmt.isAsmSubroutine)
+                out.writeBoolean(stmt.keepAlways)
+                writeStatements(stmt.statements)
+            }
+            is IfStatement -> {
+                out.writeByte(Tag.IF)
+                writeExpression(stmt.condition)
+                writeAnonymousScope(stmt.truepart)
+                writeAnonymousScope(stmt.elsepart)
+            }
+            is BranchStatement -> {
+                out.writeByte(Tag.BRANCH)
+                writeEnum(stmt.condition)
+                writeAnonymousScope(stmt.truepart)
+                writeAnonymousScope(stmt.elsepart)
+            }
+            is ForLoop -> {
+                out.writeByte(Tag.FORLOOP)
+                writeEnum(stmt.loopRegister)
+                writeExpression(stmt.loopVar)
+                writeExpression(stmt.iterable)
+                writeAnonymousScope(stmt.body)
+            }
+            is WhileLoop -> {
+                out.writeByte(Tag.WHILELOOP)
+                writeExpression(stmt.condition)
+                writeAnonymousScope(stmt.body)
+            }
+            is RepeatLoop -> {
+                out.writeByte(Tag.REPEATLOOP)
+                writeAnonymousScope(stmt.body)
+                writeExpression(stmt.untilCondition)
+            }
+            is WhenStatement -> {
+                out.writeByte(Tag.WHEN)
+                writeExpression(stmt.condition)
+                writeInt(stmt.choices.size)
+                for(choice in stmt.choices) {
+                    writeExpressions(choice.values)
+                    writeAnonymousScope(choice.statements)
+                    writePosition(choice.position)
+                }
+            }
+            is StructDecl -> {
+                out.writeByte(Tag.STRUCTDECL)
+                writeString(stmt.name)
+                writeStatements(stmt.statements)
+            }
+            is BuiltinFunctionStatementPlaceholder -> throw IOException("builtin function placeholder can't be encoded")
+        }
+        writePosition(stmt.position)
+    }
+
+    private fun writeAnonymousScope(scope: AnonymousScope) {
+        writeAnonymousScopeContents(scope)
+        writePosition(scope.position)
+    }
+
+    private fun writeAnonymousScopeContents(scope: AnonymousScope) {
+        writeInt(anonymousScopeOrdinal(scope))
+        writeStatements(scope.statements)
+    }
+
+    private fun writeRegisterOrStatusflags(registers: List<RegisterOrStatusflag>) {
+        writeInt(registers.size)
+        for(reg in registers) {
+            writeEnum(reg.registerOrPair)
+            writeEnum(reg.statusflag)
+            out.writeBoolean(reg.stack)
+        }
+    }
+
+    private fun writeArrayIndex(arrayIndex: ArrayIndex?) {
+        out.writeBoolean(arrayIndex!=null)
+        if(arrayIndex!=null) {
+            writeExpression(arrayIndex.index)
+            writePosition(arrayIndex.position)
+        }
+    }
+
+    private fun writeAssignTarget(target: AssignTarget) {
+        writeEnum(target.register)
+        writeExpression(target.identifier)
+        writeExpression(target.arrayindexed)
+        out.writeBoolean(target.memoryAddress!=null)
+        if(target.memoryAddress!=null) {
+            writeExpression(target.memoryAddress.addressExpression)
+            writePosition(target.memoryAddress.position)
+        }
+        writePosition(target.position)
+    }
+
+    private fun writeExpression(expr: Expression?) {
+        when(expr) {
+            null -> {
+                out.writeByte(Tag.NULL)
+                return
+            }
+            is PrefixExpression -> {
+                out.writeByte(Tag.PREFIX)
+                writeString(expr.operator)
+                writeExpression(expr.expression)
+            }
+            is BinaryExpression -> {
+                out.writeByte(Tag.BINARY)
+                writeExpression(expr.left)
+                writeString(expr.operator)
+                writeExpression(expr.right)
+            }
+            is ArrayIndexedExpression -> {
+                out.writeByte(Tag.ARRAYINDEXED)
+                writeExpression(expr.identifier)
+                writeArrayIndex(expr.arrayspec)
+            }
+            is TypecastExpression -> {
+                out.writeByte(Tag.TYPECAST)
+                writeExpression(expr.expression)
+                writeEnum(expr.type)
+                out.writeBoolean(expr.implicit)
+            }
+            is AddressOf -> {
+                out.writeByte(Tag.ADDRESSOF)
+                writeExpression(expr.identifier)
+            }
+            is DirectMemoryRead -> {
+                out.writeByte(Tag.MEMORYREAD)
+                writeExpression(expr.addressExpression)
+            }
+            is NumericLiteralValue -> {
+                out.writeByte(Tag.NUMERIC)
+                writeEnum(expr.type)
+                writeNumber(expr.number)
+            }
+            is StructLiteralValue -> {
+                out.writeByte(Tag.STRUCTLITERAL)
+                writeExpressions(expr.values)
+            }
+            is StringLiteralValue -> {
+                out.writeByte(Tag.STRING)
+                writeEnum(expr.type)
+                writeString(expr.value)
+            }
+            is ArrayLiteralValue -> {
+                out.writeByte(Tag.ARRAY)
+                writeEnum(expr.type)
+                writeExpressions(expr.value.asList())
+                writeNullableInt(expr.heapId)
+            }
+            is RangeExpr -> {
+                out.writeByte(Tag.RANGE)
+                writeExpression(expr.from)
+                writeExpression(expr.to)
+                writeExpression(expr.step)
+            }
+            is RegisterExpr -> {
+                out.writeByte(Tag.REGISTER)
+                writeEnum(expr.register)
+            }
+            is IdentifierReference -> {
+                out.writeByte(Tag.IDENTIFIER)
+                writeInt(expr.nameInSource.size)
+                expr.nameInSource.forEach { writeString(it) }
+            }
+            is FunctionCall -> {
+                out.writeByte(Tag.FUNCTIONCALL)
+                writeExpression(expr.target)
+                writeExpressions(expr.arglist)
+            }
+        }
+        writePosition(expr.position)
+    }
+}
+
+
+class AstBinaryReader(private val input: DataInputStream) {
+
+    private val strings = mutableListOf<String>()
+    private val anonymousScopes = mutableListOf<Pair<Int, AnonymousScope>>()
+
+    /**
+     * The anonymous scopes that have been read, in the order of the ordinals they were written with.
+     */
+    val orderedAnonymousScopes: List<AnonymousScope>
+        get() = anonymousScopes.sortedBy { it.first }.map { it.second }
+
+    fun readModule(source: Path): Module {
+        val name = readString()!!
+        val position = readPosition()
+        val isLibrary = input.readBoolean()
+        val statements = readStatements()
+        return Module(name, statements, position, isLibrary, source)
+    }
+
+    fun readStatement(): Statement {
+        val tag = input.readUnsignedByte()
+        val stmt: Statement = when(tag) {
+            Tag.BLOCK -> {
+                val name = readString()!!
+                val address = readNullableInt()
+                val isInLibrary = input.readBoolean()
+                val statements = readStatements()
+                Block(name, address, statements, isInLibrary, readPosition())
+            }
+            Tag.DIRECTIVE -> {
+                val directive = readString()!!
+                val args = (0 until readInt()).map {
+                    val str = readString()
+                    val name = readString()
+                    val int = readNullableInt()
+                    DirectiveArg(str, name, int, readPosition())
+                }
+                Directive(directive, args, readPosition())
+            }
+            Tag.LABEL -> Label(readString()!!, readPosition())
+            Tag.RETURNFROMIRQ -> ReturnFromIrq(readPosition())
+            Tag.RETURN -> {
+                val value = readExpression()
+                Return(value, readPosition())
+            }
+            Tag.CONTINUE -> Continue(readPosition())
+            Tag.BREAK -> Break(readPosition())
+            Tag.VARDECL -> {
+                val type = VarDeclType.values()[readInt()]
+                val declaredDatatype = DataType.values()[readInt()]
+                val zeropage = ZeropageWish.values()[readInt()]
+                val arraysize = readArrayIndex()
+                val name = readString()!!
+                val structName = readString()
+                val value = readExpression()
+                val isArray = input.readBoolean()
+                val autogenerated = input.readBoolean()
+                VarDecl(type, declaredDatatype, zeropage, arraysize, name, structName, value, isArray, autogenerated, readPosition())
+            }
+            Tag.ASSIGNMENT, Tag.VARINITASSIGNMENT -> {
+                val target = readAssignTarget()
+                val augOp = readString()
+                val value = readExpression()!!
+                if(tag==Tag.VARINITASSIGNMENT)
+                    VariableInitializationAssignment(target, augOp, value, readPosition())
+                else
+                    Assignment(target, augOp, value, readPosition())
+            }
+            Tag.POSTINCRDECR -> {
+                val target = readAssignTarget()
+                PostIncrDecr(target, readString()!!, readPosition())
+            }
+            Tag.JUMP -> {
+                val address = readNullableInt()
+                val identifier = readExpression() as IdentifierReference?
+                val label = readString()
+                Jump(address, identifier, label, readPosition())
+            }
+            Tag.FUNCTIONCALLSTATEMENT -> {
+                val target = readExpression() as IdentifierReference
+                val args = readExpressions()!!.toMutableList()
+                FunctionCallStatement(target, args, readPosition())
+            }
+            Tag.INLINEASSEMBLY -> InlineAssembly(readString()!!, readPosition())
+            Tag.ANONYMOUSSCOPE -> readAnonymousScope()
+            Tag.NOP -> NopStatement(readPosition())
+            Tag.SUBROUTINE -> {
+                val name = readString()!!
+                val parameters = (0 until readInt()).map {
+                    val paramName = readString()!!
+                    val type = DataType.values()[readInt()]
+                    SubroutineParameter(paramName, type, readPosition())
+                }
+                val returntypes = (0 until readInt()).map { DataType.values()[readInt()] }
+                val paramRegisters = readRegisterOrStatusflags()
+                val returnRegisters = readRegisterOrStatusflags()
+                val clobbers = (0 until readInt()).map { Register.values()[readInt()] }.toSet()
+                val address = readNullableInt()
+                val isAsm = input.readBoolean()
+                val keepAlways = input.readBoolean()
+                val statements = readStatements()
+                val sub = Subroutine(name, parameters, returntypes, paramRegisters, returnRegisters, clobbers,
+                        address, isAsm, statements, readPosition())
+                sub.keepAlways = keepAlways
+                sub
+            }
+            Tag.IF -> {
+                val condition = readExpression()!!
+                val truepart = readAnonymousScope()
+                val elsepart = readAnonymousScope()
+                IfStatement(condition, truepart, elsepart, readPosition())
+            }
+            Tag.BRANCH -> {
+                val condition = BranchCondition.values()[readInt()]
+                val truepart = readAnonymousScope()
+                val elsepart = readAnonymousScope()
+                BranchStatement(condition, truepart, elsepart, readPosition())
+            }
+            Tag.FORLOOP -> {
+                val register = readEnum(Register.values())
+                val loopvar = readExpression() as IdentifierReference?
+                val iterable = readExpression()!!
+                val body = readAnonymousScope()
+                ForLoop(register, loopvar, iterable, body, readPosition())
+            }
+            Tag.WHILELOOP -> {
+                val condition = readExpression()!!
+                val body = readAnonymousScope()
+                WhileLoop(condition, body, readPosition())
+            }
+            Tag.REPEATLOOP -> {
+                val body = readAnonymousScope()
+                val untilCondition = readExpression()!!
+                RepeatLoop(body, untilCondition, readPosition())
+            }
+            Tag.WHEN -> {
+                val condition = readExpression()!!
+                val choices = (0 until readInt()).map {
+                    val values = readExpressions()
+                    val statements = readAnonymousScope()
+                    WhenChoice(values, statements, readPosition())
+                }.toMutableList()
+                WhenStatement(condition, choices, readPosition())
+            }
+            Tag.STRUCTDECL -> {
+                val name = readString()!!
+                val statements = readStatements()
+                StructDecl(name, statements, readPosition())
+            }
+            else -> throw IOException("invalid statement tag $tag")
+        }
+        return stmt
+    }
+
+    private fun readInt(): Int {
+        var result = 0
+        var shift = 0
+        while(true) {
+            val b = input.readUnsignedByte()
+            result = result or ((b and 0x7f) shl shift)
+            if(b and 0x80 == 0)
+                break
+            shift += 7
+            if(shift>31)
+                throw IOException("malformed integer")
+        }
+        return (result ushr 1) xor -(result and 1)
+    }
+
+    private fun readNullableInt(): Int? = if(input.readBoolean()) readInt() else null
+
+    private fun readString(): String? {
+        return when(val index = readInt()) {
+            0 -> null
+            1 -> {
+                val bytes = ByteArray(readInt())
+                input.readFully(bytes)
+                val str = String(bytes, Charsets.UTF_8)
+                strings.add(str)
+                str
+            }
+            else -> strings.getOrNull(index-2) ?: throw IOException("invalid string reference")
+        }
+    }
+
+    private fun <T: Enum<T>> readEnum(values: Array<T>): T? {
+        val ordinal = readInt()
+        return if(ordinal<0) null else values[ordinal]
+    }
+
+    private fun readPosition(): Position {
+        val file = readString()!!
+        val line = readInt()
+        val startCol = readInt()
+        val endCol = readInt()
+        return Position(file, line, startCol, endCol)
+    }
+
+    private fun readNumber(): Number {
+        return when(val kind = input.readUnsignedByte()) {
+            Tag.NUMBER_INT -> readInt()
+            Tag.NUMBER_SHORT -> readInt().toShort()
+            Tag.NUMBER_BYTE -> readInt().toByte()
+            Tag.NUMBER_LONG -> input.readLong()
+            Tag.NUMBER_DOUBLE -> input.readDouble()
+            Tag.NUMBER_FLOAT -> input.readFloat()
+            else -> throw IOException("invalid number kind $kind")
+        }
+    }
+
+    private fun readStatements(): MutableList<Statement> = (0 until readInt()).map { readStatement() }.toMutableList()
+
+    private fun readExpressions(): List<Expression>? {
+        val size = readInt()
+        if(size<0)
+            return null
+        return (0 until size).map { readExpression()!! }
+    }
+
+    private fun readAnonymousScope(): AnonymousScope {
+        val ordinal = readInt()
+        val statements = readStatements()
+        val scope = AnonymousScope(statements, readPosition())
+        anonymousScopes.add(Pair(ordinal, scope))
+        return scope
+    }
+
+    private fun readRegisterOrStatusflags(): List<RegisterOrStatusflag> {
+        return (0 until readInt()).map {
+            val registerOrPair = readEnum(RegisterOrPair.values())
+            val statusflag = readEnum(Statusflag.values())
+            RegisterOrStatusflag(registerOrPair, statusflag, input.readBoolean())
+        }
+    }
+
+    private fun readArrayIndex(): ArrayIndex? {
+        if(!input.readBoolean())
+            return null
+        val index = readExpression()!!
+        return ArrayIndex(index, readPosition())
+    }
+
+    private fun readAssignTarget(): AssignTarget {
+        val register = readEnum(Register.values())
+        val identifier = readExpression() as IdentifierReference?
+        val arrayindexed = readExpression() as ArrayIndexedExpression?
+        val memoryAddress = if(input.readBoolean()) {
+            val address = readExpression()!!
+            DirectMemoryWrite(address, readPosition())
+        } else null
+        return AssignTarget(register, identifier, arrayindexed, memoryAddress, readPosition())
+    }
+
+    private fun readExpression(): Expression? {
+        val tag = input.readUnsignedByte()
+        return when(tag) {
+            Tag.NULL -> null
+            Tag.PREFIX -> {
+                val operator = readString()!!
+                val expr = readExpression()!!
+                PrefixExpression(operator, expr, readPosition())
+            }
+            Tag.BINARY -> {
+                val left = readExpression()!!
+                val operator = readString()!!
+                val right = readExpression()!!
+                BinaryExpression(left, operator, right, readPosition())
+            }
+            Tag.ARRAYINDEXED -> {
+                val identifier = readExpression() as IdentifierReference
+                val arrayspec = readArrayIndex()!!
+                ArrayIndexedExpression(identifier, arrayspec, readPosition())
+            }
+            Tag.TYPECAST -> {
+                val expr = readExpression()!!
+                val type = DataType.values()[readInt()]
+                val implicit = input.readBoolean()
+                TypecastExpression(expr, type, implicit, readPosition())
+            }
+            Tag.ADDRESSOF -> {
+                val identifier = readExpression() as IdentifierReference
+                AddressOf(identifier, readPosition())
+            }
+            Tag.MEMORYREAD -> {
+                val address = readExpression()!!
+                DirectMemoryRead(address, readPosition())
+            }
+            Tag.NUMERIC -> {
+                val type = DataType.values()[readInt()]
+                val number = readNumber()
+                NumericLiteralValue(type, number, readPosition())
+            }
+            Tag.STRUCTLITERAL -> {
+                val values = readExpressions()!!
+                StructLiteralValue(values, readPosition())
+            }
+            Tag.STRING -> {
+                val type = DataType.values()[readInt()]
+                val value = readString()!!
+                StringLiteralValue(type, value, readPosition())
+            }
+            Tag.ARRAY -> {
+                val type = DataType.values()[readInt()]
+                val values = readExpressions()!!.toTypedArray()
+                val heapId = readNullableInt()
+                ArrayLiteralValue(type, values, heapId, readPosition())
+            }
+            Tag.RANGE -> {
+                val from = readExpression()!!
+                val to = readExpression()!!
+                val step = readExpression()!!
+                RangeExpr(from, to, step, readPosition())
+            }
+            Tag.REGISTER -> RegisterExpr(Register.values()[readInt()], readPosition())
+            Tag.IDENTIFIER -> {
+                val name = (0 until readInt()).map { readString()!! }
+                IdentifierReference(name, readPosition())
+            }
+            Tag.FUNCTIONCALL -> {
+                val target = readExpression() as IdentifierReference
+                val args = readExpressions()!!.toMutableList()
+                FunctionCall(target, args, readPosition())
+            }
+            else -> throw IOException("invalid expression tag $tag")
+        }
+    }
+}
+
+
+/**
+ * A deep copy of the statement, made by writing it and reading it back.
+ * The copy isn't linked to a parent yet, and its anonymous scopes get new names.
+ */
+fun Statement.deepCopy(): Statement {
+    val bytes = ByteArrayOutputStream()
+    DataOutputStream(bytes).use { AstBinaryWriter(it) { 0 }.write(this) }
+    return DataInputStream(ByteArrayInputStream(bytes.toByteArray())).use { AstBinaryReader(it).readStatement() }
+}
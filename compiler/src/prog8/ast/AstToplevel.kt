@@ -48,48 +48,10 @@ interface INameScope {
 
     fun linkParents(parent: Node)
 
-    fun subScopes(): Map<String, INameScope> {
-        val subscopes = mutableMapOf<String, INameScope>()
-        for(stmt in statements) {
-            when(stmt) {
-                // NOTE: if other nodes are introduced that are a scope, or contain subscopes, they must be added here!
-                is ForLoop -> subscopes[stmt.body.name] = stmt.body
-                is RepeatLoop -> subscopes[stmt.body.name] = stmt.body
-                is WhileLoop -> subscopes[stmt.body.name] = stmt.body
-                is BranchStatement -> {
-                    subscopes[stmt.truepart.name] = stmt.truepart
-                    if(stmt.elsepart.containsCodeOrVars())
-                        subscopes[stmt.elsepart.name] = stmt.elsepart
-                }
-                is IfStatement -> {
-                    subscopes[stmt.truepart.name] = stmt.truepart
-                    if(stmt.elsepart.containsCodeOrVars())
-                        subscopes[stmt.elsepart.name] = stmt.elsepart
-                }
-                is WhenStatement -> {
-                    stmt.choices.forEach { subscopes[it.statements.name] = it.statements }
-                }
-                is INameScope -> subscopes[stmt.name] = stmt
-                else -> {}
-            }
-        }
-        return subscopes
-    }
+    fun subScopes(): Map<String, INameScope> = ScopeSymbols.of(this).subScopes
 
-    fun getLabelOrVariable(name: String): Statement? {
-        // this is called A LOT and could perhaps be optimized a bit more,
-        // but adding a memoization cache didn't make much of a practical runtime difference
-        for (stmt in statements) {
-            if (stmt is VarDecl && stmt.name==name) return stmt
-            if (stmt is Label && stmt.name==name) return stmt
-            if (stmt is AnonymousScope) {
-                val sub = stmt.getLabelOrVariable(name)
-                if(sub!=null)
-                    return sub
-            }
-        }
-        return null
-    }
+    // this is called A LOT, so it uses the scope's symbol index instead of scanning the statements
+    fun getLabelOrVariable(name: String): Statement? = ScopeSymbols.of(this).labelsAndVariables[name]
 
     fun allDefinedSymbols(): List<Pair<String, Statement>>  {
         return statements.mapNotNull {
@@ -190,10 +152,12 @@ class Program(val name: String, val modules: MutableList<Module>) {
 }
 
 class Module(override val name: String,
-             override var statements: MutableList<Statement>,
+             statements: MutableList<Statement>,
              override val position: Position,
              val isLibraryModule: Boolean,
              val source: Path) : Node, INameScope {
+    override var statements: MutableList<Statement> = StatementList.of(statements, this)
+        set(value) { field = StatementList.replace(field, value, this) }
     override lateinit var parent: Node
     lateinit var program: Program
     val importedBy = mutableListOf<Module>()
@@ -214,7 +178,7 @@ class Module(override val name: String,
 class GlobalNamespace(val modules: List<Module>): Node, INameScope {
     override val name = "<<<global>>>"
     override val position = Position("<<<global>>>", 0, 0, 0)
-    override val statements = mutableListOf<Statement>()
+    override val statements: MutableList<Statement> = StatementList(emptyList(), this)
     override var parent: Node = ParentSentinel
 
     override fun linkParents(parent: Node) {
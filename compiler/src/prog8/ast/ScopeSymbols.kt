@@ -0,0 +1,202 @@
+package prog8.ast
+
+import prog8.ast.expressions.subtreeChanged
+import prog8.ast.statements.*
+import java.util.*
+import java.util.function.Predicate
+import java.util.function.UnaryOperator
+
+
+/**
+ * Counts the changes made to the Ast, so the optimizers can see if visiting a part of it changed anything.
+ * Every thread has its own count, because every thread compiles its own program.
+ */
+internal class AstModifications {
+    var count = 0L
+        private set
+
+    companion object {
+        private val modifications = ThreadLocal.withInitial { AstModifications() }
+
+        val current: AstModifications
+            get() = modifications.get()
+
+        fun record() {
+            modifications.get().count++
+        }
+    }
+}
+
+
+/**
+ * Puts [new] in the place of the child node [old]: the change is recorded,
+ * and the new node is linked to its parent right away so the parent links don't have to be redone later.
+ */
+internal fun <T: Node?> Node.replaceChild(old: T, new: T): T {
+    if(new!==old) {
+        AstModifications.record()
+        new?.linkParents(this)
+        subtreeChanged()
+        if(old is INameScope || new is INameScope)
+            scopeSymbolsChanged()
+    }
+    return new
+}
+
+
+/**
+ * Drops the symbol index of the scope this node is in (or is itself), so it is built again when it's needed.
+ * The labels, variables and empty else parts of an anonymous scope are part of the index of the scope around it,
+ * so that one is dropped as well.
+ */
+internal fun Node.scopeSymbolsChanged() {
+    var node: Node? = this
+    while(node!=null) {
+        if(node is INameScope) {
+            (node.statements as? StatementList)?.symbolsChanged()
+            if(node !is AnonymousScope)
+                return
+        }
+        node = node.linkedParent()
+    }
+}
+
+internal fun Node.linkedParent(): Node? =
+        try {
+            parent.takeIf { it!==this }
+        } catch(x: UninitializedPropertyAccessException) {
+            null        // not in the Ast yet
+        }
+
+
+/**
+ * A list of the child nodes of [owner], that records every change to it in [AstModifications].
+ * Nodes that are put into the list are linked to the owner.
+ * If the nodes in the list are (or contain) scopes, a change also drops the symbol index of the scope of the owner.
+ */
+open class TrackedList<T: Node>(elements: Collection<T>, val owner: Node, private val containsScopes: Boolean = false) : ArrayList<T>(elements) {
+    private fun linked(element: T) = element.also { it.linkParents(owner) }
+    private fun linked(elements: Collection<T>) = elements.onEach { it.linkParents(owner) }
+
+    private fun changed() {
+        AstModifications.record()
+        owner.subtreeChanged()
+        if(containsScopes)
+            owner.scopeSymbolsChanged()
+    }
+
+    override fun add(element: T) = super.add(linked(element)).also { changed() }
+    override fun add(index: Int, element: T) = super.add(index, linked(element)).also { changed() }
+    override fun addAll(elements: Collection<T>) = super.addAll(linked(elements)).also { changed() }
+    override fun addAll(index: Int, elements: Collection<T>) = super.addAll(index, linked(elements)).also { changed() }
+    override fun set(index: Int, element: T): T = super.set(index, linked(element)).also { changed() }
+    override fun remove(element: T) = super.remove(element).also { changed() }
+    override fun removeAt(index: Int): T = super.removeAt(index).also { changed() }
+    override fun removeAll(elements: Collection<T>) = super.removeAll(elements).also { changed() }
+    override fun retainAll(elements: Collection<T>) = super.retainAll(elements).also { changed() }
+    override fun removeIf(filter: Predicate<in T>) = super.removeIf(filter).also { changed() }
+    override fun replaceAll(operator: UnaryOperator<T>) = super.replaceAll { linked(operator.apply(it)) }.also { changed() }
+    override fun sort(c: Comparator<in T>?) = super.sort(c).also { changed() }
+    override fun clear() = super.clear().also { changed() }
+    override fun removeRange(fromIndex: Int, toIndex: Int) = super.removeRange(fromIndex, toIndex).also { changed() }
+
+    companion object {
+        // used when a node gets a new list of child nodes; if they're all the same as before, nothing changes.
+        fun <T: Node> replace(current: MutableList<T>, elements: MutableList<T>, owner: Node): MutableList<T> {
+            if(!linkReplacements(current, elements, owner))
+                return current
+            val containsScopes = current is TrackedList<*> && current.containsScopes
+            @Suppress("UNCHECKED_CAST")
+            return if(elements is TrackedList<*> && elements.owner===owner) elements else TrackedList(elements, owner, containsScopes)
+        }
+
+        fun <T> sameElements(list1: List<T>, list2: List<T>) =
+                list1===list2 || (list1.size==list2.size && list1.indices.all { list1[it]===list2[it] })
+
+        internal fun <T: Node> linkReplacements(current: List<T>, elements: List<T>, owner: Node): Boolean {
+            if(sameElements(current, elements))
+                return false
+            AstModifications.record()
+            owner.subtreeChanged()
+            if(current is TrackedList<*> && current.containsScopes)
+                owner.scopeSymbolsChanged()
+            val previous = Collections.newSetFromMap(IdentityHashMap<T, Boolean>())
+            previous.addAll(current)
+            elements.filter { it !in previous }.forEach { it.linkParents(owner) }
+            return true
+        }
+    }
+}
+
+
+/**
+ * The statements of a scope, with a lazily built index of the symbols defined in it.
+ * The index is kept until the statements of the scope change (see [scopeSymbolsChanged]).
+ */
+class StatementList(elements: Collection<Statement>, owner: Node) : TrackedList<Statement>(elements, owner, true) {
+    private var symbols: ScopeSymbols? = null
+
+    internal fun symbols(): ScopeSymbols = symbols ?: ScopeSymbols.of(this).also { symbols = it }
+
+    internal fun symbolsChanged() {
+        symbols = null
+    }
+
+    companion object {
+        fun of(statements: MutableList<Statement>, owner: Node) =
+                if(statements is StatementList && statements.owner===owner) statements else StatementList(statements, owner)
+
+        internal fun replace(current: MutableList<Statement>, statements: MutableList<Statement>, owner: Node): MutableList<Statement> =
+                if(linkReplacements(current, statements, owner)) of(statements, owner) else current
+    }
+}
+
+
+/**
+ * Hash indexes of the labels and variables, and of the sub scopes, that are defined in a scope.
+ * Labels and variables defined in directly nested anonymous scopes are included, the first definition wins.
+ */
+internal class ScopeSymbols(val labelsAndVariables: Map<String, Statement>, val subScopes: Map<String, INameScope>) {
+    companion object {
+        fun of(statements: List<Statement>): ScopeSymbols {
+            val labelsAndVariables = HashMap<String, Statement>()
+            val subScopes = LinkedHashMap<String, INameScope>()
+            for(stmt in statements) {
+                when(stmt) {
+                    is VarDecl -> labelsAndVariables.putIfAbsent(stmt.name, stmt)
+                    is Label -> labelsAndVariables.putIfAbsent(stmt.name, stmt)
+                    // NOTE: if other nodes are introduced that are a scope, or contain subscopes, they must be added here!
+                    is ForLoop -> subScopes[stmt.body.name] = stmt.body
+                    is RepeatLoop -> subScopes[stmt.body.name] = stmt.body
+                    is WhileLoop -> subScopes[stmt.body.name] = stmt.body
+                    is BranchStatement -> {
+                        subScopes[stmt.truepart.name] = stmt.truepart
+                        if(stmt.elsepart.containsCodeOrVars())
+                            subScopes[stmt.elsepart.name] = stmt.elsepart
+                    }
+                    is IfStatement -> {
+                        subScopes[stmt.truepart.name] = stmt.truepart
+                        if(stmt.elsepart.containsCodeOrVars())
+                            subScopes[stmt.elsepart.name] = stmt.elsepart
+                    }
+                    is WhenStatement -> {
+                        stmt.choices.forEach { subScopes[it.statements.name] = it.statements }
+                    }
+                    is AnonymousScope -> {
+                        subScopes[stmt.name] = stmt
+                        for((name, symbol) in of(stmt).labelsAndVariables)
+                            labelsAndVariables.putIfAbsent(name, symbol)
+                    }
+                    is INameScope -> subScopes[stmt.name] = stmt
+                    else -> {}
+                }
+            }
+            return ScopeSymbols(labelsAndVariables, subScopes)
+        }
+
+        fun of(scope: INameScope): ScopeSymbols {
+            val statements = scope.statements
+            return if(statements is StatementList) statements.symbols() else of(statements)
+        }
+    }
+}
@@ -152,3 +152,25 @@ object ParentSentinel : Node {
 data class Position(val file: String, val line: Int, val startCol: Int, val endCol: Int) {
     override fun toString(): String = "[$file: line $line col ${startCol+1}-${endCol+1}]"
 }
+
+
+/**
+ * The counters used to create unique names and heap ids while compiling a program.
+ * Every thread has its own set, so multiple programs can be compiled concurrently without influencing each other.
+ * They're reset at the start of every compilation, so the generated code doesn't depend on what was compiled before.
+ */
+internal class CompilationCounters {
+    var anonymousScope = 1
+    var autoHeapValue = 0
+    var heapId = 0
+    var inlinedCall = 0
+
+    companion object {
+        private val counters = ThreadLocal.withInitial { CompilationCounters() }
+
+        val current: CompilationCounters
+            get() = counters.get()
+
+        fun reset() = counters.set(CompilationCounters())
+    }
+}
@@ -7,6 +7,7 @@ import prog8.ast.processing.IAstModifyingVisitor
 import prog8.ast.processing.IAstVisitor
 import prog8.ast.statements.ArrayIndex
 import prog8.ast.statements.BuiltinFunctionStatementPlaceholder
+import prog8.ast.statements.Statement
 import prog8.ast.statements.Subroutine
 import prog8.ast.statements.VarDecl
 import prog8.compiler.target.CompilationTarget
@@ -20,6 +21,65 @@ import kotlin.math.abs
 val associativeOperators = setOf("+", "*", "&", "|", "^", "or", "and", "xor", "==", "!=")
 
 
+/**
+ * A variable declaration that an identifier referred to while a type or constant value was determined,
+ * with the number of changes of the declaration at that time.  The value stays valid as long as it doesn't change.
+ * The uses are collected per thread, because every thread compiles its own program.
+ */
+internal data class DeclarationUse(val decl: VarDecl, val changes: Int) {
+    companion object {
+        private val collecting = ThreadLocal<MutableList<DeclarationUse>?>()
+
+        fun register(decl: VarDecl) {
+            collecting.get()?.add(DeclarationUse(decl, decl.changes))
+        }
+
+        // the uses of a nested value are uses of the value that's being determined around it as well
+        fun <T> collect(determine: () -> T): Pair<T, List<DeclarationUse>> {
+            val outer = collecting.get()
+            val uses = mutableListOf<DeclarationUse>()
+            collecting.set(uses)
+            val result = try {
+                determine()
+            } finally {
+                collecting.set(outer)
+            }
+            outer?.addAll(uses)
+            return Pair(result, if(uses.isEmpty()) emptyList() else uses.distinct())
+        }
+
+        fun unchanged(uses: List<DeclarationUse>): Boolean {
+            if(uses.any { it.decl.changes!=it.changes })
+                return false
+            if(uses.isNotEmpty())
+                collecting.get()?.addAll(uses)
+            return true
+        }
+    }
+}
+
+
+/**
+ * Forgets the remembered types and constant values of this node and of the expressions around it,
+ * because they depend on something in it that changed.  If the change is in a variable declaration,
+ * the declaration itself has changed as well.
+ */
+internal fun Node.subtreeChanged() {
+    var node: Node? = this
+    while(node!=null) {
+        when(node) {
+            is Expression -> node.forgetMemo()
+            is VarDecl -> {
+                node.changes++
+                return
+            }
+            is Statement, is INameScope -> return
+        }
+        node = node.linkedParent()
+    }
+}
+
+
 sealed class Expression: Node {
     abstract fun constValue(program: Program): NumericLiteralValue?
     abstract fun accept(visitor: IAstModifyingVisitor): Expression
@@ -27,6 +87,48 @@ sealed class Expression: Node {
     abstract fun referencesIdentifiers(vararg name: String): Boolean     // todo: remove this and add identifier usage tracking into CallGraph instead
     abstract fun inferType(program: Program): InferredTypes.InferredType
 
+    // The inferred type and constant value are remembered, because they're asked for over and over again
+    // by the checkers, optimizers and code generator.  They're forgotten when the expression is linked to a
+    // (new) parent, when something in it changes (see subtreeChanged), or when one of the variable declarations
+    // that they're derived from changes (see DeclarationUse).
+    private lateinit var linkedParent: Node
+    override var parent: Node
+        get() = linkedParent
+        set(value) {
+            linkedParent = value
+            forgetMemo()
+        }
+    private var memoType: InferredTypes.InferredType? = null
+    private var memoTypeUses = emptyList<DeclarationUse>()
+    private var memoConstValue: NumericLiteralValue? = null
+    private var memoConstValueUses: List<DeclarationUse>? = null       // null means: no constant value remembered
+
+    internal fun forgetMemo() {
+        memoType = null
+        memoConstValue = null
+        memoConstValueUses = null
+    }
+
+    protected fun memoizedType(infer: () -> InferredTypes.InferredType): InferredTypes.InferredType {
+        val remembered = memoType
+        if(remembered!=null && DeclarationUse.unchanged(memoTypeUses))
+            return remembered
+        val (type, uses) = DeclarationUse.collect(infer)
+        memoType = type
+        memoTypeUses = uses
+        return type
+    }
+
+    protected fun memoizedConstValue(evaluate: () -> NumericLiteralValue?): NumericLiteralValue? {
+        val rememberedUses = memoConstValueUses
+        if(rememberedUses!=null && DeclarationUse.unchanged(rememberedUses))
+            return memoConstValue
+        val (value, uses) = DeclarationUse.collect(evaluate)
+        memoConstValue = value
+        memoConstValueUses = uses
+        return value
+    }
+
     infix fun isSameAs(other: Expression): Boolean {
         if(this===other)
             return true
@@ -51,8 +153,9 @@ sealed class Expression: Node {
 }
 
 
-class PrefixExpression(val operator: String, var expression: Expression, override val position: Position) : Expression() {
-    override lateinit var parent: Node
+class PrefixExpression(val operator: String, expression: Expression, override val position: Position) : Expression() {
+    var expression = expression
+        set(value) { field = replaceChild(field, value) }
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -63,15 +166,26 @@ class PrefixExpression(val operator: String, var expression: Expression, overrid
     override fun accept(visitor: IAstModifyingVisitor) = visitor.visit(this)
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
     override fun referencesIdentifiers(vararg name: String) = expression.referencesIdentifiers(*name)
-    override fun inferType(program: Program): InferredTypes.InferredType = expression.inferType(program)
+    override fun inferType(program: Program): InferredTypes.InferredType = memoizedType { expression.inferType(program) }
 
     override fun toString(): String {
         return "Prefix($operator $expression)"
     }
 }
 
-class BinaryExpression(var left: Expression, var operator: String, var right: Expression, override val position: Position) : Expression() {
-    override lateinit var parent: Node
+class BinaryExpression(left: Expression, operator: String, right: Expression, override val position: Position) : Expression() {
+    var left = left
+        set(value) { field = replaceChild(field, value) }
+    var operator = operator
+        set(value) {
+            if(value!=field) {
+                field = value
+                AstModifications.record()
+                subtreeChanged()
+            }
+        }
+    var right = right
+        set(value) { field = replaceChild(field, value) }
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -89,7 +203,9 @@ class BinaryExpression(var left: Expression, var operator: String, var right: Ex
     override fun accept(visitor: IAstModifyingVisitor) = visitor.visit(this)
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
     override fun referencesIdentifiers(vararg name: String) = left.referencesIdentifiers(*name) || right.referencesIdentifiers(*name)
-    override fun inferType(program: Program): InferredTypes.InferredType {
+    override fun inferType(program: Program): InferredTypes.InferredType = memoizedType { determineType(program) }
+
+    private fun determineType(program: Program): InferredTypes.InferredType {
         val leftDt = left.inferType(program)
         val rightDt = right.inferType(program)
         return when (operator) {
@@ -178,10 +294,11 @@ class BinaryExpression(var left: Expression, var operator: String, var right: Ex
     }
 }
 
-class ArrayIndexedExpression(var identifier: IdentifierReference,
+class ArrayIndexedExpression(identifier: IdentifierReference,
                              val arrayspec: ArrayIndex,
                              override val position: Position) : Expression(), IAssignable {
-    override lateinit var parent: Node
+    var identifier = identifier
+        set(value) { field = replaceChild(field, value) }
     override fun linkParents(parent: Node) {
         this.parent = parent
         identifier.linkParents(this)
@@ -193,7 +310,9 @@ class ArrayIndexedExpression(var identifier: IdentifierReference,
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
     override fun referencesIdentifiers(vararg name: String) = identifier.referencesIdentifiers(*name)
 
-    override fun inferType(program: Program): InferredTypes.InferredType {
+    override fun inferType(program: Program): InferredTypes.InferredType = memoizedType { determineType(program) }
+
+    private fun determineType(program: Program): InferredTypes.InferredType {
         val target = identifier.targetStatement(program.namespace)
         if (target is VarDecl) {
             return when (target.datatype) {
@@ -210,8 +329,17 @@ class ArrayIndexedExpression(var identifier: IdentifierReference,
     }
 }
 
-class TypecastExpression(var expression: Expression, var type: DataType, val implicit: Boolean, override val position: Position) : Expression() {
-    override lateinit var parent: Node
+class TypecastExpression(expression: Expression, type: DataType, val implicit: Boolean, override val position: Position) : Expression() {
+    var expression = expression
+        set(value) { field = replaceChild(field, value) }
+    var type = type
+        set(value) {
+            if(value!==field) {
+                field = value
+                AstModifications.record()
+                subtreeChanged()
+            }
+        }
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -222,12 +350,7 @@ class TypecastExpression(var expression: Expression, var type: DataType, val imp
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
     override fun referencesIdentifiers(vararg name: String) = expression.referencesIdentifiers(*name)
     override fun inferType(program: Program): InferredTypes.InferredType = InferredTypes.knownFor(type)
-    override fun constValue(program: Program): NumericLiteralValue? {
-        val cv = expression.constValue(program) ?: return null
-        return cv.cast(type)
-        // val value = RuntimeValue(cv.type, cv.asNumericValue!!).cast(type)
-        // return LiteralValue.fromNumber(value.numericValue(), value.type, position).cast(type)
-    }
+    override fun constValue(program: Program): NumericLiteralValue? = memoizedConstValue { expression.constValue(program)?.cast(type) }
 
     override fun toString(): String {
         return "Typecast($expression as $type)"
@@ -235,7 +358,6 @@ class TypecastExpression(var expression: Expression, var type: DataType, val imp
 }
 
 data class AddressOf(var identifier: IdentifierReference, override val position: Position) : Expression() {
-    override lateinit var parent: Node
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -249,8 +371,9 @@ data class AddressOf(var identifier: IdentifierReference, override val position:
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
 }
 
-class DirectMemoryRead(var addressExpression: Expression, override val position: Position) : Expression(), IAssignable {
-    override lateinit var parent: Node
+class DirectMemoryRead(addressExpression: Expression, override val position: Position) : Expression(), IAssignable {
+    var addressExpression = addressExpression
+        set(value) { field = replaceChild(field, value) }
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -271,7 +394,6 @@ class DirectMemoryRead(var addressExpression: Expression, override val position:
 class NumericLiteralValue(val type: DataType,    // only numerical types allowed
                           val number: Number,    // can be byte, word or float depending on the type
                           override val position: Position) : Expression() {
-    override lateinit var parent: Node
 
     companion object {
         fun fromBoolean(bool: Boolean, position: Position) =
@@ -387,9 +509,10 @@ class NumericLiteralValue(val type: DataType,    // only numerical types allowed
     }
 }
 
-class StructLiteralValue(var values: List<Expression>,
+class StructLiteralValue(values: List<Expression>,
                          override val position: Position): Expression() {
-    override lateinit var parent: Node
+    var values = values
+        set(value) { TrackedList.linkReplacements(field, value, this); field = value }
 
     override fun linkParents(parent: Node) {
         this.parent=parent
@@ -410,7 +533,6 @@ class StructLiteralValue(var values: List<Expression>,
 class StringLiteralValue(val type: DataType,     // only string types
                          val value: String,
                          override val position: Position) : Expression() {
-    override lateinit var parent: Node
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -434,18 +556,15 @@ class StringLiteralValue(val type: DataType,     // only string types
 
     fun addToHeap() {
         if(heapId==null)
-            heapId = ++heapIdSequence
+            heapId = ++CompilationCounters.current.heapId
     }
 }
 
-private var heapIdSequence = 0
-
 
 class ArrayLiteralValue(val type: DataType,     // only array types
                         val value: Array<Expression>,
                         initHeapId: Int? =null,
                         override val position: Position) : Expression() {
-    override lateinit var parent: Node
 
     var heapId = initHeapId
         private set
@@ -495,15 +614,20 @@ class ArrayLiteralValue(val type: DataType,     // only array types
 
     fun addToHeap() {
         if(heapId==null)
-            heapId = ++heapIdSequence
+            heapId = ++CompilationCounters.current.heapId
     }
 }
 
-class RangeExpr(var from: Expression,
-                var to: Expression,
-                var step: Expression,
+class RangeExpr(from: Expression,
+                to: Expression,
+                step: Expression,
                 override val position: Position) : Expression() {
-    override lateinit var parent: Node
+    var from = from
+        set(value) { field = replaceChild(field, value) }
+    var to = to
+        set(value) { field = replaceChild(field, value) }
+    var step = step
+        set(value) { field = replaceChild(field, value) }
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -516,10 +640,10 @@ class RangeExpr(var from: Expression,
     override fun accept(visitor: IAstModifyingVisitor) = visitor.visit(this)
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
     override fun referencesIdentifiers(vararg name: String): Boolean  = from.referencesIdentifiers(*name) || to.referencesIdentifiers(*name)
-    override fun inferType(program: Program): InferredTypes.InferredType {
+    override fun inferType(program: Program): InferredTypes.InferredType = memoizedType {
         val fromDt=from.inferType(program)
         val toDt=to.inferType(program)
-        return when {
+        when {
             !fromDt.isKnown || !toDt.isKnown -> InferredTypes.unknown()
             fromDt istype DataType.UBYTE && toDt istype DataType.UBYTE -> InferredTypes.knownFor(DataType.ARRAY_UB)
             fromDt istype DataType.UWORD && toDt istype DataType.UWORD -> InferredTypes.knownFor(DataType.ARRAY_UW)
@@ -581,7 +705,6 @@ internal fun makeRange(fromVal: Int, toVal: Int, stepVal: Int): IntProgression {
 }
 
 class RegisterExpr(val register: Register, override val position: Position) : Expression(), IAssignable {
-    override lateinit var parent: Node
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -599,13 +722,14 @@ class RegisterExpr(val register: Register, override val position: Position) : Ex
 }
 
 data class IdentifierReference(val nameInSource: List<String>, override val position: Position) : Expression(), IAssignable {
-    override lateinit var parent: Node
-
     fun targetStatement(namespace: INameScope) =
         if(nameInSource.size==1 && nameInSource[0] in BuiltinFunctions)
             BuiltinFunctionStatementPlaceholder(nameInSource[0], position)
         else
-            namespace.lookup(nameInSource, this)
+            lookup(namespace)
+
+    private fun lookup(namespace: INameScope) =
+            namespace.lookup(nameInSource, this).also { if(it is VarDecl) DeclarationUse.register(it) }
 
     fun targetVarDecl(namespace: INameScope): VarDecl? = targetStatement(namespace) as? VarDecl
     fun targetSubroutine(namespace: INameScope): Subroutine? = targetStatement(namespace) as? Subroutine
@@ -614,9 +738,10 @@ data class IdentifierReference(val nameInSource: List<String>, override val posi
         this.parent = parent
     }
 
-    override fun constValue(program: Program): NumericLiteralValue? {
-        val node = program.namespace.lookup(nameInSource, this)
-                ?: throw UndefinedSymbolError(this)
+    override fun constValue(program: Program): NumericLiteralValue? = memoizedConstValue { determineConstValue(program) }
+
+    private fun determineConstValue(program: Program): NumericLiteralValue? {
+        val node = lookup(program.namespace) ?: throw UndefinedSymbolError(this)
         val vardecl = node as? VarDecl
         if(vardecl==null) {
             return null
@@ -634,7 +759,9 @@ data class IdentifierReference(val nameInSource: List<String>, override val posi
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
     override fun referencesIdentifiers(vararg name: String): Boolean = nameInSource.last() in name
 
-    override fun inferType(program: Program): InferredTypes.InferredType {
+    override fun inferType(program: Program): InferredTypes.InferredType = memoizedType { determineType(program) }
+
+    private fun determineType(program: Program): InferredTypes.InferredType {
         val targetStmt = targetStatement(program.namespace)
         if(targetStmt is VarDecl) {
             return InferredTypes.knownFor(targetStmt.datatype)
@@ -646,7 +773,7 @@ data class IdentifierReference(val nameInSource: List<String>, override val posi
     fun memberOfStruct(namespace: INameScope) = this.targetVarDecl(namespace)?.struct
 
     fun heapId(namespace: INameScope): Int {
-        val node = namespace.lookup(nameInSource, this) ?: throw UndefinedSymbolError(this)
+        val node = lookup(namespace) ?: throw UndefinedSymbolError(this)
         val value = (node as? VarDecl)?.value ?: throw FatalAstException("requires a reference value")
         return when (value) {
             is IdentifierReference -> value.heapId(namespace)
@@ -657,10 +784,13 @@ data class IdentifierReference(val nameInSource: List<String>, override val posi
     }
 }
 
-class FunctionCall(override var target: IdentifierReference,
-                   override var arglist: MutableList<Expression>,
+class FunctionCall(target: IdentifierReference,
+                   arglist: MutableList<Expression>,
                    override val position: Position) : Expression(), IFunctionCall {
-    override lateinit var parent: Node
+    override var target = target
+        set(value) { field = replaceChild(field, value) }
+    override var arglist: MutableList<Expression> = TrackedList(arglist, this)
+        set(value) { field = TrackedList.replace(field, value, this) }
 
     override fun linkParents(parent: Node) {
         this.parent = parent
@@ -668,7 +798,7 @@ class FunctionCall(override var target: IdentifierReference,
         arglist.forEach { it.linkParents(this) }
     }
 
-    override fun constValue(program: Program) = constValue(program, true)
+    override fun constValue(program: Program) = memoizedConstValue { constValue(program, true) }
 
     private fun constValue(program: Program, withDatatypeCheck: Boolean): NumericLiteralValue? {
         // if the function is a built-in function and the args are consts, should try to const-evaluate!
@@ -708,7 +838,9 @@ class FunctionCall(override var target: IdentifierReference,
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
     override fun referencesIdentifiers(vararg name: String): Boolean = target.referencesIdentifiers(*name) || arglist.any{it.referencesIdentifiers(*name)}
 
-    override fun inferType(program: Program): InferredTypes.InferredType {
+    override fun inferType(program: Program): InferredTypes.InferredType = memoizedType { determineType(program) }
+
+    private fun determineType(program: Program): InferredTypes.InferredType {
         val constVal = constValue(program ,false)
         if(constVal!=null)
             return InferredTypes.knownFor(constVal.type)
@@ -10,6 +10,7 @@ import prog8.ast.base.*
 import prog8.ast.expressions.*
 import prog8.ast.statements.*
 import prog8.compiler.CompilationOptions
+import prog8.compiler.CompilerException
 import prog8.compiler.target.CompilationTarget
 import prog8.functions.BuiltinFunctions
 import java.io.File
@@ -672,8 +673,16 @@ internal class AstChecker(private val program: Program,
                 if(directive.parent !is Block && directive.parent !is Module) err("this directive may only occur in a block or at module level")
                 if(directive.args.isEmpty())
                     err("missing option directive argument(s)")
-                else if(directive.args.map{it.name in setOf("enable_floats", "force_output")}.any { !it })
+                else if(directive.args.map{it.name in setOf("enable_floats", "force_output", "zeropage_estack", "zeropage_estack_lsb", "optimize_size")}.any { !it })
                     err("invalid option directive argument(s)")
+                else if(directive.args.any { it.name=="zeropage_estack" || it.name=="zeropage_estack_lsb" }) {
+                    // the evaluation stack is allocated together with the rest of the zeropage
+                    try {
+                        CompilationTarget.machine.getZeropage(compilerOptions)
+                    } catch (x: CompilerException) {
+                        err("${x.message}; use a different %zeropage type or remove the option")
+                    }
+                }
             }
             else -> throw SyntaxError("invalid directive ${directive.directive}", directive.position)
         }
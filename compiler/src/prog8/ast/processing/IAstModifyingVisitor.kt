@@ -1,7 +1,9 @@
 package prog8.ast.processing
 
+import prog8.ast.AstModifications
 import prog8.ast.Module
 import prog8.ast.Program
+import prog8.ast.replaceChild
 import prog8.ast.base.FatalAstException
 import prog8.ast.expressions.*
 import prog8.ast.statements.*
@@ -117,6 +119,11 @@ interface IAstModifyingVisitor {
     fun visit(arrayLiteral: ArrayLiteralValue): Expression {
         for(av in arrayLiteral.value.withIndex()) {
             val newvalue = av.value.accept(this)
+            if(newvalue!==av.value) {
+                AstModifications.record()
+                newvalue.linkParents(arrayLiteral)
+                arrayLiteral.subtreeChanged()
+            }
             arrayLiteral.value[av.index] = newvalue
         }
         return arrayLiteral
@@ -179,11 +186,11 @@ interface IAstModifyingVisitor {
 
     fun visit(assignTarget: AssignTarget): AssignTarget {
         when (val ident = assignTarget.identifier?.accept(this)) {
-            is IdentifierReference -> assignTarget.identifier = ident
+            is IdentifierReference -> assignTarget.identifier = assignTarget.replaceChild(assignTarget.identifier, ident)
             null -> assignTarget.identifier = null
             else -> throw FatalAstException("can't change class of assign target identifier")
         }
-        assignTarget.arrayindexed = assignTarget.arrayindexed?.accept(this)
+        assignTarget.arrayindexed = assignTarget.replaceChild(assignTarget.arrayindexed, assignTarget.arrayindexed?.accept(this))
         assignTarget.memoryAddress?.let { visit(it) }
         return assignTarget
     }
@@ -210,7 +217,7 @@ interface IAstModifyingVisitor {
     fun visit(addressOf: AddressOf): Expression {
         val ident = addressOf.identifier.accept(this)
         if(ident is IdentifierReference)
-            addressOf.identifier = ident
+            addressOf.identifier = addressOf.replaceChild(addressOf.identifier, ident)
         else
             throw FatalAstException("can't change class of addressof identifier")
         return addressOf
@@ -241,12 +248,7 @@ interface IAstModifyingVisitor {
     fun visit(whenChoice: WhenChoice) {
         whenChoice.values = whenChoice.values?.map { it.accept(this) }
         val stmt = whenChoice.statements.accept(this)
-        if(stmt is AnonymousScope)
-            whenChoice.statements = stmt
-        else {
-            whenChoice.statements = AnonymousScope(mutableListOf(stmt), stmt.position)
-            whenChoice.statements.linkParents(whenChoice)
-        }
+        whenChoice.statements = stmt as? AnonymousScope ?: AnonymousScope(mutableListOf(stmt), stmt.position)
     }
 
     fun visit(structDecl: StructDecl): Statement {
@@ -50,9 +50,11 @@ data class RegisterOrStatusflag(val registerOrPair: RegisterOrPair?, val statusf
 
 class Block(override val name: String,
             val address: Int?,
-            override var statements: MutableList<Statement>,
+            statements: MutableList<Statement>,
             val isInLibrary: Boolean,
             override val position: Position) : Statement(), INameScope {
+    override var statements: MutableList<Statement> = StatementList.of(statements, this)
+        set(value) { field = StatementList.replace(field, value, this) }
     override lateinit var parent: Node
     override val expensiveToInline
         get() = statements.any { it.expensiveToInline }
@@ -109,7 +111,9 @@ data class Label(val name: String, override val position: Position) : Statement(
     }
 }
 
-open class Return(var value: Expression?, override val position: Position) : Statement() {
+open class Return(value: Expression?, override val position: Position) : Statement() {
+    var value = value
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     override val expensiveToInline = value!=null && value !is NumericLiteralValue
 
@@ -168,18 +172,28 @@ enum class ZeropageWish {
 }
 
 class VarDecl(val type: VarDeclType,
-              private val declaredDatatype: DataType,
+              internal val declaredDatatype: DataType,
               val zeropage: ZeropageWish,
-              var arraysize: ArrayIndex?,
+              arraysize: ArrayIndex?,
               val name: String,
-              private val structName: String?,
-              var value: Expression?,
+              internal val structName: String?,
+              value: Expression?,
               val isArray: Boolean,
               val autogeneratedDontRemove: Boolean,
               override val position: Position) : Statement() {
+    var arraysize = arraysize
+        set(value) { field = replaceChild(field, value) }
+    var value = value
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     var struct: StructDecl? = null        // set later (because at parse time, we only know the name)
-        private set
+        private set(value) {
+            if(value!==field) {
+                field = value
+                changes++
+            }
+        }
+    internal var changes = 0               // of the value, array size or struct; see Expression.memoizedType
     var structHasBeenFlattened = false      // set later
         private set
 
@@ -189,12 +203,10 @@ class VarDecl(val type: VarDeclType,
     // prefix for literal values that are turned into a variable on the heap
 
     companion object {
-        private var autoHeapValueSequenceNumber = 0
-
         fun createAuto(string: StringLiteralValue): VarDecl {
             if(string.heapId==null)
                 throw FatalAstException("can only create autovar for a string that has a heapid  $string")
-            val autoVarName = "auto_heap_value_${++autoHeapValueSequenceNumber}"
+            val autoVarName = "auto_heap_value_${++CompilationCounters.current.autoHeapValue}"
             return VarDecl(VarDeclType.VAR, string.type, ZeropageWish.NOT_IN_ZEROPAGE, null, autoVarName, null, string,
                         isArray = false, autogeneratedDontRemove = true, position = string.position)
         }
@@ -203,7 +215,7 @@ class VarDecl(val type: VarDeclType,
             if(array.heapId==null)
                 throw FatalAstException("can only create autovar for an array that has a heapid  $array")
 
-            val autoVarName = "auto_heap_value_${++autoHeapValueSequenceNumber}"
+            val autoVarName = "auto_heap_value_${++CompilationCounters.current.autoHeapValue}"
             val declaredType = ArrayElementTypes.getValue(array.type)
             val arraysize = ArrayIndex.forArray(array)
             return VarDecl(VarDeclType.VAR, declaredType, ZeropageWish.NOT_IN_ZEROPAGE, arraysize, autoVarName, null, array,
@@ -283,7 +295,9 @@ class VarDecl(val type: VarDeclType,
     }
 }
 
-class ArrayIndex(var index: Expression, override val position: Position) : Node {
+class ArrayIndex(index: Expression, override val position: Position) : Node {
+    var index = index
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
 
     override fun linkParents(parent: Node) {
@@ -312,7 +326,11 @@ class ArrayIndex(var index: Expression, override val position: Position) : Node
     fun size() = (index as? NumericLiteralValue)?.number?.toInt()
 }
 
-open class Assignment(var target: AssignTarget, val aug_op : String?, var value: Expression, override val position: Position) : Statement() {
+open class Assignment(target: AssignTarget, val aug_op : String?, value: Expression, override val position: Position) : Statement() {
+    var target = target
+        set(value) { field = replaceChild(field, value) }
+    var value = value
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     override val expensiveToInline
             get() = value !is NumericLiteralValue
@@ -439,7 +457,9 @@ data class AssignTarget(val register: Register?,
     }
 }
 
-class PostIncrDecr(var target: AssignTarget, val operator: String, override val position: Position) : Statement() {
+class PostIncrDecr(target: AssignTarget, val operator: String, override val position: Position) : Statement() {
+    var target = target
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     override val expensiveToInline = false
 
@@ -476,9 +496,13 @@ class Jump(val address: Int?,
     }
 }
 
-class FunctionCallStatement(override var target: IdentifierReference,
-                            override var arglist: MutableList<Expression>,
+class FunctionCallStatement(target: IdentifierReference,
+                            arglist: MutableList<Expression>,
                             override val position: Position) : Statement(), IFunctionCall {
+    override var target = target
+        set(value) { field = replaceChild(field, value) }
+    override var arglist: MutableList<Expression> = TrackedList(arglist, this)
+        set(value) { field = TrackedList.replace(field, value, this) }
     override lateinit var parent: Node
     override val expensiveToInline
             get() = arglist.any { it !is NumericLiteralValue }
@@ -509,20 +533,56 @@ class InlineAssembly(val assembly: String, override val position: Position) : St
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
 }
 
-class AnonymousScope(override var statements: MutableList<Statement>,
+class AnonymousScope(statements: MutableList<Statement>,
                      override val position: Position) : INameScope, Statement() {
-    override val name: String
+    override var statements: MutableList<Statement> = StatementList.of(statements, this)
+        set(value) { field = StatementList.replace(field, value, this) }
+    override var name: String = "<anon-unnumbered>"
+        private set(value) {
+            if(value!=field) {
+                field = value
+                AstModifications.record()
+                scopeSymbolsChanged()
+            }
+        }
     override lateinit var parent: Node
     override val expensiveToInline
         get() = statements.any { it.expensiveToInline }
 
     companion object {
-        private var sequenceNumber = 1
+        private val unnumberedScopes = ThreadLocal<MutableList<AnonymousScope>?>()
+
+        // Anonymous scopes created while running the block don't get a sequence number yet.
+        // They're returned in creation order, and get their actual name later via assignSequenceNumbers().
+        // This allows a module to be parsed or loaded separately and still get the same scope names.
+        internal fun <T> withDeferredNumbering(block: () -> T): Pair<T, List<AnonymousScope>> {
+            val scopes = mutableListOf<AnonymousScope>()
+            val previous = unnumberedScopes.get()
+            unnumberedScopes.set(scopes)
+            try {
+                return Pair(block(), scopes)
+            } finally {
+                unnumberedScopes.set(previous)
+            }
+        }
+
+        internal fun assignSequenceNumbers(scopes: List<AnonymousScope>) {
+            val counters = CompilationCounters.current
+            for(scope in scopes) {
+                scope.name = "<anon-${counters.anonymousScope}>"
+                counters.anonymousScope++
+            }
+        }
     }
 
     init {
-        name = "<anon-$sequenceNumber>"     // make sure it's an invalid soruce code identifier so user source code can never produce it
-        sequenceNumber++
+        val unnumbered = unnumberedScopes.get()
+        if(unnumbered!=null) {
+            unnumbered.add(this)
+        } else {
+            name = "<anon-${CompilationCounters.current.anonymousScope}>"     // make sure it's an invalid soruce code identifier so user source code can never produce it
+            CompilationCounters.current.anonymousScope++
+        }
     }
 
     override fun linkParents(parent: Node) {
@@ -565,9 +625,11 @@ class Subroutine(override val name: String,
                  val asmClobbers: Set<Register>,
                  val asmAddress: Int?,
                  val isAsmSubroutine: Boolean,
-                 override var statements: MutableList<Statement>,
+                 statements: MutableList<Statement>,
                  override val position: Position) : Statement(), INameScope {
 
+    override var statements: MutableList<Statement> = StatementList.of(statements, this)
+        set(value) { field = StatementList.replace(field, value, this) }
     var keepAlways: Boolean = false
     override val expensiveToInline
             get() = statements.any { it.expensiveToInline }
@@ -608,10 +670,16 @@ open class SubroutineParameter(val name: String,
     }
 }
 
-class IfStatement(var condition: Expression,
-                  var truepart: AnonymousScope,
-                  var elsepart: AnonymousScope,
+class IfStatement(condition: Expression,
+                  truepart: AnonymousScope,
+                  elsepart: AnonymousScope,
                   override val position: Position) : Statement() {
+    var condition = condition
+        set(value) { field = replaceChild(field, value) }
+    var truepart = truepart
+        set(value) { field = replaceChild(field, value) }
+    var elsepart = elsepart
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     override val expensiveToInline: Boolean
         get() = truepart.expensiveToInline || elsepart.expensiveToInline
@@ -628,9 +696,13 @@ class IfStatement(var condition: Expression,
 }
 
 class BranchStatement(var condition: BranchCondition,
-                      var truepart: AnonymousScope,
-                      var elsepart: AnonymousScope,
+                      truepart: AnonymousScope,
+                      elsepart: AnonymousScope,
                       override val position: Position) : Statement() {
+    var truepart = truepart
+        set(value) { field = replaceChild(field, value) }
+    var elsepart = elsepart
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     override val expensiveToInline: Boolean
         get() = truepart.expensiveToInline || elsepart.expensiveToInline
@@ -646,10 +718,16 @@ class BranchStatement(var condition: BranchCondition,
 }
 
 class ForLoop(val loopRegister: Register?,
-              var loopVar: IdentifierReference?,
-              var iterable: Expression,
-              var body: AnonymousScope,
+              loopVar: IdentifierReference?,
+              iterable: Expression,
+              body: AnonymousScope,
               override val position: Position) : Statement() {
+    var loopVar = loopVar
+        set(value) { field = replaceChild(field, value) }
+    var iterable = iterable
+        set(value) { field = replaceChild(field, value) }
+    var body = body
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     override val expensiveToInline = true
 
@@ -668,9 +746,13 @@ class ForLoop(val loopRegister: Register?,
     }
 }
 
-class WhileLoop(var condition: Expression,
-                var body: AnonymousScope,
+class WhileLoop(condition: Expression,
+                body: AnonymousScope,
                 override val position: Position) : Statement() {
+    var condition = condition
+        set(value) { field = replaceChild(field, value) }
+    var body = body
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     override val expensiveToInline = true
 
@@ -684,9 +766,13 @@ class WhileLoop(var condition: Expression,
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
 }
 
-class RepeatLoop(var body: AnonymousScope,
-                 var untilCondition: Expression,
+class RepeatLoop(body: AnonymousScope,
+                 untilCondition: Expression,
                  override val position: Position) : Statement() {
+    var untilCondition = untilCondition
+        set(value) { field = replaceChild(field, value) }
+    var body = body
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
     override val expensiveToInline = true
 
@@ -700,9 +786,13 @@ class RepeatLoop(var body: AnonymousScope,
     override fun accept(visitor: IAstVisitor) = visitor.visit(this)
 }
 
-class WhenStatement(var condition: Expression,
-                    var choices: MutableList<WhenChoice>,
+class WhenStatement(condition: Expression,
+                    choices: MutableList<WhenChoice>,
                     override val position: Position): Statement() {
+    var condition = condition
+        set(value) { field = replaceChild(field, value) }
+    var choices: MutableList<WhenChoice> = TrackedList(choices, this, true)
+        set(value) { field = TrackedList.replace(field, value, this) }
     override lateinit var parent: Node
     override val expensiveToInline: Boolean = true
 
@@ -733,9 +823,22 @@ class WhenStatement(var condition: Expression,
     override fun accept(visitor: IAstModifyingVisitor) = visitor.visit(this)
 }
 
-class WhenChoice(var values: List<Expression>?,           // if null,  this is the 'else' part
-                 var statements: AnonymousScope,
+class WhenChoice(values: List<Expression>?,           // if null,  this is the 'else' part
+                 statements: AnonymousScope,
                  override val position: Position) : Node {
+    var values = values
+        set(value) {
+            val previous = field
+            if(previous!=null && value!=null)
+                TrackedList.linkReplacements(previous, value, this)
+            else if(value!==previous) {
+                AstModifications.record()
+                value?.forEach { it.linkParents(this) }
+            }
+            field = value
+        }
+    var statements = statements
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
 
     override fun linkParents(parent: Node) {
@@ -754,9 +857,12 @@ class WhenChoice(var values: List<Expression>?,           // if null,  this is t
 
 
 class StructDecl(override val name: String,
-                 override var statements: MutableList<Statement>,      // actually, only vardecls here
+                 statements: MutableList<Statement>,      // actually, only vardecls here
                  override val position: Position): Statement(), INameScope {
 
+    override var statements: MutableList<Statement> = StatementList.of(statements, this)
+        set(value) { field = StatementList.replace(field, value, this) }
+
     override lateinit var parent: Node
     override val expensiveToInline: Boolean = true
 
@@ -774,7 +880,9 @@ class StructDecl(override val name: String,
     fun nameOfFirstMember() = (statements.first() as VarDecl).name
 }
 
-class DirectMemoryWrite(var addressExpression: Expression, override val position: Position) : Node {
+class DirectMemoryWrite(addressExpression: Expression, override val position: Position) : Node {
+    var addressExpression = addressExpression
+        set(value) { field = replaceChild(field, value) }
     override lateinit var parent: Node
 
     override fun linkParents(parent: Node) {
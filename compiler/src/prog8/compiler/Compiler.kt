@@ -23,11 +23,20 @@ enum class ZeropageType {
     DONTUSE
 }
 
+enum class EvalStackType {
+    MAIN_MEMORY,
+    ZEROPAGE,
+    ZEROPAGE_LSB
+}
+
 data class CompilationOptions(val output: OutputType,
                               val launcher: LauncherType,
                               val zeropage: ZeropageType,
                               val zpReserved: List<IntRange>,
-                              val floats: Boolean)
+                              val floats: Boolean,
+                              val evalStack: EvalStackType = EvalStackType.MAIN_MEMORY,
+                              val builtinAssembler: Boolean = false,
+                              val optimizeSize: Boolean = false)
 
 
 class CompilerException(message: String?) : Exception(message)
@@ -0,0 +1,142 @@
+package prog8.compiler
+
+import prog8.ast.Module
+import prog8.ast.Program
+import prog8.ast.expressions.*
+import prog8.ast.processing.IAstVisitor
+import prog8.ast.statements.*
+import java.lang.management.ManagementFactory
+import java.nio.file.Path
+import java.util.Locale
+
+
+/**
+ * Collects the time, memory allocation and Ast size of each of the compiler's phases.
+ */
+class CompilerStats {
+
+    class Phase(val name: String, val millis: Double, val allocatedBytes: Long?, val astNodes: Int?)
+
+    val phases = mutableListOf<Phase>()
+    private val counters = mutableMapOf<String, Int>()
+
+    private val threadBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+
+    fun <T> measure(name: String, program: Program?, action: () -> T): T {
+        val allocatedBefore = allocatedBytes()
+        val startTime = System.nanoTime()
+        val result = action()
+        val duration = (System.nanoTime() - startTime) / 1_000_000.0
+        val allocated = allocatedBytes()?.minus(allocatedBefore ?: 0)
+        val nodes = if(program==null) null else NodeCounter().also { it.visit(program) }.count
+        phases.add(Phase(name, duration, allocated, nodes))
+        return result
+    }
+
+    fun count(counter: String, amount: Int = 1) {
+        counters[counter] = (counters[counter] ?: 0) + amount
+    }
+
+    private fun allocatedBytes(): Long? =
+        try {
+            if(threadBean!=null && threadBean.isThreadAllocatedMemorySupported)
+                threadBean.getThreadAllocatedBytes(Thread.currentThread().id)
+            else
+                null
+        } catch(x: UnsupportedOperationException) {
+            null
+        }
+
+    fun print() {
+        println("\nCompiler statistics:")
+        val nameWidth = phases.map { it.name.length }.max() ?: 10
+        println("  ${"phase".padEnd(nameWidth)}  ${"time (ms)".padStart(10)}  ${"allocated (kb)".padStart(14)}  ${"ast nodes".padStart(9)}")
+        for(phase in phases) {
+            val allocated = if(phase.allocatedBytes==null) "-" else (phase.allocatedBytes / 1024).toString()
+            val nodes = phase.astNodes?.toString() ?: "-"
+            println("  ${phase.name.padEnd(nameWidth)}  ${"%.1f".format(phase.millis).padStart(10)}  ${allocated.padStart(14)}  ${nodes.padStart(9)}")
+        }
+        println("  ${"total".padEnd(nameWidth)}  ${"%.1f".format(phases.sumByDouble { it.millis }).padStart(10)}")
+        for((name, value) in counters.toSortedMap())
+            println("  $name: $value")
+    }
+
+    fun toJson(programName: String): String {
+        // the numbers are formatted without the locale, JSON always has a decimal point
+        val phasesJson = phases.joinToString(",\n") {
+            "    {\"name\": ${jsonString(it.name)}, \"millis\": ${String.format(Locale.ROOT, "%.3f", it.millis)}, " +
+                    "\"allocatedBytes\": ${it.allocatedBytes ?: "null"}, \"astNodes\": ${it.astNodes ?: "null"}}"
+        }
+        val countersJson = counters.toSortedMap().entries.joinToString(", ") { "${jsonString(it.key)}: ${it.value}" }
+        return "{\n  \"program\": ${jsonString(programName)},\n  \"phases\": [\n$phasesJson\n  ],\n  \"counters\": {$countersJson}\n}\n"
+    }
+
+    private fun jsonString(str: String): String {
+        val escaped = StringBuilder("\"")
+        for(c in str) {
+            when {
+                c=='"' || c=='\\' -> escaped.append('\\').append(c)
+                c=='\n' -> escaped.append("\\n")
+                c=='\r' -> escaped.append("\\r")
+                c=='\t' -> escaped.append("\\t")
+                c < ' ' -> escaped.append(String.format(Locale.ROOT, "\\u%04x", c.toInt()))
+                else -> escaped.append(c)
+            }
+        }
+        return escaped.append('"').toString()
+    }
+
+    fun writeJson(programName: String, file: Path) {
+        file.toFile().writeText(toJson(programName))
+    }
+}
+
+
+private class NodeCounter: IAstVisitor {
+    var count = 0
+
+    override fun visit(module: Module) { count++; super.visit(module) }
+    override fun visit(expr: PrefixExpression) { count++; super.visit(expr) }
+    override fun visit(expr: BinaryExpression) { count++; super.visit(expr) }
+    override fun visit(directive: Directive) { count++; super.visit(directive) }
+    override fun visit(block: Block) { count++; super.visit(block) }
+    override fun visit(decl: VarDecl) { count++; super.visit(decl) }
+    override fun visit(subroutine: Subroutine) { count++; super.visit(subroutine) }
+    override fun visit(functionCall: FunctionCall) { count++; super.visit(functionCall) }
+    override fun visit(functionCallStatement: FunctionCallStatement) { count++; super.visit(functionCallStatement) }
+    override fun visit(identifier: IdentifierReference) { count++; super.visit(identifier) }
+    override fun visit(jump: Jump) { count++; super.visit(jump) }
+    override fun visit(ifStatement: IfStatement) { count++; super.visit(ifStatement) }
+    override fun visit(branchStatement: BranchStatement) { count++; super.visit(branchStatement) }
+    override fun visit(range: RangeExpr) { count++; super.visit(range) }
+    override fun visit(label: Label) { count++; super.visit(label) }
+    override fun visit(numLiteral: NumericLiteralValue) { count++; super.visit(numLiteral) }
+    override fun visit(string: StringLiteralValue) { count++; super.visit(string) }
+    override fun visit(array: ArrayLiteralValue) { count++; super.visit(array) }
+    override fun visit(assignment: Assignment) { count++; super.visit(assignment) }
+    override fun visit(postIncrDecr: PostIncrDecr) { count++; super.visit(postIncrDecr) }
+    override fun visit(contStmt: Continue) { count++; super.visit(contStmt) }
+    override fun visit(breakStmt: Break) { count++; super.visit(breakStmt) }
+    override fun visit(forLoop: ForLoop) { count++; super.visit(forLoop) }
+    override fun visit(whileLoop: WhileLoop) { count++; super.visit(whileLoop) }
+    override fun visit(repeatLoop: RepeatLoop) { count++; super.visit(repeatLoop) }
+    override fun visit(returnStmt: Return) { count++; super.visit(returnStmt) }
+    override fun visit(arrayIndexedExpression: ArrayIndexedExpression) { count++; super.visit(arrayIndexedExpression) }
+    override fun visit(assignTarget: AssignTarget) { count++; super.visit(assignTarget) }
+    override fun visit(scope: AnonymousScope) { count++; super.visit(scope) }
+    override fun visit(typecast: TypecastExpression) { count++; super.visit(typecast) }
+    override fun visit(memread: DirectMemoryRead) { count++; super.visit(memread) }
+    override fun visit(memwrite: DirectMemoryWrite) { count++; super.visit(memwrite) }
+    override fun visit(addressOf: AddressOf) { count++; super.visit(addressOf) }
+    override fun visit(inlineAssembly: InlineAssembly) { count++; super.visit(inlineAssembly) }
+    override fun visit(registerExpr: RegisterExpr) { count++; super.visit(registerExpr) }
+    override fun visit(nopStatement: NopStatement) { count++; super.visit(nopStatement) }
+    override fun visit(whenStatement: WhenStatement) { count++; super.visit(whenStatement) }
+    override fun visit(whenChoice: WhenChoice) { count++; super.visit(whenChoice) }
+    override fun visit(structDecl: StructDecl) { count++; super.visit(structDecl) }
+    override fun visit(structLv: StructLiteralValue) { count++; super.visit(structLv) }
+}
+
+
+internal fun <T> CompilerStats?.measure(name: String, program: Program?, action: () -> T): T =
+        if(this==null) action() else this.measure(name, program, action)
@@ -5,9 +5,9 @@ import prog8.ast.Program
 import prog8.ast.base.*
 import prog8.ast.statements.Directive
 import prog8.compiler.target.CompilationTarget
+import prog8.optimizer.AstOptimizer
 import prog8.optimizer.constantFold
-import prog8.optimizer.optimizeStatements
-import prog8.optimizer.simplifyExpressions
+import prog8.parser.AstCache
 import prog8.parser.ParsingFailedError
 import prog8.parser.importLibraryModule
 import prog8.parser.importModule
@@ -25,7 +25,10 @@ class CompilationResult(val success: Boolean,
 fun compileProgram(filepath: Path,
                    optimize: Boolean,
                    writeAssembly: Boolean,
-                   outputDir: Path): CompilationResult {
+                   outputDir: Path,
+                   astCache: AstCache? = null,
+                   stats: CompilerStats? = null,
+                   builtinAssembler: Boolean = false): CompilationResult {
     lateinit var programAst: Program
     var programName: String? = null
 
@@ -33,68 +36,74 @@ fun compileProgram(filepath: Path,
     var success=false
 
     try {
+        CompilationCounters.reset()
         val totalTime = measureTimeMillis {
             // import main module and everything it needs
             println("Parsing...")
             programAst = Program(moduleName(filepath.fileName), mutableListOf())
-            importModule(programAst, filepath)
+            val compilerOptions = stats.measure("parse", programAst) {
+                importModule(programAst, filepath, astCache)
 
-            importedFiles = programAst.modules.filter { !it.source.startsWith("@embedded@") }.map{ it.source }
+                importedFiles = programAst.modules.filter { !it.source.startsWith("@embedded@") }.map{ it.source }
 
-            val compilerOptions = determineCompilationOptions(programAst)
-            if (compilerOptions.launcher == LauncherType.BASIC && compilerOptions.output != OutputType.PRG)
-                throw ParsingFailedError("${programAst.modules.first().position} BASIC launcher requires output type PRG.")
+                val compilerOptions = determineCompilationOptions(programAst).copy(builtinAssembler = builtinAssembler)
+                if (compilerOptions.launcher == LauncherType.BASIC && compilerOptions.output != OutputType.PRG)
+                    throw ParsingFailedError("${programAst.modules.first().position} BASIC launcher requires output type PRG.")
 
-            // if we're producing a PRG or BASIC program, include the c64utils and c64lib libraries
-            if (compilerOptions.launcher == LauncherType.BASIC || compilerOptions.output == OutputType.PRG) {
-                importLibraryModule(programAst, "c64lib")
-                importLibraryModule(programAst, "c64utils")
-            }
+                // if we're producing a PRG or BASIC program, include the c64utils and c64lib libraries
+                if (compilerOptions.launcher == LauncherType.BASIC || compilerOptions.output == OutputType.PRG) {
+                    importLibraryModule(programAst, "c64lib", astCache)
+                    importLibraryModule(programAst, "c64utils", astCache)
+                }
 
-            // always import prog8lib and math
-            importLibraryModule(programAst, "math")
-            importLibraryModule(programAst, "prog8lib")
+                // always import prog8lib and math
+                importLibraryModule(programAst, "math", astCache)
+                importLibraryModule(programAst, "prog8lib", astCache)
+                compilerOptions
+            }
 
 
             // perform initial syntax checks and constant folding
             println("Syntax check...")
-            val time1 = measureTimeMillis {
+            stats.measure("checkIdentifiers", programAst) {
                 programAst.checkIdentifiers()
             }
-
-            //println(" time1: $time1")
-            val time2 = measureTimeMillis {
+            stats.measure("constantFold", programAst) {
                 programAst.constantFold()
             }
-            //println(" time2: $time2")
-            val time3 = measureTimeMillis {
+            stats.measure("reorder/typecasts", programAst) {
                 programAst.removeNopsFlattenAnonScopes()
                 programAst.reorderStatements()
                 programAst.addTypecasts()
             }
-            //println(" time3: $time3")
-            val time4 = measureTimeMillis {
+            stats.measure("checkValid", programAst) {
                 programAst.checkValid(compilerOptions)          // check if tree is valid
+                programAst.checkIdentifiers()
             }
-            //println(" time4: $time4")
 
-            programAst.checkIdentifiers()
             if (optimize) {
                 // optimize the parse tree
                 println("Optimizing...")
+                val optimizer = AstOptimizer(programAst, compilerOptions.optimizeSize)
+                var iteration = 1
                 while (true) {
                     // keep optimizing expressions and statements until no more steps remain
-                    val optsDone1 = programAst.simplifyExpressions()
-                    val optsDone2 = programAst.optimizeStatements()
-                    if (optsDone1 + optsDone2 == 0)
+                    val optimizationsDone = stats.measure("optimize #$iteration", programAst) {
+                        optimizer.optimizeRound()
+                    }
+                    stats?.count("ast optimizations", optimizationsDone)
+                    if (optimizationsDone == 0)
                         break
+                    iteration++
                 }
             }
 
-            programAst.addTypecasts()
-            programAst.removeNopsFlattenAnonScopes()
-            programAst.checkValid(compilerOptions)          // check if final tree is valid
-            programAst.checkRecursion()         // check if there are recursive subroutine calls
+            stats.measure("final checks", programAst) {
+                programAst.addTypecasts()
+                programAst.removeNopsFlattenAnonScopes()
+                programAst.checkValid(compilerOptions)          // check if final tree is valid
+                programAst.checkRecursion()         // check if there are recursive subroutine calls
+            }
 
             // printAst(programAst)
 
@@ -102,8 +111,10 @@ fun compileProgram(filepath: Path,
                 // asm generation directly from the Ast, no need for intermediate code
                 val zeropage = CompilationTarget.machine.getZeropage(compilerOptions)
                 programAst.anonscopeVarsCleanup()
-                val assembly = CompilationTarget.asmGenerator(programAst, zeropage, compilerOptions, outputDir).compileToAssembly(optimize)
-                assembly.assemble(compilerOptions)
+                val assembly = CompilationTarget.asmGenerator(programAst, zeropage, compilerOptions, outputDir).compileToAssembly(optimize, stats)
+                stats.measure("assemble", null) {
+                    assembly.assemble(compilerOptions)
+                }
                 programName = assembly.name
             }
             success = true
@@ -154,6 +165,12 @@ private fun determineCompilationOptions(program: Program): CompilationOptions {
             as? Directive)?.args?.single()?.name?.toUpperCase()
     val allOptions = program.modules.flatMap { it.statements }.filter { it is Directive && it.directive == "%option" }.flatMap { (it as Directive).args }.toSet()
     val floatsEnabled = allOptions.any { it.name == "enable_floats" }
+    val evalStack = when {
+        allOptions.any { it.name == "zeropage_estack" } -> EvalStackType.ZEROPAGE
+        allOptions.any { it.name == "zeropage_estack_lsb" } -> EvalStackType.ZEROPAGE_LSB
+        else -> EvalStackType.MAIN_MEMORY
+    }
+    val optimizeSize = allOptions.any { it.name == "optimize_size" }
     val zpType: ZeropageType =
             if (zpoption == null)
                 if(floatsEnabled) ZeropageType.FLOATSAFE else ZeropageType.KERNALSAFE
@@ -174,6 +191,6 @@ private fun determineCompilationOptions(program: Program): CompilationOptions {
     return CompilationOptions(
             if (outputType == null) OutputType.PRG else OutputType.valueOf(outputType),
             if (launcherType == null) LauncherType.BASIC else LauncherType.valueOf(launcherType),
-            zpType, zpReserved, floatsEnabled
+            zpType, zpReserved, floatsEnabled, evalStack, optimizeSize = optimizeSize
     )
 }
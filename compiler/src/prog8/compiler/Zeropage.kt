@@ -1,6 +1,7 @@
 package prog8.compiler
 
 import prog8.ast.base.*
+import java.util.*
 
 
 class ZeropageDepletedError(message: String) : Exception(message)
@@ -9,11 +10,11 @@ class ZeropageDepletedError(message: String) : Exception(message)
 abstract class Zeropage(protected val options: CompilationOptions) {
 
     private val allocations = mutableMapOf<Int, Pair<String, DataType>>()
-    val free = mutableListOf<Int>()     // subclasses must set this to the appropriate free locations.
+    val free = BitSet(256)      // subclasses must set this to the appropriate free locations.
 
     val allowedDatatypes = NumericDatatypes
 
-    fun available() = if(options.zeropage==ZeropageType.DONTUSE) 0 else free.size
+    fun available() = if(options.zeropage==ZeropageType.DONTUSE) 0 else free.cardinality()
 
     fun allocate(scopedname: String, datatype: DataType, position: Position?): Int {
         assert(scopedname.isEmpty() || !allocations.values.any { it.first==scopedname } ) {"isSameAs scopedname can't be allocated twice"}
@@ -37,34 +38,39 @@ abstract class Zeropage(protected val options: CompilationOptions) {
                     else -> throw CompilerException("cannot put datatype $datatype in zeropage")
                 }
 
-        if(free.size > 0) {
-            if(size==1) {
-                for(candidate in free.min()!! .. free.max()!!+1) {
-                    if(loneByte(candidate))
-                        return makeAllocation(candidate, 1, datatype, scopedname)
-                }
-                return makeAllocation(free[0], 1, datatype, scopedname)
-            }
-            for(candidate in free.min()!! .. free.max()!!+1) {
-                if (sequentialFree(candidate, size))
-                    return makeAllocation(candidate, size, datatype, scopedname)
+        val address = bestFit(size) ?: throw ZeropageDepletedError("ERROR: no free space in ZP to allocate $size sequential bytes")
+        return makeAllocation(address, size, datatype, scopedname)
+    }
+
+    /**
+     * The start of the shortest sequence of free bytes that the value fits in (the lowest one if there are more).
+     * That way, single bytes don't break up the longer sequences that are needed for the words and floats.
+     */
+    private fun bestFit(size: Int): Int? {
+        var best: Int? = null
+        var bestLength = Int.MAX_VALUE
+        var start = free.nextSetBit(0)
+        while(start>=0) {
+            val end = free.nextClearBit(start)
+            if(end-start in size until bestLength) {
+                best = start
+                bestLength = end-start
             }
+            start = free.nextSetBit(end)
         }
-
-        throw ZeropageDepletedError("ERROR: no free space in ZP to allocate $size sequential bytes")
+        return best
     }
 
-    protected fun reserve(range: IntRange) = free.removeAll(range)
+    protected fun makeFree(addresses: Iterable<Int>) = addresses.forEach { free.set(it) }
+
+    protected fun reserve(addresses: Iterable<Int>) = addresses.forEach { free.clear(it) }
 
     private fun makeAllocation(address: Int, size: Int, datatype: DataType, name: String?): Int {
-        free.removeAll(address until address+size)
+        free.clear(address, address+size)
         allocations[address] = Pair(name ?: "<unnamed>", datatype)
         return address
     }
 
-    private fun loneByte(address: Int) = address in free && address-1 !in free && address+1 !in free
-    private fun sequentialFree(address: Int, size: Int) = free.containsAll((address until address+size).toList())
-
     enum class ExitProgramStrategy {
         CLEAN_EXIT,
         SYSTEM_RESET
@@ -1,9 +1,10 @@
 package prog8.compiler.target
 
 import prog8.compiler.CompilationOptions
+import prog8.compiler.CompilerStats
 
 internal interface IAssemblyGenerator {
-    fun compileToAssembly(optimize: Boolean): IAssemblyProgram
+    fun compileToAssembly(optimize: Boolean, stats: CompilerStats?): IAssemblyProgram
 }
 
 internal interface IAssemblyProgram {
@@ -3,16 +3,24 @@ package prog8.compiler.target.c64
 import prog8.compiler.CompilationOptions
 import prog8.compiler.OutputType
 import prog8.compiler.target.IAssemblyProgram
+import prog8.compiler.target.c64.assembler.Assembler
 import java.nio.file.Path
 import kotlin.system.exitProcess
 
-class AssemblyProgram(override val name: String, outputDir: Path): IAssemblyProgram {
+class AssemblyProgram(override val name: String, outputDir: Path, private val assemblyLines: List<String>? = null): IAssemblyProgram {
     private val assemblyFile = outputDir.resolve("$name.asm")
     private val prgFile = outputDir.resolve("$name.prg")
     private val binFile = outputDir.resolve("$name.bin")
     private val viceMonListFile = outputDir.resolve("$name.vice-mon-list")
 
     override fun assemble(options: CompilationOptions) {
+        if(options.builtinAssembler)
+            assembleBuiltin(options)
+        else
+            assembleWith64tass(options)
+    }
+
+    private fun assembleWith64tass(options: CompilationOptions) {
         // add "-Wlong-branch"  to see warnings about conversion of branch instructions to jumps
         val command = mutableListOf("64tass", "--ascii", "--case-sensitive", "--long-branch",
                 "-Wall", "-Wno-strict-bool", "-Wno-shadow", "-Werror", "-Wno-error=long-branch",
@@ -42,6 +50,35 @@ class AssemblyProgram(override val name: String, outputDir: Path): IAssemblyProg
         generateBreakpointList()
     }
 
+    private fun assembleBuiltin(options: CompilationOptions) {
+        val outFile = when(options.output) {
+            OutputType.PRG -> {
+                println("\nCreating C-64 prg.")
+                prgFile
+            }
+            OutputType.RAW -> {
+                println("\nCreating raw binary.")
+                binFile
+            }
+        }
+        // the code generator's lines can contain multiple lines each (inline assembly and the libraries)
+        val lines = (assemblyLines ?: assemblyFile.toFile().readLines()).flatMap { it.lines() }
+        val result = Assembler(lines, assemblyFile.fileName.toString(), assemblyFile.toAbsolutePath().parent).assemble()
+        result.warnings.forEach { System.err.println(it) }
+        if(result.errors.isNotEmpty()) {
+            result.errors.forEach { System.err.println(it) }
+            System.err.println("assembler failed with ${result.errors.size} errors")
+            exitProcess(1)
+        }
+
+        val loadAddress = byteArrayOf(result.startAddress.toByte(), (result.startAddress shr 8).toByte())
+        outFile.toFile().writeBytes(if(options.output==OutputType.PRG) loadAddress + result.image else result.image)
+        viceMonListFile.toFile().writeText(result.labels.joinToString("") { "al %04x %s\n".format(it.second, it.first) })
+        println("${result.image.size} bytes written to $outFile")
+
+        generateBreakpointList()
+    }
+
     private fun generateBreakpointList() {
         // builds list of breakpoints, appends to monitor list file
         val breakpoints = mutableListOf<String>()
@@ -2,8 +2,10 @@ package prog8.compiler.target.c64
 
 import prog8.compiler.CompilationOptions
 import prog8.compiler.CompilerException
+import prog8.compiler.EvalStackType
 import prog8.compiler.Zeropage
 import prog8.compiler.ZeropageType
+import prog8.compiler.toHex
 import prog8.compiler.target.IMachineDefinition
 import java.awt.Color
 import java.awt.image.BufferedImage
@@ -21,15 +23,25 @@ object C64MachineDefinition: IMachineDefinition {
     const val RAW_LOAD_ADDRESS = 0xc000
 
     // the 2*256 byte evaluation stack (on which bytes, words, and even floats are stored during calculations)
-    // and some heavily used string constants derived from the two values above
-    const val ESTACK_LO_VALUE       = 0xce00        //  $ce00-$ceff inclusive
-    const val ESTACK_HI_VALUE       = 0xcf00        //  $cf00-$cfff inclusive
-    const val ESTACK_LO_HEX         = "\$ce00"
-    const val ESTACK_LO_PLUS1_HEX   = "\$ce01"
-    const val ESTACK_LO_PLUS2_HEX   = "\$ce02"
-    const val ESTACK_HI_HEX         = "\$cf00"
-    const val ESTACK_HI_PLUS1_HEX   = "\$cf01"
-    const val ESTACK_HI_PLUS2_HEX   = "\$cf02"
+    // With the zeropage_estack options (one or both halves of) it is moved into the zeropage instead, see C64Zeropage.
+    const val ESTACK_LO_DEFAULT     = 0xce00        //  $ce00-$ceff inclusive
+    const val ESTACK_HI_DEFAULT     = 0xcf00        //  $cf00-$cfff inclusive
+    const val ESTACK_ZEROPAGE_SIZE  = 24            //  bytes in the zeropage per half
+    const val ESTACK_ZEROPAGE_ENTRIES = ESTACK_ZEROPAGE_SIZE - 2     // room for 22 values on the stack
+
+    /**
+     * Where the two halves of the evaluation stack are in one compilation,
+     * and some heavily used operand strings derived from the two addresses.
+     */
+    class EvalStack(val lo: Int, val hi: Int) {
+        val inZeropage = lo < 0x100 || hi < 0x100
+        val loHex = lo.toHex()
+        val loPlus1Hex = (lo+1).toHex()
+        val loPlus2Hex = (lo+2).toHex()
+        val hiHex = hi.toHex()
+        val hiPlus1Hex = (hi+1).toHex()
+        val hiPlus2Hex = (hi+2).toHex()
+    }
 
     override fun getZeropage(compilerOptions: CompilationOptions) = C64Zeropage(compilerOptions)
 
@@ -60,19 +72,21 @@ object C64MachineDefinition: IMachineDefinition {
             ZeropageType.FLOATSAFE, ZeropageType.KERNALSAFE, ZeropageType.FULL -> ExitProgramStrategy.SYSTEM_RESET
         }
 
+        val evalStack: EvalStack
+
 
         init {
             if (options.floats && options.zeropage !in setOf(ZeropageType.FLOATSAFE, ZeropageType.BASICSAFE, ZeropageType.DONTUSE ))
                 throw CompilerException("when floats are enabled, zero page type should be 'floatsafe' or 'basicsafe' or 'dontuse'")
 
             if (options.zeropage == ZeropageType.FULL) {
-                free.addAll(0x04..0xf9)
-                free.add(0xff)
-                free.removeAll(listOf(SCRATCH_B1, SCRATCH_REG, SCRATCH_REG_X, SCRATCH_W1, SCRATCH_W1 + 1, SCRATCH_W2, SCRATCH_W2 + 1))
-                free.removeAll(listOf(0xa0, 0xa1, 0xa2, 0x91, 0xc0, 0xc5, 0xcb, 0xf5, 0xf6))        // these are updated by IRQ
+                makeFree(0x04..0xf9)
+                free.set(0xff)
+                reserve(listOf(SCRATCH_B1, SCRATCH_REG, SCRATCH_REG_X, SCRATCH_W1, SCRATCH_W1 + 1, SCRATCH_W2, SCRATCH_W2 + 1))
+                reserve(listOf(0xa0, 0xa1, 0xa2, 0x91, 0xc0, 0xc5, 0xcb, 0xf5, 0xf6))        // these are updated by IRQ
             } else {
                 if (options.zeropage == ZeropageType.KERNALSAFE || options.zeropage == ZeropageType.FLOATSAFE) {
-                    free.addAll(listOf(0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x10, 0x11,
+                    makeFree(listOf(0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x10, 0x11,
                             0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x20, 0x21,
                             0x22, 0x23, 0x24, 0x25,
                             0x39, 0x3a, 0x3b, 0x3c, 0x3d, 0x3e, 0x3f, 0x40, 0x41, 0x42, 0x43, 0x44, 0x45, 0x46,
@@ -89,7 +103,7 @@ object C64MachineDefinition: IMachineDefinition {
 
                 if (options.zeropage == ZeropageType.FLOATSAFE) {
                     // remove the zero page locations used for floating point operations from the free list
-                    free.removeAll(listOf(
+                    reserve(listOf(
                             0x12, 0x26, 0x27, 0x28, 0x29, 0x2a,
                             0x57, 0x58, 0x59, 0x5a, 0x5b, 0x5c, 0x5d, 0x5e, 0x5f, 0x60,
                             0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
@@ -101,7 +115,7 @@ object C64MachineDefinition: IMachineDefinition {
                 if(options.zeropage!=ZeropageType.DONTUSE) {
                     // add the other free Zp addresses,
                     // these are valid for the C-64 (when no RS232 I/O is performed) but to keep BASIC running fully:
-                    free.addAll(listOf(0x04, 0x05, 0x06, 0x0a, 0x0e,
+                    makeFree(listOf(0x04, 0x05, 0x06, 0x0a, 0x0e,
                             0x94, 0x95, 0xa7, 0xa8, 0xa9, 0xaa,
                             0xb5, 0xb6, 0xf7, 0xf8, 0xf9))
                 } else {
@@ -109,14 +123,33 @@ object C64MachineDefinition: IMachineDefinition {
                     free.clear()
                 }
             }
-            assert(SCRATCH_B1 !in free)
-            assert(SCRATCH_REG !in free)
-            assert(SCRATCH_REG_X !in free)
-            assert(SCRATCH_W1 !in free)
-            assert(SCRATCH_W2 !in free)
+            assert(!free[SCRATCH_B1])
+            assert(!free[SCRATCH_REG])
+            assert(!free[SCRATCH_REG_X])
+            assert(!free[SCRATCH_W1])
+            assert(!free[SCRATCH_W2])
 
             for (reserved in options.zpReserved)
                 reserve(reserved)
+
+            evalStack = when(options.evalStack) {
+                EvalStackType.MAIN_MEMORY -> EvalStack(ESTACK_LO_DEFAULT, ESTACK_HI_DEFAULT)
+                EvalStackType.ZEROPAGE -> EvalStack(allocateEvalStack(), allocateEvalStack())
+                EvalStackType.ZEROPAGE_LSB -> EvalStack(allocateEvalStack(), ESTACK_HI_DEFAULT)
+            }
+        }
+
+        private fun allocateEvalStack(): Int {
+            // Takes the highest free sequence of zeropage bytes for one half of the evaluation stack.
+            // The stack pointer X starts at ${'$'}ff and grows downward, and zeropage,x addressing wraps around within
+            // the zeropage, so the values are at base-1, base-2, ... and base+1 is read (but never written) as well.
+            // base+2 (the highest offset used in an operand) must stay in the zeropage for the zeropage,x addressing.
+            val start = (0xfe - ESTACK_ZEROPAGE_SIZE + 1 downTo 0).firstOrNull { candidate ->
+                (candidate until candidate + ESTACK_ZEROPAGE_SIZE).all { free[it] }
+            } ?: throw CompilerException("not enough free zeropage for the evaluation stack, it needs $ESTACK_ZEROPAGE_SIZE sequential bytes " +
+                    "(with zeropage type ${options.zeropage})")
+            reserve(start until start + ESTACK_ZEROPAGE_SIZE)
+            return start + ESTACK_ZEROPAGE_SIZE - 2
         }
     }
 
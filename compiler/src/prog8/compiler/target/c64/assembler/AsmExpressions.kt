@@ -0,0 +1,432 @@
+package prog8.compiler.target.c64.assembler
+
+import kotlin.math.*
+
+
+internal class AsmSyntaxError(message: String) : Exception(message)
+
+
+/**
+ * The values that assembler expressions work with.
+ * Just like in 64tass, arithmetic on a list is done on each of its elements.
+ */
+internal sealed class AsmValue {
+    class Integer(val value: Long) : AsmValue()
+    class Float(val value: Double) : AsmValue()
+    class Text(val value: String) : AsmValue()
+    class ValueList(val values: List<AsmValue>) : AsmValue()
+    object Unknown : AsmValue()         // a symbol without a value (yet)
+
+    // a single character string is a number too
+    fun asNumber(): AsmValue =
+        if(this is Text && value.length==1) Integer(value[0].toLong() and 255) else this
+
+    fun asInteger(): Long? = when(val number = asNumber()) {
+        is Integer -> number.value
+        is Float -> number.value.toLong()
+        else -> null
+    }
+}
+
+
+internal interface AsmEvaluationContext {
+    val programCounter: Int
+    fun symbol(name: String): AsmValue
+    fun anonymousLabel(forward: Boolean, count: Int): AsmValue
+}
+
+
+internal abstract class AsmExpression {
+    abstract fun evaluate(context: AsmEvaluationContext): AsmValue
+}
+
+private class Literal(val value: AsmValue) : AsmExpression() {
+    override fun evaluate(context: AsmEvaluationContext) = value
+}
+
+private class SymbolRef(val name: String) : AsmExpression() {
+    override fun evaluate(context: AsmEvaluationContext) = context.symbol(name)
+}
+
+private class AnonymousLabelRef(val forward: Boolean, val count: Int) : AsmExpression() {
+    override fun evaluate(context: AsmEvaluationContext) = context.anonymousLabel(forward, count)
+}
+
+private object ProgramCounter : AsmExpression() {
+    override fun evaluate(context: AsmEvaluationContext) = AsmValue.Integer(context.programCounter.toLong())
+}
+
+private class Unary(val operator: String, val operand: AsmExpression) : AsmExpression() {
+    override fun evaluate(context: AsmEvaluationContext): AsmValue = elementwise(operand.evaluate(context)) { value ->
+        when (value) {
+            is AsmValue.Integer -> when (operator) {
+                "-" -> AsmValue.Integer(-value.value)
+                "+" -> value
+                "~" -> AsmValue.Integer(value.value.inv())
+                "!" -> AsmValue.Integer(if (value.value == 0L) 1 else 0)
+                "<" -> AsmValue.Integer(value.value and 255)
+                ">" -> AsmValue.Integer((value.value shr 8) and 255)
+                else -> throw AsmSyntaxError("invalid operator $operator")
+            }
+            is AsmValue.Float -> when (operator) {
+                "-" -> AsmValue.Float(-value.value)
+                "+" -> value
+                else -> Unary(operator, Literal(AsmValue.Integer(value.value.toLong()))).evaluate(context)
+            }
+            else -> throw AsmSyntaxError("invalid operand for $operator")
+        }
+    }
+}
+
+private class Binary(val left: AsmExpression, val operator: String, val right: AsmExpression) : AsmExpression() {
+    override fun evaluate(context: AsmEvaluationContext): AsmValue {
+        val leftValue = left.evaluate(context).asNumber()
+        val rightValue = right.evaluate(context).asNumber()
+        return elementwise(leftValue, rightValue) { l, r -> apply(l, r) }
+    }
+
+    private fun apply(left: AsmValue, right: AsmValue): AsmValue {
+        if(left is AsmValue.Integer && right is AsmValue.Integer) {
+            val l = left.value
+            val r = right.value
+            return AsmValue.Integer(when(operator) {
+                "+" -> l + r
+                "-" -> l - r
+                "*" -> l * r
+                "/" -> if(r==0L) throw AsmSyntaxError("division by zero") else Math.floorDiv(l, r)
+                "%" -> if(r==0L) throw AsmSyntaxError("division by zero") else Math.floorMod(l, r)
+                "<<" -> l shl r.toInt()
+                ">>" -> l shr r.toInt()
+                "&" -> l and r
+                "|" -> l or r
+                "^" -> l xor r
+                "&&" -> if(l!=0L && r!=0L) 1 else 0
+                "||" -> if(l!=0L || r!=0L) 1 else 0
+                else -> if(compare(l.compareTo(r))) 1 else 0
+            })
+        }
+        val l = (left as? AsmValue.Float)?.value ?: (left as? AsmValue.Integer)?.value?.toDouble() ?: throw AsmSyntaxError("invalid operand for $operator")
+        val r = (right as? AsmValue.Float)?.value ?: (right as? AsmValue.Integer)?.value?.toDouble() ?: throw AsmSyntaxError("invalid operand for $operator")
+        return when(operator) {
+            "+" -> AsmValue.Float(l + r)
+            "-" -> AsmValue.Float(l - r)
+            "*" -> AsmValue.Float(l * r)
+            "/" -> AsmValue.Float(l / r)
+            "%" -> AsmValue.Float(l % r)
+            "<", ">", "<=", ">=", "==", "!=" -> AsmValue.Integer(if(compare(l.compareTo(r))) 1 else 0)
+            else -> apply(AsmValue.Integer(l.toLong()), AsmValue.Integer(r.toLong()))
+        }
+    }
+
+    private fun compare(comparison: Int) = when(operator) {
+        "<" -> comparison < 0
+        ">" -> comparison > 0
+        "<=" -> comparison <= 0
+        ">=" -> comparison >= 0
+        "==" -> comparison == 0
+        "!=" -> comparison != 0
+        else -> throw AsmSyntaxError("invalid operator $operator")
+    }
+}
+
+private class FunctionCall(val name: String, val args: List<AsmExpression>) : AsmExpression() {
+    override fun evaluate(context: AsmEvaluationContext): AsmValue {
+        val values = args.map { it.evaluate(context) }
+        if(values.any { it===AsmValue.Unknown })
+            return AsmValue.Unknown
+        return when(name) {
+            "sin" -> float(values) { sin(it) }
+            "cos" -> float(values) { cos(it) }
+            "tan" -> float(values) { tan(it) }
+            "rad" -> float(values) { Math.toRadians(it) }
+            "deg" -> float(values) { Math.toDegrees(it) }
+            "sqrt" -> float(values) { sqrt(it) }
+            "trunc" -> integer(values) { truncate(it) }
+            "round" -> integer(values) { it.roundToLong().toDouble() }
+            "floor" -> integer(values) { floor(it) }
+            "ceil" -> integer(values) { ceil(it) }
+            "abs" -> single(values) { value ->
+                when(value) {
+                    is AsmValue.Integer -> AsmValue.Integer(value.value.absoluteValue)
+                    is AsmValue.Float -> AsmValue.Float(value.value.absoluteValue)
+                    else -> throw AsmSyntaxError("invalid argument for abs")
+                }
+            }
+            "len" -> when(val value = values.singleOrNull()) {
+                is AsmValue.Text -> AsmValue.Integer(value.value.length.toLong())
+                is AsmValue.ValueList -> AsmValue.Integer(value.values.size.toLong())
+                else -> throw AsmSyntaxError("invalid argument for len")
+            }
+            "range" -> range(values.map { it.asInteger() ?: throw AsmSyntaxError("range needs integer arguments") })
+            "format" -> format(values)
+            else -> throw AsmSyntaxError("unknown function $name")
+        }
+    }
+
+    private fun single(values: List<AsmValue>, function: (AsmValue) -> AsmValue): AsmValue {
+        if(values.size!=1)
+            throw AsmSyntaxError("$name needs one argument")
+        return elementwise(values[0].asNumber(), function)
+    }
+
+    private fun float(values: List<AsmValue>, function: (Double) -> Double) = single(values) {
+        when(it) {
+            is AsmValue.Integer -> AsmValue.Float(function(it.value.toDouble()))
+            is AsmValue.Float -> AsmValue.Float(function(it.value))
+            else -> throw AsmSyntaxError("invalid argument for $name")
+        }
+    }
+
+    private fun integer(values: List<AsmValue>, function: (Double) -> Double) = single(values) {
+        when(it) {
+            is AsmValue.Integer -> it
+            is AsmValue.Float -> AsmValue.Integer(function(it.value).toLong())
+            else -> throw AsmSyntaxError("invalid argument for $name")
+        }
+    }
+
+    private fun range(args: List<Long>): AsmValue {
+        val (start, end, step) = when(args.size) {
+            1 -> Triple(0L, args[0], 1L)
+            2 -> Triple(args[0], args[1], 1L)
+            3 -> Triple(args[0], args[1], args[2])
+            else -> throw AsmSyntaxError("range needs one to three arguments")
+        }
+        if(step==0L)
+            throw AsmSyntaxError("range step can't be zero")
+        val values = mutableListOf<AsmValue>()
+        var value = start
+        while(if(step>0) value<end else value>end) {
+            values.add(AsmValue.Integer(value))
+            value += step
+        }
+        return AsmValue.ValueList(values)
+    }
+
+    private fun format(values: List<AsmValue>): AsmValue {
+        val template = values.firstOrNull() as? AsmValue.Text ?: throw AsmSyntaxError("format needs a format string")
+        val args = values.drop(1).map {
+            when(it) {
+                is AsmValue.Integer -> it.value
+                is AsmValue.Float -> it.value
+                is AsmValue.Text -> it.value
+                else -> throw AsmSyntaxError("invalid argument for format")
+            }
+        }
+        return AsmValue.Text(String.format(template.value, *args.toTypedArray()))
+    }
+}
+
+
+private fun elementwise(value: AsmValue, operation: (AsmValue) -> AsmValue): AsmValue = when(value) {
+    AsmValue.Unknown -> AsmValue.Unknown
+    is AsmValue.ValueList -> AsmValue.ValueList(value.values.map { elementwise(it.asNumber(), operation) })
+    else -> operation(value.asNumber())
+}
+
+private fun elementwise(left: AsmValue, right: AsmValue, operation: (AsmValue, AsmValue) -> AsmValue): AsmValue {
+    if(left===AsmValue.Unknown || right===AsmValue.Unknown)
+        return AsmValue.Unknown
+    return when {
+        left is AsmValue.ValueList && right is AsmValue.ValueList -> {
+            if(left.values.size!=right.values.size)
+                throw AsmSyntaxError("lists of different length")
+            AsmValue.ValueList(left.values.zip(right.values) { l, r -> elementwise(l.asNumber(), r.asNumber(), operation) })
+        }
+        left is AsmValue.ValueList -> AsmValue.ValueList(left.values.map { elementwise(it.asNumber(), right, operation) })
+        right is AsmValue.ValueList -> AsmValue.ValueList(right.values.map { elementwise(left, it.asNumber(), operation) })
+        else -> operation(left, right)
+    }
+}
+
+
+/**
+ * Parses the expressions in the operands of the assembly source lines.
+ */
+internal class AsmExpressionParser(private val text: String) {
+    private var pos = 0
+
+    companion object {
+        private val binaryPrecedence = listOf(
+                listOf("||"),
+                listOf("&&"),
+                listOf("|"),
+                listOf("^"),
+                listOf("&"),
+                listOf("==", "!="),
+                listOf("<", ">", "<=", ">="),
+                listOf("<<", ">>"),
+                listOf("+", "-"),
+                listOf("*", "/", "%")
+        )
+
+        fun parse(text: String): AsmExpression {
+            val parser = AsmExpressionParser(text)
+            val expression = parser.expression()
+            parser.skipSpace()
+            if(!parser.atEnd())
+                throw AsmSyntaxError("unexpected '${text.substring(parser.pos)}' in expression")
+            return expression
+        }
+
+        // splits the text at the commas that are not inside parentheses or quotes
+        fun splitArguments(text: String): List<String> {
+            val parts = mutableListOf<String>()
+            var depth = 0
+            var quote: Char? = null
+            var start = 0
+            for((index, char) in text.withIndex()) {
+                when {
+                    quote!=null -> if(char==quote) quote = null
+                    char=='"' || char=='\'' -> quote = char
+                    char=='(' -> depth++
+                    char==')' -> depth--
+                    char==',' && depth==0 -> {
+                        parts.add(text.substring(start, index).trim())
+                        start = index+1
+                    }
+                }
+            }
+            parts.add(text.substring(start).trim())
+            return parts
+        }
+    }
+
+    private fun atEnd() = pos >= text.length
+
+    private fun skipSpace() {
+        while(!atEnd() && text[pos].isWhitespace())
+            pos++
+    }
+
+    private fun peekOperator(candidates: List<String>): String? {
+        skipSpace()
+        // the longest operator that matches wins, so that '<' doesn't take the place of '<<' or '<='
+        val operator = candidates.filter { text.startsWith(it, pos) }.sortedByDescending { it.length }.firstOrNull() ?: return null
+        val longer = listOf("<<", ">>", "<=", ">=", "&&", "||", "==", "!=").filter { text.startsWith(it, pos) && it.length > operator.length }
+        return if(longer.isEmpty()) operator else null
+    }
+
+    private fun expression(level: Int = 0): AsmExpression {
+        if(level >= binaryPrecedence.size)
+            return unary()
+        var left = expression(level+1)
+        while(true) {
+            val operator = peekOperator(binaryPrecedence[level]) ?: return left
+            pos += operator.length
+            left = Binary(left, operator, expression(level+1))
+        }
+    }
+
+    private fun unary(): AsmExpression {
+        skipSpace()
+        if(atEnd())
+            throw AsmSyntaxError("missing operand in expression")
+        val char = text[pos]
+        if(char=='+' || char=='-') {
+            // a run of + or - on its own is a reference to an anonymous label
+            var end = pos
+            while(end < text.length && text[end]==char)
+                end++
+            var next = end
+            while(next < text.length && text[next].isWhitespace())
+                next++
+            if(next>=text.length || text[next]==')' || text[next]==',') {
+                val count = end - pos
+                pos = end
+                return AnonymousLabelRef(char=='+', count)
+            }
+            pos++
+            return Unary(char.toString(), unary())
+        }
+        if(char=='<' || char=='>') {
+            // the low and high byte operators apply to the whole expression that follows
+            pos++
+            return Unary(char.toString(), expression())
+        }
+        if(char=='~' || char=='!') {
+            pos++
+            return Unary(char.toString(), unary())
+        }
+        return primary()
+    }
+
+    private fun primary(): AsmExpression {
+        skipSpace()
+        val char = text[pos]
+        when {
+            char=='(' -> {
+                pos++
+                val inner = expression()
+                skipSpace()
+                if(atEnd() || text[pos]!=')')
+                    throw AsmSyntaxError("missing ')'")
+                pos++
+                return inner
+            }
+            char=='*' -> {
+                pos++
+                return ProgramCounter
+            }
+            char=='$' -> return Literal(AsmValue.Integer(number(pos+1, 16) { it in '0'..'9' || it.toLowerCase() in 'a'..'f' }))
+            char=='%' -> return Literal(AsmValue.Integer(number(pos+1, 2) { it=='0' || it=='1' }))
+            char.isDigit() -> {
+                val start = pos
+                while(!atEnd() && text[pos].isDigit())
+                    pos++
+                if(!atEnd() && text[pos]=='.' && pos+1 < text.length && text[pos+1].isDigit()) {
+                    pos++
+                    while(!atEnd() && text[pos].isDigit())
+                        pos++
+                    return Literal(AsmValue.Float(text.substring(start, pos).toDouble()))
+                }
+                return Literal(AsmValue.Integer(text.substring(start, pos).toLong()))
+            }
+            char=='"' || char=='\'' -> {
+                val end = text.indexOf(char, pos+1)
+                if(end<0)
+                    throw AsmSyntaxError("unterminated string")
+                val string = text.substring(pos+1, end)
+                pos = end+1
+                return Literal(AsmValue.Text(string))
+            }
+            char.isLetter() || char=='_' -> {
+                val start = pos
+                while(!atEnd() && (text[pos].isLetterOrDigit() || text[pos]=='_' || text[pos]=='.'))
+                    pos++
+                val name = text.substring(start, pos)
+                skipSpace()
+                if(!atEnd() && text[pos]=='(') {
+                    pos++
+                    val args = mutableListOf<AsmExpression>()
+                    skipSpace()
+                    if(!atEnd() && text[pos]==')')
+                        pos++
+                    else {
+                        while(true) {
+                            args.add(expression())
+                            skipSpace()
+                            if(atEnd())
+                                throw AsmSyntaxError("missing ')'")
+                            if(text[pos++]==')')
+                                break
+                        }
+                    }
+                    return FunctionCall(name, args)
+                }
+                return SymbolRef(name)
+            }
+            else -> throw AsmSyntaxError("unexpected '$char' in expression")
+        }
+    }
+
+    private fun number(start: Int, radix: Int, isDigit: (Char) -> Boolean): Long {
+        var end = start
+        while(end < text.length && isDigit(text[end]))
+            end++
+        if(end==start)
+            throw AsmSyntaxError("invalid number")
+        pos = end
+        return text.substring(start, end).toLong(radix)
+    }
+}
@@ -0,0 +1,639 @@
+package prog8.compiler.target.c64.assembler
+
+import java.io.IOException
+import java.nio.file.Path
+import java.util.ArrayDeque
+
+
+internal class AssemblyResult(val image: ByteArray,
+                              val startAddress: Int,
+                              val labels: List<Pair<String, Int>>,
+                              val errors: List<String>,
+                              val warnings: List<String>)
+
+
+/**
+ * An assembler for the subset of the 64tass syntax that the code generator and the embedded libraries use.
+ * Like 64tass it only assembles a .proc if it's referenced from code that is assembled,
+ * it turns branches that are out of range into a branch over a jmp (--long-branch),
+ * and it keeps doing passes over the source until all symbol values are stable.
+ * Cheap local labels (starting with an underscore) belong to the last normal label before them in their scope,
+ * but are also found by their name alone if that's unambiguous.
+ */
+internal class Assembler(private val sourceLines: List<String>, private val sourceName: String, private val sourceDir: Path) {
+
+    private enum class SymbolKind { LABEL, CONSTANT, VARIABLE }
+
+    private class Symbol(val name: String, val scope: Scope, val kind: SymbolKind, val line: Int) {
+        var value: AsmValue = AsmValue.Unknown
+        var definedInPass = -1
+        var childScope: Scope? = null
+    }
+
+    private class Scope(val name: String?, val parent: Scope?, val isProc: Boolean, val anchorInParent: String?) {
+        val statements = mutableListOf<Statement>()
+        val symbols = mutableMapOf<String, Symbol>()
+        val cheapSymbols = mutableMapOf<Pair<String?, String>, Symbol>()
+        val cheapSymbolsByName = mutableMapOf<String, MutableList<Symbol>>()
+        val anonymousLabels = mutableListOf<AnonymousLabel>()
+        var symbol: Symbol? = null
+        var active = !isProc
+        var referenced = false
+        var currentAnchor: String? = null       // only used while parsing
+
+        val path: String
+            get() = if(parent==null) "" else parent.path + "." + name
+
+        fun cheapSymbol(anchor: String?, name: String): Symbol? =
+                cheapSymbols[Pair(anchor, name)] ?: cheapSymbolsByName[name]?.singleOrNull() ?: cheapSymbols[Pair(null, name)]
+    }
+
+    private class AnonymousLabel(val forward: Boolean) {
+        var address: Int? = null
+    }
+
+    private abstract class Statement(val line: Int, val scope: Scope, val anchor: String?) {
+        var anonymousLabelsBefore = 0        // the anonymous labels in the scope that are defined before this statement
+    }
+    private class LabelDefinition(line: Int, scope: Scope, anchor: String?, val symbol: Symbol) : Statement(line, scope, anchor)
+    private class AnonymousLabelDefinition(line: Int, scope: Scope, anchor: String?, val label: AnonymousLabel) : Statement(line, scope, anchor)
+    private class Assignment(line: Int, scope: Scope, anchor: String?, val symbol: Symbol, val value: AsmExpression) : Statement(line, scope, anchor)
+    private class Origin(line: Int, scope: Scope, anchor: String?, val address: AsmExpression) : Statement(line, scope, anchor)
+    private class NestedScope(line: Int, scope: Scope, anchor: String?, val child: Scope) : Statement(line, scope, anchor)
+    private class Data(line: Int, scope: Scope, anchor: String?, val directive: String, val values: List<AsmExpression>) : Statement(line, scope, anchor)
+    private class Message(line: Int, scope: Scope, anchor: String?, val directive: String, val parts: List<AsmExpression>) : Statement(line, scope, anchor)
+    private class BinaryInclude(line: Int, scope: Scope, anchor: String?, val args: List<AsmExpression>) : Statement(line, scope, anchor)
+    private class Instruction(line: Int, scope: Scope, anchor: String?, val mnemonic: String,
+                              val syntax: OperandSyntax, val operand: AsmExpression?) : Statement(line, scope, anchor) {
+        var size = 0
+        var forceAbsolute = false
+        var longBranch = false
+    }
+
+    private val root = Scope(null, null, false, null)
+    private val errors = mutableListOf<String>()
+    private val warnings = mutableListOf<String>()
+    private val image = ByteArray(65536)
+    private var lowestAddress = Int.MAX_VALUE
+    private var highestAddress = -1
+
+    private var pass = 0
+    private var finalPass = false
+    private var valuesChanged = false
+    private var programCounter = 0
+
+    fun assemble(): AssemblyResult {
+        parse()
+        if(errors.isEmpty()) {
+            do {
+                pass++
+                valuesChanged = false
+                runPass(root)
+                val newlyReferenced = activateReferencedScopes(root)
+                if(pass > MAX_PASSES) {
+                    errors.add("$sourceName: error: the symbol values don't become stable")
+                    break
+                }
+            } while(valuesChanged || newlyReferenced)
+        }
+        if(errors.isEmpty()) {
+            pass++
+            finalPass = true
+            runPass(root)
+        }
+        val labels = mutableListOf<Pair<String, Int>>()
+        collectLabels(root, labels)
+        val startAddress = if(highestAddress<0) 0 else lowestAddress
+        val bytes = if(highestAddress<0) ByteArray(0) else image.copyOfRange(lowestAddress, highestAddress+1)
+        return AssemblyResult(bytes, startAddress, labels, errors, warnings)
+    }
+
+    private fun error(line: Int, message: String) = errors.add("$sourceName:$line: error: $message")
+
+    // ---- parsing ----
+
+    private fun parse() {
+        val scopes = ArrayDeque<Scope>()
+        scopes.push(root)
+        for((index, text) in sourceLines.withIndex()) {
+            val line = index + 1
+            try {
+                parseLine(line, stripComment(text).trimEnd(), scopes)
+            } catch(x: AsmSyntaxError) {
+                error(line, x.message ?: "syntax error")
+            }
+        }
+        if(scopes.size > 1)
+            error(sourceLines.size, "missing .pend or .bend for '${scopes.peek().name}'")
+    }
+
+    private fun parseLine(line: Int, code: String, scopes: ArrayDeque<Scope>) {
+        if(code.isBlank())
+            return
+        var label: String? = null
+        var rest = code.trim()
+        if(!code[0].isWhitespace() && code[0]!='.') {
+            val end = code.indices.firstOrNull { code[it].isWhitespace() || code[it]=='=' || code.startsWith(":=", it) } ?: -1
+            label = (if(end<0) code else code.substring(0, end)).removeSuffix(":")
+            rest = if(end<0) "" else code.substring(end).trim()
+        } else if(!rest.startsWith('.')) {
+            // an indented label
+            val word = rest.takeWhile { !it.isWhitespace() && it!='=' && it!=':' }
+            if(!Instructions.isMnemonic(word) && word.isNotEmpty() && (word[0].isLetter() || word[0]=='_')) {
+                label = word
+                rest = rest.substring(word.length)
+                if(rest.startsWith(':') && !rest.startsWith(":="))
+                    rest = rest.substring(1)
+                rest = rest.trim()
+            }
+        }
+
+        val scope = scopes.peek()
+        when {
+            label=="*" -> {
+                if(!rest.startsWith("="))
+                    throw AsmSyntaxError("expected '*=' to set the program counter")
+                addStatement(Origin(line, scope, scope.currentAnchor, AsmExpressionParser.parse(rest.substring(1))))
+                return
+            }
+            label!=null && rest.startsWith(":=") -> {
+                val symbol = defineSymbol(label, scope, SymbolKind.VARIABLE, line)
+                addStatement(Assignment(line, scope, scope.currentAnchor, symbol, AsmExpressionParser.parse(rest.substring(2))))
+                return
+            }
+            label!=null && rest.startsWith("=") && !rest.startsWith("==") -> {
+                val symbol = defineSymbol(label, scope, SymbolKind.CONSTANT, line)
+                addStatement(Assignment(line, scope, scope.currentAnchor, symbol, AsmExpressionParser.parse(rest.substring(1))))
+                return
+            }
+        }
+
+        val directive = rest.takeWhile { !it.isWhitespace() }.toLowerCase()
+        if(directive==".proc" || directive==".block") {
+            if(label==null || label=="+" || label=="-")
+                throw AsmSyntaxError("$directive needs a name")
+            val symbol = defineSymbol(label, scope, SymbolKind.LABEL, line)
+            val child = Scope(label, scope, directive==".proc", scope.currentAnchor)
+            child.symbol = symbol
+            symbol.childScope = child
+            addStatement(NestedScope(line, scope, scope.currentAnchor, child))
+            scopes.push(child)
+            return
+        }
+
+        if(label!=null) {
+            if(label=="+" || label=="-") {
+                val anonymous = AnonymousLabel(label=="+")
+                addStatement(AnonymousLabelDefinition(line, scope, scope.currentAnchor, anonymous))
+                scope.anonymousLabels.add(anonymous)
+            } else {
+                val symbol = defineSymbol(label, scope, SymbolKind.LABEL, line)
+                addStatement(LabelDefinition(line, scope, scope.currentAnchor, symbol))
+            }
+        }
+        if(rest.isEmpty())
+            return
+
+        if(rest.startsWith('.'))
+            parseDirective(line, directive, rest.substring(directive.length).trim(), scopes)
+        else
+            parseInstruction(line, rest, scope)
+    }
+
+    private fun addStatement(statement: Statement) {
+        statement.anonymousLabelsBefore = statement.scope.anonymousLabels.size
+        statement.scope.statements.add(statement)
+    }
+
+    private fun defineSymbol(name: String, scope: Scope, kind: SymbolKind, line: Int): Symbol {
+        if(name.isEmpty() || !(name[0].isLetter() || name[0]=='_') || name.any { !it.isLetterOrDigit() && it!='_' })
+            throw AsmSyntaxError("invalid label '$name'")
+        if(name.startsWith('_')) {
+            val key = Pair(scope.currentAnchor, name)
+            val existing = scope.cheapSymbols[key]
+            if(existing!=null) {
+                if(kind==SymbolKind.VARIABLE && existing.kind==SymbolKind.VARIABLE)
+                    return existing
+                throw AsmSyntaxError("duplicate definition of '$name', first defined on line ${existing.line}")
+            }
+            val symbol = Symbol(name, scope, kind, line)
+            scope.cheapSymbols[key] = symbol
+            scope.cheapSymbolsByName.getOrPut(name) { mutableListOf() }.add(symbol)
+            return symbol
+        }
+        val existing = scope.symbols[name]
+        if(existing!=null) {
+            if(kind==SymbolKind.VARIABLE && existing.kind==SymbolKind.VARIABLE)
+                return existing
+            throw AsmSyntaxError("duplicate definition of '$name', first defined on line ${existing.line}")
+        }
+        val symbol = Symbol(name, scope, kind, line)
+        scope.symbols[name] = symbol
+        scope.currentAnchor = name
+        return symbol
+    }
+
+    private fun parseDirective(line: Int, directive: String, args: String, scopes: ArrayDeque<Scope>) {
+        val scope = scopes.peek()
+        fun arguments() = if(args.isEmpty()) emptyList() else AsmExpressionParser.splitArguments(args).map { AsmExpressionParser.parse(it) }
+        when(directive) {
+            ".pend", ".bend" -> {
+                if(scope===root || scope.isProc != (directive==".pend"))
+                    throw AsmSyntaxError("$directive without matching ${if(directive==".pend") ".proc" else ".block"}")
+                scopes.pop()
+            }
+            ".byte", ".char", ".word", ".sint", ".text", ".null", ".fill" ->
+                addStatement(Data(line, scope, scope.currentAnchor, directive, arguments()))
+            ".cerror", ".error", ".warn" ->
+                addStatement(Message(line, scope, scope.currentAnchor, directive, arguments()))
+            ".binary" ->
+                addStatement(BinaryInclude(line, scope, scope.currentAnchor, arguments()))
+            ".enc" -> {
+                if(args.trim('\'', '"') != "none")
+                    throw AsmSyntaxError("only the 'none' encoding is supported")
+            }
+            ".cpu" -> {
+                if(args.trim('\'', '"') != "6502")
+                    throw AsmSyntaxError("only the '6502' cpu is supported")
+            }
+            else -> throw AsmSyntaxError("unsupported directive $directive")
+        }
+    }
+
+    private fun parseInstruction(line: Int, text: String, scope: Scope) {
+        val mnemonic = text.takeWhile { !it.isWhitespace() }.toLowerCase()
+        if(!Instructions.isMnemonic(mnemonic))
+            throw AsmSyntaxError("unknown instruction '$mnemonic'")
+        val (syntax, expression) = Instructions.parseOperand(mnemonic, text.substring(mnemonic.length).trim())
+        addStatement(Instruction(line, scope, scope.currentAnchor, mnemonic, syntax, expression?.let { AsmExpressionParser.parse(it) }))
+    }
+
+    // ---- the passes ----
+
+    private fun runPass(scope: Scope) {
+        if(scope===root)
+            programCounter = 0
+        for(statement in scope.statements) {
+            try {
+                process(statement)
+            } catch(x: AsmSyntaxError) {
+                if(finalPass)
+                    error(statement.line, x.message ?: "error")
+            }
+        }
+    }
+
+    private fun process(statement: Statement) {
+        when(statement) {
+            is LabelDefinition -> define(statement.symbol, AsmValue.Integer(programCounter.toLong()))
+            is AnonymousLabelDefinition -> {
+                if(statement.label.address!=programCounter)
+                    valuesChanged = true
+                statement.label.address = programCounter
+            }
+            is Assignment -> define(statement.symbol, evaluate(statement.value, statement))
+            is Origin -> {
+                val address = evaluate(statement.address, statement).asInteger()
+                if(address!=null) {
+                    if(address !in 0..65535)
+                        throw AsmSyntaxError("program counter out of range")
+                    programCounter = address.toInt()
+                }
+            }
+            is NestedScope -> {
+                val child = statement.child
+                if(child.active) {
+                    define(child.symbol!!, AsmValue.Integer(programCounter.toLong()))
+                    runPass(child)
+                }
+            }
+            is Instruction -> instruction(statement)
+            is Data -> data(statement)
+            is Message -> message(statement)
+            is BinaryInclude -> binaryInclude(statement)
+        }
+    }
+
+    private fun define(symbol: Symbol, value: AsmValue) {
+        if(symbol.definedInPass==pass && symbol.kind!=SymbolKind.VARIABLE)
+            throw AsmSyntaxError("duplicate definition of '${symbol.name}'")
+        if(!sameValue(symbol.value, value))
+            valuesChanged = true
+        symbol.value = value
+        symbol.definedInPass = pass
+    }
+
+    private fun sameValue(first: AsmValue, second: AsmValue): Boolean = when(first) {
+        is AsmValue.Integer -> second is AsmValue.Integer && first.value==second.value
+        is AsmValue.Float -> second is AsmValue.Float && first.value==second.value
+        is AsmValue.Text -> second is AsmValue.Text && first.value==second.value
+        is AsmValue.ValueList -> second is AsmValue.ValueList && first.values.size==second.values.size &&
+                first.values.indices.all { sameValue(first.values[it], second.values[it]) }
+        AsmValue.Unknown -> second===AsmValue.Unknown
+    }
+
+    private fun evaluate(expression: AsmExpression, statement: Statement): AsmValue {
+        val context = object: AsmEvaluationContext {
+            override val programCounter = this@Assembler.programCounter
+            override fun symbol(name: String) = lookup(name, statement)
+            override fun anonymousLabel(forward: Boolean, count: Int) = anonymousLabel(forward, count, statement)
+        }
+        val value = expression.evaluate(context)
+        if(finalPass && value===AsmValue.Unknown)
+            throw AsmSyntaxError("expression has no value")
+        return value
+    }
+
+    private fun lookup(name: String, statement: Statement): AsmValue {
+        val parts = name.split('.')
+        var symbol: Symbol? = null
+        var scope: Scope? = statement.scope
+        var anchor = statement.anchor
+        while(scope!=null && symbol==null) {
+            symbol = if(parts[0].startsWith('_')) scope.cheapSymbol(anchor, parts[0]) else scope.symbols[parts[0]]
+            anchor = scope.anchorInParent
+            scope = scope.parent
+        }
+        for(part in parts.drop(1)) {
+            if(symbol==null)
+                break
+            markReferenced(symbol)
+            val child = symbol.childScope
+            symbol = if(child==null) null else (if(part.startsWith('_')) child.cheapSymbol(null, part) else child.symbols[part])
+        }
+        if(symbol==null) {
+            if(finalPass)
+                throw AsmSyntaxError("undefined symbol '$name'")
+            return AsmValue.Unknown
+        }
+        markReferenced(symbol)
+        if(finalPass && symbol.value===AsmValue.Unknown)
+            throw AsmSyntaxError("symbol '$name' has no value")
+        return symbol.value
+    }
+
+    private fun markReferenced(symbol: Symbol) {
+        symbol.childScope?.referenced = true
+        var scope: Scope? = symbol.scope
+        while(scope!=null && !scope.referenced) {
+            scope.referenced = true
+            scope = scope.parent
+        }
+    }
+
+    private fun activateReferencedScopes(scope: Scope): Boolean {
+        var activated = false
+        for(statement in scope.statements) {
+            if(statement is NestedScope) {
+                val child = statement.child
+                if(!child.active && child.referenced) {
+                    child.active = true
+                    activated = true
+                }
+                if(child.active && activateReferencedScopes(child))
+                    activated = true
+            }
+        }
+        return activated
+    }
+
+    private fun anonymousLabel(forward: Boolean, count: Int, statement: Statement): AsmValue {
+        val labels = statement.scope.anonymousLabels
+        // a statement's own anonymous label counts as being before it
+        val position = statement.anonymousLabelsBefore + (if(statement is AnonymousLabelDefinition) 1 else 0)
+        val candidates = if(forward)
+            labels.subList(position, labels.size).filter { it.forward }
+        else
+            labels.subList(0, position).filter { !it.forward }.reversed()
+        val label = candidates.getOrNull(count-1)
+                ?: throw AsmSyntaxError("no ${if(forward) "following '+'" else "preceding '-'"} anonymous label")
+        val address = label.address
+        if(address==null) {
+            if(finalPass)
+                throw AsmSyntaxError("anonymous label has no value")
+            return AsmValue.Unknown
+        }
+        return AsmValue.Integer(address.toLong())
+    }
+
+    // ---- instructions and data ----
+
+    private fun instruction(instr: Instruction) {
+        val modes = Instructions.modes(instr.mnemonic)
+        val value = instr.operand?.let { evaluate(it, instr) }
+        val number = value?.asInteger()
+        if(value!=null && value!==AsmValue.Unknown && number==null)
+            throw AsmSyntaxError("operand is not a number")
+
+        if(AddressingMode.RELATIVE in modes) {
+            branch(instr, modes.getValue(AddressingMode.RELATIVE), number)
+            return
+        }
+
+        val mode = when(instr.syntax) {
+            OperandSyntax.NONE -> AddressingMode.IMPLIED
+            OperandSyntax.ACCUMULATOR -> AddressingMode.ACCUMULATOR
+            OperandSyntax.IMMEDIATE -> AddressingMode.IMMEDIATE
+            OperandSyntax.INDIRECT -> AddressingMode.INDIRECT
+            OperandSyntax.INDIRECT_X -> AddressingMode.INDIRECT_X
+            OperandSyntax.INDIRECT_Y -> AddressingMode.INDIRECT_Y
+            OperandSyntax.PLAIN -> chooseSize(instr, number, AddressingMode.ZEROPAGE, AddressingMode.ABSOLUTE, modes)
+            OperandSyntax.INDEXED_X -> chooseSize(instr, number, AddressingMode.ZEROPAGE_X, AddressingMode.ABSOLUTE_X, modes)
+            OperandSyntax.INDEXED_Y -> chooseSize(instr, number, AddressingMode.ZEROPAGE_Y, AddressingMode.ABSOLUTE_Y, modes)
+        }
+        val opcode = modes[mode] ?: throw AsmSyntaxError("invalid addressing mode for ${instr.mnemonic}")
+        instr.size = 1 + mode.operandSize
+        if(finalPass) {
+            val operand = number ?: 0
+            when(mode.operandSize) {
+                0 -> emit(opcode)
+                1 -> {
+                    val inRange = if(mode==AddressingMode.IMMEDIATE) operand in -128..255 else operand in 0..255
+                    if(!inRange)
+                        throw AsmSyntaxError("operand out of range: $operand")
+                    emit(opcode, (operand and 255).toInt())
+                }
+                else -> {
+                    if(operand !in 0..65535)
+                        throw AsmSyntaxError("address out of range: $operand")
+                    emit(opcode, (operand and 255).toInt(), (operand shr 8).toInt())
+                }
+            }
+        } else
+            programCounter += instr.size
+    }
+
+    private fun chooseSize(instr: Instruction, operand: Long?, zeropage: AddressingMode, absolute: AddressingMode, modes: Map<AddressingMode, Int>): AddressingMode {
+        if(zeropage !in modes)
+            return absolute
+        if(absolute !in modes)
+            return zeropage
+        val mode = if(operand!=null && operand in 0..255 && !instr.forceAbsolute) zeropage else absolute
+        // after a number of passes the instructions are only allowed to grow, so that the passes end
+        if(pass > SHRINK_PASSES && mode==zeropage && instr.size==1+absolute.operandSize) {
+            instr.forceAbsolute = true
+            return absolute
+        }
+        return mode
+    }
+
+    private fun branch(instr: Instruction, opcode: Int, target: Long?) {
+        if(instr.syntax!=OperandSyntax.PLAIN)
+            throw AsmSyntaxError("invalid operand for ${instr.mnemonic}")
+        if(target!=null && !instr.longBranch) {
+            val offset = target - (programCounter + 2)
+            if(offset !in -128..127)
+                instr.longBranch = true
+        }
+        if(!finalPass) {
+            instr.size = if(instr.longBranch) 5 else 2
+            programCounter += instr.size
+            return
+        }
+        val address = target ?: 0
+        if(instr.longBranch) {
+            // the opposite branch over an absolute jump
+            emit(Instructions.invertedBranch(opcode), 3)
+            emit(0x4c, (address and 255).toInt(), ((address shr 8) and 255).toInt())
+        } else {
+            emit(opcode, ((address - (programCounter + 2)) and 255).toInt())
+        }
+    }
+
+    private fun data(data: Data) {
+        if(data.directive==".fill") {
+            val args = data.values.map { evaluate(it, data).asInteger() }
+            val count = args.getOrNull(0) ?: throw AsmSyntaxError(".fill needs a length")
+            val fill = if(args.size>1) args[1] ?: 0 else 0
+            if(count<0 || count>65536)
+                throw AsmSyntaxError("invalid .fill length")
+            repeat(count.toInt()) { emitOrSkip(fill, 0L..255L) }
+            return
+        }
+        val range = when(data.directive) {
+            ".char" -> -128L..127L
+            ".word" -> 0L..65535L
+            ".sint" -> -32768L..32767L
+            else -> 0L..255L
+        }
+        val wordSized = data.directive==".word" || data.directive==".sint"
+        for(expression in data.values) {
+            for(value in flatten(evaluate(expression, data))) {
+                if(wordSized) {
+                    emitOrSkip(value, range, 0)
+                    emitOrSkip(value, range, 8)
+                } else
+                    emitOrSkip(value, range)
+            }
+        }
+        if(data.directive==".null")
+            emitOrSkip(0, range)
+    }
+
+    // the values that a data directive emits: strings as their characters, lists as their elements
+    private fun flatten(value: AsmValue): List<Long?> = when(value) {
+        is AsmValue.Integer -> listOf(value.value)
+        is AsmValue.Float -> listOf(value.value.toLong())
+        is AsmValue.Text -> value.value.map { it.toLong() and 255 }
+        is AsmValue.ValueList -> value.values.flatMap { flatten(it) }
+        AsmValue.Unknown -> listOf(null)
+    }
+
+    private fun emitOrSkip(value: Long?, range: LongRange, shift: Int = 0) {
+        if(!finalPass) {
+            programCounter++
+            return
+        }
+        val number = value ?: 0
+        if(number !in range)
+            throw AsmSyntaxError("value out of range: $number")
+        emit(((number shr shift) and 255).toInt())
+    }
+
+    private fun message(statement: Message) {
+        if(!finalPass)
+            return
+        var parts = statement.parts.map { evaluate(it, statement) }
+        if(statement.directive==".cerror") {
+            val condition = parts.firstOrNull()?.asInteger() ?: throw AsmSyntaxError(".cerror needs a condition")
+            if(condition==0L)
+                return
+            parts = parts.drop(1)
+        }
+        val text = parts.joinToString("") {
+            when(it) {
+                is AsmValue.Text -> it.value
+                is AsmValue.Integer -> it.value.toString()
+                is AsmValue.Float -> it.value.toString()
+                else -> "?"
+            }
+        }
+        if(statement.directive==".warn")
+            warnings.add("$sourceName:${statement.line}: warning: $text")
+        else
+            error(statement.line, text)
+    }
+
+    private fun binaryInclude(statement: BinaryInclude) {
+        val args = statement.args.map { evaluate(it, statement) }
+        val filename = (args.firstOrNull() as? AsmValue.Text)?.value ?: throw AsmSyntaxError(".binary needs a file name")
+        val contents = try {
+            sourceDir.resolve(filename).toFile().readBytes()
+        } catch(x: IOException) {
+            throw AsmSyntaxError("can't read binary file '$filename'")
+        }
+        val offset = args.getOrNull(1)?.asInteger()?.toInt() ?: 0
+        val length = args.getOrNull(2)?.asInteger()?.toInt() ?: contents.size - offset
+        if(offset<0 || length<0 || offset+length > contents.size)
+            throw AsmSyntaxError("invalid offset or length for binary file '$filename'")
+        for(index in offset until offset+length)
+            emitOrSkip(contents[index].toLong() and 255, 0L..255L)
+    }
+
+    private fun emit(vararg bytes: Int) {
+        for(byte in bytes) {
+            if(programCounter !in 0..65535)
+                throw AsmSyntaxError("program counter out of range")
+            image[programCounter] = byte.toByte()
+            lowestAddress = minOf(lowestAddress, programCounter)
+            highestAddress = maxOf(highestAddress, programCounter)
+            programCounter++
+        }
+    }
+
+    // ---- labels ----
+
+    private fun collectLabels(scope: Scope, labels: MutableList<Pair<String, Int>>) {
+        for(statement in scope.statements) {
+            val symbol = when(statement) {
+                is LabelDefinition -> statement.symbol
+                is Assignment -> if(statement.symbol.kind==SymbolKind.CONSTANT) statement.symbol else null
+                is NestedScope -> if(statement.child.active) statement.child.symbol else null
+                else -> null
+            }
+            val address = symbol?.value?.asInteger()
+            if(symbol!=null && symbol.value is AsmValue.Integer && address!=null && address in 0..65535)
+                labels.add(Pair(scope.path + "." + symbol.name, address.toInt()))
+            if(statement is NestedScope && statement.child.active)
+                collectLabels(statement.child, labels)
+        }
+    }
+
+    companion object {
+        private const val MAX_PASSES = 50
+        private const val SHRINK_PASSES = 10
+    }
+}
+
+
+internal fun stripComment(line: String): String {
+    var quote: Char? = null
+    for((index, char) in line.withIndex()) {
+        when {
+            quote!=null -> if(char==quote) quote = null
+            char=='"' || char=='\'' -> quote = char
+            char==';' -> return line.substring(0, index)
+        }
+    }
+    return line
+}
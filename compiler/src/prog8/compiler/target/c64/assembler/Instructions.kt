@@ -0,0 +1,230 @@
+package prog8.compiler.target.c64.assembler
+
+
+internal enum class AddressingMode(val operandSize: Int) {
+    IMPLIED(0),
+    ACCUMULATOR(0),
+    IMMEDIATE(1),
+    ZEROPAGE(1),
+    ZEROPAGE_X(1),
+    ZEROPAGE_Y(1),
+    ABSOLUTE(2),
+    ABSOLUTE_X(2),
+    ABSOLUTE_Y(2),
+    INDIRECT(2),
+    INDIRECT_X(1),
+    INDIRECT_Y(1),
+    RELATIVE(1)
+}
+
+
+// how an operand is written, before it is known if it's a zeropage or an absolute address
+internal enum class OperandSyntax { NONE, ACCUMULATOR, IMMEDIATE, PLAIN, INDEXED_X, INDEXED_Y, INDIRECT, INDIRECT_X, INDIRECT_Y }
+
+
+internal enum class Opcode {
+    ADC, AND, ASL, BCC, BCS, BEQ, BIT, BMI, BNE, BPL, BRK, BVC, BVS, CLC, CLD, CLI, CLV, CMP, CPX, CPY,
+    DEC, DEX, DEY, EOR, INC, INX, INY, JMP, JSR, LDA, LDX, LDY, LSR, NOP, ORA, PHA, PHP, PLA, PLP,
+    ROL, ROR, RTI, RTS, SBC, SEC, SED, SEI, STA, STX, STY, TAX, TAY, TSX, TXA, TXS, TYA;
+
+    val mnemonic = name.toLowerCase()
+    val modes: Map<AddressingMode, Int>
+        get() = Instructions.modes(mnemonic)
+    val isBranch: Boolean
+        get() = AddressingMode.RELATIVE in modes
+
+    companion object {
+        private val byMnemonic = values().associateBy { it.mnemonic }
+        fun fromMnemonic(mnemonic: String) = byMnemonic[mnemonic.toLowerCase()]
+    }
+}
+
+
+/**
+ * The opcodes of the documented 6502 instructions, by mnemonic and addressing mode.
+ */
+internal object Instructions {
+    private val opcodes = mutableMapOf<String, Map<AddressingMode, Int>>()
+
+    private fun instr(mnemonic: String, vararg modes: Pair<AddressingMode, Int>) {
+        opcodes[mnemonic] = modes.toMap()
+    }
+
+    // the instructions with the 'full' set of addressing modes
+    private fun group1(mnemonic: String, imm: Int, zp: Int, zpx: Int, abs: Int, absx: Int, absy: Int, indx: Int, indy: Int) {
+        instr(mnemonic, AddressingMode.IMMEDIATE to imm, AddressingMode.ZEROPAGE to zp, AddressingMode.ZEROPAGE_X to zpx,
+                AddressingMode.ABSOLUTE to abs, AddressingMode.ABSOLUTE_X to absx, AddressingMode.ABSOLUTE_Y to absy,
+                AddressingMode.INDIRECT_X to indx, AddressingMode.INDIRECT_Y to indy)
+    }
+
+    // the shift and rotate instructions
+    private fun group2(mnemonic: String, acc: Int, zp: Int, zpx: Int, abs: Int, absx: Int) {
+        instr(mnemonic, AddressingMode.ACCUMULATOR to acc, AddressingMode.ZEROPAGE to zp, AddressingMode.ZEROPAGE_X to zpx,
+                AddressingMode.ABSOLUTE to abs, AddressingMode.ABSOLUTE_X to absx)
+    }
+
+    private fun implied(mnemonic: String, opcode: Int) = instr(mnemonic, AddressingMode.IMPLIED to opcode)
+    private fun branch(mnemonic: String, opcode: Int) = instr(mnemonic, AddressingMode.RELATIVE to opcode)
+
+    init {
+        group1("adc", 0x69, 0x65, 0x75, 0x6d, 0x7d, 0x79, 0x61, 0x71)
+        group1("and", 0x29, 0x25, 0x35, 0x2d, 0x3d, 0x39, 0x21, 0x31)
+        group1("cmp", 0xc9, 0xc5, 0xd5, 0xcd, 0xdd, 0xd9, 0xc1, 0xd1)
+        group1("eor", 0x49, 0x45, 0x55, 0x4d, 0x5d, 0x59, 0x41, 0x51)
+        group1("lda", 0xa9, 0xa5, 0xb5, 0xad, 0xbd, 0xb9, 0xa1, 0xb1)
+        group1("ora", 0x09, 0x05, 0x15, 0x0d, 0x1d, 0x19, 0x01, 0x11)
+        group1("sbc", 0xe9, 0xe5, 0xf5, 0xed, 0xfd, 0xf9, 0xe1, 0xf1)
+        instr("sta", AddressingMode.ZEROPAGE to 0x85, AddressingMode.ZEROPAGE_X to 0x95, AddressingMode.ABSOLUTE to 0x8d,
+                AddressingMode.ABSOLUTE_X to 0x9d, AddressingMode.ABSOLUTE_Y to 0x99,
+                AddressingMode.INDIRECT_X to 0x81, AddressingMode.INDIRECT_Y to 0x91)
+
+        group2("asl", 0x0a, 0x06, 0x16, 0x0e, 0x1e)
+        group2("lsr", 0x4a, 0x46, 0x56, 0x4e, 0x5e)
+        group2("rol", 0x2a, 0x26, 0x36, 0x2e, 0x3e)
+        group2("ror", 0x6a, 0x66, 0x76, 0x6e, 0x7e)
+
+        instr("bit", AddressingMode.ZEROPAGE to 0x24, AddressingMode.ABSOLUTE to 0x2c)
+        instr("cpx", AddressingMode.IMMEDIATE to 0xe0, AddressingMode.ZEROPAGE to 0xe4, AddressingMode.ABSOLUTE to 0xec)
+        instr("cpy", AddressingMode.IMMEDIATE to 0xc0, AddressingMode.ZEROPAGE to 0xc4, AddressingMode.ABSOLUTE to 0xcc)
+        instr("dec", AddressingMode.ZEROPAGE to 0xc6, AddressingMode.ZEROPAGE_X to 0xd6, AddressingMode.ABSOLUTE to 0xce, AddressingMode.ABSOLUTE_X to 0xde)
+        instr("inc", AddressingMode.ZEROPAGE to 0xe6, AddressingMode.ZEROPAGE_X to 0xf6, AddressingMode.ABSOLUTE to 0xee, AddressingMode.ABSOLUTE_X to 0xfe)
+        instr("jmp", AddressingMode.ABSOLUTE to 0x4c, AddressingMode.INDIRECT to 0x6c)
+        instr("jsr", AddressingMode.ABSOLUTE to 0x20)
+        instr("ldx", AddressingMode.IMMEDIATE to 0xa2, AddressingMode.ZEROPAGE to 0xa6, AddressingMode.ZEROPAGE_Y to 0xb6,
+                AddressingMode.ABSOLUTE to 0xae, AddressingMode.ABSOLUTE_Y to 0xbe)
+        instr("ldy", AddressingMode.IMMEDIATE to 0xa0, AddressingMode.ZEROPAGE to 0xa4, AddressingMode.ZEROPAGE_X to 0xb4,
+                AddressingMode.ABSOLUTE to 0xac, AddressingMode.ABSOLUTE_X to 0xbc)
+        instr("stx", AddressingMode.ZEROPAGE to 0x86, AddressingMode.ZEROPAGE_Y to 0x96, AddressingMode.ABSOLUTE to 0x8e)
+        instr("sty", AddressingMode.ZEROPAGE to 0x84, AddressingMode.ZEROPAGE_X to 0x94, AddressingMode.ABSOLUTE to 0x8c)
+
+        branch("bcc", 0x90)
+        branch("bcs", 0xb0)
+        branch("beq", 0xf0)
+        branch("bmi", 0x30)
+        branch("bne", 0xd0)
+        branch("bpl", 0x10)
+        branch("bvc", 0x50)
+        branch("bvs", 0x70)
+
+        implied("brk", 0x00)
+        implied("clc", 0x18)
+        implied("cld", 0xd8)
+        implied("cli", 0x58)
+        implied("clv", 0xb8)
+        implied("dex", 0xca)
+        implied("dey", 0x88)
+        implied("inx", 0xe8)
+        implied("iny", 0xc8)
+        implied("nop", 0xea)
+        implied("pha", 0x48)
+        implied("php", 0x08)
+        implied("pla", 0x68)
+        implied("plp", 0x28)
+        implied("rti", 0x40)
+        implied("rts", 0x60)
+        implied("sec", 0x38)
+        implied("sed", 0xf8)
+        implied("sei", 0x78)
+        implied("tax", 0xaa)
+        implied("tay", 0xa8)
+        implied("tsx", 0xba)
+        implied("txa", 0x8a)
+        implied("txs", 0x9a)
+        implied("tya", 0x98)
+    }
+
+    fun isMnemonic(word: String) = word.toLowerCase() in opcodes
+
+    fun modes(mnemonic: String): Map<AddressingMode, Int> = opcodes.getValue(mnemonic)
+
+    /**
+     * The number of clock cycles that the instruction takes. Extra cycles for crossing a page boundary,
+     * and for a branch that is taken, aren't included.
+     */
+    fun cycles(opcode: Opcode, mode: AddressingMode): Int {
+        val readModify = opcode in setOf(Opcode.ASL, Opcode.LSR, Opcode.ROL, Opcode.ROR, Opcode.INC, Opcode.DEC)
+        return when(mode) {
+            AddressingMode.IMPLIED -> when(opcode) {
+                Opcode.BRK -> 7
+                Opcode.RTI, Opcode.RTS -> 6
+                Opcode.PHA, Opcode.PHP -> 3
+                Opcode.PLA, Opcode.PLP -> 4
+                else -> 2
+            }
+            AddressingMode.ACCUMULATOR, AddressingMode.IMMEDIATE, AddressingMode.RELATIVE -> 2
+            AddressingMode.ZEROPAGE -> if(readModify) 5 else 3
+            AddressingMode.ZEROPAGE_X, AddressingMode.ZEROPAGE_Y -> if(readModify) 6 else 4
+            AddressingMode.ABSOLUTE -> when {
+                opcode==Opcode.JMP -> 3
+                opcode==Opcode.JSR -> 6
+                readModify -> 6
+                else -> 4
+            }
+            AddressingMode.ABSOLUTE_X, AddressingMode.ABSOLUTE_Y -> when {
+                readModify -> 7
+                opcode==Opcode.STA -> 5
+                else -> 4
+            }
+            AddressingMode.INDIRECT -> 5
+            AddressingMode.INDIRECT_X -> 6
+            AddressingMode.INDIRECT_Y -> if(opcode==Opcode.STA) 6 else 5
+        }
+    }
+
+    // the opcode of the branch with the opposite condition, used to make long branches
+    fun invertedBranch(opcode: Int) = opcode xor 0x20
+
+    /**
+     * Determines the syntax of the operand of an instruction, and returns it with the expression in the operand.
+     * For instance  (table),y  is INDIRECT_Y with the expression  table.
+     */
+    fun parseOperand(mnemonic: String, operand: String): Pair<OperandSyntax, String?> {
+        val modes = modes(mnemonic)
+        return when {
+            operand.isEmpty() -> Pair(if(AddressingMode.ACCUMULATOR in modes) OperandSyntax.ACCUMULATOR else OperandSyntax.NONE, null)
+            operand.equals("a", true) && AddressingMode.ACCUMULATOR in modes -> Pair(OperandSyntax.ACCUMULATOR, null)
+            operand.startsWith('#') -> Pair(OperandSyntax.IMMEDIATE, operand.substring(1).trim())
+            else -> {
+                val parts = AsmExpressionParser.splitArguments(operand)
+                when {
+                    parts.size==2 && parts[1].equals("y", true) && isParenthesized(parts[0]) ->
+                        Pair(OperandSyntax.INDIRECT_Y, parts[0].substring(1, parts[0].length-1).trim())
+                    parts.size==2 && parts[1].equals("x", true) -> Pair(OperandSyntax.INDEXED_X, parts[0])
+                    parts.size==2 && parts[1].equals("y", true) -> Pair(OperandSyntax.INDEXED_Y, parts[0])
+                    parts.size==1 && isParenthesized(operand) -> {
+                        val inner = operand.substring(1, operand.length-1)
+                        val innerParts = AsmExpressionParser.splitArguments(inner)
+                        when {
+                            innerParts.size==2 && innerParts[1].equals("x", true) -> Pair(OperandSyntax.INDIRECT_X, innerParts[0])
+                            AddressingMode.INDIRECT in modes -> Pair(OperandSyntax.INDIRECT, inner.trim())
+                            else -> Pair(OperandSyntax.PLAIN, operand)
+                        }
+                    }
+                    parts.size==1 -> Pair(OperandSyntax.PLAIN, operand)
+                    else -> throw AsmSyntaxError("invalid operand '$operand'")
+                }
+            }
+        }
+    }
+
+    // true if the whole text is enclosed in one pair of parentheses
+    private fun isParenthesized(text: String): Boolean {
+        if(!text.startsWith('(') || !text.endsWith(')'))
+            return false
+        var depth = 0
+        var quote: Char? = null
+        for((index, char) in text.withIndex()) {
+            when {
+                quote!=null -> if(char==quote) quote = null
+                char=='"' || char=='\'' -> quote = char
+                char=='(' -> depth++
+                char==')' -> {
+                    depth--
+                    if(depth==0 && index < text.length-1)
+                        return false
+                }
+            }
+        }
+        return true
+    }
+}
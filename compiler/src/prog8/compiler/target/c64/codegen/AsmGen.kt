@@ -1,5 +1,6 @@
 package prog8.compiler.target.c64.codegen
 
+import prog8.ast.IFunctionCall
 import prog8.ast.Node
 import prog8.ast.Program
 import prog8.ast.antlr.escape
@@ -11,8 +12,7 @@ import prog8.compiler.target.IAssemblyGenerator
 import prog8.compiler.target.IAssemblyProgram
 import prog8.compiler.target.c64.AssemblyProgram
 import prog8.compiler.target.c64.C64MachineDefinition
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_HEX
+import prog8.compiler.target.c64.C64MachineDefinition.C64Zeropage
 import prog8.compiler.target.c64.Petscii
 import prog8.functions.BuiltinFunctions
 import prog8.functions.FunctionSignature
@@ -24,44 +24,80 @@ import java.util.ArrayDeque
 import kotlin.math.absoluteValue
 
 
+private const val FRAMES_LABEL = "prog8_frames"      // the memory area with the overlaid subroutine variables
+
 internal class AsmGen(private val program: Program,
              private val zeropage: Zeropage,
              private val options: CompilationOptions,
              private val outputDir: Path): IAssemblyGenerator {
 
-    private val assemblyLines = mutableListOf<String>()
+    internal val estack = (zeropage as C64Zeropage).evalStack
+    private val assemblyLines = mutableListOf<AsmLine>()
     private val globalFloatConsts = mutableMapOf<Double, String>()     // all float values in the entire program (value -> varname)
     private val allocatedZeropageVariables = mutableMapOf<String, Pair<Int, DataType>>()
+    private val overlaidVariables = mutableMapOf<String, Int>()       // overlaid subroutine variables in the frames memory area (varname -> offset)
+    private var frames: FrameAllocator? = null
+    private var fastcalls: FastcallConvention? = null
     private val breakpointLabels = mutableListOf<String>()
+    private val libraryIncludes = mutableListOf<Int>()        // where the library assembly files are in the assemblyLines
     private val builtinFunctionsAsmGen = BuiltinFunctionsAsmGen(program, this)
     private val forloopsAsmGen = ForLoopsAsmGen(program, this)
     private val postincrdecrAsmGen = PostIncrDecrAsmGen(program, this)
     private val functioncallAsmGen = FunctionCallAsmGen(program, this)
     private val assignmentAsmGen = AssignmentAsmGen(program, this)
     private val expressionsAsmGen = ExpressionsAsmGen(program, this)
+    private val whenAsmGen = WhenAsmGen(program, options, this)
+    private val constantArithmeticAsmGen = ConstantArithmeticAsmGen(options, this)
     internal val loopEndLabels = ArrayDeque<String>()
     internal val loopContinueLabels = ArrayDeque<String>()
 
-    override fun compileToAssembly(optimize: Boolean): IAssemblyProgram {
+    override fun compileToAssembly(optimize: Boolean, stats: CompilerStats?): IAssemblyProgram {
         assemblyLines.clear()
+        libraryIncludes.clear()
         loopEndLabels.clear()
         loopContinueLabels.clear()
+        allocatedZeropageVariables.clear()
+        overlaidVariables.clear()
+        frames = if(optimize) FrameAllocator(program, zeropage) else null
+        fastcalls = if(optimize) FastcallConvention(program) else null
 
         println("Generating assembly code... ")
 
-        header()
-        val allBlocks = program.allBlocks()
-        if(allBlocks.first().name != "main")
-            throw AssemblyError("first block should be 'main'")
-        for(b in program.allBlocks())
-            block2asm(b)
-        footer()
+        if(estack.inZeropage)
+            checkEvalStackDepth()
+
+        stats.measure("asmgen", null) {
+            allocateVariables()
+            header()
+            val allBlocks = program.allBlocks()
+            if(allBlocks.first().name != "main")
+                throw AssemblyError("first block should be 'main'")
+            for(b in program.allBlocks())
+                block2asm(b)
+            footer()
+        }
+        stats?.count("asm lines generated", assemblyLines.size)
+        stats?.count("zeropage variables", allocatedZeropageVariables.size)
+        stats?.count("zeropage bytes free", zeropage.available())
+        frames?.let {
+            stats?.count("overlaid variables bytes", it.overlaidVariablesSize)
+            stats?.count("overlaid variables bytes saved", it.overlaidVariablesSize - it.zeropageSize - it.frameMemorySize)
+        }
 
         if(optimize) {
-            var optimizationsDone = 1
-            while (optimizationsDone > 0) {
-                optimizationsDone = optimizeAssembly(assemblyLines)
+            stats.measure("library routines", null) {
+                val removed = removeUnusedLibraryRoutines(assemblyLines, libraryIncludes)
+                stats?.count("library routines removed", removed)
             }
+            stats.measure("peephole", null) {
+                val optimizations = optimizeAssembly(assemblyLines, estack)
+                stats?.count("peephole optimizations", optimizations.hits.values.sum())
+                for((rule, hits) in optimizations.hits)
+                    stats?.count("peephole: $rule", hits)
+                stats?.count("peephole bytes saved", optimizations.bytesSaved)
+                stats?.count("peephole cycles saved", optimizations.cyclesSaved)
+            }
+            stats?.count("asm lines after peephole", assemblyLines.size)
         }
 
         val outputFile = outputDir.resolve("${program.name}.asm").toFile()
@@ -69,7 +105,16 @@ internal class AsmGen(private val program: Program,
             for (line in assemblyLines) { it.println(line) }
         }
 
-        return AssemblyProgram(program.name, outputDir)
+        return AssemblyProgram(program.name, outputDir, assemblyLines.map { it.toString() })
+    }
+
+    private fun checkEvalStackDepth() {
+        // the evaluation stack in the zeropage is small, it would overwrite the zeropage variables below it
+        val deepest = EvalStackDepth(program).deepest() ?: return
+        if(deepest.entries > C64MachineDefinition.ESTACK_ZEROPAGE_ENTRIES)
+            throw ExpressionError("the program can need up to ${deepest.entries} evaluation stack entries here, " +
+                    "but the evaluation stack in the zeropage only has room for ${C64MachineDefinition.ESTACK_ZEROPAGE_ENTRIES}; " +
+                    "simplify the expression or remove the zeropage_estack option", deepest.position)
     }
 
     private fun header() {
@@ -149,6 +194,11 @@ internal class AsmGen(private val program: Program,
             val floatvalue = flt.key
             out("${flt.value}\t.byte  $floatFill  ; float $floatvalue")
         }
+        val frameMemorySize = frames?.frameMemorySize ?: 0
+        if(frameMemorySize>0) {
+            out("; overlaid subroutine variables")
+            out("$FRAMES_LABEL\t.fill  $frameMemorySize")
+        }
     }
 
     private fun block2asm(block: Block) {
@@ -192,9 +242,9 @@ internal class AsmGen(private val program: Program,
             for (line in fragment.split('\n')) {
                 val trimmed = if (line.startsWith(' ')) "\t" + line.trim() else line.trim()
                 // trimmed = trimmed.replace(Regex("^\\+\\s+"), "+\t")  // sanitize local label indentation
-                assemblyLines.add(trimmed)
+                assemblyLines.addAll(parseAsmLine(trimmed))
             }
-        } else assemblyLines.add(fragment)
+        } else assemblyLines.add(AsmText(fragment))
     }
 
     private fun makeFloatFill(flt: C64MachineDefinition.Mflpt5): String {
@@ -220,32 +270,91 @@ internal class AsmGen(private val program: Program,
         }
     }
 
-    private fun zeropagevars2asm(statements: List<Statement>) {
-        out("; vars allocated on zeropage")
-        val variables = statements.filterIsInstance<VarDecl>().filter { it.type==VarDeclType.VAR }
-        for(variable in variables) {
+    /**
+     * Decides where all variables are stored, before any code is generated.
+     * The zeropage can't hold them all, so the candidates get it in the order of their value there:
+     * the pointers that are used for (zp),y addressing, then the ones that explicitly ask for the zeropage,
+     * and then the ones that are used most often (weighted by the loop nesting depth they're used in).
+     */
+    private fun allocateVariables() {
+        val variables = mutableListOf<VarDecl>()
+        fun collect(statements: List<Statement>) {
+            for(stmt in statements) {
+                if(stmt is VarDecl && stmt.type==VarDeclType.VAR)
+                    variables.add(stmt)
+                else if(stmt is Subroutine && !stmt.isAsmSubroutine)
+                    collect(stmt.statements)
+            }
+        }
+        program.allBlocks().forEach { collect(it.statements) }
+
+        val usage = VariableUsage(program)
+        val candidates = variables.sortedWith(
+                compareByDescending<VarDecl> { it in usage.pointers }
+                        .thenByDescending { it.zeropage==ZeropageWish.REQUIRE_ZEROPAGE || it.zeropage==ZeropageWish.PREFER_ZEROPAGE }
+                        .thenByDescending { usage.score(it) })
+
+        for(variable in candidates) {
             // should NOT allocate subroutine parameters on the zero page
             val fullName = variable.scopedname
-            val zpVar = allocatedZeropageVariables[fullName]
-            if(zpVar==null) {
-                // This var is not on the ZP yet. Attempt to move it there (if it's not a float, those take up too much space)
-                if(variable.zeropage != ZeropageWish.NOT_IN_ZEROPAGE &&
-                        variable.datatype in zeropage.allowedDatatypes
-                        && variable.datatype != DataType.FLOAT
-                        && options.zeropage != ZeropageType.DONTUSE) {
-                    try {
-                        val address = zeropage.allocate(fullName, variable.datatype, null)
-                        out("${variable.name} = $address\t; auto zp ${variable.datatype}")
-                        // make sure we add the var to the set of zpvars for this block
-                        allocatedZeropageVariables[fullName] = Pair(address, variable.datatype)
-                    } catch (x: ZeropageDepletedError) {
-                        // leave it as it is.
-                    }
+            // Attempt to move the var to the ZP (if it's not a float, those take up too much space)
+            val zeropageWanted = variable.zeropage != ZeropageWish.NOT_IN_ZEROPAGE &&
+                    variable.datatype in zeropage.allowedDatatypes
+                    && variable.datatype != DataType.FLOAT
+                    && options.zeropage != ZeropageType.DONTUSE
+            if(frames?.canOverlay(variable)==true) {
+                // a subroutine variable that shares its location with variables of other subroutines
+                val slot = frames!!.allocate(variable, zeropageWanted)
+                if(slot.inZeropage)
+                    allocatedZeropageVariables[fullName] = Pair(slot.address, variable.datatype)
+                else
+                    overlaidVariables[fullName] = slot.address
+            }
+            else if(zeropageWanted) {
+                try {
+                    val address = zeropage.allocate(fullName, variable.datatype, null)
+                    allocatedZeropageVariables[fullName] = Pair(address, variable.datatype)
+                } catch (x: ZeropageDepletedError) {
+                    // leave it as it is.
                 }
             }
         }
     }
 
+    private fun zeropagevars2asm(statements: List<Statement>) {
+        out("; vars allocated on zeropage")
+        val variables = statements.filterIsInstance<VarDecl>().filter { it.type==VarDeclType.VAR }
+        for(variable in variables) {
+            val zpVar = allocatedZeropageVariables[variable.scopedname] ?: continue
+            val overlaid = if(frames?.canOverlay(variable)==true) " (overlaid)" else ""
+            out("${variable.name} = ${zpVar.first}\t; auto zp ${variable.datatype}$overlaid")
+        }
+    }
+
+    /**
+     * Is the variable in the zeropage, so that it can be used as a pointer with (zp),y addressing?
+     */
+    internal fun isZeropageVariable(identifier: IdentifierReference): Boolean {
+        val decl = identifier.targetVarDecl(program.namespace) ?: return false
+        if(decl.type==VarDeclType.MEMORY) {
+            val address = decl.value?.constValue(program)?.number?.toInt() ?: return false
+            return address in 0..0xfe
+        }
+        return decl.scopedname in allocatedZeropageVariables
+    }
+
+    /**
+     * Returns the zeropage location of the pointer for (zp),y addressing:
+     * the pointer variable itself, or SCRATCH_W1 if it has to be copied there first (which uses the Y register).
+     */
+    internal fun loadPointerIntoZeropage(pointer: IdentifierReference): String {
+        val name = asmIdentifierName(pointer)
+        if(isZeropageVariable(pointer))
+            return name
+        out("  ldy  $name |  sty  ${C64Zeropage.SCRATCH_W1} |  ldy  $name+1 |  sty  ${C64Zeropage.SCRATCH_W1+1}")
+        return C64Zeropage.SCRATCH_W1.toString()
+    }
+
     private fun vardecl2asm(decl: VarDecl) {
         when (decl.datatype) {
             DataType.UBYTE -> out("${decl.name}\t.byte  0")
@@ -316,7 +425,13 @@ internal class AsmGen(private val program: Program,
         out("\n; memdefs and kernel subroutines")
         val memvars = statements.filterIsInstance<VarDecl>().filter { it.type==VarDeclType.MEMORY || it.type==VarDeclType.CONST }
         for(m in memvars) {
-            out("  ${m.name} = ${(m.value as NumericLiteralValue).number.toHex()}")
+            // the location of the evaluation stack is decided by the compiler options, not by the library
+            val value = when(m.scopedname) {
+                "c64.ESTACK_LO", "c64utils.ESTACK_LO" -> estack.lo
+                "c64.ESTACK_HI", "c64utils.ESTACK_HI" -> estack.hi
+                else -> (m.value as NumericLiteralValue).number
+            }
+            out("  ${m.name} = ${value.toHex()}")
         }
         val asmSubs = statements.filterIsInstance<Subroutine>().filter { it.isAsmSubroutine }
         for(sub in asmSubs) {
@@ -351,7 +466,10 @@ internal class AsmGen(private val program: Program,
 
         // non-string variables
         normalVars.filter{ it.datatype !in StringDatatypes}.sortedBy { it.datatype }.forEach {
-            if(it.scopedname !in allocatedZeropageVariables)
+            val overlaidOffset = overlaidVariables[it.scopedname]
+            if(overlaidOffset!=null)
+                out("${it.name} = $FRAMES_LABEL+$overlaidOffset\t; overlaid ${it.datatype}")
+            else if(it.scopedname !in allocatedZeropageVariables)
                 vardecl2asm(it)
         }
     }
@@ -511,13 +629,13 @@ internal class AsmGen(private val program: Program,
         val variablename = asmIdentifierName(variable)
         when (arrayDt) {
             DataType.STR, DataType.STR_S, DataType.ARRAY_UB, DataType.ARRAY_B ->
-                out("  tay |  lda  $variablename,y |  sta  $ESTACK_LO_HEX,x |  dex")
+                out("  tay |  lda  $variablename,y |  sta  ${estack.loHex},x |  dex")
             DataType.ARRAY_UW, DataType.ARRAY_W ->
-                out("  asl  a |  tay |  lda  $variablename,y |  sta  $ESTACK_LO_HEX,x |  lda  $variablename+1,y |  sta  $ESTACK_HI_HEX,x | dex")
+                out("  asl  a |  tay |  lda  $variablename,y |  sta  ${estack.loHex},x |  lda  $variablename+1,y |  sta  ${estack.hiHex},x | dex")
             DataType.ARRAY_F ->
                 // index * 5 is done in the subroutine that's called
                 out("""
-                    sta  $ESTACK_LO_HEX,x
+                    sta  ${estack.loHex},x
                     dex
                     lda  #<$variablename
                     ldy  #>$variablename
@@ -562,6 +680,7 @@ internal class AsmGen(private val program: Program,
             zeropagevars2asm(sub.statements)
             memdefs2asm(sub.statements)
             out("; statements")
+            fastcall(sub)?.let { storeRegisterParameters(sub, it) }
             sub.statements.forEach{ translate(it) }
             out("; variables")
             vardecls2asm(sub.statements)
@@ -569,6 +688,17 @@ internal class AsmGen(private val program: Program,
         }
     }
 
+    private fun storeRegisterParameters(sub: Subroutine, fastcall: Fastcall) {
+        for((parameter, register) in sub.parameters.zip(fastcall.parameters)) {
+            when(register) {
+                RegisterOrPair.A -> out("  sta  ${parameter.name}")
+                RegisterOrPair.Y -> out("  sty  ${parameter.name}")
+                RegisterOrPair.AY -> out("  sta  ${parameter.name} |  sty  ${parameter.name}+1")
+                else -> throw AssemblyError("invalid parameter register $register")
+            }
+        }
+    }
+
     internal fun translate(stmt: Statement) {
         outputSourceLine(stmt)
         when(stmt) {
@@ -606,7 +736,7 @@ internal class AsmGen(private val program: Program,
             is Break -> out("  jmp  ${loopEndLabels.peek()}")
             is WhileLoop -> translate(stmt)
             is RepeatLoop -> translate(stmt)
-            is WhenStatement -> translate(stmt)
+            is WhenStatement -> whenAsmGen.translate(stmt)
             is BuiltinFunctionStatementPlaceholder -> throw AssemblyError("builtin function should not have placeholder anymore?")
             is AnonymousScope -> translate(stmt)
             is Block -> throw AssemblyError("block should have been handled elsewhere")
@@ -628,8 +758,8 @@ internal class AsmGen(private val program: Program,
 
     private fun translateTestStack(dataType: DataType) {
         when(dataType) {
-            in ByteDatatypes -> out("  inx |  lda  $ESTACK_LO_HEX,x")
-            in WordDatatypes -> out("  inx |  lda  $ESTACK_LO_HEX,x |  ora  $ESTACK_HI_HEX,x")
+            in ByteDatatypes -> out("  inx |  lda  ${estack.loHex},x")
+            in WordDatatypes -> out("  inx |  lda  ${estack.loHex},x |  ora  ${estack.hiHex},x")
             DataType.FLOAT -> throw AssemblyError("conditional value should be an integer (boolean)")
             else -> throw AssemblyError("non-numerical dt")
         }
@@ -647,13 +777,13 @@ internal class AsmGen(private val program: Program,
         if(!conditionDt.isKnown)
             throw AssemblyError("unknown condition dt")
         if(conditionDt.typeOrElse(DataType.BYTE) in ByteDatatypes) {
-            out("  inx |  lda  $ESTACK_LO_HEX,x  |  beq  $endLabel")
+            out("  inx |  lda  ${estack.loHex},x  |  beq  $endLabel")
         } else {
             out("""
                 inx
-                lda  $ESTACK_LO_HEX,x
+                lda  ${estack.loHex},x
                 bne  +
-                lda  $ESTACK_HI_HEX,x
+                lda  ${estack.hiHex},x
                 beq  $endLabel
 +  """)
         }
@@ -677,13 +807,13 @@ internal class AsmGen(private val program: Program,
         if(!conditionDt.isKnown)
             throw AssemblyError("unknown condition dt")
         if(conditionDt.typeOrElse(DataType.BYTE) in ByteDatatypes) {
-            out("  inx |  lda  $ESTACK_LO_HEX,x  |  beq  $repeatLabel")
+            out("  inx |  lda  ${estack.loHex},x  |  beq  $repeatLabel")
         } else {
             out("""
                 inx
-                lda  $ESTACK_LO_HEX,x
+                lda  ${estack.loHex},x
                 bne  +
-                lda  $ESTACK_HI_HEX,x
+                lda  ${estack.hiHex},x
                 beq  $repeatLabel
 + """)
         }
@@ -692,49 +822,6 @@ internal class AsmGen(private val program: Program,
         loopContinueLabels.pop()
     }
 
-    private fun translate(stmt: WhenStatement) {
-        expressionsAsmGen.translateExpression(stmt.condition)
-        val endLabel = makeLabel("choice_end")
-        val choiceBlocks = mutableListOf<Pair<String, AnonymousScope>>()
-        val conditionDt = stmt.condition.inferType(program)
-        if(!conditionDt.isKnown)
-            throw AssemblyError("unknown condition dt")
-        if(conditionDt.typeOrElse(DataType.BYTE) in ByteDatatypes)
-            out("  inx |  lda  $ESTACK_LO_HEX,x")
-        else
-            out("  inx |  lda  $ESTACK_LO_HEX,x |  ldy  $ESTACK_HI_HEX,x")
-        for(choice in stmt.choices) {
-            val choiceLabel = makeLabel("choice")
-            if(choice.values==null) {
-                // the else choice
-                translate(choice.statements)
-                out("  jmp  $endLabel")
-            } else {
-                choiceBlocks.add(Pair(choiceLabel, choice.statements))
-                for (cv in choice.values!!) {
-                    val value = (cv as NumericLiteralValue).number.toInt()
-                    if(conditionDt.typeOrElse(DataType.BYTE) in ByteDatatypes) {
-                        out("  cmp  #${value.toHex()} |  beq  $choiceLabel")
-                    } else {
-                        out("""
-                            cmp  #<${value.toHex()}
-                            bne  +
-                            cpy  #>${value.toHex()}
-                            beq  $choiceLabel
-+                            
-                            """)
-                    }
-                }
-            }
-        }
-        for(choiceBlock in choiceBlocks) {
-            out(choiceBlock.first)
-            translate(choiceBlock.second)
-            out("  jmp  $endLabel")
-        }
-        out(endLabel)
-    }
-
     private fun translate(stmt: Label) {
         out(stmt.name)
     }
@@ -782,7 +869,9 @@ internal class AsmGen(private val program: Program,
                 val scopeprefix = stmt.args[1].str ?: ""
                 if(!scopeprefix.isBlank())
                     out("$scopeprefix\t.proc")
-                assemblyLines.add(sourcecode.trimEnd().trimStart('\n'))
+                if(stmt.args[0].str!!.startsWith("library:"))
+                    libraryIncludes.add(assemblyLines.size)
+                assemblyLines.add(AsmText(sourcecode.trimEnd().trimStart('\n')))
                 if(!scopeprefix.isBlank())
                     out("  .pend\n")
             }
@@ -813,13 +902,20 @@ internal class AsmGen(private val program: Program,
     }
 
     private fun translate(ret: Return) {
-        ret.value?.let { expressionsAsmGen.translateExpression(it) }
+        val value = ret.value
+        if(value!=null) {
+            when(ret.definingSubroutine()?.let { fastcall(it) }?.returnvalue) {
+                RegisterOrPair.A -> expressionsAsmGen.translateByteIntoA(value)
+                RegisterOrPair.AY -> expressionsAsmGen.translateWordIntoAY(value)
+                else -> expressionsAsmGen.translateExpression(value)
+            }
+        }
         out("  rts")
     }
 
     private fun translate(asm: InlineAssembly) {
         val assembly = asm.assembly.trimEnd().trimStart('\n')
-        assemblyLines.add(assembly)
+        assemblyLines.add(AsmText(assembly))
     }
 
     internal fun translateArrayIndexIntoA(expr: ArrayIndexedExpression) {
@@ -838,7 +934,7 @@ internal class AsmGen(private val program: Program,
             }
             else -> {
                 expressionsAsmGen.translateExpression(index)
-                out("  inx |  lda  $ESTACK_LO_HEX,x")
+                out("  inx |  lda  ${estack.loHex},x")
             }
         }
     }
@@ -846,12 +942,46 @@ internal class AsmGen(private val program: Program,
     internal fun translateExpression(expression: Expression) =
             expressionsAsmGen.translateExpression(expression)
 
+    internal fun canEvaluateIntoA(expression: Expression) =
+            expressionsAsmGen.canEvaluateIntoA(expression)
+
+    internal fun translateExpressionIntoA(expression: Expression) =
+            expressionsAsmGen.translateExpressionIntoA(expression)
+
+    internal fun translateByteIntoA(expression: Expression) =
+            expressionsAsmGen.translateByteIntoA(expression)
+
+    internal fun translateWordIntoAY(expression: Expression) =
+            expressionsAsmGen.translateWordIntoAY(expression)
+
+    internal fun simpleByteOperand(expression: Expression) =
+            expressionsAsmGen.simpleByteOperand(expression)
+
+    internal fun canEvaluateIntoWordVariable(expression: Expression, targetName: String) =
+            expressionsAsmGen.canEvaluateIntoWordVariable(expression, targetName)
+
+    internal fun translateExpressionIntoWordVariable(expression: Expression, targetName: String) =
+            expressionsAsmGen.translateExpressionIntoWordVariable(expression, targetName)
+
+    internal fun translateConstantMultiplication(left: Expression, dt: DataType, amount: Int) =
+            constantArithmeticAsmGen.translateMultiplication(left, dt, amount)
+
+    internal fun translateConstantDivision(left: Expression, divisor: Int, remainder: Boolean) =
+            constantArithmeticAsmGen.translateDivision(left, divisor, remainder)
+
     internal fun translateFunctioncallExpression(functionCall: FunctionCall, signature: FunctionSignature) =
             builtinFunctionsAsmGen.translateFunctioncallExpression(functionCall, signature)
 
     internal fun translateFunctionCall(functionCall: FunctionCall) =
             functioncallAsmGen.translateFunctionCall(functionCall)
 
+    /**
+     * The registers that the (non-asm) subroutine gets its arguments in and returns its result in, if it does.
+     */
+    internal fun fastcall(sub: Subroutine) = fastcalls?.of(sub)
+
+    internal fun fastcall(call: IFunctionCall) = call.target.targetSubroutine(program.namespace)?.let { fastcall(it) }
+
     internal fun assignFromEvalResult(target: AssignTarget) =
             assignmentAsmGen.assignFromEvalResult(target)
 
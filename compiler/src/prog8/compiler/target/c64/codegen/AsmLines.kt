@@ -0,0 +1,132 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.compiler.target.c64.assembler.*
+
+
+/**
+ * The assembly code that the code generator produces, one line at a time.
+ * Instructions are kept in a typed form so that the peephole optimizer can match them exactly;
+ * everything else (directives, data, inline assembly and the included libraries) is kept as text.
+ * The toString() of each line is its 64tass source text.
+ */
+internal sealed class AsmLine
+
+/**
+ * An instruction. [operand] is the expression in the operand without the addressing mode syntax,
+ * for instance 'table' for  lda (table),y.  An operand that isn't a number below 256 is assumed to
+ * be an absolute address, the assembler can still choose the zeropage mode for it.
+ */
+internal class AsmInstruction(val opcode: Opcode, val mode: AddressingMode, val operand: String?, val comment: String? = null) : AsmLine() {
+
+    fun sameOperand(other: AsmInstruction) = mode==other.mode && operand==other.operand
+
+    val size: Int
+        get() = 1 + mode.operandSize
+
+    val cycles: Int
+        get() = Instructions.cycles(opcode, mode)
+
+    override fun toString(): String {
+        val operandText = when(mode) {
+            AddressingMode.IMPLIED -> null
+            AddressingMode.ACCUMULATOR -> "a"
+            AddressingMode.IMMEDIATE -> "#$operand"
+            AddressingMode.ZEROPAGE, AddressingMode.ABSOLUTE, AddressingMode.RELATIVE -> operand
+            AddressingMode.ZEROPAGE_X, AddressingMode.ABSOLUTE_X -> "$operand,x"
+            AddressingMode.ZEROPAGE_Y, AddressingMode.ABSOLUTE_Y -> "$operand,y"
+            AddressingMode.INDIRECT -> "($operand)"
+            AddressingMode.INDIRECT_X -> "($operand,x)"
+            AddressingMode.INDIRECT_Y -> "($operand),y"
+        }
+        val instruction = if(operandText==null) "\t${opcode.mnemonic}" else "\t${opcode.mnemonic}  $operandText"
+        return if(comment==null) instruction else "$instruction\t$comment"
+    }
+}
+
+internal class AsmLabel(val name: String, val comment: String? = null) : AsmLine() {
+    override fun toString() = if(comment==null) name else "$name\t$comment"
+}
+
+// an empty line or a line with only a comment
+internal class AsmComment(val text: String) : AsmLine() {
+    override fun toString() = text
+}
+
+// everything else, this can be multiple lines
+internal class AsmText(val text: String) : AsmLine() {
+    override fun toString() = text
+}
+
+
+/**
+ * Turns a single line of assembly source into its typed form.
+ * A label in front of an instruction becomes a separate line.
+ */
+internal fun parseAsmLine(line: String): List<AsmLine> {
+    val code = stripComment(line).trimEnd()
+    if(code.isBlank())
+        return listOf(AsmComment(line))
+    val comment = line.substring(code.length).trim().ifEmpty { null }
+    val firstWord = code.trimStart().takeWhile { !it.isWhitespace() }
+    if(code[0].isWhitespace() || Instructions.isMnemonic(firstWord))
+        return listOf(parseInstruction(code.trim(), comment) ?: AsmText(line))
+
+    val rest = code.substring(firstWord.length).trim()
+    if(rest.isEmpty() && isLabel(firstWord))
+        return listOf(AsmLabel(firstWord, comment))
+    if(isLabel(firstWord)) {
+        val instruction = parseInstruction(rest, comment)
+        if(instruction!=null)
+            return listOf(AsmLabel(firstWord), instruction)
+    }
+    return listOf(AsmText(line))
+}
+
+private fun isLabel(word: String) = word=="+" || word=="-" || word.removeSuffix(":").let {
+    it.isNotEmpty() && (it[0].isLetter() || it[0]=='_') && it.all { c -> c.isLetterOrDigit() || c=='_' }
+}
+
+private fun parseInstruction(code: String, comment: String?): AsmInstruction? {
+    val mnemonic = code.takeWhile { !it.isWhitespace() }
+    val opcode = Opcode.fromMnemonic(mnemonic) ?: return null
+    val (syntax, operand) = try {
+        Instructions.parseOperand(opcode.mnemonic, code.substring(mnemonic.length).trim())
+    } catch(x: AsmSyntaxError) {
+        return null
+    }
+    val mode = when(syntax) {
+        OperandSyntax.NONE -> AddressingMode.IMPLIED
+        OperandSyntax.ACCUMULATOR -> AddressingMode.ACCUMULATOR
+        OperandSyntax.IMMEDIATE -> AddressingMode.IMMEDIATE
+        OperandSyntax.INDIRECT -> AddressingMode.INDIRECT
+        OperandSyntax.INDIRECT_X -> AddressingMode.INDIRECT_X
+        OperandSyntax.INDIRECT_Y -> AddressingMode.INDIRECT_Y
+        OperandSyntax.PLAIN ->
+            if(opcode.isBranch) AddressingMode.RELATIVE else sizedMode(opcode, operand, AddressingMode.ZEROPAGE, AddressingMode.ABSOLUTE)
+        OperandSyntax.INDEXED_X -> sizedMode(opcode, operand, AddressingMode.ZEROPAGE_X, AddressingMode.ABSOLUTE_X)
+        OperandSyntax.INDEXED_Y -> sizedMode(opcode, operand, AddressingMode.ZEROPAGE_Y, AddressingMode.ABSOLUTE_Y)
+    }
+    if(mode !in opcode.modes)
+        return null
+    return AsmInstruction(opcode, mode, operand, comment)
+}
+
+// the zeropage mode if the operand is a number that fits in it (or if there's only a zeropage mode)
+private fun sizedMode(opcode: Opcode, operand: String?, zeropage: AddressingMode, absolute: AddressingMode): AddressingMode {
+    if(absolute !in opcode.modes)
+        return zeropage
+    if(zeropage !in opcode.modes || operand==null)
+        return absolute
+    val value = try {
+        AsmExpressionParser.parse(operand).evaluate(noSymbols).asInteger()
+    } catch(x: AsmSyntaxError) {
+        null
+    }
+    return if(value!=null && value in 0..255) zeropage else absolute
+}
+
+private val noSymbols = object: AsmEvaluationContext {
+    override val programCounter = 0
+    override fun symbol(name: String) = AsmValue.Unknown
+    override fun anonymousLabel(forward: Boolean, count: Int) = AsmValue.Unknown
+}
@@ -1,65 +1,76 @@
 package prog8.compiler.target.c64.codegen
 
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_PLUS1_HEX
+import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_DEFAULT
+import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_DEFAULT
+import prog8.compiler.target.c64.C64MachineDefinition.EvalStack
+import prog8.compiler.target.c64.assembler.AddressingMode
+import prog8.compiler.target.c64.assembler.Opcode
 
 
 // note: see https://wiki.nesdev.com/w/index.php/6502_assembly_optimisations
 
 
-fun optimizeAssembly(lines: MutableList<String>): Int {
-
-    var numberOfOptimizations = 0
+/**
+ * Applies the peephole optimizations to the assembly lines.
+ * Returns how many times each of the optimizations was done and what they saved.
+ */
+internal fun optimizeAssembly(lines: MutableList<AsmLine>, estack: EvalStack): PeepholeResult {
+    val result = PeepholeResult()
+    threadJumps(lines, result)
+    val engine = PeepholeEngine(lines)
+    engine.run(peepholeRules(estack), result)
+    lines.clear()
+    lines.addAll(engine.lines())
+    return result
+}
 
-    var linesByFour = getLinesBy(lines, 4)
+/**
+ * The peephole optimizer for code outside of the compiler, such as the benchmarks.
+ * The assembly source is parsed once, and every optimize() works on a fresh copy of it.
+ * It returns the number of optimizations that were done.
+ */
+class AsmSourceOptimizer(source: List<String>) {
+    private val lines = source.flatMap { parseAsmLine(it) }
+    private val estack = EvalStack(ESTACK_LO_DEFAULT, ESTACK_HI_DEFAULT)
 
-    var removeLines = optimizeUselessStackByteWrites(linesByFour)
-    if(removeLines.isNotEmpty()) {
-        for (i in removeLines.reversed())
-            lines.removeAt(i)
-        linesByFour = getLinesBy(lines, 4)
-        numberOfOptimizations++
-    }
+    fun optimize(): Int = optimizeAssembly(lines.toMutableList(), estack).hits.values.sum()
+}
 
-    removeLines = optimizeIncDec(linesByFour)
-    if(removeLines.isNotEmpty()) {
-        for (i in removeLines.reversed())
-            lines.removeAt(i)
-        linesByFour = getLinesBy(lines, 4)
-        numberOfOptimizations++
-    }
+private val loads = setOf(Opcode.LDA, Opcode.LDX, Opcode.LDY)
+private val stores = setOf(Opcode.STA, Opcode.STX, Opcode.STY)
 
-    removeLines = optimizeCmpSequence(linesByFour)
-    if(removeLines.isNotEmpty()) {
-        for (i in removeLines.reversed())
-            lines.removeAt(i)
-        linesByFour = getLinesBy(lines, 4)
-        numberOfOptimizations++
-    }
+// the rules on evaluation stack instructions depend on where the stack is
+private fun peepholeRules(estack: EvalStack) = listOf(
+        PeepholeRule("useless stack byte write", 4, setOf(Opcode.STA)) { optimizeUselessStackByteWrites(it, estack) },
+        PeepholeRule("inc/dec pair", 2, setOf(Opcode.INX, Opcode.INY, Opcode.DEX, Opcode.DEY), ::optimizeIncDec),
+        PeepholeRule("cmp sequence", 4, setOf(Opcode.LDA)) { optimizeCmpSequence(it, estack) },
+        PeepholeRule("store/load same", 2, stores + loads, ::optimizeStoreLoadSame),
+        PeepholeRule("same word assignment", 6, setOf(Opcode.LDA), ::optimizeSameWordAssignments),
+        PeepholeRule("same byte assignment", 3, setOf(Opcode.LDA), ::optimizeSameByteAssignments),
+        PeepholeRule("same float assignment", 14, setOf(Opcode.LDA), ::optimizeSameFloatAssignments),
+        PeepholeRule("jsr+rts to jmp", 2, setOf(Opcode.JSR), ::optimizeTailCall),
+        PeepholeRule("jmp to next label", 2, setOf(Opcode.JMP), ::optimizeJumpToNext),
+        PeepholeRule("load after store", 3, stores, ::optimizeLoadAfterStore),
+        PeepholeRule("add/subtract 1 to inc/dec", 4, setOf(Opcode.LDA), ::optimizeAddOne),
+        PeepholeRule("pha+pla pair", 2, setOf(Opcode.PHA), ::optimizePushPull),
+        PeepholeRule("dead register load", 2, loads, ::optimizeDeadLoad)
+)
 
-    removeLines = optimizeStoreLoadSame(linesByFour)
-    if(removeLines.isNotEmpty()) {
-        for (i in removeLines.reversed())
-            lines.removeAt(i)
-        linesByFour = getLinesBy(lines, 4)
-        numberOfOptimizations++
-    }
+private fun AsmLine.isInstr(opcode: Opcode) = this is AsmInstruction && this.opcode==opcode
 
-    var linesByFourteen = getLinesBy(lines, 14)
-    removeLines = optimizeSameAssignments(linesByFourteen)
-    if(removeLines.isNotEmpty()) {
-        for (i in removeLines.reversed())
-            lines.removeAt(i)
-        linesByFourteen = getLinesBy(lines, 14)
-        numberOfOptimizations++
-    }
+private fun AsmLine.isInstr(opcode: Opcode, mode: AddressingMode, operand: String) =
+        this is AsmInstruction && this.opcode==opcode && this.mode==mode && this.operand==operand
 
-    // TODO more assembly optimizations
+// an instruction on the evaluation stack, which is indexed by X and can be in the zeropage
+private fun AsmLine.isStackInstr(opcode: Opcode, operand: String) =
+        this is AsmInstruction && this.opcode==opcode && this.operand==operand &&
+                (this.mode==AddressingMode.ABSOLUTE_X || this.mode==AddressingMode.ZEROPAGE_X)
 
-    return numberOfOptimizations
-}
+// the instructions in the line and the other line are of the given opcodes and have the same operand
+private fun sameOperand(first: AsmLine, firstOpcode: Opcode, second: AsmLine, secondOpcode: Opcode) =
+        first is AsmInstruction && second is AsmInstruction && first.opcode==firstOpcode && second.opcode==secondOpcode && first.sameOperand(second)
 
-fun optimizeCmpSequence(linesByFour: List<List<IndexedValue<String>>>): List<Int> {
+private fun optimizeCmpSequence(lines: PeepholeWindow, estack: EvalStack): Boolean {
     // the when statement (on bytes) generates a sequence of:
     //	 lda $ce01,x
     //	 cmp #$20
@@ -68,144 +79,370 @@ fun optimizeCmpSequence(linesByFour: List<List<IndexedValue<String>>>): List<Int
     //	 cmp #$21
     //	 beq  check_prog8_s73choice_33
     // the repeated lda can be removed
-    val removeLines = mutableListOf<Int>()
-    for(lines in linesByFour) {
-        if(lines[0].value.trim()=="lda  $ESTACK_LO_PLUS1_HEX,x" &&
-                lines[1].value.trim().startsWith("cmp ") &&
-                lines[2].value.trim().startsWith("beq ") &&
-                lines[3].value.trim()=="lda  $ESTACK_LO_PLUS1_HEX,x") {
-            removeLines.add(lines[3].index) // remove the second lda
-        }
+    if(lines[0].isStackInstr(Opcode.LDA, estack.loPlus1Hex) &&
+            lines[1].isInstr(Opcode.CMP) &&
+            lines[2].isInstr(Opcode.BEQ) &&
+            lines[3].isStackInstr(Opcode.LDA, estack.loPlus1Hex)) {
+        lines.remove(3) // remove the second lda
+        return true
     }
-    return removeLines
+    return false
 }
 
-fun optimizeUselessStackByteWrites(linesByFour: List<List<IndexedValue<String>>>): List<Int> {
+private fun optimizeUselessStackByteWrites(lines: PeepholeWindow, estack: EvalStack): Boolean {
     // sta on stack, dex, inx, lda from stack -> eliminate this useless stack byte write
     // this is a lot harder for word values because the instruction sequence varies.
-    val removeLines = mutableListOf<Int>()
-    for(lines in linesByFour) {
-        if(lines[0].value.trim()=="sta  $ESTACK_LO_HEX,x" &&
-                lines[1].value.trim()=="dex" &&
-                lines[2].value.trim()=="inx" &&
-                lines[3].value.trim()=="lda  $ESTACK_LO_HEX,x") {
-            removeLines.add(lines[1].index)
-            removeLines.add(lines[2].index)
-            removeLines.add(lines[3].index)
-        }
+    if(lines[0].isStackInstr(Opcode.STA, estack.loHex) &&
+            lines[1].isInstr(Opcode.DEX) &&
+            lines[2].isInstr(Opcode.INX) &&
+            lines[3].isStackInstr(Opcode.LDA, estack.loHex)) {
+        lines.remove(1)
+        lines.remove(2)
+        lines.remove(3)
+        return true
     }
-    return removeLines
-}
-
-fun optimizeSameAssignments(linesByFourteen: List<List<IndexedValue<String>>>): List<Int> {
-
-    // optimize sequential assignments of the isSameAs value to various targets (bytes, words, floats)
-    // the float one is the one that requires 2*7=14 lines of code to check...
-    // @todo a better place to do this is in the Compiler instead and transform the Ast, or the AsmGen, and never even create the inefficient asm in the first place...
-
-    val removeLines = mutableListOf<Int>()
-    for (pair in linesByFourteen) {
-        val first = pair[0].value.trimStart()
-        val second = pair[1].value.trimStart()
-        val third = pair[2].value.trimStart()
-        val fourth = pair[3].value.trimStart()
-        val fifth = pair[4].value.trimStart()
-        val sixth = pair[5].value.trimStart()
-        val seventh = pair[6].value.trimStart()
-        val eighth = pair[7].value.trimStart()
-
-        if(first.startsWith("lda") && second.startsWith("ldy") && third.startsWith("sta") && fourth.startsWith("sty") &&
-                fifth.startsWith("lda") && sixth.startsWith("ldy") && seventh.startsWith("sta") && eighth.startsWith("sty")) {
-            val firstvalue = first.substring(4)
-            val secondvalue = second.substring(4)
-            val thirdvalue = fifth.substring(4)
-            val fourthvalue = sixth.substring(4)
-            if(firstvalue==thirdvalue && secondvalue==fourthvalue) {
-                // lda/ldy   sta/sty   twice the isSameAs word -->  remove second lda/ldy pair (fifth and sixth lines)
-                removeLines.add(pair[4].index)
-                removeLines.add(pair[5].index)
-            }
+    return false
+}
+
+// optimize sequential assignments of the isSameAs value to various targets (bytes, words, floats)
+// @todo a better place to do this is in the Compiler instead and transform the Ast, or the AsmGen, and never even create the inefficient asm in the first place...
+
+private fun optimizeSameWordAssignments(lines: PeepholeWindow): Boolean {
+    // lda/ldy  sta/sty (one or more times)  and then the isSameAs lda/ldy  -->  remove the second lda/ldy pair
+    if(!lines[0].isInstr(Opcode.LDA) || !lines[1].isInstr(Opcode.LDY))
+        return false
+    var index = 2
+    while(index+1 < lines.size && lines[index].isInstr(Opcode.STA) && lines[index+1].isInstr(Opcode.STY))
+        index += 2
+    if(index>2 && index+1 < lines.size &&
+            sameOperand(lines[0], Opcode.LDA, lines[index], Opcode.LDA) && sameOperand(lines[1], Opcode.LDY, lines[index+1], Opcode.LDY)) {
+        lines.remove(index)
+        lines.remove(index+1)
+        return true
+    }
+    return false
+}
+
+private fun optimizeSameByteAssignments(lines: PeepholeWindow): Boolean {
+    // lda value / sta ? (one or more times) / lda isSameAs-value  -> remove the second lda
+    if(!lines[0].isInstr(Opcode.LDA))
+        return false
+    var index = 1
+    while(index < lines.size && lines[index].isInstr(Opcode.STA))
+        index++
+    if(index>1 && index < lines.size && sameOperand(lines[0], Opcode.LDA, lines[index], Opcode.LDA)) {
+        lines.remove(index)
+        return true
+    }
+    return false
+}
+
+private fun optimizeSameFloatAssignments(lines: PeepholeWindow): Boolean {
+    // identical float init, this requires 2*7=14 lines of code to check...
+    if(lines[2].isInstr(Opcode.STA) && lines[3].isInstr(Opcode.STY) && lines[4].isInstr(Opcode.LDA) && lines[5].isInstr(Opcode.LDY) &&
+            lines[6].isInstr(Opcode.JSR, AddressingMode.ABSOLUTE, "c64flt.copy_float") &&
+            lines[9].isInstr(Opcode.STA) && lines[10].isInstr(Opcode.STY) && lines[11].isInstr(Opcode.LDA) && lines[12].isInstr(Opcode.LDY) &&
+            lines[13].isInstr(Opcode.JSR, AddressingMode.ABSOLUTE, "c64flt.copy_float") &&
+            sameOperand(lines[0], Opcode.LDA, lines[7], Opcode.LDA) && sameOperand(lines[1], Opcode.LDY, lines[8], Opcode.LDY)) {
+        lines.remove(7)
+        lines.remove(8)
+        lines.remove(9)
+        lines.remove(10)
+        return true
+    }
+    return false
+}
+
+private val storeLoadSame = listOf(
+        Opcode.STA to Opcode.LDA, Opcode.STX to Opcode.LDX, Opcode.STY to Opcode.LDY,
+        Opcode.LDA to Opcode.LDA, Opcode.LDX to Opcode.LDX, Opcode.LDY to Opcode.LDY)
+
+private fun optimizeStoreLoadSame(lines: PeepholeWindow): Boolean {
+    // sta X + lda X,  sty X + ldy X,   stx X + ldx X  -> the second instruction can be eliminated
+    if(storeLoadSame.any { sameOperand(lines[0], it.first, lines[1], it.second) }) {
+        lines.remove(1)
+        return true
+    }
+    return false
+}
+
+private val incDecPairs = listOf(
+        Opcode.INY to Opcode.DEY, Opcode.INX to Opcode.DEX, Opcode.DEY to Opcode.INY, Opcode.DEX to Opcode.INX)
+
+private fun optimizeIncDec(lines: PeepholeWindow): Boolean {
+    // sometimes, iny+dey / inx+dex / dey+iny / dex+inx sequences are generated, these can be eliminated.
+    if(incDecPairs.any { lines[0].isInstr(it.first) && lines[1].isInstr(it.second) }) {
+        lines.remove(0)
+        lines.remove(1)
+        return true
+    }
+    return false
+}
+
+
+// ---- what the instructions read and write, for the rules that need to know if a register or flag is still used ----
+
+private const val REG_A = 1
+private const val REG_X = 2
+private const val REG_Y = 4
+private const val REG_SP = 8
+private const val FLAG_N = 16
+private const val FLAG_Z = 32
+private const val FLAG_C = 64
+private const val FLAG_V = 128
+private const val FLAGS = FLAG_N or FLAG_Z or FLAG_C or FLAG_V
+private const val NZ = FLAG_N or FLAG_Z
+
+private class Effects(val reads: Int, val writes: Int, val writesMemory: Boolean = false)
+
+private fun effects(instr: AsmInstruction): Effects {
+    val index = when(instr.mode) {
+        AddressingMode.ZEROPAGE_X, AddressingMode.ABSOLUTE_X, AddressingMode.INDIRECT_X -> REG_X
+        AddressingMode.ZEROPAGE_Y, AddressingMode.ABSOLUTE_Y, AddressingMode.INDIRECT_Y -> REG_Y
+        else -> 0
+    }
+    val onMemory = instr.mode!=AddressingMode.ACCUMULATOR
+    val effects = when(instr.opcode) {
+        Opcode.ADC, Opcode.SBC -> Effects(REG_A or FLAG_C, REG_A or FLAGS)
+        Opcode.AND, Opcode.ORA, Opcode.EOR -> Effects(REG_A, REG_A or NZ)
+        Opcode.CMP -> Effects(REG_A, NZ or FLAG_C)
+        Opcode.CPX -> Effects(REG_X, NZ or FLAG_C)
+        Opcode.CPY -> Effects(REG_Y, NZ or FLAG_C)
+        Opcode.BIT -> Effects(REG_A, NZ or FLAG_V)
+        Opcode.LDA -> Effects(0, REG_A or NZ)
+        Opcode.LDX -> Effects(0, REG_X or NZ)
+        Opcode.LDY -> Effects(0, REG_Y or NZ)
+        Opcode.STA -> Effects(REG_A, 0, true)
+        Opcode.STX -> Effects(REG_X, 0, true)
+        Opcode.STY -> Effects(REG_Y, 0, true)
+        Opcode.ASL, Opcode.LSR -> if(onMemory) Effects(0, NZ or FLAG_C, true) else Effects(REG_A, REG_A or NZ or FLAG_C)
+        Opcode.ROL, Opcode.ROR -> if(onMemory) Effects(FLAG_C, NZ or FLAG_C, true) else Effects(REG_A or FLAG_C, REG_A or NZ or FLAG_C)
+        Opcode.INC, Opcode.DEC -> Effects(0, NZ, true)
+        Opcode.INX, Opcode.DEX -> Effects(REG_X, REG_X or NZ)
+        Opcode.INY, Opcode.DEY -> Effects(REG_Y, REG_Y or NZ)
+        Opcode.TAX -> Effects(REG_A, REG_X or NZ)
+        Opcode.TAY -> Effects(REG_A, REG_Y or NZ)
+        Opcode.TXA -> Effects(REG_X, REG_A or NZ)
+        Opcode.TYA -> Effects(REG_Y, REG_A or NZ)
+        Opcode.TSX -> Effects(REG_SP, REG_X or NZ)
+        Opcode.TXS -> Effects(REG_X, REG_SP)
+        Opcode.PHA -> Effects(REG_A or REG_SP, REG_SP, true)
+        Opcode.PHP -> Effects(FLAGS or REG_SP, REG_SP, true)
+        Opcode.PLA -> Effects(REG_SP, REG_A or NZ or REG_SP)
+        Opcode.PLP -> Effects(REG_SP, FLAGS or REG_SP)
+        Opcode.CLC, Opcode.SEC -> Effects(0, FLAG_C)
+        Opcode.CLV -> Effects(0, FLAG_V)
+        Opcode.BEQ, Opcode.BNE -> Effects(FLAG_Z, 0)
+        Opcode.BMI, Opcode.BPL -> Effects(FLAG_N, 0)
+        Opcode.BCC, Opcode.BCS -> Effects(FLAG_C, 0)
+        Opcode.BVC, Opcode.BVS -> Effects(FLAG_V, 0)
+        else -> Effects(0, 0)
+    }
+    return if(index==0) effects else Effects(effects.reads or index, effects.writes, effects.writesMemory)
+}
+
+// instructions after which the code doesn't simply continue with the next line
+private val controlFlow = setOf(Opcode.JMP, Opcode.JSR, Opcode.RTS, Opcode.RTI, Opcode.BRK,
+        Opcode.BCC, Opcode.BCS, Opcode.BEQ, Opcode.BMI, Opcode.BNE, Opcode.BPL, Opcode.BVC, Opcode.BVS)
+
+/**
+ * True if all of the registers and flags in [mask] are written before they are read again,
+ * in the straight line of instructions that starts at [start] in the window.
+ * If that can't be determined (a label, a jump or the end of the window comes first) it's false.
+ */
+private fun isDead(mask: Int, lines: PeepholeWindow, start: Int): Boolean {
+    var live = mask
+    for(index in start until lines.size) {
+        val instr = lines[index] as? AsmInstruction ?: return false
+        val effects = effects(instr)
+        if(effects.reads and live != 0 || instr.opcode in controlFlow)
+            return false
+        live = live and effects.writes.inv()
+        if(live==0)
+            return true
+    }
+    return false
+}
+
+private fun optimizeTailCall(lines: PeepholeWindow): Boolean {
+    // jsr X + rts  ->  jmp X   (X then returns to our caller directly)
+    val call = lines[0]
+    if(call is AsmInstruction && call.opcode==Opcode.JSR && lines[1].isInstr(Opcode.RTS)) {
+        lines.replace(0, AsmInstruction(Opcode.JMP, call.mode, call.operand, call.comment))
+        lines.remove(1)
+        return true
+    }
+    return false
+}
+
+private fun optimizeJumpToNext(lines: PeepholeWindow): Boolean {
+    // jmp X  directly followed by label X  -> the jmp can be removed
+    val jump = lines[0]
+    if(jump !is AsmInstruction || jump.opcode!=Opcode.JMP || jump.mode!=AddressingMode.ABSOLUTE)
+        return false
+    var index = 1
+    while(index < lines.size) {
+        val label = lines[index] as? AsmLabel ?: return false
+        if(label.name.removeSuffix(":")==jump.operand) {
+            lines.remove(0)
+            return true
         }
+        index++
+    }
+    return false
+}
 
-        if(first.startsWith("lda") && second.startsWith("sta") && third.startsWith("lda") && fourth.startsWith("sta")) {
-            val firstvalue = first.substring(4)
-            val secondvalue = third.substring(4)
-            if(firstvalue==secondvalue) {
-                // lda value / sta ? / lda isSameAs-value / sta ?  -> remove second lda (third line)
-                removeLines.add(pair[2].index)
-            }
+private fun optimizeLoadAfterStore(lines: PeepholeWindow): Boolean {
+    // sta X, some instructions that don't change A or memory, lda X  -> the lda can be removed (likewise for X and Y)
+    // this also requires that the flags that the load sets aren't used.
+    val store = lines[0] as? AsmInstruction ?: return false
+    val (register, load) = when(store.opcode) {
+        Opcode.STA -> Pair(REG_A, Opcode.LDA)
+        Opcode.STX -> Pair(REG_X, Opcode.LDX)
+        Opcode.STY -> Pair(REG_Y, Opcode.LDY)
+        else -> return false
+    }
+    val addressRegisters = effects(store).reads and register.inv()
+    for(index in 1 until lines.size) {
+        val instr = lines[index] as? AsmInstruction ?: return false
+        if(index>1 && instr.opcode==load && instr.sameOperand(store)) {
+            if(!isDead(NZ, lines, index+1))
+                return false
+            lines.remove(index)
+            return true
         }
+        val effects = effects(instr)
+        if(instr.opcode in controlFlow || effects.writesMemory || effects.writes and (register or addressRegisters) != 0)
+            return false
+    }
+    return false
+}
 
-        if(first.startsWith("lda") && second.startsWith("ldy") && third.startsWith("sta") && fourth.startsWith("sty") &&
-                fifth.startsWith("lda") && sixth.startsWith("ldy") && seventh.startsWith("jsr  c64flt.copy_float")) {
-
-            val nineth = pair[8].value.trimStart()
-            val tenth = pair[9].value.trimStart()
-            val eleventh = pair[10].value.trimStart()
-            val twelveth = pair[11].value.trimStart()
-            val thirteenth = pair[12].value.trimStart()
-            val fourteenth = pair[13].value.trimStart()
-
-            if(eighth.startsWith("lda") && nineth.startsWith("ldy") && tenth.startsWith("sta") && eleventh.startsWith("sty") &&
-                    twelveth.startsWith("lda") && thirteenth.startsWith("ldy") && fourteenth.startsWith("jsr  c64flt.copy_float")) {
-
-                if(first.substring(4) == eighth.substring(4) && second.substring(4)==nineth.substring(4)) {
-                    // identical float init
-                    removeLines.add(pair[7].index)
-                    removeLines.add(pair[8].index)
-                    removeLines.add(pair[9].index)
-                    removeLines.add(pair[10].index)
-                }
-            }
+private fun optimizeAddOne(lines: PeepholeWindow): Boolean {
+    // lda X / clc / adc #1 / sta X  ->  inc X   (and  sec / sbc #1  ->  dec)
+    // only if A, the carry and the overflow flag aren't used afterwards. The N and Z flags end up the same.
+    val load = lines[0] as? AsmInstruction ?: return false
+    val store = lines[3] as? AsmInstruction ?: return false
+    val incdec = when {
+        lines[1].isInstr(Opcode.CLC) && lines[2].isInstr(Opcode.ADC, AddressingMode.IMMEDIATE, "1") -> Opcode.INC
+        lines[1].isInstr(Opcode.SEC) && lines[2].isInstr(Opcode.SBC, AddressingMode.IMMEDIATE, "1") -> Opcode.DEC
+        else -> return false
+    }
+    if(load.opcode!=Opcode.LDA || store.opcode!=Opcode.STA || !load.sameOperand(store) || store.mode !in incdec.modes)
+        return false
+    if(!isDead(REG_A or FLAG_C or FLAG_V, lines, 4))
+        return false
+    lines.remove(0)
+    lines.remove(1)
+    lines.remove(2)
+    lines.replace(3, AsmInstruction(incdec, store.mode, store.operand, store.comment))
+    return true
+}
+
+private fun optimizePushPull(lines: PeepholeWindow): Boolean {
+    // pha, instructions that don't change A or use the stack, pla  -> both can be removed
+    // (if the flags that pla sets aren't used)
+    if(!lines[0].isInstr(Opcode.PHA))
+        return false
+    for(index in 1 until lines.size) {
+        val instr = lines[index] as? AsmInstruction ?: return false
+        if(instr.opcode==Opcode.PLA) {
+            if(!isDead(NZ, lines, index+1))
+                return false
+            lines.remove(0)
+            lines.remove(index)
+            return true
         }
+        val effects = effects(instr)
+        if(instr.opcode in controlFlow || effects.writes and REG_A != 0 || (effects.reads or effects.writes) and REG_SP != 0)
+            return false
     }
-    return removeLines
+    return false
 }
 
-private fun getLinesBy(lines: MutableList<String>, windowSize: Int) =
-// all lines (that aren't empty or comments) in sliding windows of certain size
-        lines.withIndex().filter { it.value.isNotBlank() && !it.value.trimStart().startsWith(';') }.windowed(windowSize, partialWindows = false)
+private fun optimizeDeadLoad(lines: PeepholeWindow): Boolean {
+    // a register that's loaded with a value that is never used, such as a repeated  ldx #$ff  to reset the stack pointer
+    // (only immediate values, because reading an I/O register can have side effects)
+    val load = lines[0] as? AsmInstruction ?: return false
+    val register = when(load.opcode) {
+        Opcode.LDA -> REG_A
+        Opcode.LDX -> REG_X
+        Opcode.LDY -> REG_Y
+        else -> return false
+    }
+    if(load.mode==AddressingMode.IMMEDIATE && isDead(register or NZ, lines, 1)) {
+        lines.remove(0)
+        return true
+    }
+    return false
+}
 
-private fun optimizeStoreLoadSame(linesByFour: List<List<IndexedValue<String>>>): List<Int> {
-    // sta X + lda X,  sty X + ldy X,   stx X + ldx X  -> the second instruction can be eliminated
-    val removeLines = mutableListOf<Int>()
-    for (pair in linesByFour) {
-        val first = pair[0].value.trimStart()
-        val second = pair[1].value.trimStart()
-
-        if ((first.startsWith("sta ") && second.startsWith("lda ")) ||
-                (first.startsWith("stx ") && second.startsWith("ldx ")) ||
-                (first.startsWith("sty ") && second.startsWith("ldy ")) ||
-                (first.startsWith("lda ") && second.startsWith("lda ")) ||
-                (first.startsWith("ldy ") && second.startsWith("ldy ")) ||
-                (first.startsWith("ldx ") && second.startsWith("ldx ")) ||
-                (first.startsWith("sta ") && second.startsWith("lda ")) ||
-                (first.startsWith("sty ") && second.startsWith("ldy ")) ||
-                (first.startsWith("stx ") && second.startsWith("ldx "))
-        ) {
-            val firstLoc = first.substring(4)
-            val secondLoc = second.substring(4)
-            if (firstLoc == secondLoc) {
-                removeLines.add(pair[1].index)
+
+private val labelName = Regex("[A-Za-z_][A-Za-z0-9_]*")
+private val qualifiedName = Regex("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)+")
+private val number = Regex("\\$[0-9a-fA-F]+|[0-9]+")
+
+/**
+ * Jumps and branches to a label where there's just another jmp, are changed to go to the final destination directly.
+ * Only for labels that are defined just once, and only if the destination of the jmp is such a label as well
+ * (or an address or a qualified name) so that it means the same thing from where the jump is.
+ */
+private fun threadJumps(lines: MutableList<AsmLine>, result: PeepholeResult) {
+    val labelCounts = mutableMapOf<String, Int>()
+    val jumpAtLabel = mutableMapOf<String, AsmInstruction>()
+    val pendingLabels = mutableListOf<String>()
+    for(line in lines) {
+        when(line) {
+            is AsmLabel -> {
+                val name = line.name.removeSuffix(":")
+                labelCounts[name] = (labelCounts[name] ?: 0) + 1
+                pendingLabels.add(name)
+            }
+            is AsmInstruction -> {
+                if(line.opcode==Opcode.JMP && line.mode==AddressingMode.ABSOLUTE)
+                    pendingLabels.forEach { jumpAtLabel[it] = line }
+                pendingLabels.clear()
             }
+            is AsmText -> {
+                // labels can be defined in here too, count those as well
+                for(text in line.text.lines()) {
+                    val word = text.takeWhile { !it.isWhitespace() && it!=':' && it!='=' }
+                    if(word.isNotEmpty() && !text[0].isWhitespace())
+                        labelCounts[word] = (labelCounts[word] ?: 0) + 2
+                }
+                pendingLabels.clear()
+            }
+            is AsmComment -> {}
         }
     }
-    return removeLines
-}
 
-private fun optimizeIncDec(linesByTwo: List<List<IndexedValue<String>>>): List<Int> {
-    // sometimes, iny+dey / inx+dex / dey+iny / dex+inx sequences are generated, these can be eliminated.
-    val removeLines = mutableListOf<Int>()
-    for (pair in linesByTwo) {
-        val first = pair[0].value
-        val second = pair[1].value
-        if ((" iny" in first || "\tiny" in first) && (" dey" in second || "\tdey" in second)
-                || (" inx" in first || "\tinx" in first) && (" dex" in second || "\tdex" in second)
-                || (" dey" in first || "\tdey" in first) && (" iny" in second || "\tiny" in second)
-                || (" dex" in first || "\tdex" in first) && (" inx" in second || "\tinx" in second)) {
-            removeLines.add(pair[0].index)
-            removeLines.add(pair[1].index)
+    fun isUniqueTarget(name: String) = when {
+        qualifiedName.matches(name) || number.matches(name) -> true
+        else -> labelName.matches(name) && labelCounts[name]==1
+    }
+
+    for((index, line) in lines.withIndex()) {
+        if(line !is AsmInstruction || line.operand==null)
+            continue
+        if(!(line.opcode==Opcode.JMP && line.mode==AddressingMode.ABSOLUTE) && !line.opcode.isBranch)
+            continue
+        var target = line.operand
+        if(!labelName.matches(target))
+            continue
+        val visited = mutableSetOf(target)
+        var skippedCycles = 0
+        while(labelCounts[target]==1) {
+            val jump = jumpAtLabel[target] ?: break
+            val destination = jump.operand!!
+            if(destination in visited || !isUniqueTarget(destination))
+                break
+            visited.add(destination)
+            target = destination
+            skippedCycles += jump.cycles
+        }
+        if(target!=line.operand) {
+            lines[index] = AsmInstruction(line.opcode, line.mode, target, line.comment)
+            result.record("jump threading", 0, skippedCycles)
         }
     }
-    return removeLines
 }
@@ -11,16 +11,20 @@ import prog8.compiler.toHex
 import prog8.compiler.AssemblyError
 import prog8.compiler.target.c64.C64MachineDefinition
 import prog8.compiler.target.c64.C64MachineDefinition.C64Zeropage
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_HEX
 
 
 internal class AssignmentAsmGen(private val program: Program, private val asmgen: AsmGen) {
 
+    private val estack = asmgen.estack
+
     internal fun translate(assign: Assignment) {
         if(assign.aug_op!=null)
             throw AssemblyError("aug-op assignments should have been transformed to normal ones")
 
+        if(assign.value !is NumericLiteralValue && assign.value !is IdentifierReference && assign.value !is RegisterExpr
+                && translateWithoutStack(assign))
+            return
+
         when(assign.value) {
             is NumericLiteralValue -> {
                 val numVal = assign.value as NumericLiteralValue
@@ -84,9 +88,9 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                     val indexValue = index.number.toInt() * ArrayElementTypes.getValue(arrayDt).memorySize()
                     when (arrayDt) {
                         DataType.STR, DataType.STR_S, DataType.ARRAY_UB, DataType.ARRAY_B ->
-                            asmgen.out("  lda  $arrayVarName+$indexValue |  sta  $ESTACK_LO_HEX,x |  dex")
+                            asmgen.out("  lda  $arrayVarName+$indexValue |  sta  ${estack.loHex},x |  dex")
                         DataType.ARRAY_UW, DataType.ARRAY_W ->
-                            asmgen.out("  lda  $arrayVarName+$indexValue |  sta  $ESTACK_LO_HEX,x |  lda  $arrayVarName+$indexValue+1 |  sta  $ESTACK_HI_HEX,x | dex")
+                            asmgen.out("  lda  $arrayVarName+$indexValue |  sta  ${estack.loHex},x |  lda  $arrayVarName+$indexValue+1 |  sta  ${estack.hiHex},x | dex")
                         DataType.ARRAY_F ->
                             asmgen.out("  lda  #<$arrayVarName+$indexValue |  ldy  #>$arrayVarName+$indexValue |  jsr  c64flt.push_float")
                         else ->
@@ -114,8 +118,26 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                 }
             }
             is FunctionCall -> {
-                asmgen.translateExpression(assign.value as FunctionCall)
-                assignFromEvalResult(assign.target)
+                val call = assign.value as FunctionCall
+                val target = assign.target
+                val returnvalue = asmgen.fastcall(call)?.returnvalue
+                val targetIdent = target.identifier
+                when {
+                    returnvalue==RegisterOrPair.A && target.register!=Register.X && target.arrayindexed?.arrayspec?.index !is RegisterExpr -> {
+                        // the result is in A, it doesn't have to go through the evaluation stack
+                        asmgen.translateFunctionCall(call)
+                        assignFromRegister(target, Register.A)
+                    }
+                    returnvalue==RegisterOrPair.AY && targetIdent!=null -> {
+                        asmgen.translateFunctionCall(call)
+                        val targetName = asmgen.asmIdentifierName(targetIdent)
+                        asmgen.out("  sta  $targetName |  sty  $targetName+1")
+                    }
+                    else -> {
+                        asmgen.translateExpression(call)
+                        assignFromEvalResult(target)
+                    }
+                }
             }
             is ArrayLiteralValue, is StringLiteralValue -> TODO("string/array/struct assignment?")
             is StructLiteralValue -> throw AssemblyError("struct literal value assignment should have been flattened")
@@ -123,27 +145,51 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
         }
     }
 
+    private fun translateWithoutStack(assign: Assignment): Boolean {
+        // evaluate simple expressions directly in the A register or in the target word variable
+        val target = assign.target
+        when(target.inferType(program, assign).typeOrElse(DataType.STRUCT)) {
+            in ByteDatatypes -> {
+                if(target.register==Register.X || target.arrayindexed?.arrayspec?.index is RegisterExpr)
+                    return false
+                if(!asmgen.canEvaluateIntoA(assign.value))
+                    return false
+                asmgen.translateExpressionIntoA(assign.value)
+                assignFromRegister(target, Register.A)
+                return true
+            }
+            in WordDatatypes -> {
+                val targetName = asmgen.asmIdentifierName(target.identifier ?: return false)
+                if(!asmgen.canEvaluateIntoWordVariable(assign.value, targetName))
+                    return false
+                asmgen.translateExpressionIntoWordVariable(assign.value, targetName)
+                return true
+            }
+            else -> return false
+        }
+    }
+
     internal fun assignFromEvalResult(target: AssignTarget) {
         val targetIdent = target.identifier
         when {
             target.register!=null -> {
                 if(target.register== Register.X)
                     throw AssemblyError("can't pop into X register - use variable instead")
-                asmgen.out(" inx | ld${target.register.name.toLowerCase()}  $ESTACK_LO_HEX,x ")
+                asmgen.out(" inx | ld${target.register.name.toLowerCase()}  ${estack.loHex},x ")
             }
             targetIdent!=null -> {
                 val targetName = asmgen.asmIdentifierName(targetIdent)
                 val targetDt = targetIdent.inferType(program).typeOrElse(DataType.STRUCT)
                 when(targetDt) {
                     DataType.UBYTE, DataType.BYTE -> {
-                        asmgen.out(" inx | lda  $ESTACK_LO_HEX,x  | sta  $targetName")
+                        asmgen.out(" inx | lda  ${estack.loHex},x  | sta  $targetName")
                     }
                     DataType.UWORD, DataType.WORD -> {
                         asmgen.out("""
                             inx
-                            lda  $ESTACK_LO_HEX,x
+                            lda  ${estack.loHex},x
                             sta  $targetName
-                            lda  $ESTACK_HI_HEX,x
+                            lda  ${estack.hiHex},x
                             sta  $targetName+1
                         """)
                     }
@@ -158,14 +204,14 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                 }
             }
             target.memoryAddress!=null -> {
-                asmgen.out("  inx  | ldy  $ESTACK_LO_HEX,x")
+                asmgen.out("  inx  | ldy  ${estack.loHex},x")
                 storeRegisterInMemoryAddress(Register.Y, target.memoryAddress)
             }
             target.arrayindexed!=null -> {
                 val arrayDt = target.arrayindexed!!.identifier.targetVarDecl(program.namespace)!!.datatype
                 val arrayVarName = asmgen.asmIdentifierName(target.arrayindexed!!.identifier)
                 asmgen.translateExpression(target.arrayindexed!!.arrayspec.index)
-                asmgen.out("  inx |  lda  $ESTACK_LO_HEX,x")
+                asmgen.out("  inx |  lda  ${estack.loHex},x")
                 popAndWriteArrayvalueWithIndexA(arrayDt, arrayVarName)
             }
             else -> throw AssemblyError("weird assignment target $target")
@@ -230,9 +276,9 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
             targetArrayIdx!=null -> {
                 val index = targetArrayIdx.arrayspec.index
                 val targetName = asmgen.asmIdentifierName(targetArrayIdx.identifier)
-                asmgen.out("  lda  $sourceName |  sta  $ESTACK_LO_HEX,x |  lda  $sourceName+1 |  sta  $ESTACK_HI_HEX,x |  dex")
+                asmgen.out("  lda  $sourceName |  sta  ${estack.loHex},x |  lda  $sourceName+1 |  sta  ${estack.hiHex},x |  dex")
                 asmgen.translateExpression(index)
-                asmgen.out("  inx |  lda  $ESTACK_LO_HEX,x")
+                asmgen.out("  inx |  lda  ${estack.loHex},x")
                 val arrayDt = targetArrayIdx.identifier.inferType(program).typeOrElse(DataType.STRUCT)
                 popAndWriteArrayvalueWithIndexA(arrayDt, targetName)
             }
@@ -290,9 +336,9 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                 val index = targetArrayIdx.arrayspec.index
                 val targetName = asmgen.asmIdentifierName(targetArrayIdx.identifier)
                 val arrayDt = targetArrayIdx.identifier.inferType(program).typeOrElse(DataType.STRUCT)
-                asmgen.out("  lda  $sourceName |  sta  $ESTACK_LO_HEX,x |  dex")
+                asmgen.out("  lda  $sourceName |  sta  ${estack.loHex},x |  dex")
                 asmgen.translateExpression(index)
-                asmgen.out("  inx |  lda  $ESTACK_LO_HEX,x")
+                asmgen.out("  inx |  lda  ${estack.loHex},x")
                 popAndWriteArrayvalueWithIndexA(arrayDt, targetName)
             }
             target.memoryAddress != null -> {
@@ -301,15 +347,15 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                 when {
                     addressLv != null -> asmgen.out("  lda  $sourceName |  sta  ${addressLv.number.toHex()}")
                     addressExpr is IdentifierReference -> {
-                        val targetName = asmgen.asmIdentifierName(addressExpr)
-                        asmgen.out("  lda  $sourceName |  sta  $targetName")
+                        val pointer = asmgen.loadPointerIntoZeropage(addressExpr)
+                        asmgen.out("  lda  $sourceName |  ldy  #0 |  sta  ($pointer),y")
                     }
                     else -> {
                         asmgen.translateExpression(addressExpr)
                         asmgen.out("""
      inx
-     lda  $ESTACK_LO_HEX,x
-     ldy  $ESTACK_HI_HEX,x
+     lda  ${estack.loHex},x
+     ldy  ${estack.hiHex},x
      sta  (+) +1
      sty  (+) +2
      lda  $sourceName
@@ -405,7 +451,7 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                         }
                         asmgen.out("""
                             inx
-                            lda  $ESTACK_LO_HEX,x
+                            lda  ${estack.loHex},x
                             tay
                             lda  ${C64Zeropage.SCRATCH_B1}
                             sta  $targetName,y  
@@ -424,35 +470,13 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
         when {
             addressLv != null -> asmgen.out("  st$registerName  ${addressLv.number.toHex()}")
             addressExpr is IdentifierReference -> {
-                val targetName = asmgen.asmIdentifierName(addressExpr)
                 when(register) {
-                    Register.A -> asmgen.out("""
-                        ldy  $targetName
-                        sty  ${C64Zeropage.SCRATCH_W1}
-                        ldy  $targetName+1
-                        sty  ${C64Zeropage.SCRATCH_W1+1}
-                        ldy  #0
-                        sta  (${C64Zeropage.SCRATCH_W1}),y
-                        """)
-                    Register.X -> asmgen.out("""
-                        txa
-                        ldy  $targetName
-                        sty  ${C64Zeropage.SCRATCH_W1}
-                        ldy  $targetName+1
-                        sty  ${C64Zeropage.SCRATCH_W1+1}
-                        ldy  #0
-                        sta  (${C64Zeropage.SCRATCH_W1}),y
-                        """)
-                    Register.Y -> asmgen.out("""
-                        tya
-                        ldy  $targetName
-                        sty  ${C64Zeropage.SCRATCH_W1}
-                        ldy  $targetName+1
-                        sty  ${C64Zeropage.SCRATCH_W1+1}
-                        ldy  #0
-                        sta  (${C64Zeropage.SCRATCH_W1}),y
-                        """)
+                    Register.A -> {}
+                    Register.X -> asmgen.out("  txa")
+                    Register.Y -> asmgen.out("  tya")
                 }
+                val pointer = asmgen.loadPointerIntoZeropage(addressExpr)
+                asmgen.out("  ldy  #0 |  sta  ($pointer),y")
             }
             else -> {
                 asmgen.saveRegister(register)
@@ -465,9 +489,9 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                 }
                 asmgen.out("""
      inx
-     lda  $ESTACK_LO_HEX,x
+     lda  ${estack.loHex},x
      sta  (+) +1
-     lda  $ESTACK_HI_HEX,x
+     lda  ${estack.hiHex},x
      sta  (+) +2
 +    sty  ${65535.toHex()}      ; modified              
                             """)
@@ -507,7 +531,7 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                 asmgen.translateExpression(index)
                 asmgen.out("""
                     inx
-                    lda  $ESTACK_LO_HEX,x
+                    lda  ${estack.loHex},x
                     asl  a
                     tay
                     lda  #<${word.toHex()}
@@ -542,7 +566,7 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                 asmgen.translateExpression(index)
                 asmgen.out("""
                     inx
-                    ldy  $ESTACK_LO_HEX,x
+                    ldy  ${estack.loHex},x
                     lda  #${byte.toHex()}
                     sta  $targetName,y
                 """)
@@ -585,11 +609,11 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                         asmgen.translateExpression(index)
                         asmgen.out("""
                         inx
-                        lda  $ESTACK_LO_HEX,x
+                        lda  ${estack.loHex},x
                         asl  a
                         asl  a
                         clc
-                        adc  $ESTACK_LO_HEX,x
+                        adc  ${estack.loHex},x
                         tay
                         lda  #0
                         sta  $targetName,y
@@ -696,9 +720,10 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
             val sourceName = asmgen.asmIdentifierName(identifier)
             when {
                 target.register!=null -> {
+                    val pointer = asmgen.loadPointerIntoZeropage(identifier)
                     asmgen.out("""
                         ldy  #0
-                        lda  ($sourceName),y
+                        lda  ($pointer),y
                     """)
                     when(target.register){
                         Register.A -> {}
@@ -708,15 +733,17 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
                 }
                 targetIdent!=null -> {
                     val targetName = asmgen.asmIdentifierName(targetIdent)
+                    val pointer = asmgen.loadPointerIntoZeropage(identifier)
                     asmgen.out("""
                         ldy  #0
-                        lda  ($sourceName),y
+                        lda  ($pointer),y
                         sta  $targetName
                     """)
                 }
                 target.memoryAddress!=null -> {
-                    asmgen.out("  ldy  $sourceName")
-                    storeRegisterInMemoryAddress(Register.Y, target.memoryAddress)
+                    val pointer = asmgen.loadPointerIntoZeropage(identifier)
+                    asmgen.out("  ldy  #0 |  lda  ($pointer),y")
+                    storeRegisterInMemoryAddress(Register.A, target.memoryAddress)
                 }
                 targetArrayIdx!=null -> {
                     val index = targetArrayIdx.arrayspec.index
@@ -731,13 +758,13 @@ internal class AssignmentAsmGen(private val program: Program, private val asmgen
     private fun popAndWriteArrayvalueWithIndexA(arrayDt: DataType, variablename: String) {
         when (arrayDt) {
             DataType.STR, DataType.STR_S, DataType.ARRAY_UB, DataType.ARRAY_B ->
-                asmgen.out("  tay |  inx |  lda  $ESTACK_LO_HEX,x  | sta  $variablename,y")
+                asmgen.out("  tay |  inx |  lda  ${estack.loHex},x  | sta  $variablename,y")
             DataType.ARRAY_UW, DataType.ARRAY_W ->
-                asmgen.out("  asl  a |  tay |  inx |  lda  $ESTACK_LO_HEX,x |  sta  $variablename,y |  lda  $ESTACK_HI_HEX,x |  sta $variablename+1,y")
+                asmgen.out("  asl  a |  tay |  inx |  lda  ${estack.loHex},x |  sta  $variablename,y |  lda  ${estack.hiHex},x |  sta $variablename+1,y")
             DataType.ARRAY_F ->
                 // index * 5 is done in the subroutine that's called
                 asmgen.out("""
-                    sta  $ESTACK_LO_HEX,x
+                    sta  ${estack.loHex},x
                     dex
                     lda  #<$variablename
                     ldy  #>$variablename
@@ -10,16 +10,14 @@ import prog8.ast.expressions.*
 import prog8.ast.statements.AssignTarget
 import prog8.ast.statements.FunctionCallStatement
 import prog8.compiler.target.c64.C64MachineDefinition.C64Zeropage
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_PLUS1_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_PLUS1_HEX
 import prog8.compiler.toHex
 import prog8.compiler.AssemblyError
 import prog8.functions.FunctionSignature
 
 internal class BuiltinFunctionsAsmGen(private val program: Program, private val asmgen: AsmGen) {
 
+    private val estack = asmgen.estack
+
     internal fun translateFunctioncallExpression(fcall: FunctionCall, func: FunctionSignature) {
         translateFunctioncall(fcall, func, false)
     }
@@ -46,15 +44,15 @@ internal class BuiltinFunctionsAsmGen(private val program: Program, private val
                     throw AssemblyError("should have been const-folded")
                 if (arg is IdentifierReference) {
                     val sourceName = asmgen.asmIdentifierName(arg)
-                    asmgen.out("  lda  $sourceName+1 |  sta  $ESTACK_LO_HEX,x |  dex")
+                    asmgen.out("  lda  $sourceName+1 |  sta  ${estack.loHex},x |  dex")
                 } else {
                     asmgen.translateExpression(arg)
-                    asmgen.out("  lda  $ESTACK_HI_PLUS1_HEX,x |  sta  $ESTACK_LO_PLUS1_HEX,x")
+                    asmgen.out("  lda  ${estack.hiPlus1Hex},x |  sta  ${estack.loPlus1Hex},x")
                 }
             }
             "mkword" -> {
                 translateFunctionArguments(fcall.arglist, func)
-                asmgen.out("  inx | lda  $ESTACK_LO_HEX,x  | sta  $ESTACK_HI_PLUS1_HEX,x")
+                asmgen.out("  inx | lda  ${estack.loHex},x  | sta  ${estack.hiPlus1Hex},x")
             }
             "abs" -> {
                 translateFunctionArguments(fcall.arglist, func)
@@ -145,9 +143,9 @@ internal class BuiltinFunctionsAsmGen(private val program: Program, private val
                                     asmgen.translateExpression(what.addressExpression)
                                     asmgen.out("""
                     inx
-                    lda  $ESTACK_LO_HEX,x
+                    lda  ${estack.loHex},x
                     sta  (+) + 1
-                    lda  $ESTACK_HI_HEX,x
+                    lda  ${estack.hiHex},x
                     sta  (+) + 2
 +                   asl  0            ; modified                    
                                     """)
@@ -201,9 +199,9 @@ internal class BuiltinFunctionsAsmGen(private val program: Program, private val
                                     asmgen.translateExpression(what.addressExpression)
                                     asmgen.out("""
                     inx
-                    lda  $ESTACK_LO_HEX,x
+                    lda  ${estack.loHex},x
                     sta  (+) + 1
-                    lda  $ESTACK_HI_HEX,x
+                    lda  ${estack.hiHex},x
                     sta  (+) + 2
 +                   lsr  0            ; modified                    
                                     """)
@@ -282,9 +280,9 @@ internal class BuiltinFunctionsAsmGen(private val program: Program, private val
                                     asmgen.translateExpression(what.addressExpression)
                                     asmgen.out("""
                     inx
-                    lda  $ESTACK_LO_HEX,x
+                    lda  ${estack.loHex},x
                     sta  (+) + 1
-                    lda  $ESTACK_HI_HEX,x
+                    lda  ${estack.hiHex},x
                     sta  (+) + 2
 +                   rol  0            ; modified                    
                                     """)
@@ -393,9 +391,9 @@ internal class BuiltinFunctionsAsmGen(private val program: Program, private val
                                     asmgen.translateExpression(what.addressExpression)
                                     asmgen.out("""
                     inx
-                    lda  $ESTACK_LO_HEX,x
+                    lda  ${estack.loHex},x
                     sta  (+) + 1
-                    lda  $ESTACK_HI_HEX,x
+                    lda  ${estack.hiHex},x
                     sta  (+) + 2
 +                   ror  0            ; modified                    
                                     """)                                }
@@ -573,12 +571,12 @@ internal class BuiltinFunctionsAsmGen(private val program: Program, private val
         val size = arg.targetVarDecl(program.namespace)!!.arraysize!!.size()!!
         asmgen.out("""
                     lda  #<$identifierName
-                    sta  $ESTACK_LO_HEX,x
+                    sta  ${estack.loHex},x
                     lda  #>$identifierName
-                    sta  $ESTACK_HI_HEX,x
+                    sta  ${estack.hiHex},x
                     dex
                     lda  #$size
-                    sta  $ESTACK_LO_HEX,x
+                    sta  ${estack.loHex},x
                     dex
                     """)
     }
@@ -587,9 +585,9 @@ internal class BuiltinFunctionsAsmGen(private val program: Program, private val
         val identifierName = asmgen.asmIdentifierName(arg as IdentifierReference)
         asmgen.out("""
                     lda  #<$identifierName
-                    sta  $ESTACK_LO_HEX,x
+                    sta  ${estack.loHex},x
                     lda  #>$identifierName
-                    sta  $ESTACK_HI_HEX,x
+                    sta  ${estack.hiHex},x
                     dex
                     """)
     }
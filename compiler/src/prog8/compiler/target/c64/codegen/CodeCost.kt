@@ -0,0 +1,13 @@
+package prog8.compiler.target.c64.codegen
+
+
+/**
+ * The estimated size (in bytes) and running time (in cycles) of a piece of generated code,
+ * to choose between the different ways to generate it.
+ * With the optimize_size option the size weighs the most, otherwise the speed.
+ */
+internal class CodeCost(val bytes: Int, val cycles: Double) {
+    operator fun plus(other: CodeCost) = CodeCost(bytes + other.bytes, cycles + other.cycles)
+
+    fun weighted(optimizeSize: Boolean) = if(optimizeSize) bytes * 4 + cycles else bytes + cycles * 4
+}
@@ -0,0 +1,240 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.ast.base.ByteDatatypes
+import prog8.ast.base.DataType
+import prog8.ast.expressions.Expression
+import prog8.compiler.CompilationOptions
+import prog8.compiler.target.c64.C64MachineDefinition.C64Zeropage
+
+
+/**
+ * Multiplication and division by a constant, without the general multiply and divide routines of the library.
+ *
+ * A multiplication becomes a sequence of shifts and additions or subtractions of the value.
+ * An unsigned byte division becomes a multiplication by the reciprocal of the divisor,
+ * and the remainder is what's left after multiplying the quotient by the divisor again.
+ * The estimated size and cycles of that code are compared with those of calling the library routine.
+ * (Word division isn't done this way: the 32 bits product would make the code several hundred bytes long.)
+ */
+internal class ConstantArithmeticAsmGen(private val options: CompilationOptions, private val asmgen: AsmGen) {
+
+    private val estack = asmgen.estack
+
+    internal enum class Step {
+        SHIFT,          // shift the product left
+        ADD,            // add the value to the product
+        SUBTRACT,       // subtract the value from the product
+        REBASE,         // the product becomes the value for the rest of the steps
+        NEGATE          // negate the product
+    }
+
+    private val optimizedByteMultiplications = setOf(3,5,6,7,9,10,11,12,13,14,15,20,25,40)
+    private val optimizedWordMultiplications = setOf(3,5,6,7,9,10,12,15,20,25,40)
+
+    private val byteSteps = mapOf(
+            Step.SHIFT to CodeCost(1, 2.0),
+            Step.ADD to CodeCost(4, 6.0),
+            Step.SUBTRACT to CodeCost(4, 6.0),
+            Step.REBASE to CodeCost(3, 5.0),
+            Step.NEGATE to CodeCost(5, 6.0))
+    private val wordSteps = mapOf(
+            Step.SHIFT to CodeCost(3, 7.0),
+            Step.ADD to CodeCost(13, 20.0),
+            Step.SUBTRACT to CodeCost(13, 20.0),
+            Step.REBASE to CodeCost(10, 17.0),
+            Step.NEGATE to CodeCost(15, 20.0))
+    private val byteLoadStore = CodeCost(6, 9.0)
+    private val wordLoadStore = CodeCost(16, 24.0)
+
+    private val bytePlans = mutableMapOf<Int, List<Step>>()
+    private val wordPlans = mutableMapOf<Int, List<Step>>()
+
+    /**
+     * Multiplies the value of the expression by the constant, and leaves the result on the evaluation stack.
+     * Returns false if the general multiplication routine is the better choice.
+     */
+    internal fun translateMultiplication(left: Expression, dt: DataType, amount: Int): Boolean {
+        val isByte = dt in ByteDatatypes
+        val bits = if(isByte) 8 else 16
+        val factor = amount and ((1 shl bits) - 1)
+        if(factor<=1)
+            return false
+
+        var steps = plan(factor, bits)
+        if(amount<0) {
+            val negated = plan(-amount and ((1 shl bits) - 1), bits) + Step.NEGATE
+            if(cost(negated, isByte).weighted(options.optimizeSize) < cost(steps, isByte).weighted(options.optimizeSize))
+                steps = negated
+        }
+        val inline = cost(steps, isByte) + (if(isByte) byteLoadStore else wordLoadStore)
+        val routine = if(isByte) optimizedByteMultiplications else optimizedWordMultiplications
+        val negateRoutine = if(isByte) "prog8_lib.neg_b" else "prog8_lib.neg_w"
+        val routineName = if(isByte) "math.mul_byte_" else "math.mul_word_"
+        val call = when {
+            amount in routine -> CodeCost(3, inline.cycles + 12)
+            amount<0 && -amount in routine -> CodeCost(6, inline.cycles + 40)
+            isByte -> CodeCost(9, 60.0 + 15 * Integer.toBinaryString(factor).length + 5 * Integer.bitCount(factor))
+            else -> CodeCost(14, 700.0 + 20 * Integer.bitCount(factor))
+        }
+        if(inline.weighted(options.optimizeSize) <= call.weighted(options.optimizeSize)) {
+            asmgen.translateExpression(left)
+            if(isByte) {
+                asmgen.out("  lda  ${estack.loPlus1Hex},x")
+                multiplyByteInA(steps, "${estack.loPlus1Hex},x")
+                asmgen.out("  sta  ${estack.loPlus1Hex},x")
+            } else {
+                multiplyWord(steps)
+            }
+            return true
+        }
+        return when {
+            amount in routine -> {
+                asmgen.translateExpression(left)
+                asmgen.out("  jsr  $routineName$amount")
+                true
+            }
+            amount<0 && -amount in routine -> {
+                asmgen.translateExpression(left)
+                asmgen.out("  jsr  $negateRoutine |  jsr  $routineName${-amount}")
+                true
+            }
+            else -> false
+        }
+    }
+
+    /**
+     * Divides the unsigned byte value of the expression by the constant (or takes the remainder),
+     * and leaves the result on the evaluation stack.
+     * Returns false if the general division routine is the better choice.
+     */
+    internal fun translateDivision(left: Expression, divisor: Int, remainder: Boolean): Boolean {
+        if(divisor !in 2..255)
+            return false
+        val (multiplier, shift) = (8..16)
+                .map { Pair(((1 shl it) + divisor - 1) / divisor, it) }
+                .filter { (m, k) -> (0..255).all { v -> (v * m) shr k == v / divisor } }
+                .minBy { (m, k) -> reciprocalCost(m, k).weighted(options.optimizeSize) }!!
+        var inline = reciprocalCost(multiplier, shift) + CodeCost(3, 5.0)
+        val divisorSteps = plan(divisor, 8)
+        if(remainder)
+            inline += CodeCost(2, 3.0) + cost(divisorSteps, true) + CodeCost(6, 8.0)
+        val call = CodeCost(9, 210.0)
+        if(inline.weighted(options.optimizeSize) > call.weighted(options.optimizeSize))
+            return false
+
+        asmgen.translateExpression(left)
+        // the high byte of value*multiplier is calculated by adding the value and shifting right, for each bit of
+        // the multiplier from the lowest one.  That doesn't need the low byte, and the carry holds the 9th bit.
+        val length = Integer.toBinaryString(multiplier).length
+        val lowest = Integer.numberOfTrailingZeros(multiplier)
+        asmgen.out("  lda  ${estack.loPlus1Hex},x |  lsr  a")
+        for(bit in lowest+1 until length) {
+            if(multiplier and (1 shl bit) != 0)
+                asmgen.out("  clc |  adc  ${estack.loPlus1Hex},x |  ror  a")
+            else
+                asmgen.out("  lsr  a")
+        }
+        repeat(shift - length) { asmgen.out("  lsr  a") }
+        if(remainder) {
+            asmgen.out("  sta  ${C64Zeropage.SCRATCH_B1}")
+            multiplyByteInA(divisorSteps, C64Zeropage.SCRATCH_B1.toString())
+            asmgen.out("  eor  #255 |  sec |  adc  ${estack.loPlus1Hex},x")
+        }
+        asmgen.out("  sta  ${estack.loPlus1Hex},x")
+        return true
+    }
+
+    private fun multiplyByteInA(steps: List<Step>, value: String) {
+        for(step in steps) {
+            when(step) {
+                Step.SHIFT -> asmgen.out("  asl  a")
+                Step.ADD -> asmgen.out("  clc |  adc  $value")
+                Step.SUBTRACT -> asmgen.out("  sec |  sbc  $value")
+                Step.REBASE -> asmgen.out("  sta  $value")
+                Step.NEGATE -> asmgen.out("  eor  #255 |  clc |  adc  #1")
+            }
+        }
+    }
+
+    private fun multiplyWord(steps: List<Step>) {
+        // the lsb of the product is in A, the msb in SCRATCH_REG
+        val msb = C64Zeropage.SCRATCH_REG
+        asmgen.out("  lda  ${estack.hiPlus1Hex},x |  sta  $msb |  lda  ${estack.loPlus1Hex},x")
+        for(step in steps) {
+            when(step) {
+                Step.SHIFT -> asmgen.out("  asl  a |  rol  $msb")
+                Step.ADD -> asmgen.out("  clc |  adc  ${estack.loPlus1Hex},x |  tay |  lda  $msb |  adc  ${estack.hiPlus1Hex},x |  sta  $msb |  tya")
+                Step.SUBTRACT -> asmgen.out("  sec |  sbc  ${estack.loPlus1Hex},x |  tay |  lda  $msb |  sbc  ${estack.hiPlus1Hex},x |  sta  $msb |  tya")
+                Step.REBASE -> asmgen.out("  sta  ${estack.loPlus1Hex},x |  tay |  lda  $msb |  sta  ${estack.hiPlus1Hex},x |  tya")
+                Step.NEGATE -> asmgen.out("  eor  #255 |  clc |  adc  #1 |  tay |  lda  $msb |  eor  #255 |  adc  #0 |  sta  $msb |  tya")
+            }
+        }
+        asmgen.out("  sta  ${estack.loPlus1Hex},x |  lda  $msb |  sta  ${estack.hiPlus1Hex},x")
+    }
+
+    /**
+     * The cheapest steps to multiply a value by the factor (modulo 2 to the power of bits), starting with the value.
+     * The digits of the factor are done from the highest one down: shift, and add or subtract the value for a 1 or -1.
+     * The digits are the binary ones, or the non-adjacent form (that has the fewest nonzero digits, but can have -1).
+     * The factor can also be split in two factors, which are done one after the other.
+     */
+    internal fun plan(factor: Int, bits: Int): List<Step> {
+        val plans = if(bits==8) bytePlans else wordPlans
+        plans[factor]?.let { return it }
+
+        val candidates = mutableListOf(horner(binaryDigits(factor)))
+        val naf = nonAdjacentForm(factor).take(bits).dropLastWhile { it==0 }
+        if(naf.lastOrNull()==1)
+            candidates.add(horner(naf))
+        var first = 3
+        while(first*first <= factor) {
+            val second = factor / first
+            if(factor % first == 0 && !isPowerOfTwo(first) && !isPowerOfTwo(second))
+                candidates.add(plan(first, bits) + Step.REBASE + plan(second, bits))
+            first++
+        }
+        val best = candidates.minBy { cost(it, bits==8).weighted(options.optimizeSize) }!!
+        plans[factor] = best
+        return best
+    }
+
+    private fun horner(digits: List<Int>): List<Step> {
+        // the digits are lowest first, and the highest one is 1: that's the value we start with
+        val steps = mutableListOf<Step>()
+        for(digit in digits.reversed().drop(1)) {
+            steps.add(Step.SHIFT)
+            when(digit) {
+                1 -> steps.add(Step.ADD)
+                -1 -> steps.add(Step.SUBTRACT)
+            }
+        }
+        return steps
+    }
+
+    private fun binaryDigits(number: Int) = Integer.toBinaryString(number).reversed().map { it - '0' }
+
+    private fun nonAdjacentForm(number: Int): List<Int> {
+        val digits = mutableListOf<Int>()
+        var n = number
+        while(n > 0) {
+            val digit = if(n % 2 == 0) 0 else 2 - n % 4
+            digits.add(digit)
+            n = (n - digit) / 2
+        }
+        return digits
+    }
+
+    private fun isPowerOfTwo(number: Int) = number and (number - 1) == 0
+
+    private fun cost(steps: List<Step>, isByte: Boolean): CodeCost {
+        val costs = if(isByte) byteSteps else wordSteps
+        return steps.fold(CodeCost(0, 0.0)) { total, step -> total + costs.getValue(step) }
+    }
+
+    private fun reciprocalCost(multiplier: Int, shift: Int): CodeCost {
+        val length = Integer.toBinaryString(multiplier).length
+        val ones = Integer.bitCount(multiplier) - 1
+        val zeros = length - Integer.numberOfTrailingZeros(multiplier) - 1 - ones
+        return CodeCost(4 + ones*5 + zeros + shift - length, 6.0 + ones*8 + zeros*2 + (shift - length) * 2)
+    }
+}
@@ -0,0 +1,150 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.ast.Program
+import prog8.ast.base.DataType
+import prog8.ast.base.Position
+import prog8.ast.expressions.*
+import prog8.ast.processing.IAstVisitor
+import prog8.ast.statements.*
+import kotlin.math.max
+
+
+/**
+ * Estimates how many entries of the evaluation stack a program needs at most.
+ *
+ * An expression needs room for its operands and everything its function calls need in turn:
+ * the values that are still on the stack when a subroutine is called stay there while the subroutine runs.
+ * A for loop over a non-constant range keeps its end value on the stack during the loop body,
+ * and the irq handler can interrupt anywhere so it comes on top of everything else.
+ * Floats take 3 entries.  The result is an upper bound: a lot of expressions are evaluated without the stack.
+ */
+internal class EvalStackDepth(private val program: Program) {
+
+    class Deepest(val entries: Int, val position: Position)
+
+    private val deepestInSubroutine = mutableMapOf<Subroutine, Deepest>()
+    private val busy = mutableSetOf<Subroutine>()
+
+    fun deepest(): Deepest? {
+        val subroutines = program.allBlocks().flatMap { block -> block.statements.filterIsInstance<Subroutine>() }
+                .filter { !it.isAsmSubroutine }
+        val irq = subroutines.singleOrNull { it.name=="irq" && it.definingBlock().name=="irq" }
+        var deepest: Deepest? = null
+        for(sub in subroutines) {
+            if(sub===irq)
+                continue
+            val depth = subroutineDepth(sub)
+            if(deepest==null || depth.entries > deepest.entries)
+                deepest = depth
+        }
+        return if(deepest==null || irq==null) deepest else Deepest(deepest.entries + subroutineDepth(irq).entries, deepest.position)
+    }
+
+    private fun subroutineDepth(sub: Subroutine): Deepest {
+        val known = deepestInSubroutine[sub]
+        if(known!=null)
+            return known
+        if(sub in busy || sub.isAsmSubroutine)
+            return Deepest(0, sub.position)     // subroutines are never recursive, and asmsubs do their own thing
+        busy.add(sub)
+        val scanner = Scanner(sub)
+        sub.accept(scanner)
+        busy.remove(sub)
+        val deepest = Deepest(scanner.deepest, scanner.position)
+        deepestInSubroutine[sub] = deepest
+        return deepest
+    }
+
+    private inner class Scanner(private val sub: Subroutine) : IAstVisitor {
+        var deepest = 0
+        var position = sub.position
+        private var loops = 0       // the stack entries of the for loops we're in
+
+        private fun measure(entries: Int, position: Position) {
+            if(loops + entries > deepest) {
+                deepest = loops + entries
+                this.position = position
+            }
+        }
+
+        private fun root(expr: Expression) = measure(depth(expr), expr.position)
+
+        override fun visit(subroutine: Subroutine) {
+            // nested subroutines are measured on their own
+            if(subroutine===sub)
+                super.visit(subroutine)
+        }
+
+        override fun visit(forLoop: ForLoop) {
+            root(forLoop.iterable)
+            val iterable = forLoop.iterable
+            val keepsEndValue = iterable is RangeExpr && iterable.toConstantIntegerRange()==null
+            if(keepsEndValue)
+                loops++
+            forLoop.body.accept(this)
+            if(keepsEndValue)
+                loops--
+        }
+
+        override fun visit(assignment: Assignment) {
+            // an element of an array or memory with a calculated address is assigned from the stack
+            val target = assignment.target.arrayindexed?.arrayspec?.index ?: assignment.target.memoryAddress?.addressExpression
+            val targetDepth = if(target==null) 0 else entries(assignment.value) + depth(target)
+            measure(max(depth(assignment.value), targetDepth), assignment.position)
+        }
+
+        override fun visit(functionCallStatement: FunctionCallStatement) =
+                measure(callDepth(functionCallStatement.target, functionCallStatement.arglist), functionCallStatement.position)
+
+        override fun visit(jump: Jump) {
+            // the target of a jump isn't evaluated
+        }
+
+        override fun visit(expr: PrefixExpression) = root(expr)
+        override fun visit(expr: BinaryExpression) = root(expr)
+        override fun visit(functionCall: FunctionCall) = root(functionCall)
+        override fun visit(range: RangeExpr) = root(range)
+        override fun visit(arrayIndexedExpression: ArrayIndexedExpression) = root(arrayIndexedExpression)
+        override fun visit(typecast: TypecastExpression) = root(typecast)
+        override fun visit(memread: DirectMemoryRead) = root(memread)
+        override fun visit(numLiteral: NumericLiteralValue) = root(numLiteral)
+        override fun visit(identifier: IdentifierReference) = root(identifier)
+    }
+
+    private fun entries(expr: Expression) = if(expr.inferType(program).istype(DataType.FLOAT)) 3 else 1
+
+    private fun depth(expr: Expression): Int {
+        val operands = when(expr) {
+            is BinaryExpression -> max(depth(expr.left), entries(expr.left) + depth(expr.right))
+            is PrefixExpression -> depth(expr.expression)
+            is TypecastExpression -> depth(expr.expression)
+            is DirectMemoryRead -> depth(expr.addressExpression)
+            is ArrayIndexedExpression -> depth(expr.arrayspec.index)
+            is RangeExpr -> sequential(listOf(expr.from, expr.to, expr.step))
+            is FunctionCall -> callDepth(expr.target, expr.arglist)
+            else -> 0
+        }
+        return max(operands, entries(expr))
+    }
+
+    private fun callDepth(target: IdentifierReference, arguments: List<Expression>): Int {
+        val sub = target.targetSubroutine(program.namespace)
+        return if(sub==null || sub.isAsmSubroutine) {
+            // the arguments of builtin functions and asmsubs are all on the stack together
+            sequential(arguments)
+        } else {
+            // the arguments are stored in the parameter variables one by one, then the subroutine runs
+            arguments.fold(subroutineDepth(sub).entries) { deepest, arg -> max(deepest, depth(arg)) }
+        }
+    }
+
+    private fun sequential(expressions: List<Expression>): Int {
+        var below = 0
+        var deepest = 0
+        for(expr in expressions) {
+            deepest = max(deepest, below + depth(expr))
+            below += entries(expr)
+        }
+        return deepest
+    }
+}
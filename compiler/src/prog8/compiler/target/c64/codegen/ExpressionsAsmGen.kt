@@ -5,16 +5,13 @@ import prog8.ast.base.*
 import prog8.ast.expressions.*
 import prog8.compiler.toHex
 import prog8.compiler.AssemblyError
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_PLUS1_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_PLUS1_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_PLUS2_HEX
+import prog8.compiler.target.c64.C64MachineDefinition.C64Zeropage
 import prog8.functions.BuiltinFunctions
-import kotlin.math.absoluteValue
 
 internal class ExpressionsAsmGen(private val program: Program, private val asmgen: AsmGen) {
 
+    private val estack = asmgen.estack
+
     internal fun translateExpression(expression: Expression) {
         when(expression) {
             is PrefixExpression -> translateExpression(expression)
@@ -41,15 +38,20 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
         } else {
             asmgen.translateFunctionCall(expression)
             val sub = expression.target.targetSubroutine(program.namespace)!!
+            when(asmgen.fastcall(sub)?.returnvalue) {
+                RegisterOrPair.A -> asmgen.out("  sta  ${estack.loHex},x |  dex")
+                RegisterOrPair.AY -> asmgen.out("  sta  ${estack.loHex},x |  tya |  sta  ${estack.hiHex},x |  dex")
+                else -> {}
+            }
             val returns = sub.returntypes.zip(sub.asmReturnvaluesRegisters)
             for ((_, reg) in returns) {
                 if (!reg.stack) {
                     // result value in cpu or status registers, put it on the stack
                     if (reg.registerOrPair != null) {
                         when (reg.registerOrPair) {
-                            RegisterOrPair.A -> asmgen.out("  sta  $ESTACK_LO_HEX,x |  dex")
-                            RegisterOrPair.Y -> asmgen.out("  tya |  sta  $ESTACK_LO_HEX,x |  dex")
-                            RegisterOrPair.AY -> asmgen.out("  sta  $ESTACK_LO_HEX,x |  tya |  sta  $ESTACK_HI_HEX,x |  dex")
+                            RegisterOrPair.A -> asmgen.out("  sta  ${estack.loHex},x |  dex")
+                            RegisterOrPair.Y -> asmgen.out("  tya |  sta  ${estack.loHex},x |  dex")
+                            RegisterOrPair.AY -> asmgen.out("  sta  ${estack.loHex},x |  tya |  sta  ${estack.hiHex},x |  dex")
                             RegisterOrPair.X, RegisterOrPair.AX, RegisterOrPair.XY -> throw AssemblyError("can't push X register - use a variable")
                         }
                     }
@@ -65,7 +67,7 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
             DataType.UBYTE -> {
                 when(expr.type) {
                     DataType.UBYTE, DataType.BYTE -> {}
-                    DataType.UWORD, DataType.WORD -> asmgen.out("  lda  #0  |  sta  $ESTACK_HI_PLUS1_HEX,x")
+                    DataType.UWORD, DataType.WORD -> asmgen.out("  lda  #0  |  sta  ${estack.hiPlus1Hex},x")
                     DataType.FLOAT -> asmgen.out(" jsr  c64flt.stack_ub2float")
                     in PassByReferenceDatatypes -> throw AssemblyError("cannot cast to a pass-by-reference datatype")
                     else -> throw AssemblyError("weird type")
@@ -74,7 +76,7 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
             DataType.BYTE -> {
                 when(expr.type) {
                     DataType.UBYTE, DataType.BYTE -> {}
-                    DataType.UWORD, DataType.WORD -> asmgen.out("  lda  $ESTACK_LO_PLUS1_HEX,x  |  ${asmgen.signExtendAtoMsb("$ESTACK_HI_PLUS1_HEX,x")}")
+                    DataType.UWORD, DataType.WORD -> asmgen.out("  lda  ${estack.loPlus1Hex},x  |  ${asmgen.signExtendAtoMsb("${estack.hiPlus1Hex},x")}")
                     DataType.FLOAT -> asmgen.out(" jsr  c64flt.stack_b2float")
                     in PassByReferenceDatatypes -> throw AssemblyError("cannot cast to a pass-by-reference datatype")
                     else -> throw AssemblyError("weird type")
@@ -116,35 +118,35 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
 
     private fun translateExpression(expr: AddressOf) {
         val name = asmgen.asmIdentifierName(expr.identifier)
-        asmgen.out("  lda  #<$name |  sta  $ESTACK_LO_HEX,x |  lda  #>$name  |  sta  $ESTACK_HI_HEX,x  | dex")
+        asmgen.out("  lda  #<$name |  sta  ${estack.loHex},x |  lda  #>$name  |  sta  ${estack.hiHex},x  | dex")
     }
 
     private fun translateExpression(expr: DirectMemoryRead) {
         when(expr.addressExpression) {
             is NumericLiteralValue -> {
                 val address = (expr.addressExpression as NumericLiteralValue).number.toInt()
-                asmgen.out("  lda  ${address.toHex()} |  sta  $ESTACK_LO_HEX,x |  dex")
+                asmgen.out("  lda  ${address.toHex()} |  sta  ${estack.loHex},x |  dex")
             }
             is IdentifierReference -> {
-                val sourceName = asmgen.asmIdentifierName(expr.addressExpression as IdentifierReference)
-                asmgen.out("  lda  $sourceName |  sta  $ESTACK_LO_HEX,x |  dex")
+                val pointer = asmgen.loadPointerIntoZeropage(expr.addressExpression as IdentifierReference)
+                asmgen.out("  ldy  #0 |  lda  ($pointer),y |  sta  ${estack.loHex},x |  dex")
             }
             else -> {
                 translateExpression(expr.addressExpression)
                 asmgen.out("  jsr  prog8_lib.read_byte_from_address")
-                asmgen.out("  sta  $ESTACK_LO_PLUS1_HEX,x")
+                asmgen.out("  sta  ${estack.loPlus1Hex},x")
             }
         }
     }
 
     private fun translateExpression(expr: NumericLiteralValue) {
         when(expr.type) {
-            DataType.UBYTE, DataType.BYTE -> asmgen.out(" lda  #${expr.number.toHex()}  | sta  $ESTACK_LO_HEX,x  | dex")
+            DataType.UBYTE, DataType.BYTE -> asmgen.out(" lda  #${expr.number.toHex()}  | sta  ${estack.loHex},x  | dex")
             DataType.UWORD, DataType.WORD -> asmgen.out("""
                 lda  #<${expr.number.toHex()}
-                sta  $ESTACK_LO_HEX,x
+                sta  ${estack.loHex},x
                 lda  #>${expr.number.toHex()}
-                sta  $ESTACK_HI_HEX,x
+                sta  ${estack.hiHex},x
                 dex
             """)
             DataType.FLOAT -> {
@@ -157,9 +159,9 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
 
     private fun translateExpression(expr: RegisterExpr) {
         when(expr.register) {
-            Register.A -> asmgen.out(" sta  $ESTACK_LO_HEX,x | dex")
+            Register.A -> asmgen.out(" sta  ${estack.loHex},x | dex")
             Register.X -> throw AssemblyError("cannot push X - use a variable instead of the X register")
-            Register.Y -> asmgen.out(" tya |  sta  $ESTACK_LO_HEX,x | dex")
+            Register.Y -> asmgen.out(" tya |  sta  ${estack.loHex},x | dex")
         }
     }
 
@@ -167,13 +169,13 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
         val varname = asmgen.asmIdentifierName(expr)
         when(expr.inferType(program).typeOrElse(DataType.STRUCT)) {
             DataType.UBYTE, DataType.BYTE -> {
-                asmgen.out("  lda  $varname  |  sta  $ESTACK_LO_HEX,x  |  dex")
+                asmgen.out("  lda  $varname  |  sta  ${estack.loHex},x  |  dex")
             }
             DataType.UWORD, DataType.WORD -> {
-                asmgen.out("  lda  $varname  |  sta  $ESTACK_LO_HEX,x  |  lda  $varname+1 |  sta  $ESTACK_HI_HEX,x |  dex")
+                asmgen.out("  lda  $varname  |  sta  ${estack.loHex},x  |  lda  $varname+1 |  sta  ${estack.hiHex},x |  dex")
             }
             in ArrayDatatypes, in StringDatatypes -> {
-                asmgen.out("  lda  #<$varname  |  sta  $ESTACK_LO_HEX,x  |  lda  #>$varname |  sta  $ESTACK_HI_HEX,x |  dex")
+                asmgen.out("  lda  #<$varname  |  sta  ${estack.loHex},x  |  lda  #>$varname |  sta  ${estack.hiHex},x |  dex")
             }
             DataType.FLOAT -> {
                 asmgen.out(" lda  #<$varname |  ldy  #>$varname|  jsr  c64flt.push_float")
@@ -182,8 +184,6 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
         }
     }
 
-    private val optimizedByteMultiplications = setOf(3,5,6,7,9,10,11,12,13,14,15,20,25,40)
-    private val optimizedWordMultiplications = setOf(3,5,6,7,9,10,12,15,20,25,40)
     private val powersOfTwo = setOf(0,1,2,4,8,16,32,64,128,256)
 
     private fun translateExpression(expr: BinaryExpression) {
@@ -201,10 +201,10 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
                 translateExpression(expr.left)
                 val amount = expr.right.constValue(program)!!.number.toInt()
                 when (leftDt) {
-                    DataType.UBYTE -> repeat(amount) { asmgen.out("  lsr  $ESTACK_LO_PLUS1_HEX,x") }
-                    DataType.BYTE -> repeat(amount) { asmgen.out("  lda  $ESTACK_LO_PLUS1_HEX,x |  asl  a |  ror  $ESTACK_LO_PLUS1_HEX,x") }
-                    DataType.UWORD -> repeat(amount) { asmgen.out("  lsr  $ESTACK_HI_PLUS1_HEX,x |  ror  $ESTACK_LO_PLUS1_HEX,x") }
-                    DataType.WORD -> repeat(amount) { asmgen.out("  lda  $ESTACK_HI_PLUS1_HEX,x |  asl a  |  ror  $ESTACK_HI_PLUS1_HEX,x |  ror  $ESTACK_LO_PLUS1_HEX,x") }
+                    DataType.UBYTE -> repeat(amount) { asmgen.out("  lsr  ${estack.loPlus1Hex},x") }
+                    DataType.BYTE -> repeat(amount) { asmgen.out("  lda  ${estack.loPlus1Hex},x |  asl  a |  ror  ${estack.loPlus1Hex},x") }
+                    DataType.UWORD -> repeat(amount) { asmgen.out("  lsr  ${estack.hiPlus1Hex},x |  ror  ${estack.loPlus1Hex},x") }
+                    DataType.WORD -> repeat(amount) { asmgen.out("  lda  ${estack.hiPlus1Hex},x |  asl a  |  ror  ${estack.hiPlus1Hex},x |  ror  ${estack.loPlus1Hex},x") }
                     else -> throw AssemblyError("weird type")
                 }
                 return
@@ -214,60 +214,26 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
                 translateExpression(expr.left)
                 val amount = expr.right.constValue(program)!!.number.toInt()
                 if (leftDt in ByteDatatypes)
-                    repeat(amount) { asmgen.out("  asl  $ESTACK_LO_PLUS1_HEX,x") }
+                    repeat(amount) { asmgen.out("  asl  ${estack.loPlus1Hex},x") }
                 else
-                    repeat(amount) { asmgen.out("  asl  $ESTACK_LO_PLUS1_HEX,x |  rol  $ESTACK_HI_PLUS1_HEX,x") }
+                    repeat(amount) { asmgen.out("  asl  ${estack.loPlus1Hex},x |  rol  ${estack.hiPlus1Hex},x") }
                 return
             }
             "*" -> {
                 val value = expr.right.constValue(program)
-                if(value!=null) {
-                    if(rightDt in IntegerDatatypes) {
-                        val amount = value.number.toInt()
-                        if(amount in powersOfTwo)
-                            printWarning("${expr.right.position} multiplication by power of 2 should have been optimized into a left shift instruction: $amount")
-                        when(rightDt) {
-                            DataType.UBYTE -> {
-                                if(amount in optimizedByteMultiplications) {
-                                    translateExpression(expr.left)
-                                    asmgen.out(" jsr  math.mul_byte_$amount")
-                                    return
-                                }
-                            }
-                            DataType.BYTE -> {
-                                if(amount in optimizedByteMultiplications) {
-                                    translateExpression(expr.left)
-                                    asmgen.out(" jsr  math.mul_byte_$amount")
-                                    return
-                                }
-                                if(amount.absoluteValue in optimizedByteMultiplications) {
-                                    translateExpression(expr.left)
-                                    asmgen.out(" jsr  prog8_lib.neg_b |  jsr  math.mul_byte_${amount.absoluteValue}")
-                                    return
-                                }
-                            }
-                            DataType.UWORD -> {
-                                if(amount in optimizedWordMultiplications) {
-                                    translateExpression(expr.left)
-                                    asmgen.out(" jsr  math.mul_word_$amount")
-                                    return
-                                }
-                            }
-                            DataType.WORD -> {
-                                if(amount in optimizedWordMultiplications) {
-                                    translateExpression(expr.left)
-                                    asmgen.out(" jsr  math.mul_word_$amount")
-                                    return
-                                }
-                                if(amount.absoluteValue in optimizedWordMultiplications) {
-                                    translateExpression(expr.left)
-                                    asmgen.out(" jsr  prog8_lib.neg_w |  jsr  math.mul_word_${amount.absoluteValue}")
-                                    return
-                                }
-                            }
-                            else -> {}
-                        }
-                    }
+                if(value!=null && rightDt in IntegerDatatypes) {
+                    val amount = value.number.toInt()
+                    if(amount in powersOfTwo)
+                        printWarning("${expr.right.position} multiplication by power of 2 should have been optimized into a left shift instruction: $amount")
+                    if(asmgen.translateConstantMultiplication(expr.left, rightDt, amount))
+                        return
+                }
+            }
+            "/", "%" -> {
+                val value = expr.right.constValue(program)
+                if(value!=null && leftDt==DataType.UBYTE && rightDt==DataType.UBYTE) {
+                    if(asmgen.translateConstantDivision(expr.left, value.number.toInt(), expr.operator=="%"))
+                        return
                 }
             }
         }
@@ -302,9 +268,9 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
                 when(type) {
                     in ByteDatatypes ->
                         asmgen.out("""
-                            lda  $ESTACK_LO_PLUS1_HEX,x
+                            lda  ${estack.loPlus1Hex},x
                             eor  #255
-                            sta  $ESTACK_LO_PLUS1_HEX,x
+                            sta  ${estack.loPlus1Hex},x
                             """)
                     in WordDatatypes -> asmgen.out("  jsr  prog8_lib.inv_word")
                     else -> throw AssemblyError("weird type")
@@ -331,10 +297,10 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
             val indexValue = index.number.toInt() * elementDt.memorySize()
             when(elementDt) {
                 in ByteDatatypes -> {
-                    asmgen.out("  lda  $arrayVarName+$indexValue |  sta  $ESTACK_LO_HEX,x |  dex")
+                    asmgen.out("  lda  $arrayVarName+$indexValue |  sta  ${estack.loHex},x |  dex")
                 }
                 in WordDatatypes -> {
-                    asmgen.out("  lda  $arrayVarName+$indexValue |  sta  $ESTACK_LO_HEX,x |  lda  $arrayVarName+$indexValue+1 |  sta  $ESTACK_HI_HEX,x |  dex")
+                    asmgen.out("  lda  $arrayVarName+$indexValue |  sta  ${estack.loHex},x |  lda  $arrayVarName+$indexValue+1 |  sta  ${estack.hiHex},x |  dex")
                 }
                 DataType.FLOAT -> {
                     asmgen.out("  lda  #<$arrayVarName+$indexValue |  ldy  #>$arrayVarName+$indexValue |  jsr  c64flt.push_float")
@@ -358,18 +324,18 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
                 asmgen.out("  jsr prog8_lib.remainder_ub")
             }
             "+" -> asmgen.out("""
-                lda  $ESTACK_LO_PLUS2_HEX,x
+                lda  ${estack.loPlus2Hex},x
                 clc
-                adc  $ESTACK_LO_PLUS1_HEX,x
+                adc  ${estack.loPlus1Hex},x
                 inx
-                sta  $ESTACK_LO_PLUS1_HEX,x
+                sta  ${estack.loPlus1Hex},x
                 """)
             "-" -> asmgen.out("""
-                lda  $ESTACK_LO_PLUS2_HEX,x
+                lda  ${estack.loPlus2Hex},x
                 sec
-                sbc  $ESTACK_LO_PLUS1_HEX,x
+                sbc  ${estack.loPlus1Hex},x
                 inx
-                sta  $ESTACK_LO_PLUS1_HEX,x
+                sta  ${estack.loPlus1Hex},x
                 """)
             "<<", ">>" -> throw AssemblyError("bit-shifts not via stack")
             "<" -> asmgen.out(if(types==DataType.UBYTE) "  jsr  prog8_lib.less_ub" else "  jsr  prog8_lib.less_b")
@@ -435,4 +401,326 @@ internal class ExpressionsAsmGen(private val program: Program, private val asmge
             else -> throw AssemblyError("invalid operator $operator")
         }
     }
+
+    // Expressions on bytes that only have constants, variables, memory bytes and array elements as operands
+    // are evaluated directly in the A register instead of via the evaluation stack.
+    // Word expressions like that are evaluated directly in the target variable.
+    // Deeper expressions, and the other operators, still use the evaluation stack.
+
+    private class ByteOperand(val operand: String, val loadIndex: String? = null)
+
+    private class WordOperand(val lsb: String, val msb: String)
+
+    private val directByteOperators = setOf("+", "-", "&", "|", "^", "<<", ">>")
+    private val directWordOperators = setOf("+", "-", "&", "|", "^")
+    private val commutativeOperators = setOf("+", "&", "|", "^")
+
+    private fun byteOperand(expr: Expression): ByteOperand? {
+        return when(expr) {
+            is NumericLiteralValue ->
+                if(expr.type in ByteDatatypes) ByteOperand("#${expr.number.toHex()}") else null
+            is IdentifierReference ->
+                if(expr.inferType(program).typeOrElse(DataType.STRUCT) in ByteDatatypes) ByteOperand(asmgen.asmIdentifierName(expr)) else null
+            is DirectMemoryRead -> {
+                when(val address = expr.addressExpression) {
+                    is NumericLiteralValue -> ByteOperand(address.number.toInt().toHex())
+                    is IdentifierReference ->
+                        if(asmgen.isZeropageVariable(address)) ByteOperand("(${asmgen.asmIdentifierName(address)}),y", "ldy  #0") else null
+                    else -> null
+                }
+            }
+            is ArrayIndexedExpression -> {
+                val arrayDt = expr.identifier.targetVarDecl(program.namespace)!!.datatype
+                if(arrayDt !in StringDatatypes && arrayDt!=DataType.ARRAY_UB && arrayDt!=DataType.ARRAY_B)
+                    return null
+                val arrayVarName = asmgen.asmIdentifierName(expr.identifier)
+                when(val index = expr.arrayspec.index) {
+                    is NumericLiteralValue -> ByteOperand("$arrayVarName+${index.number.toInt()}")
+                    is IdentifierReference -> {
+                        if(index.inferType(program).typeOrElse(DataType.STRUCT)==DataType.UBYTE)
+                            ByteOperand("$arrayVarName,y", "ldy  ${asmgen.asmIdentifierName(index)}")
+                        else null
+                    }
+                    else -> null
+                }
+            }
+            is TypecastExpression ->
+                if(expr.type in ByteDatatypes && expr.expression.inferType(program).typeOrElse(DataType.STRUCT) in ByteDatatypes)
+                    byteOperand(expr.expression)
+                else null
+            else -> null
+        }
+    }
+
+    private fun isByteBinaryExpression(expr: BinaryExpression): Boolean {
+        if(expr.operator !in directByteOperators)
+            return false
+        val leftDt = expr.left.inferType(program).typeOrElse(DataType.STRUCT)
+        if(expr.operator=="<<" || expr.operator==">>")
+            return leftDt in ByteDatatypes && expr.right.constValue(program)!=null
+        return leftDt in ByteDatatypes && leftDt==expr.right.inferType(program).typeOrElse(DataType.STRUCT)
+    }
+
+    /**
+     * Can the byte expression be evaluated into A without using the evaluation stack?
+     * Only one subexpression can need the A register, the other operands are used directly as the operand
+     * of the instruction. The subexpression in A is evaluated first, so that any register that the expression
+     * reads is still unchanged at that point.
+     */
+    internal fun canEvaluateIntoA(expr: Expression): Boolean {
+        return when(expr) {
+            is RegisterExpr -> expr.register!=Register.X
+            is PrefixExpression ->
+                expr.operator in setOf("+", "-", "~") &&
+                        expr.inferType(program).typeOrElse(DataType.STRUCT) in ByteDatatypes && canEvaluateIntoA(expr.expression)
+            is BinaryExpression -> {
+                when {
+                    !isByteBinaryExpression(expr) -> false
+                    expr.operator=="<<" || expr.operator==">>" -> canEvaluateIntoA(expr.left)
+                    byteOperand(expr.right)!=null -> canEvaluateIntoA(expr.left)
+                    byteOperand(expr.left)!=null -> canEvaluateIntoA(expr.right)
+                    else -> false
+                }
+            }
+            is TypecastExpression ->
+                if(expr.type in ByteDatatypes && expr.expression.inferType(program).typeOrElse(DataType.STRUCT) in ByteDatatypes)
+                    canEvaluateIntoA(expr.expression)
+                else false
+            else -> byteOperand(expr)!=null
+        }
+    }
+
+    internal fun translateExpressionIntoA(expr: Expression) {
+        val operand = byteOperand(expr)
+        if(operand!=null) {
+            if(operand.loadIndex!=null)
+                asmgen.out("  ${operand.loadIndex}")
+            asmgen.out("  lda  ${operand.operand}")
+            return
+        }
+        when(expr) {
+            is RegisterExpr -> {
+                when(expr.register) {
+                    Register.A -> {}
+                    Register.X -> throw AssemblyError("can't use X register here")
+                    Register.Y -> asmgen.out("  tya")
+                }
+            }
+            is PrefixExpression -> {
+                translateExpressionIntoA(expr.expression)
+                when(expr.operator) {
+                    "+" -> {}
+                    "-" -> asmgen.out("  eor  #255 |  clc |  adc  #1")
+                    "~" -> asmgen.out("  eor  #255")
+                    else -> throw AssemblyError("invalid prefix operator ${expr.operator}")
+                }
+            }
+            is TypecastExpression -> translateExpressionIntoA(expr.expression)
+            is BinaryExpression -> translateBinaryExpressionIntoA(expr)
+            else -> throw AssemblyError("can't evaluate $expr into A")
+        }
+    }
+
+    /**
+     * Evaluates the byte expression into A, through the evaluation stack if it can't be done directly.
+     */
+    internal fun translateByteIntoA(expr: Expression) {
+        when {
+            canEvaluateIntoA(expr) -> translateExpressionIntoA(expr)
+            expr is FunctionCall && asmgen.fastcall(expr)?.returnvalue==RegisterOrPair.A -> asmgen.translateFunctionCall(expr)
+            else -> {
+                translateExpression(expr)
+                asmgen.out("  inx |  lda  ${estack.loHex},x")
+            }
+        }
+    }
+
+    /**
+     * Evaluates the word expression into A (lsb) and Y (msb), through the evaluation stack if it can't be done directly.
+     */
+    internal fun translateWordIntoAY(expr: Expression) {
+        val operand = wordOperand(expr)
+        when {
+            operand!=null -> asmgen.out("  lda  ${operand.lsb} |  ldy  ${operand.msb}")
+            expr is FunctionCall && asmgen.fastcall(expr)?.returnvalue==RegisterOrPair.AY -> asmgen.translateFunctionCall(expr)
+            else -> {
+                translateExpression(expr)
+                asmgen.out("  inx |  lda  ${estack.loHex},x |  ldy  ${estack.hiHex},x")
+            }
+        }
+    }
+
+    /**
+     * The operand to load the byte value of the expression with, if that doesn't need an index register.
+     */
+    internal fun simpleByteOperand(expr: Expression): String? {
+        val operand = byteOperand(expr)
+        return if(operand!=null && operand.loadIndex==null) operand.operand else null
+    }
+
+    private fun translateBinaryExpressionIntoA(expr: BinaryExpression) {
+        val leftDt = expr.left.inferType(program).typeOrElse(DataType.STRUCT)
+        when(expr.operator) {
+            "<<" -> {
+                translateExpressionIntoA(expr.left)
+                repeat(expr.right.constValue(program)!!.number.toInt()) { asmgen.out("  asl  a") }
+                return
+            }
+            ">>" -> {
+                translateExpressionIntoA(expr.left)
+                repeat(expr.right.constValue(program)!!.number.toInt()) {
+                    if(leftDt==DataType.BYTE)
+                        asmgen.out("  cmp  #$80 |  ror  a")
+                    else
+                        asmgen.out("  lsr  a")
+                }
+                return
+            }
+        }
+
+        val rightOperand = byteOperand(expr.right)
+        val operand: ByteOperand
+        if(rightOperand!=null && canEvaluateIntoA(expr.left)) {
+            translateExpressionIntoA(expr.left)
+            operand = rightOperand
+        } else if(expr.operator=="-") {
+            // the left operand is subtracted from, so the right side has to be put in a scratch register
+            translateExpressionIntoA(expr.right)
+            asmgen.out("  sta  ${C64Zeropage.SCRATCH_B1}")
+            translateExpressionIntoA(expr.left)
+            operand = ByteOperand(C64Zeropage.SCRATCH_B1.toHex())
+        } else {
+            translateExpressionIntoA(expr.right)
+            operand = byteOperand(expr.left)!!
+        }
+        if(operand.loadIndex!=null)
+            asmgen.out("  ${operand.loadIndex}")
+        when(expr.operator) {
+            "+" -> asmgen.out("  clc |  adc  ${operand.operand}")
+            "-" -> asmgen.out("  sec |  sbc  ${operand.operand}")
+            "&" -> asmgen.out("  and  ${operand.operand}")
+            "|" -> asmgen.out("  ora  ${operand.operand}")
+            "^" -> asmgen.out("  eor  ${operand.operand}")
+            else -> throw AssemblyError("invalid operator ${expr.operator}")
+        }
+    }
+
+    private fun wordOperand(expr: Expression): WordOperand? {
+        return when(expr) {
+            is NumericLiteralValue ->
+                if(expr.type in WordDatatypes) WordOperand("#<${expr.number.toHex()}", "#>${expr.number.toHex()}") else null
+            is IdentifierReference -> {
+                val name = asmgen.asmIdentifierName(expr)
+                if(expr.inferType(program).typeOrElse(DataType.STRUCT) in WordDatatypes) WordOperand(name, "$name+1") else null
+            }
+            is AddressOf -> {
+                val name = asmgen.asmIdentifierName(expr.identifier)
+                WordOperand("#<$name", "#>$name")
+            }
+            is ArrayIndexedExpression -> {
+                val arrayDt = expr.identifier.targetVarDecl(program.namespace)!!.datatype
+                val index = expr.arrayspec.index
+                if((arrayDt==DataType.ARRAY_UW || arrayDt==DataType.ARRAY_W) && index is NumericLiteralValue) {
+                    val name = asmgen.asmIdentifierName(expr.identifier)
+                    val offset = index.number.toInt() * 2
+                    WordOperand("$name+$offset", "$name+$offset+1")
+                } else null
+            }
+            is TypecastExpression -> {
+                val sourceDt = expr.expression.inferType(program).typeOrElse(DataType.STRUCT)
+                when {
+                    expr.type !in WordDatatypes -> null
+                    sourceDt in WordDatatypes -> wordOperand(expr.expression)
+                    sourceDt==DataType.UBYTE -> {
+                        val operand = byteOperand(expr.expression)
+                        if(operand!=null && operand.loadIndex==null) WordOperand(operand.operand, "#0") else null
+                    }
+                    else -> null
+                }
+            }
+            else -> null
+        }
+    }
+
+    /**
+     * Can the word expression be evaluated directly into the target variable without using the evaluation stack?
+     * The left operand can be a nested expression, which is then evaluated into the target variable first.
+     * That is only possible if the right operand isn't the target variable itself.
+     */
+    internal fun canEvaluateIntoWordVariable(expr: Expression, targetName: String): Boolean {
+        if(wordOperand(expr)!=null)
+            return true
+        if(expr !is BinaryExpression || expr.operator !in directWordOperators)
+            return false
+        val leftDt = expr.left.inferType(program).typeOrElse(DataType.STRUCT)
+        val rightDt = expr.right.inferType(program).typeOrElse(DataType.STRUCT)
+        if(leftDt !in WordDatatypes || rightDt !in WordDatatypes)
+            return false
+        val leftOperand = wordOperand(expr.left)
+        val rightOperand = wordOperand(expr.right)
+        return when {
+            leftOperand!=null && rightOperand!=null -> true
+            rightOperand!=null -> rightOperand.lsb!=targetName && canEvaluateIntoWordVariable(expr.left, targetName)
+            leftOperand!=null && expr.operator in commutativeOperators ->
+                leftOperand.lsb!=targetName && canEvaluateIntoWordVariable(expr.right, targetName)
+            else -> false
+        }
+    }
+
+    internal fun translateExpressionIntoWordVariable(expr: Expression, targetName: String) {
+        val operand = wordOperand(expr)
+        if(operand!=null) {
+            asmgen.out("  lda  ${operand.lsb} |  sta  $targetName |  lda  ${operand.msb} |  sta  $targetName+1")
+            return
+        }
+        expr as BinaryExpression
+        var left = wordOperand(expr.left)
+        var right = wordOperand(expr.right)
+        if(left==null) {
+            translateExpressionIntoWordVariable(expr.left, targetName)
+            left = WordOperand(targetName, "$targetName+1")
+        } else if(right==null) {
+            translateExpressionIntoWordVariable(expr.right, targetName)
+            right = left
+            left = WordOperand(targetName, "$targetName+1")
+        }
+        // the lsb of the target is written before the msb of the operands is read,
+        // that's fine because the lsb's are never needed again at that point
+        when(expr.operator) {
+            "+" -> asmgen.out("""
+                lda  ${left.lsb}
+                clc
+                adc  ${right!!.lsb}
+                sta  $targetName
+                lda  ${left.msb}
+                adc  ${right.msb}
+                sta  $targetName+1
+                """)
+            "-" -> asmgen.out("""
+                lda  ${left.lsb}
+                sec
+                sbc  ${right!!.lsb}
+                sta  $targetName
+                lda  ${left.msb}
+                sbc  ${right.msb}
+                sta  $targetName+1
+                """)
+            "&", "|", "^" -> {
+                val instruction = when(expr.operator) {
+                    "&" -> "and"
+                    "|" -> "ora"
+                    else -> "eor"
+                }
+                asmgen.out("""
+                lda  ${left.lsb}
+                $instruction  ${right!!.lsb}
+                sta  $targetName
+                lda  ${left.msb}
+                $instruction  ${right.msb}
+                sta  $targetName+1
+                """)
+            }
+            else -> throw AssemblyError("invalid operator ${expr.operator}")
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.ast.IFunctionCall
+import prog8.ast.Program
+import prog8.ast.base.ByteDatatypes
+import prog8.ast.base.DataType
+import prog8.ast.base.RegisterOrPair
+import prog8.ast.base.WordDatatypes
+import prog8.ast.expressions.IdentifierReference
+import prog8.ast.processing.IAstVisitor
+import prog8.ast.statements.InlineAssembly
+import prog8.ast.statements.Subroutine
+import prog8.optimizer.CallGraph
+
+
+/**
+ * The registers that a subroutine gets its arguments in, and returns its result value in.
+ */
+internal class Fastcall(val parameters: List<RegisterOrPair>, val returnvalue: RegisterOrPair?)
+
+
+/**
+ * Register calling convention for normal subroutines.
+ *
+ * A subroutine with one or two byte parameters gets them in A and Y, and one with a single word parameter gets it in AY.
+ * A byte result value is returned in A and a word result value in AY, instead of on the evaluation stack.
+ * The caller loads the registers directly, and the subroutine stores them in its parameter variables when it starts.
+ * (X can't be used, it holds the evaluation stack pointer.)
+ *
+ * That's only possible for subroutines that are always called from prog8 code: not the entrypoint or the irq handler,
+ * and not the subroutines whose address is taken, that are the target of a goto, or that are referenced by assembly code
+ * (inline, or in an %asminclude file).
+ */
+internal class FastcallConvention(private val program: Program) {
+
+    private val fastcalls = mutableMapOf<Subroutine, Fastcall>()
+
+    init {
+        val excluded = mutableSetOf<Subroutine>()
+        val scanner = object : IAstVisitor {
+            private val asmSymbolRx = Regex("""(?<![\w$.])[a-zA-Z_][\w.]*""")
+
+            override fun visit(identifier: IdentifierReference) {
+                val target = identifier.targetSubroutine(program.namespace)
+                val parent = identifier.parent
+                if(target!=null && !(parent is IFunctionCall && parent.target===identifier))
+                    excluded.add(target)
+            }
+
+            override fun visit(inlineAssembly: InlineAssembly) {
+                val module = inlineAssembly.definingModule()
+                for(line in inlineAssembly.assembly.lines()) {
+                    for(symbol in asmSymbolRx.findAll(line.substringBefore(';'))) {
+                        val target = module.lookup(symbol.value.trimEnd('.').split('.'), inlineAssembly)
+                        if(target is Subroutine)
+                            excluded.add(target)
+                    }
+                }
+            }
+        }
+        scanner.visit(program)
+
+        val callGraph = CallGraph(program)
+        val subroutines = mutableListOf<Subroutine>()
+        program.modules.forEach { module -> callGraph.forAllSubroutines(module) { subroutines.add(it) } }
+        for(sub in subroutines) {
+            if(sub.isAsmSubroutine || sub in excluded || sub === program.entrypoint()
+                    || sub.definingModule().isLibraryModule || sub.definingBlock().name=="irq")
+                continue
+            // the call graph also knows the callers in %asminclude files, those are recorded as the Directive
+            if(sub.calledBy.any { it !is IFunctionCall })
+                continue
+            val parameters = parameterRegisters(sub.parameters.map { it.type }) ?: continue
+            val returnvalue = when(sub.returntypes.singleOrNull()) {
+                null -> if(sub.returntypes.isEmpty()) null else continue
+                in ByteDatatypes -> RegisterOrPair.A
+                in WordDatatypes -> RegisterOrPair.AY
+                else -> continue
+            }
+            if(parameters.isNotEmpty() || returnvalue!=null)
+                fastcalls[sub] = Fastcall(parameters, returnvalue)
+        }
+    }
+
+    fun of(sub: Subroutine): Fastcall? = fastcalls[sub]
+
+    private fun parameterRegisters(types: List<DataType>): List<RegisterOrPair>? {
+        return when {
+            types.isEmpty() -> emptyList()
+            types.size==1 && types[0] in WordDatatypes -> listOf(RegisterOrPair.AY)
+            types.size<=2 && types.all { it in ByteDatatypes } -> listOf(RegisterOrPair.A, RegisterOrPair.Y).take(types.size)
+            else -> null
+        }
+    }
+}
@@ -8,9 +8,6 @@ import prog8.ast.expressions.RangeExpr
 import prog8.ast.statements.AssignTarget
 import prog8.ast.statements.Assignment
 import prog8.ast.statements.ForLoop
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_PLUS1_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_PLUS1_HEX
 import prog8.compiler.toHex
 import prog8.compiler.AssemblyError
 import kotlin.math.absoluteValue
@@ -21,6 +18,8 @@ import kotlin.math.absoluteValue
 
 internal class ForLoopsAsmGen(private val program: Program, private val asmgen: AsmGen) {
 
+    private val estack = asmgen.estack
+
     internal fun translate(stmt: ForLoop) {
         val iterableDt = stmt.iterable.inferType(program)
         if(!iterableDt.isKnown)
@@ -63,13 +62,13 @@ internal class ForLoopsAsmGen(private val program: Program, private val asmgen:
                         asmgen.translateExpression(range.from)
                         asmgen.out("""
                 inx
-                lda  ${ESTACK_LO_HEX},x
+                lda  ${estack.loHex},x
                 sta  $loopLabel+1
 $loopLabel      lda  #0                 ; modified""")
                         asmgen.translate(stmt.body)
                         asmgen.out("""
 $continueLabel  lda  $loopLabel+1
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 beq  $endLabel
                 $incdec  $loopLabel+1
                 jmp  $loopLabel
@@ -81,13 +80,13 @@ $endLabel       inx""")
                         asmgen.translateExpression(range.from)
                         asmgen.out("""
                 inx
-                lda  ${ESTACK_LO_HEX},x
+                lda  ${estack.loHex},x
                 sta  $varname
 $loopLabel""")
                         asmgen.translate(stmt.body)
                         asmgen.out("""
 $continueLabel  lda  $varname
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 beq  $endLabel
                 $incdec  $varname
                 jmp  $loopLabel
@@ -106,7 +105,7 @@ $endLabel       inx""")
                         asmgen.translateExpression(range.from)
                         asmgen.out("""
                 inx
-                lda  ${ESTACK_LO_HEX},x
+                lda  ${estack.loHex},x
                 sta  $loopLabel+1
 $loopLabel      lda  #0                 ; modified""")
                         asmgen.translate(stmt.body)
@@ -117,7 +116,7 @@ $continueLabel  lda  $loopLabel+1""")
                 clc
                 adc  #$stepsize
                 sta  $loopLabel+1
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 bcc  $loopLabel
                 beq  $loopLabel""")
                         } else {
@@ -125,7 +124,7 @@ $continueLabel  lda  $loopLabel+1""")
                 sec
                 sbc  #${stepsize.absoluteValue}
                 sta  $loopLabel+1
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 bcs  $loopLabel""")
                         }
                         asmgen.out("""
@@ -137,7 +136,7 @@ $endLabel       inx""")
                         asmgen.translateExpression(range.from)
                         asmgen.out("""
                 inx
-                lda  ${ESTACK_LO_HEX},x
+                lda  ${estack.loHex},x
                 sta  $varname
 $loopLabel""")
                         asmgen.translate(stmt.body)
@@ -148,7 +147,7 @@ $continueLabel  lda  $varname""")
                 clc
                 adc  #$stepsize
                 sta  $varname
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 bcc  $loopLabel
                 beq  $loopLabel""")
                         } else {
@@ -156,7 +155,7 @@ $continueLabel  lda  $varname""")
                 sec
                 sbc  #${stepsize.absoluteValue}
                 sta  $varname
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 bcs  $loopLabel""")
                         }
                         asmgen.out("""
@@ -180,10 +179,10 @@ $endLabel       inx""")
                         asmgen.translate(stmt.body)
                         asmgen.out("""
                 lda  $varname+1
-                cmp  $ESTACK_HI_PLUS1_HEX,x
+                cmp  ${estack.hiPlus1Hex},x
                 bne  +
                 lda  $varname
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 beq  $endLabel""")
                         if(stepsize==1) {
                             asmgen.out("""
@@ -224,12 +223,12 @@ $endLabel       inx""")
                 lda  $varname+1
                 adc  #>$stepsize
                 sta  $varname+1
-                lda  $ESTACK_HI_PLUS1_HEX,x
+                lda  ${estack.hiPlus1Hex},x
                 cmp  $varname+1
                 bcc  $endLabel
                 bne  $loopLabel
                 lda  $varname
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 bcc  $endLabel
                 bcs  $loopLabel
 $endLabel       inx""")
@@ -242,9 +241,9 @@ $endLabel       inx""")
                 lda  $varname+1
                 adc  #>$stepsize
                 sta  $varname+1
-                lda  $ESTACK_LO_PLUS1_HEX,x
+                lda  ${estack.loPlus1Hex},x
                 cmp  $varname
-                lda  $ESTACK_HI_PLUS1_HEX,x
+                lda  ${estack.hiPlus1Hex},x
                 sbc  $varname+1
                 bvc  +
                 eor  #$80
@@ -273,11 +272,11 @@ $endLabel       inx""")
                 lda  $varname+1
                 sbc  #>${stepsize.absoluteValue}
                 sta  $varname+1
-                cmp  $ESTACK_HI_PLUS1_HEX,x
+                cmp  ${estack.hiPlus1Hex},x
                 bcc  $endLabel
                 bne  $loopLabel
                 lda  $varname
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 bcs  $loopLabel
 $endLabel       inx""")
                         } else {
@@ -291,9 +290,9 @@ $endLabel       inx""")
                 sbc  #>${stepsize.absoluteValue}
                 sta  $varname+1
                 pla
-                cmp  $ESTACK_LO_PLUS1_HEX,x
+                cmp  ${estack.loPlus1Hex},x
                 lda  $varname+1
-                sbc  $ESTACK_HI_PLUS1_HEX,x
+                sbc  ${estack.hiPlus1Hex},x
                 bvc  +
                 eor  #$80
 +               bpl  $loopLabel                
@@ -0,0 +1,278 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.ast.IFunctionCall
+import prog8.ast.Node
+import prog8.ast.Program
+import prog8.ast.base.ArrayElementTypes
+import prog8.ast.base.DataType
+import prog8.ast.base.NumericDatatypes
+import prog8.ast.base.StringDatatypes
+import prog8.ast.base.VarDeclType
+import prog8.ast.expressions.AddressOf
+import prog8.ast.expressions.FunctionCall
+import prog8.ast.expressions.IdentifierReference
+import prog8.ast.processing.IAstVisitor
+import prog8.ast.statements.*
+import prog8.compiler.Zeropage
+import prog8.compiler.ZeropageDepletedError
+import prog8.optimizer.CallGraph
+import java.util.*
+
+
+/**
+ * Where an overlaid variable is stored: an address in the zeropage,
+ * or an offset in the memory area that holds the overlaid frames.
+ */
+internal class FrameSlot(val address: Int, val inZeropage: Boolean)
+
+
+/**
+ * Static frame allocation for the variables of subroutines.
+ *
+ * Subroutines are never recursive, so the variables of subroutines that can never be active at the same time
+ * can share the same zeropage locations and memory.  Subroutines can be active together when one of them
+ * (indirectly) calls the other, or when one is called to calculate an argument for the other:
+ * the arguments are stored in the parameter variables one by one.
+ *
+ * Only variables that get a new value on every call before they're used are overlaid:
+ * the parameters, and the local variables whose first use is an assignment (or for loop)
+ * at the top level of the subroutine.
+ * Subroutines that can be invoked in ways the call graph doesn't know about (the irq handler,
+ * subroutines whose address is taken), and everything they call, keep their own variables.
+ */
+internal class FrameAllocator(private val program: Program, private val zeropage: Zeropage) {
+
+    private class Placement(val sub: Subroutine, val slot: FrameSlot, val size: Int) {
+        fun addresses() = slot.address until slot.address+size
+    }
+
+    private val calls = mutableMapOf<Subroutine, MutableSet<Subroutine>>()
+    private val unknownCallers = mutableSetOf<Subroutine>()
+    private val argumentCalls = mutableListOf<Pair<Subroutine, Subroutine>>()    // a subroutine, and one that's called in its arguments
+    private val references = mutableMapOf<VarDecl, MutableList<Node>>()          // identifiers and inline assembly that use a variable
+    private val addressTaken = mutableSetOf<VarDecl>()
+    private val jumps = mutableListOf<Statement>()                               // gotos, and inline assembly that refers to a label
+    private val liveTogether = mutableMapOf<Subroutine, MutableSet<Subroutine>>()
+    private val overlaid = mutableSetOf<VarDecl>()
+
+    private val placements = mutableListOf<Placement>()
+    private val zeropagePool = TreeSet<Int>()
+    var frameMemorySize = 0
+        private set
+    var overlaidVariablesSize = 0
+        private set
+    val zeropageSize: Int
+        get() = zeropagePool.size
+
+    init {
+        val callGraph = CallGraph(program)
+        ReferenceScanner().visit(program)
+
+        val subroutines = mutableListOf<Subroutine>()
+        program.modules.forEach { module -> callGraph.forAllSubroutines(module) { subroutines.add(it) } }
+        for((scope, callees) in callGraph.subroutinesCalling) {
+            val caller = scope as? Subroutine ?: (scope as? Statement)?.definingSubroutine()
+            if(caller==null)
+                unknownCallers.addAll(callees)
+            else
+                calls.getOrPut(caller) { mutableSetOf() }.addAll(callees)
+        }
+
+        val reachable = subroutines.associateWith { reachableFrom(it) }
+        val roots = unknownCallers +
+                subroutines.filter { it.definingBlock().name=="irq" || it in reachable.getValue(it) }
+        val ownVariables = roots + roots.flatMap { reachable.getValue(it) }
+
+        for(sub in subroutines)
+            liveTogether[sub] = mutableSetOf(sub)
+        for(sub in subroutines) {
+            for(other in reachable.getValue(sub)) {
+                liveTogether.getValue(sub).add(other)
+                liveTogether.getValue(other).add(sub)
+            }
+        }
+        for((sub, called) in argumentCalls) {
+            for(other in reachable.getValue(called) + called) {
+                liveTogether.getValue(sub).add(other)
+                liveTogether.getValue(other).add(sub)
+            }
+        }
+
+        for(sub in subroutines) {
+            if(sub.isAsmSubroutine || sub in ownVariables)
+                continue
+            sub.statements
+                    .filterIsInstance<VarDecl>()
+                    .filter { it.type==VarDeclType.VAR && it.datatype in NumericDatatypes && it.struct==null }
+                    .filter { isAssignedBeforeUse(it, sub) }
+                    .forEach { overlaid.add(it) }
+        }
+    }
+
+    fun canOverlay(decl: VarDecl) = decl in overlaid
+
+    /**
+     * Finds a place for the variable that isn't used by any subroutine that can be active together with its own.
+     * The zeropage locations that were allocated for overlaid variables earlier are tried first,
+     * then a new zeropage location, and finally the frames memory area.
+     */
+    fun allocate(decl: VarDecl, preferZeropage: Boolean): FrameSlot {
+        val sub = decl.definingSubroutine()!!
+        val size = decl.datatype.memorySize()
+        val others = liveTogether.getValue(sub)
+        val used = placements.filter { it.sub in others }
+        overlaidVariablesSize += size
+
+        if(preferZeropage) {
+            val taken = used.filter { it.slot.inZeropage }.flatMap { it.addresses() }.toSet()
+            var address = zeropagePool.firstOrNull { start -> (start until start+size).all { it in zeropagePool && it !in taken } }
+            if(address==null) {
+                try {
+                    address = zeropage.allocate(decl.scopedname, decl.datatype, decl.position)
+                    zeropagePool.addAll(address until address+size)
+                } catch (x: ZeropageDepletedError) {
+                    // it has to go in the frames memory area
+                }
+            }
+            if(address!=null)
+                return place(sub, FrameSlot(address, true), size)
+        }
+
+        val taken = used.filter { !it.slot.inZeropage }.flatMap { it.addresses() }.toSet()
+        var offset = 0
+        while((offset until offset+size).any { it in taken })
+            offset++
+        if(offset+size > frameMemorySize)
+            frameMemorySize = offset+size
+        return place(sub, FrameSlot(offset, false), size)
+    }
+
+    private fun place(sub: Subroutine, slot: FrameSlot, size: Int): FrameSlot {
+        placements.add(Placement(sub, slot, size))
+        return slot
+    }
+
+    private fun reachableFrom(sub: Subroutine): Set<Subroutine> {
+        val result = mutableSetOf<Subroutine>()
+        val todo = ArrayDeque<Subroutine>()
+        todo.addAll(calls[sub] ?: emptySet<Subroutine>())
+        while(todo.isNotEmpty()) {
+            val next = todo.pop()
+            if(result.add(next))
+                todo.addAll(calls[next] ?: emptySet<Subroutine>())
+        }
+        return result
+    }
+
+    private fun isAssignedBeforeUse(decl: VarDecl, sub: Subroutine): Boolean {
+        val refs = references[decl] ?: emptyList<Node>()
+        if(decl in addressTaken || refs.any { it.definingSubroutine()!==sub })
+            return false
+        if(sub.parameters.any { it.name==decl.name })
+            return true     // the caller always assigns all parameters
+        if(refs.isEmpty())
+            return true
+
+        val first = refs.map { topLevelIndex(it, sub) }.min()!!
+        if(jumps.any { it.definingSubroutine()===sub && topLevelIndex(it, sub) < first })
+            return false
+        val firstRefs = refs.filter { topLevelIndex(it, sub)==first }
+        return when(val stmt = sub.statements[first]) {
+            is Assignment -> stmt.aug_op==null && firstRefs.singleOrNull()===stmt.target.identifier
+            is ForLoop -> {
+                // a loop over a string can end before it assigns the loop variable,
+                // and a loop over bytes only assigns the lsb of a word loop variable.
+                val iterableDt = stmt.iterable.inferType(program).typeOrElse(DataType.STRUCT)
+                firstRefs.any { it===stmt.loopVar }
+                        && firstRefs.none { isInside(it, stmt.iterable) }
+                        && iterableDt !in StringDatatypes
+                        && ArrayElementTypes[iterableDt]==decl.datatype
+            }
+            else -> false
+        }
+    }
+
+    private fun topLevelIndex(node: Node, sub: Subroutine): Int {
+        var stmt = node
+        while(stmt.parent!==sub)
+            stmt = stmt.parent
+        return sub.statements.indexOfFirst { it===stmt }
+    }
+
+    private fun isInside(node: Node, ancestor: Node): Boolean {
+        var n = node
+        while(n !is Statement) {
+            if(n===ancestor)
+                return true
+            n = n.parent
+        }
+        return false
+    }
+
+    private inner class ReferenceScanner: IAstVisitor {
+        private val asmSymbolRx = Regex("""(?<![\w$.])[a-zA-Z_][\w.]*""")
+        private val asmJumpRx = Regex("""\b(jsr|jmp)\b""", RegexOption.IGNORE_CASE)
+
+        override fun visit(identifier: IdentifierReference) {
+            when(val target = identifier.targetStatement(program.namespace)) {
+                is VarDecl -> references.getOrPut(target) { mutableListOf() }.add(identifier)
+                is Subroutine -> {
+                    val parent = identifier.parent
+                    if(!(parent is IFunctionCall && parent.target===identifier) && !(parent is Jump && parent.identifier===identifier))
+                        unknownCallers.add(target)      // its address is taken
+                }
+                else -> {}
+            }
+        }
+
+        override fun visit(addressOf: AddressOf) {
+            (addressOf.identifier.targetStatement(program.namespace) as? VarDecl)?.let { addressTaken.add(it) }
+            super.visit(addressOf)
+        }
+
+        override fun visit(functionCall: FunctionCall) {
+            functionCall.target.targetSubroutine(program.namespace)?.let { called(it, functionCall) }
+            super.visit(functionCall)
+        }
+
+        override fun visit(functionCallStatement: FunctionCallStatement) {
+            functionCallStatement.target.targetSubroutine(program.namespace)?.let { called(it, functionCallStatement) }
+            super.visit(functionCallStatement)
+        }
+
+        override fun visit(jump: Jump) {
+            jumps.add(jump)
+            jump.identifier?.targetSubroutine(program.namespace)?.let { called(it, jump) }
+            super.visit(jump)
+        }
+
+        override fun visit(inlineAssembly: InlineAssembly) {
+            val module = inlineAssembly.definingModule()
+            for(line in inlineAssembly.assembly.lines()) {
+                val code = line.substringBefore(';')
+                val isJump = asmJumpRx.containsMatchIn(code)
+                for(symbol in asmSymbolRx.findAll(code)) {
+                    when(val target = module.lookup(symbol.value.trimEnd('.').split('.'), inlineAssembly)) {
+                        is VarDecl -> references.getOrPut(target) { mutableListOf() }.add(inlineAssembly)
+                        is Label -> jumps.add(inlineAssembly)
+                        is Subroutine -> if(!isJump) unknownCallers.add(target)
+                        else -> {}
+                    }
+                }
+            }
+        }
+
+        private fun called(sub: Subroutine, call: Node) {
+            if(call.definingSubroutine()==null)
+                unknownCallers.add(sub)
+            // the subroutines whose arguments are being calculated by this call
+            var child = call
+            while(child !is Statement) {
+                val parent = child.parent
+                if(parent is IFunctionCall && parent.arglist.any { it===child })
+                    parent.target.targetSubroutine(program.namespace)?.let { argumentCalls.add(Pair(it, sub)) }
+                child = parent
+            }
+        }
+    }
+}
@@ -9,12 +9,12 @@ import prog8.ast.statements.Subroutine
 import prog8.ast.statements.SubroutineParameter
 import prog8.compiler.toHex
 import prog8.compiler.AssemblyError
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_HEX
-import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_HEX
 
 
 internal class FunctionCallAsmGen(private val program: Program, private val asmgen: AsmGen) {
 
+    private val estack = asmgen.estack
+
     internal fun translateFunctionCall(stmt: IFunctionCall) {
         // output the code to setup the parameters and perform the actual call
         // does NOT output the code to deal with the result values!
@@ -23,7 +23,10 @@ internal class FunctionCallAsmGen(private val program: Program, private val asmg
             asmgen.out("  stx  c64.SCRATCH_ZPREGX")        // we only save X for now (required! is the eval stack pointer), screw A and Y...
 
         val subName = asmgen.asmIdentifierName(stmt.target)
-        if(stmt.arglist.isNotEmpty()) {
+        val fastcall = asmgen.fastcall(sub)
+        if(fastcall!=null) {
+            translateRegisterArguments(fastcall.parameters, stmt.arglist)
+        } else if(stmt.arglist.isNotEmpty()) {
             for(arg in sub.parameters.withIndex().zip(stmt.arglist)) {
                 translateFuncArguments(arg.first, arg.second, sub)
             }
@@ -34,6 +37,35 @@ internal class FunctionCallAsmGen(private val program: Program, private val asmg
             asmgen.out("  ldx  c64.SCRATCH_ZPREGX")        // restore X again
     }
 
+    private fun translateRegisterArguments(registers: List<RegisterOrPair>, arguments: List<Expression>) {
+        // all arguments are evaluated before the registers are loaded, because that can change A and Y
+        when(registers) {
+            emptyList<RegisterOrPair>() -> {}
+            listOf(RegisterOrPair.A) -> asmgen.translateByteIntoA(arguments[0])
+            listOf(RegisterOrPair.AY) -> asmgen.translateWordIntoAY(arguments[0])
+            listOf(RegisterOrPair.A, RegisterOrPair.Y) -> {
+                val first = asmgen.simpleByteOperand(arguments[0])
+                val second = asmgen.simpleByteOperand(arguments[1])
+                when {
+                    second!=null -> {
+                        asmgen.translateByteIntoA(arguments[0])
+                        asmgen.out("  ldy  $second")
+                    }
+                    first!=null -> {
+                        asmgen.translateByteIntoA(arguments[1])
+                        asmgen.out("  tay |  lda  $first")
+                    }
+                    else -> {
+                        asmgen.translateExpression(arguments[0])
+                        asmgen.translateByteIntoA(arguments[1])
+                        asmgen.out("  tay |  inx |  lda  ${estack.loHex},x")
+                    }
+                }
+            }
+            else -> throw AssemblyError("invalid parameter registers $registers")
+        }
+    }
+
     private fun translateFuncArguments(parameter: IndexedValue<SubroutineParameter>, value: Expression, sub: Subroutine) {
         val sourceIDt = value.inferType(program)
         if(!sourceIDt.isKnown)
@@ -142,7 +174,7 @@ internal class FunctionCallAsmGen(private val program: Program, private val asmg
                                 asmgen.translateExpression(value)
                                 asmgen.out("""
             inx                        
-            lda  $ESTACK_LO_HEX,x
+            lda  ${estack.loHex},x
             beq  +
             sec  
             bcs  ++
@@ -169,9 +201,9 @@ internal class FunctionCallAsmGen(private val program: Program, private val asmg
                         else -> {
                             asmgen.translateExpression(value)
                             when(register) {
-                                RegisterOrPair.A -> asmgen.out("  inx | lda  $ESTACK_LO_HEX,x")
+                                RegisterOrPair.A -> asmgen.out("  inx | lda  ${estack.loHex},x")
                                 RegisterOrPair.X -> throw AssemblyError("can't pop into X register - use a variable instead")
-                                RegisterOrPair.Y -> asmgen.out("  inx | ldy  $ESTACK_LO_HEX,x")
+                                RegisterOrPair.Y -> asmgen.out("  inx | ldy  ${estack.loHex},x")
                                 else -> throw AssemblyError("cannot assign to register pair")
                             }
                         }
@@ -214,7 +246,7 @@ internal class FunctionCallAsmGen(private val program: Program, private val asmg
                             if (register == RegisterOrPair.AX || register == RegisterOrPair.XY)
                                 throw AssemblyError("can't use X register here - use a variable")
                             else if (register == RegisterOrPair.AY)
-                                asmgen.out("  inx |  lda  $ESTACK_LO_HEX,x  |  ldy  $ESTACK_HI_HEX,x")
+                                asmgen.out("  inx |  lda  ${estack.loHex},x  |  ldy  ${estack.hiHex},x")
                         }
                     }
                 }
@@ -0,0 +1,96 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.compiler.target.c64.assembler.stripComment
+
+
+// A routine of an included assembly library: a top level  name .proc ... .pend  with the comments above it.
+// Other top level lines are kept as they are (name = null).
+private class LibraryUnit(val name: String?, val lines: List<String>)
+
+private val procStart = Regex("""^([A-Za-z_][A-Za-z0-9_]*)\s+\.proc\b""")
+private val scopeStart = Regex("""\s\.(proc|block)\b""")
+private val scopeEnd = Regex("""^\s*\.(pend|bend)\b""")
+private val word = Regex("""[A-Za-z_][A-Za-z0-9_]*""")
+
+
+/**
+ * Leaves the routines of the included assembly libraries (prog8lib.asm, math.asm) out of the program,
+ * if they're not referenced by the generated code, or by other library routines that are used.
+ * [includes] are the positions in [lines] where the library sources were included (as one multi-line string each).
+ * A routine counts as referenced when its name appears anywhere as a word, so this errs on the side of keeping code.
+ * Returns the number of routines that were left out.
+ */
+internal fun removeUnusedLibraryRoutines(lines: MutableList<AsmLine>, includes: List<Int>): Int {
+    val includeUnits = includes.associateWith { splitLibraryUnits(lines[it].toString()) }
+    val routines = includeUnits.values.flatten().filter { it.name!=null }.groupBy { it.name!! }
+
+    val used = mutableSetOf<String>()
+    val toScan = mutableListOf<String>()
+    fun scan(text: String) {
+        // note: inline assembly is a single multi-line entry in the assembly lines
+        for(line in text.lines()) {
+            for(match in word.findAll(stripComment(line))) {
+                val name = match.value
+                if(name in routines && used.add(name))
+                    routines.getValue(name).forEach { unit -> toScan.addAll(unit.lines) }
+            }
+        }
+    }
+
+    lines.withIndex().filter { it.index !in includeUnits }.forEach { scan(it.value.toString()) }
+    includeUnits.values.flatten().filter { it.name==null }.forEach { unit -> unit.lines.forEach { scan(it) } }
+    while(toScan.isNotEmpty())
+        scan(toScan.removeAt(toScan.size-1))
+
+    var removed = 0
+    for((index, units) in includeUnits) {
+        val kept = units.filter { it.name==null || it.name in used }
+        removed += units.size - kept.size
+        lines[index] = AsmText(kept.flatMap { it.lines }.joinToString("\n"))
+    }
+    return removed
+}
+
+
+private fun splitLibraryUnits(source: String): List<LibraryUnit> {
+    val units = mutableListOf<LibraryUnit>()
+    var pending = mutableListOf<String>()      // comments and empty lines, they go with the routine that follows
+    var current: MutableList<String>? = null
+    var currentName: String? = null
+    var depth = 0
+    for(line in source.lines()) {
+        if(current==null) {
+            val start = procStart.find(line)
+            if(start==null) {
+                pending.add(line)
+                if(stripComment(line).isNotBlank()) {
+                    units.add(LibraryUnit(null, pending))
+                    pending = mutableListOf()
+                }
+                continue
+            }
+            current = pending
+            currentName = start.groupValues[1]
+            pending = mutableListOf()
+            current.add(line)
+            depth = 1
+            continue
+        }
+        current.add(line)
+        val code = stripComment(line)
+        if(scopeStart.containsMatchIn(code))
+            depth++
+        else if(scopeEnd.containsMatchIn(code))
+            depth--
+        if(depth==0) {
+            units.add(LibraryUnit(currentName, current))
+            current = null
+        }
+    }
+    if(current!=null)
+        units.add(LibraryUnit(null, current))      // unbalanced, just keep it
+    if(pending.isNotEmpty())
+        units.add(LibraryUnit(null, pending))
+    return units
+}
+
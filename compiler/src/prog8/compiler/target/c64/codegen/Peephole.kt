@@ -0,0 +1,150 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.compiler.target.c64.assembler.Opcode
+import java.util.*
+
+
+/**
+ * A peephole rule looks at a window of at least [windowSize] consecutive lines, starting at each instruction
+ * of the program in turn that has one of the [first] opcodes.
+ * If it changes something it returns true. It must always make the code smaller when it does,
+ * by removing at least one of the lines, otherwise the optimizer doesn't end.
+ */
+internal class PeepholeRule(val name: String, val windowSize: Int, val first: Set<Opcode>, val apply: (PeepholeWindow) -> Boolean)
+
+
+/**
+ * How often each optimization was done, and the bytes and cycles that they saved together.
+ * The cycles are counted once for every instruction, so it's the saving for a single run through the changed code.
+ */
+internal class PeepholeResult {
+    val hits = mutableMapOf<String, Int>()
+    var bytesSaved = 0
+    var cyclesSaved = 0
+
+    fun record(optimization: String, bytes: Int, cycles: Int) {
+        hits[optimization] = (hits[optimization] ?: 0) + 1
+        bytesSaved += bytes
+        cyclesSaved += cycles
+    }
+}
+
+
+/**
+ * The lines that a peephole rule sees: comments (and empty lines) are skipped.
+ */
+internal class PeepholeWindow(private val engine: PeepholeEngine, private val positions: IntArray, val size: Int) {
+    operator fun get(index: Int): AsmLine = engine.lineAt(positions[index])
+    fun remove(index: Int) = engine.remove(positions[index])
+    fun replace(index: Int, line: AsmLine) = engine.replace(positions[index], line)
+}
+
+
+/**
+ * Runs the peephole rules over the lines in a single pass.
+ * The lines are kept in place and removed lines are unlinked, so removing is cheap and the positions stay valid.
+ * After a rule has changed something, the rules are tried again starting a few lines before the change,
+ * because the change can make new matches possible there. That way no second pass over all lines is needed.
+ */
+internal class PeepholeEngine(lines: List<AsmLine>) {
+    private val slots = arrayOfNulls<AsmLine>(lines.size)
+    private val next = IntArray(lines.size) { END }
+    private val prev = IntArray(lines.size) { END }
+    private var first = END
+
+    init {
+        var last = END
+        for((index, line) in lines.withIndex()) {
+            slots[index] = line
+            if(line !is AsmComment) {
+                if(last==END) first = index else next[last] = index
+                prev[index] = last
+                last = index
+            }
+        }
+    }
+
+    fun lineAt(position: Int) = slots[position]!!
+
+    // the bytes and cycles saved by the rule that's being applied
+    private var bytesSaved = 0
+    private var cyclesSaved = 0
+
+    fun remove(position: Int) {
+        val line = slots[position]
+        if(line is AsmInstruction) {
+            bytesSaved += line.size
+            cyclesSaved += line.cycles
+        }
+        slots[position] = null
+        val before = prev[position]
+        val after = next[position]
+        if(before==END) first = after else next[before] = after
+        if(after!=END) prev[after] = before
+    }
+
+    fun replace(position: Int, line: AsmLine) {
+        require(line !is AsmComment)
+        val old = slots[position]
+        if(old is AsmInstruction) {
+            bytesSaved += old.size
+            cyclesSaved += old.cycles
+        }
+        if(line is AsmInstruction) {
+            bytesSaved -= line.size
+            cyclesSaved -= line.cycles
+        }
+        slots[position] = line
+    }
+
+    fun lines(): List<AsmLine> = slots.filterNotNull()
+
+    /**
+     * Applies the rules until none of them matches anywhere anymore.
+     */
+    fun run(rules: List<PeepholeRule>, result: PeepholeResult) {
+        val maxWindow = rules.map { it.windowSize }.sortedDescending().firstOrNull() ?: return
+        val rulesByOpcode = EnumMap<Opcode, List<PeepholeRule>>(Opcode::class.java)
+        for(opcode in Opcode.values())
+            rulesByOpcode[opcode] = rules.filter { opcode in it.first }
+        val positions = IntArray(maxWindow)
+        var position = first
+        while(position!=END) {
+            val line = slots[position]
+            val candidates = if(line is AsmInstruction) rulesByOpcode.getValue(line.opcode) else emptyList()
+            if(candidates.isEmpty()) {
+                position = next[position]
+                continue
+            }
+            var size = 0
+            var p = position
+            while(p!=END && size<maxWindow) {
+                positions[size++] = p
+                p = next[p]
+            }
+            val window = PeepholeWindow(this, positions, size)
+            val before = prev[position]
+            bytesSaved = 0
+            cyclesSaved = 0
+            val applied = candidates.firstOrNull { it.windowSize<=size && it.apply(window) }
+            if(applied==null) {
+                position = next[position]
+                continue
+            }
+            result.record(applied.name, bytesSaved, cyclesSaved)
+            position = when {
+                slots[position]!=null -> position
+                before!=END -> before
+                else -> first
+            }
+            repeat(maxWindow-1) {
+                if(position!=END && prev[position]!=END)
+                    position = prev[position]
+            }
+        }
+    }
+
+    companion object {
+        private const val END = -1
+    }
+}
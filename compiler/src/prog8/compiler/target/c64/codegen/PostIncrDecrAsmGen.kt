@@ -65,8 +65,10 @@ internal class PostIncrDecrAsmGen(private val program: Program, private val asmg
                         asmgen.out(if(incr) "  inc  $what" else "  dec  $what")
                     }
                     is IdentifierReference -> {
-                        val what = asmgen.asmIdentifierName(addressExpr)
-                        asmgen.out(if(incr) "  inc  $what" else "  dec  $what")
+                        val pointer = asmgen.loadPointerIntoZeropage(addressExpr)
+                        asmgen.out("  ldy  #0 |  lda  ($pointer),y")
+                        asmgen.out(if(incr) "  clc |  adc  #1" else "  sec |  sbc  #1")
+                        asmgen.out("  sta  ($pointer),y")
                     }
                     else -> throw AssemblyError("weird target type $targetMemory")
                 }
@@ -0,0 +1,87 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.ast.Program
+import prog8.ast.expressions.DirectMemoryRead
+import prog8.ast.expressions.Expression
+import prog8.ast.expressions.IdentifierReference
+import prog8.ast.processing.IAstVisitor
+import prog8.ast.statements.*
+
+
+private const val LOOP_WEIGHT = 8               // a loop body is estimated to run this many times
+private const val MAX_WEIGHT = 1 shl 24
+
+
+/**
+ * Estimates how often every variable is used, to decide which ones are worth the most in the zeropage.
+ * Every use is weighted by the loop nesting depth it's in (a loop counts as LOOP_WEIGHT runs of its body).
+ * Variables that are used as a pointer in @(...) or in (zp),y addressing in inline assembly
+ * must be in the zeropage to be used directly, so they're kept apart.
+ */
+internal class VariableUsage(private val program: Program): IAstVisitor {
+
+    val uses = mutableMapOf<VarDecl, Int>()
+    val pointers = mutableSetOf<VarDecl>()
+    private var weight = 1
+
+    private val asmPointerRx = Regex("""\(\s*([a-zA-Z_][\w.]*)\s*\)\s*,\s*y""", RegexOption.IGNORE_CASE)
+
+    init {
+        visit(program)
+    }
+
+    fun score(decl: VarDecl) = uses[decl] ?: 0
+
+    override fun visit(identifier: IdentifierReference) {
+        val decl = identifier.targetVarDecl(program.namespace)
+        if(decl!=null)
+            uses[decl] = minOf(score(decl) + weight, MAX_WEIGHT)
+    }
+
+    override fun visit(memread: DirectMemoryRead) {
+        pointer(memread.addressExpression)
+        super.visit(memread)
+    }
+
+    override fun visit(memwrite: DirectMemoryWrite) {
+        pointer(memwrite.addressExpression)
+        super.visit(memwrite)
+    }
+
+    override fun visit(forLoop: ForLoop) {
+        forLoop.iterable.accept(this)
+        inLoop {
+            forLoop.loopVar?.accept(this)
+            forLoop.body.accept(this)
+        }
+    }
+
+    override fun visit(whileLoop: WhileLoop) {
+        inLoop { super.visit(whileLoop) }
+    }
+
+    override fun visit(repeatLoop: RepeatLoop) {
+        inLoop { super.visit(repeatLoop) }
+    }
+
+    override fun visit(inlineAssembly: InlineAssembly) {
+        val module = inlineAssembly.definingModule()
+        for(match in asmPointerRx.findAll(inlineAssembly.assembly)) {
+            val decl = module.lookup(match.groupValues[1].split('.'), inlineAssembly) as? VarDecl
+            if(decl!=null)
+                pointers.add(decl)
+        }
+    }
+
+    private fun pointer(address: Expression) {
+        if(address is IdentifierReference)
+            address.targetVarDecl(program.namespace)?.let { pointers.add(it) }
+    }
+
+    private inline fun inLoop(body: () -> Unit) {
+        val outer = weight
+        weight = minOf(weight * LOOP_WEIGHT, MAX_WEIGHT)
+        body()
+        weight = outer
+    }
+}
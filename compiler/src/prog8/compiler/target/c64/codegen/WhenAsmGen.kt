@@ -0,0 +1,163 @@
+package prog8.compiler.target.c64.codegen
+
+import prog8.ast.Program
+import prog8.ast.base.ByteDatatypes
+import prog8.ast.base.DataType
+import prog8.ast.expressions.NumericLiteralValue
+import prog8.ast.statements.WhenStatement
+import prog8.compiler.AssemblyError
+import prog8.compiler.CompilationOptions
+import prog8.compiler.toHex
+
+
+private const val TREE_LEAF_SIZE = 3        // the binary search compares this many values one by one
+
+
+/**
+ * Code generation for the when statement.
+ * A when on a byte value chooses how it finds the matching choice, based on the choice values:
+ * a sequence of compares (for a few values), a jump table (for values that are close together),
+ * or a binary search through the values (for many values that are spread out).
+ * The estimated code size and the average number of cycles to reach a choice decide.
+ */
+internal class WhenAsmGen(private val program: Program, private val options: CompilationOptions, private val asmgen: AsmGen) {
+
+    private val estack = asmgen.estack
+
+    private class ChoiceValue(val value: Int, val label: String)
+
+    internal fun translate(stmt: WhenStatement) {
+        val conditionDt = stmt.condition.inferType(program)
+        if(!conditionDt.isKnown)
+            throw AssemblyError("unknown condition dt")
+        val isByte = conditionDt.typeOrElse(DataType.BYTE) in ByteDatatypes
+        if(isByte && asmgen.canEvaluateIntoA(stmt.condition))
+            asmgen.translateExpressionIntoA(stmt.condition)
+        else {
+            asmgen.translateExpression(stmt.condition)
+            if(isByte)
+                asmgen.out("  inx |  lda  ${estack.loHex},x")
+            else
+                asmgen.out("  inx |  lda  ${estack.loHex},x |  ldy  ${estack.hiHex},x")
+        }
+
+        val endLabel = asmgen.makeLabel("choice_end")
+        val elseChoice = stmt.choices.singleOrNull { it.values==null }
+        val elseLabel = if(elseChoice==null) endLabel else asmgen.makeLabel("choice_else")
+        val choiceLabels = stmt.choices.filter { it.values!=null }.map { Pair(asmgen.makeLabel("choice"), it) }
+        val values = choiceLabels
+                .flatMap { (label, choice) -> choice.values!!.map { ChoiceValue((it as NumericLiteralValue).number.toInt(), label) } }
+                .distinctBy { it.value }
+
+        if(isByte) {
+            val byteValues = values.map { ChoiceValue(it.value and 255, it.label) }.sortedBy { it.value }
+            val min = byteValues.firstOrNull()?.value ?: 0
+            val span = (byteValues.lastOrNull()?.value ?: 0) - min + 1
+            val optimizeSize = options.optimizeSize
+            val linear = linearCost(values.size).weighted(optimizeSize)
+            val table = jumpTableCost(min, span).weighted(optimizeSize)
+            val tree = binarySearchCost(values.size).weighted(optimizeSize)
+            when {
+                values.isEmpty() || (linear <= table && linear <= tree) -> {
+                    for(cv in values)
+                        asmgen.out("  cmp  #${(cv.value and 255).toHex()} |  beq  ${cv.label}")
+                    asmgen.out("  jmp  $elseLabel")
+                }
+                table <= tree -> jumpTable(byteValues, min, span, elseLabel)
+                else -> binarySearch(byteValues, elseLabel)
+            }
+        } else {
+            for(cv in values) {
+                asmgen.out("""
+                    cmp  #<${cv.value.toHex()}
+                    bne  +
+                    cpy  #>${cv.value.toHex()}
+                    beq  ${cv.label}
++
+                    """)
+            }
+            asmgen.out("  jmp  $elseLabel")
+        }
+
+        if(elseChoice!=null) {
+            asmgen.out(elseLabel)
+            asmgen.translate(elseChoice.statements)
+            asmgen.out("  jmp  $endLabel")
+        }
+        for((label, choice) in choiceLabels) {
+            asmgen.out(label)
+            asmgen.translate(choice.statements)
+            asmgen.out("  jmp  $endLabel")
+        }
+        asmgen.out(endLabel)
+    }
+
+    private fun jumpTable(values: List<ChoiceValue>, min: Int, span: Int, elseLabel: String) {
+        // the address of the choice (minus one) is pushed on the stack, and the rts then jumps to it.
+        val tableLabel = asmgen.makeLabel("choice_table")
+        val targets = Array(span) { elseLabel }
+        for(cv in values)
+            targets[cv.value - min] = cv.label
+        if(min!=0)
+            asmgen.out("  sec |  sbc  #${min.toHex()}")
+        if(span<256)
+            asmgen.out("  cmp  #${span.toHex()} |  bcs  $elseLabel")
+        asmgen.out("""
+            tay
+            lda  ${tableLabel}_hi,y
+            pha
+            lda  ${tableLabel}_lo,y
+            pha
+            rts
+            """)
+        for((part, operator) in listOf(Pair("lo", "<"), Pair("hi", ">"))) {
+            asmgen.out("${tableLabel}_$part")
+            for(chunk in targets.toList().chunked(8))
+                asmgen.out("  .byte  " + chunk.joinToString { "$operator($it-1)" })
+        }
+    }
+
+    private fun binarySearch(values: List<ChoiceValue>, elseLabel: String) {
+        if(values.size <= TREE_LEAF_SIZE) {
+            for(cv in values)
+                asmgen.out("  cmp  #${cv.value.toHex()} |  beq  ${cv.label}")
+            asmgen.out("  jmp  $elseLabel")
+        } else {
+            val middle = values.size / 2
+            val upperLabel = asmgen.makeLabel("choice_upper")
+            asmgen.out("  cmp  #${values[middle].value.toHex()} |  beq  ${values[middle].label} |  bcs  $upperLabel")
+            binarySearch(values.subList(0, middle), elseLabel)
+            asmgen.out(upperLabel)
+            binarySearch(values.subList(middle+1, values.size), elseLabel)
+        }
+    }
+
+    // The costs are the size of the code that finds the choice, and the average number of cycles to reach a choice.
+
+    private fun linearCost(count: Int) = CodeCost(count*4 + 3, count*2.0 + 3)   // cmp+beq per value, the n-th one takes 4n+1 cycles
+
+    private fun jumpTableCost(min: Int, span: Int): CodeCost {
+        var bytes = 10 + 2*span
+        var cycles = 22
+        if(min!=0) {
+            bytes += 3
+            cycles += 4
+        }
+        if(span<256) {
+            bytes += 4
+            cycles += 4
+        }
+        return CodeCost(bytes, cycles.toDouble())
+    }
+
+    private fun binarySearchCost(count: Int): CodeCost {
+        if(count <= TREE_LEAF_SIZE)
+            return linearCost(count)
+        val middle = count / 2
+        val lower = binarySearchCost(middle)
+        val upper = binarySearchCost(count - middle - 1)
+        // cmp+beq+bcs: the middle value takes 5 cycles, the lower half 6 more, the upper half 7 more
+        val cycles = (5 + (6 + lower.cycles) * middle + (7 + upper.cycles) * (count - middle - 1)) / count
+        return CodeCost(6 + lower.bytes + upper.bytes, cycles)
+    }
+}
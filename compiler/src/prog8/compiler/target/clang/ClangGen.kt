@@ -7,6 +7,7 @@ import prog8.ast.expressions.*
 import prog8.ast.statements.*
 import prog8.compiler.AssemblyError
 import prog8.compiler.CompilationOptions
+import prog8.compiler.CompilerStats
 import prog8.compiler.Zeropage
 import prog8.compiler.target.IAssemblyGenerator
 import prog8.compiler.target.IAssemblyProgram
@@ -18,7 +19,7 @@ internal class ClangGen(private val program: Program,
                         private val zeropage: Zeropage,
                         private val options: CompilationOptions,
                         private val outputDir: Path) : IAssemblyGenerator {
-    override fun compileToAssembly(optimize: Boolean): IAssemblyProgram {
+    override fun compileToAssembly(optimize: Boolean, stats: CompilerStats?): IAssemblyProgram {
 
         println("Generating C++ language code... [UNFINISHED, EXPERIMENTAL]")
 
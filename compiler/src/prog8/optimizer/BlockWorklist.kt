@@ -0,0 +1,95 @@
+package prog8.optimizer
+
+import prog8.ast.AstModifications
+import prog8.ast.Node
+import prog8.ast.Program
+import prog8.ast.base.AstException
+import prog8.ast.base.findParentNode
+import prog8.ast.expressions.IdentifierReference
+import prog8.ast.processing.IAstModifyingVisitor
+import prog8.ast.processing.IAstVisitor
+import prog8.ast.statements.Block
+
+
+/**
+ * Keeps track of the blocks that the optimizers still have to look at.
+ * The first round visits every block. After that, a block is only visited again if it was changed,
+ * if it refers to something in a block that was changed (directly or via other blocks), or if it was marked dirty.
+ * Because the optimizers only look at the block they're in and at the things it refers to,
+ * a block that isn't visited again wouldn't have been changed anyway.
+ */
+internal class BlockWorklist(private val program: Program) {
+    private var dirty: MutableSet<Block>? = null        // null means: all blocks
+    private var changed = mutableSetOf<Block>()
+    private var changedPreviousRound = emptySet<Block>()
+    private val references = mutableMapOf<Block, Set<Block>>()
+
+    fun nextRound() {
+        val blocks = program.allBlocks()
+        references.keys.retainAll(blocks)
+        for(block in blocks) {
+            if(block in changed || block !in references)
+                references[block] = referencedBlocks(block)
+        }
+        changedPreviousRound = changed
+        changed = mutableSetOf()
+        dirty = changedPreviousRound.toMutableSet()
+    }
+
+    fun visit(visitor: IAstModifyingVisitor) {
+        val dirty = this.dirty
+        dirty?.addAll(dependentsOf(changedPreviousRound + changed))
+        val modifications = AstModifications.current
+        for(module in program.modules) {
+            module.statements = module.statements.map { stmt ->
+                if (stmt is Block && dirty != null && stmt !in dirty)
+                    stmt
+                else {
+                    val countBefore = modifications.count
+                    val result = stmt.accept(visitor)
+                    if (stmt is Block && (result !== stmt || modifications.count != countBefore))
+                        changed.add(stmt)
+                    result
+                }
+            }.toMutableList()
+        }
+    }
+
+    fun markDirty(nodes: Iterable<Node>) {
+        dirty?.addAll(nodes.mapNotNull { blockOf(it) })
+    }
+
+    fun markChanged(nodes: Iterable<Node>) {
+        changed.addAll(nodes.mapNotNull { blockOf(it) })
+    }
+
+    private fun blockOf(node: Node) = node as? Block ?: findParentNode<Block>(node)
+
+    private fun dependentsOf(blocks: Set<Block>): Set<Block> {
+        val dependents = blocks.toMutableSet()
+        var added = blocks
+        while(added.isNotEmpty()) {
+            added = references.filter { it.key !in dependents && it.value.any { ref -> ref in added } }.keys
+            dependents.addAll(added)
+        }
+        return dependents
+    }
+
+    private fun referencedBlocks(block: Block): Set<Block> {
+        val referenced = mutableSetOf<Block>()
+        val collector = object : IAstVisitor {
+            override fun visit(identifier: IdentifierReference) {
+                val target = try {
+                    identifier.targetStatement(program.namespace)
+                } catch(x: AstException) {
+                    null        // the optimizers will report this themselves
+                }
+                if(target!=null)
+                    blockOf(target)?.let { referenced.add(it) }
+            }
+        }
+        block.accept(collector)
+        referenced.remove(block)
+        return referenced
+    }
+}
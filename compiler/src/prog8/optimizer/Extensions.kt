@@ -2,41 +2,63 @@ package prog8.optimizer
 
 import prog8.ast.Program
 import prog8.ast.base.AstException
+import prog8.ast.statements.Statement
 import prog8.parser.ParsingFailedError
 
 
 internal fun Program.constantFold() {
     val optimizer = ConstantFolding(this)
+    val worklist = BlockWorklist(this)
     try {
-        optimizer.visit(this)
+        worklist.visit(optimizer)
     } catch (ax: AstException) {
         optimizer.addError(ax)
     }
 
     while(optimizer.errors.isEmpty() && optimizer.optimizationsDone>0) {
         optimizer.optimizationsDone = 0
-        optimizer.visit(this)
+        worklist.nextRound()
+        worklist.visit(optimizer)
     }
 
     if(optimizer.errors.isNotEmpty()) {
         optimizer.errors.forEach { System.err.println(it) }
         throw ParsingFailedError("There are ${optimizer.errors.size} errors.")
-    } else {
-        modules.forEach { it.linkParents(namespace) }   // re-link in final configuration
     }
 }
 
 
-internal fun Program.optimizeStatements(): Int {
-    val optimizer = StatementOptimizer(this)
-    optimizer.visit(this)
-    modules.forEach { it.linkParents(this.namespace) }   // re-link in final configuration
+/**
+ * Simplifies expressions, optimizes statements and inlines subroutine calls, one round at a time, until nothing is left to be done.
+ * After the first round, only the blocks that could have become optimizable again are visited.
+ */
+internal class AstOptimizer(private val program: Program, private val optimizeSize: Boolean) {
+    private val worklist = BlockWorklist(program)
+    private var usedSymbols: Set<Statement>? = null
+    private var rounds = 0
 
-    return optimizer.optimizationsDone
-}
+    fun optimizeRound(): Int {
+        if(rounds++ > 0)
+            worklist.nextRound()
+
+        val simplifier = SimplifyExpressions(program)
+        worklist.visit(simplifier)
+
+        val optimizer = StatementOptimizer(program)
+        val previouslyUsed = usedSymbols
+        usedSymbols = optimizer.callgraph.usedSymbols
+        if(previouslyUsed!=null) {
+            // blocks with symbols that became used or unused have to be looked at again
+            worklist.markDirty(previouslyUsed.filter { it !in optimizer.callgraph.usedSymbols })
+            worklist.markDirty(optimizer.callgraph.usedSymbols.filter { it !in previouslyUsed })
+        }
+        worklist.markChanged(optimizer.removeUnusedCode())
+        worklist.visit(optimizer)
+        worklist.markChanged(optimizer.removeMarkedVardecls())
 
-internal fun Program.simplifyExpressions() : Int {
-    val optimizer = SimplifyExpressions(this)
-    optimizer.visit(this)
-    return optimizer.optimizationsDone
+        val inliner = SubroutineInliner(program, optimizeSize)
+        worklist.markChanged(inliner.inlineCalls())
+
+        return simplifier.optimizationsDone + optimizer.optimizationsDone + inliner.optimizationsDone
+    }
 }
@@ -601,6 +601,15 @@ internal class SimplifyExpressions(private val program: Program) : IAstModifying
                     expr.operator = "&"
                     expr.right = NumericLiteralValue.optimalInteger(1, expr.position)
                     return expr
+                } else if (cv in powersOfTwo) {
+                    // an unsigned remainder of a power of two => bitwise and
+                    val leftDt = expr.left.inferType(program).typeOrElse(DataType.STRUCT)
+                    if(leftDt==DataType.UBYTE || leftDt==DataType.UWORD) {
+                        optimizationsDone++
+                        expr.operator = "&"
+                        expr.right = NumericLiteralValue(leftDt, cv!!.toInt() - 1, expr.position)
+                        return expr
+                    }
                 }
             }
         }
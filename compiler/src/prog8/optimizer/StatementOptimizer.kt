@@ -16,7 +16,6 @@ import kotlin.math.floor
 
 /*
     TODO: remove unreachable code?
-    TODO: proper inlining of tiny subroutines (correctly renaming/relocating all variables in them and refs to those as well, or restrict to subs without variables?)
 */
 
 
@@ -25,19 +24,25 @@ internal class StatementOptimizer(private val program: Program) : IAstModifyingV
         private set
 
     private val pureBuiltinFunctions = BuiltinFunctions.filter { it.value.pure }
-    private val callgraph = CallGraph(program)
+    internal val callgraph = CallGraph(program)
     private val vardeclsToRemove = mutableListOf<VarDecl>()
 
     override fun visit(program: Program) {
-        removeUnusedCode(callgraph)
+        removeUnusedCode()
         super.visit(program)
+        removeMarkedVardecls()
+    }
 
+    // returns the vardecls that were removed
+    internal fun removeMarkedVardecls(): List<VarDecl> {
         for(decl in vardeclsToRemove) {
             decl.definingScope().remove(decl)
         }
+        return vardeclsToRemove
     }
 
-    private fun removeUnusedCode(callgraph: CallGraph) {
+    // returns the subroutines, blocks and modules that were removed
+    internal fun removeUnusedCode(): Set<Node> {
         // remove all subroutines that aren't called, or are empty
         val removeSubroutines = mutableSetOf<Subroutine>()
         val entrypoint = program.entrypoint()
@@ -74,6 +79,8 @@ internal class StatementOptimizer(private val program: Program) : IAstModifyingV
         if (removeModules.isNotEmpty()) {
             program.modules.removeAll(removeModules)
         }
+
+        return removeSubroutines + removeBlocks + removeModules
     }
 
     override fun visit(block: Block): Statement {
@@ -508,7 +515,6 @@ internal class StatementOptimizer(private val program: Program) : IAstModifyingV
                             if (((targetDt == DataType.UWORD || targetDt == DataType.WORD) && cv > 15.0) ||
                                     ((targetDt == DataType.UBYTE || targetDt == DataType.BYTE) && cv > 7.0)) {
                                 assignment.value = NumericLiteralValue.optimalInteger(0, assignment.value.position)
-                                assignment.value.linkParents(assignment)
                                 optimizationsDone++
                             } else {
                                 // replace by in-place lsl(...) call
@@ -529,7 +535,6 @@ internal class StatementOptimizer(private val program: Program) : IAstModifyingV
                             }
                             if ((targetDt == DataType.UWORD && cv > 15.0) || (targetDt == DataType.UBYTE && cv > 7.0)) {
                                 assignment.value = NumericLiteralValue.optimalInteger(0, assignment.value.position)
-                                assignment.value.linkParents(assignment)
                                 optimizationsDone++
                             } else {
                                 // replace by in-place lsr(...) call
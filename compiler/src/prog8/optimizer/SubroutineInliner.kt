@@ -0,0 +1,266 @@
+package prog8.optimizer
+
+import prog8.ast.INameScope
+import prog8.ast.Node
+import prog8.ast.Program
+import prog8.ast.base.AstException
+import prog8.ast.base.CompilationCounters
+import prog8.ast.base.NumericDatatypes
+import prog8.ast.base.VarDeclType
+import prog8.ast.deepCopy
+import prog8.ast.expressions.Expression
+import prog8.ast.expressions.FunctionCall
+import prog8.ast.expressions.IdentifierReference
+import prog8.ast.processing.IAstModifyingVisitor
+import prog8.ast.processing.IAstVisitor
+import prog8.ast.statements.*
+
+
+private const val SMALL_SUBROUTINE_SIZE = 3             // subroutines with at most this many statements are inlined at every call,
+private const val INLINE_GROWTH_BUDGET = 4              // as long as that adds no more than this many statements in total
+private const val SINGLE_CALL_SUBROUTINE_SIZE = 12      // subroutines that are called only once are inlined up to this size
+
+
+/**
+ * Replaces calls to small subroutines, and to subroutines that are called only once, with a copy of the subroutine's body.
+ * That saves the jsr and rts, and the subroutine itself once all of its calls have been inlined.
+ *
+ * The variables and labels of the subroutine get a new unique name, and the variables are moved to the calling subroutine.
+ * The arguments are assigned to the copies of the parameters. A return becomes a jump to the end of the copy,
+ * after assigning the return value to the target of the assignment the call was in.
+ * All other names in the body are replaced by their fully scoped name, so they refer to the same thing in the caller.
+ *
+ * A variable without an initial value keeps its value between calls. A subroutine that has those
+ * is only inlined if it's called once, otherwise every copy would have a different variable.
+ * When optimizing for size, only subroutines that are called once are inlined: the other ones would make the program larger.
+ */
+internal class SubroutineInliner(private val program: Program, private val optimizeSize: Boolean) {
+    var optimizationsDone: Int = 0
+        private set
+
+    private val callgraph = CallGraph(program)
+    private val referencedFromOutside = mutableSetOf<Subroutine>()
+    private val copied = mutableSetOf<Subroutine>()         // subroutines whose body has been copied in this round
+    private val changed = mutableSetOf<Subroutine>()        // subroutines that had a call inlined in this round
+
+    init {
+        val collector = object : IAstVisitor {
+            override fun visit(identifier: IdentifierReference) {
+                val target = try {
+                    identifier.targetStatement(program.namespace)
+                } catch(x: AstException) {
+                    null        // the optimizers will report this themselves
+                }
+                if(target is VarDecl || target is Label) {
+                    val owner = target.definingSubroutine()
+                    if(owner!=null && owner !== identifier.definingSubroutine())
+                        referencedFromOutside.add(owner)
+                }
+            }
+        }
+        collector.visit(program)
+    }
+
+    // returns the subroutines that were changed
+    fun inlineCalls(): Set<Subroutine> {
+        for(sub in callgraph.subroutinesCalledBy.keys) {
+            if(sub in changed || !canBeInlined(sub))
+                continue
+            val size = size(sub.statements)
+            val calls = sub.calledBy.toList()
+            if(calls.size>1 && (optimizeSize || size>SMALL_SUBROUTINE_SIZE || (size-1)*calls.size>INLINE_GROWTH_BUDGET || hasStaticVariables(sub)))
+                continue
+            if(size>SINGLE_CALL_SUBROUTINE_SIZE)
+                continue
+            for(call in calls) {
+                val caller = call.definingSubroutine()
+                if(caller!=null && caller !in copied && inline(call, sub, caller)) {
+                    copied.add(sub)
+                    changed.add(caller)
+                    optimizationsDone++
+                }
+            }
+        }
+        return changed
+    }
+
+    private fun canBeInlined(sub: Subroutine): Boolean {
+        if(sub.isAsmSubroutine || sub.asmAddress!=null || sub.keepAlways || sub.definingModule().isLibraryModule
+                || sub === program.entrypoint() || sub in referencedFromOutside || sub.parameters.any { it.type !in NumericDatatypes })
+            return false
+        if(sub.calledBy.any { it !is FunctionCall && it !is FunctionCallStatement } || callsItself(sub))
+            return false
+
+        var copyable = true
+        val checker = object : IAstVisitor {
+            override fun visit(subroutine: Subroutine) {
+                if(subroutine===sub)
+                    super.visit(subroutine)
+                else
+                    copyable = false
+            }
+            override fun visit(decl: VarDecl) {
+                if(decl.datatype !in NumericDatatypes || decl.isArray)
+                    copyable = false
+            }
+            override fun visit(returnStmt: Return) {
+                if(returnStmt is ReturnFromIrq)
+                    copyable = false
+                super.visit(returnStmt)
+            }
+            override fun visit(directive: Directive) { copyable = false }
+            override fun visit(inlineAssembly: InlineAssembly) { copyable = false }
+            override fun visit(structDecl: StructDecl) { copyable = false }
+        }
+        sub.accept(checker)
+        return copyable
+    }
+
+    private fun callsItself(sub: Subroutine): Boolean {
+        val reached = mutableSetOf<Subroutine>()
+        var next = sub.calls.toList()
+        while(next.isNotEmpty()) {
+            if(sub in next)
+                return true
+            reached.addAll(next)
+            next = next.flatMap { it.calls }.filter { it !in reached }
+        }
+        return false
+    }
+
+    private fun hasStaticVariables(sub: Subroutine): Boolean {
+        val parameters = sub.parameters.map { it.name }.toSet()
+        val variables = mutableListOf<VarDecl>()
+        val initialized = mutableSetOf<String>()
+        val collector = object : IAstVisitor {
+            override fun visit(decl: VarDecl) {
+                if(decl.type==VarDeclType.VAR && decl.name !in parameters)
+                    variables.add(decl)
+            }
+            override fun visit(assignment: Assignment) {
+                if(assignment is VariableInitializationAssignment)
+                    assignment.target.identifier?.let { initialized.add(it.nameInSource.last()) }
+            }
+        }
+        sub.accept(collector)
+        return variables.any { it.name !in initialized }
+    }
+
+    // the number of statements, not counting the declarations, labels and a return without a value
+    private fun size(statements: List<Statement>): Int = statements.sumBy {
+        when(it) {
+            is VarDecl, is Label, is NopStatement -> 0
+            is Return -> if(it.value==null) 0 else 1
+            is AnonymousScope -> size(it.statements)
+            is IfStatement -> 1 + size(it.truepart.statements) + size(it.elsepart.statements)
+            is BranchStatement -> 1 + size(it.truepart.statements) + size(it.elsepart.statements)
+            is ForLoop -> 1 + size(it.body.statements)
+            is WhileLoop -> 1 + size(it.body.statements)
+            is RepeatLoop -> 1 + size(it.body.statements)
+            is WhenStatement -> 1 + it.choices.sumBy { choice -> size(choice.statements.statements) }
+            else -> 1
+        }
+    }
+
+    private fun inline(call: Node, sub: Subroutine, caller: Subroutine): Boolean {
+        val statement: Statement
+        val assignment: Assignment?
+        val arguments: List<Expression>
+        when(call) {
+            is FunctionCallStatement -> {
+                if(sub.returntypes.isNotEmpty())
+                    return false        // the return value would still have to be evaluated
+                statement = call
+                assignment = null
+                arguments = call.arglist
+            }
+            is FunctionCall -> {
+                assignment = call.parent as? Assignment ?: return false
+                if(assignment.value !== call || assignment.aug_op!=null)
+                    return false
+                statement = assignment
+                arguments = call.arglist
+            }
+            else -> return false
+        }
+        val scope = statement.parent as? INameScope ?: return false
+        val index = scope.statements.indexOf(statement)
+        if(index<0)
+            return false
+
+        val prefix = "prog8_inline${CompilationCounters.current.inlinedCall++}_"
+        val body = AnonymousScope(sub.statements.map { it.deepCopy() }.toMutableList(), statement.position)
+        body.linkParents(sub)       // the names in the copy are looked up as if it were the subroutine itself
+        body.accept(Renamer(sub, prefix))
+
+        val variables = mutableListOf<VarDecl>()
+        body.accept(object : IAstVisitor {
+            override fun visit(decl: VarDecl) {
+                variables.add(decl)
+            }
+        })
+        val movedVariables = variables.map {
+            it.definingScope().remove(it)
+            VarDecl(it.type, it.declaredDatatype, it.zeropage, it.arraysize, prefix + it.name, it.structName,
+                    it.value, it.isArray, false, it.position)
+        }
+
+        val endLabel = prefix + "end"
+        fun returnValue(returnStmt: Return): List<Statement> {
+            val value = returnStmt.value
+            if(value==null || assignment==null)
+                return emptyList()
+            val target = (assignment.deepCopy() as Assignment).target
+            return listOf(Assignment(target, null, value, returnStmt.position))
+        }
+        val last = body.statements.lastOrNull()
+        if(last is Return) {
+            body.statements.removeAt(body.statements.size-1)
+            body.statements.addAll(returnValue(last))
+        }
+        var jumps = 0
+        body.accept(object : IAstModifyingVisitor {
+            override fun visit(returnStmt: Return): Statement {
+                jumps++
+                val jump = Jump(null, IdentifierReference(listOf(endLabel), returnStmt.position), null, returnStmt.position)
+                return AnonymousScope((returnValue(returnStmt) + jump).toMutableList(), returnStmt.position)
+            }
+        })
+
+        val statements = mutableListOf<Statement>()
+        for((parameter, argument) in sub.parameters.zip(arguments)) {
+            val target = AssignTarget(null, IdentifierReference(listOf(prefix + parameter.name), argument.position), null, null, argument.position)
+            statements.add(Assignment(target, null, argument, argument.position))
+        }
+        statements.addAll(body.statements)
+        if(jumps>0)
+            statements.add(Label(endLabel, statement.position))
+
+        val inlined = AnonymousScope(statements, statement.position)
+        scope.statements[index] = inlined
+        inlined.linkParents(scope as Node)
+        caller.statements.addAll(0, movedVariables)
+        movedVariables.forEach { it.linkParents(caller) }
+        return true
+    }
+
+    /**
+     * Gives the variables and labels of the subroutine their new name,
+     * and replaces all other names by their fully scoped name.
+     */
+    private inner class Renamer(private val sub: Subroutine, private val prefix: String): IAstModifyingVisitor {
+        override fun visit(identifier: IdentifierReference): Expression {
+            val target = identifier.targetStatement(program.namespace)
+            val name = when(target) {
+                is VarDecl -> if(target.definingSubroutine()===sub) prefix + target.name else target.makeScopedName(target.name)
+                is Label -> if(target.definingSubroutine()===sub) prefix + target.name else target.makeScopedName(target.name)
+                is Subroutine -> target.scopedname
+                is Block -> target.name
+                else -> return identifier
+            }
+            return IdentifierReference(name.split('.'), identifier.position)
+        }
+
+        override fun visit(label: Label) = Label(prefix + label.name, label.position)
+    }
+}
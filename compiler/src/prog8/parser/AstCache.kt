@@ -0,0 +1,129 @@
+package prog8.parser
+
+import prog8.ast.AstBinaryReader
+import prog8.ast.AstBinaryWriter
+import prog8.ast.statements.AnonymousScope
+import prog8.compiler.target.CompilationTarget
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+
+/**
+ * Keeps the Ast of parsed modules around, so that unchanged modules don't have to be parsed again.
+ * Entries are keyed by a hash of the module's source text, the compiler version and the compilation target.
+ * The cache can be kept on disk (in [directory]) and/or in memory, the latter is used by the continuous watch mode.
+ * Because the compiler modifies the Ast it works on, a cached module is stored in serialized form
+ * and every load produces a fresh copy.
+ * A damaged or unreadable cache entry is simply treated as a cache miss.
+ * The library modules are also precompiled into this format when the compiler is built,
+ * those entries are shipped as resources in the jar and are found with the same key.
+ */
+class AstCache(val directory: Path?, val keepInMemory: Boolean = false) {
+
+    private val inMemory = ConcurrentHashMap<Path, Pair<String, ByteArray>>()      // only the latest version of every module
+
+    private val compilerVersion: String by lazy {
+        object {}.javaClass.getResource("/version.txt")?.readText()?.trim() ?: "?"
+    }
+
+    internal fun key(sourceText: String, modulePath: Path, isLibrary: Boolean): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("$FORMAT_VERSION|$compilerVersion|${CompilationTarget.name}|$isLibrary|${modulePath.fileName}|".toByteArray())
+        digest.update(sourceText.toByteArray())
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    internal fun load(key: String, modulePath: Path): ParsedModule? {
+        val cached = inMemory[modulePath]
+        val data = if(cached!=null && cached.first==key) {
+            cached.second
+        } else {
+            (readFile(key) ?: readPrecompiled(key) ?: return null).also { remember(key, modulePath, it) }
+        }
+        return deserialize(data, modulePath)
+    }
+
+    private fun readFile(key: String): ByteArray? {
+        val file = directory?.resolve("$key.ast")?.toFile()
+        if(file==null || !file.isFile)
+            return null
+        return try {
+            file.readBytes()
+        } catch(x: IOException) {
+            null
+        }
+    }
+
+    private fun readPrecompiled(key: String): ByteArray? =
+        try {
+            tryGetEmbeddedResource("precompiled/$key.ast")?.use { it.readBytes() }
+        } catch(x: IOException) {
+            null
+        }
+
+    internal fun store(key: String, modulePath: Path, parsed: ParsedModule) {
+        if(directory==null && !keepInMemory)
+            return
+        val data = serialize(parsed)
+        remember(key, modulePath, data)
+        if(directory==null)
+            return
+        try {
+            Files.createDirectories(directory)
+            val tempFile = Files.createTempFile(directory, key, ".tmp")
+            try {
+                Files.write(tempFile, data)
+                Files.move(tempFile, directory.resolve("$key.ast"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } finally {
+                Files.deleteIfExists(tempFile)
+            }
+        } catch(x: IOException) {
+            // not being able to write the cache is not an error, it's just slower next time
+        }
+    }
+
+    private fun remember(key: String, modulePath: Path, data: ByteArray) {
+        if(keepInMemory)
+            inMemory[modulePath] = Pair(key, data)
+    }
+
+    private fun serialize(parsed: ParsedModule): ByteArray {
+        val ordinals = parsed.anonymousScopes.withIndex().associateBy({ it.value }, { it.index })
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use {
+            it.writeInt(MAGIC)
+            it.writeInt(FORMAT_VERSION)
+            AstBinaryWriter(it) { scope -> ordinals.getValue(scope) }.write(parsed.module)
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun deserialize(data: ByteArray, modulePath: Path): ParsedModule? {
+        return try {
+            DataInputStream(ByteArrayInputStream(data)).use {
+                if(it.readInt()!=MAGIC || it.readInt()!=FORMAT_VERSION)
+                    return null
+                // the reader keeps track of the anonymous scopes itself, in their original order
+                val reader = AstBinaryReader(it)
+                val module = AnonymousScope.withDeferredNumbering { reader.readModule(modulePath) }.first
+                ParsedModule(module, reader.orderedAnonymousScopes)
+            }
+        } catch(x: IOException) {
+            null
+        } catch(x: RuntimeException) {
+            null
+        }
+    }
+
+    companion object {
+        // used for the library modules when there's no cache, it only looks at the precompiled ones
+        internal val precompiledLibraries = AstCache(null)
+
+        private const val MAGIC = 0x50384153       // "P8AS"
+        private const val FORMAT_VERSION = 1
+    }
+}
@@ -0,0 +1,44 @@
+package prog8.parser
+
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.misc.Interval
+import prog8.setCompilationTarget
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import kotlin.system.exitProcess
+
+
+/**
+ * Build step that parses the embedded library modules, for every compilation target,
+ * into the Ast cache format. The resulting files are shipped in the jar (in prog8lib/precompiled)
+ * so the compiler doesn't have to parse the libraries anymore.
+ * Usage: LibraryPrecompiler <library source directory> <output directory>
+ */
+fun main(args: Array<String>) {
+    if(args.size!=2) {
+        System.err.println("usage: LibraryPrecompiler <library source directory> <output directory>")
+        exitProcess(1)
+    }
+    val sourceDir = Paths.get(args[0])
+    val outputDir = Paths.get(args[1])
+    val cache = AstCache(outputDir)
+    val sources = sourceDir.toFile().listFiles()!!.filter { it.name.endsWith(".p8") }.map { it.toPath() }.sorted()
+    for(target in listOf("c64", "clang")) {
+        setCompilationTarget(target)
+        for(source in sources)
+            precompile(source, cache, outputDir)
+    }
+}
+
+private fun precompile(source: Path, cache: AstCache, outputDir: Path) {
+    // same path as the importer uses for the embedded library modules, it's part of the key
+    val modulePath = Paths.get("@embedded@/${moduleName(source.fileName)}")
+    val stream = CharStreams.fromPath(source)
+    val key = cache.key(stream.getText(Interval.of(0, stream.size()-1)), modulePath, true)
+    cache.store(key, modulePath, parseModule(stream, modulePath, true))
+    if(!Files.isRegularFile(outputDir.resolve("$key.ast"))) {
+        System.err.println("could not write the precompiled module for $source")
+        exitProcess(1)
+    }
+}
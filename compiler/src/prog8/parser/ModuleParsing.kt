@@ -1,12 +1,16 @@
 package prog8.parser
 
 import org.antlr.v4.runtime.*
+import org.antlr.v4.runtime.atn.PredictionMode
+import org.antlr.v4.runtime.misc.Interval
+import org.antlr.v4.runtime.misc.ParseCancellationException
 import prog8.ast.Module
 import prog8.ast.Program
 import prog8.ast.antlr.toAst
 import prog8.ast.base.Position
 import prog8.ast.base.SyntaxError
 import prog8.ast.base.checkImportedValid
+import prog8.ast.statements.AnonymousScope
 import prog8.ast.statements.Directive
 import prog8.ast.statements.DirectiveArg
 import prog8.pathFrom
@@ -14,6 +18,10 @@ import java.io.InputStream
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ForkJoinPool
+import java.util.function.Supplier
 
 
 internal class ParsingFailedError(override var message: String) : Exception(message)
@@ -33,39 +41,149 @@ internal class CustomLexer(val modulePath: Path, input: CharStream?) : prog8Lexe
 internal fun moduleName(fileName: Path) = fileName.toString().substringBeforeLast('.')
 
 
-internal fun importModule(program: Program, filePath: Path): Module {
-    print("importing '${moduleName(filePath.fileName)}'")
-    if(filePath.parent!=null) {
-        var importloc = filePath.toString()
-        val curdir = Paths.get("").toAbsolutePath().toString()
-        if(importloc.startsWith(curdir))
-            importloc = "." + importloc.substring(curdir.length)
-        println(" (from '$importloc')")
-    }
-    else
-        println("")
-    if(!Files.isReadable(filePath))
-        throw ParsingFailedError("No such file: $filePath")
+internal class ParsedModule(val module: Module, val anonymousScopes: List<AnonymousScope>)
 
-    val input = CharStreams.fromPath(filePath)
-    return importModule(program, input, filePath, false)
-}
 
-internal fun importLibraryModule(program: Program, name: String): Module? {
+internal fun importModule(program: Program, filePath: Path, astCache: AstCache? = null): Module =
+        ModuleImporter(program, astCache).importModule(filePath)
+
+internal fun importLibraryModule(program: Program, name: String, astCache: AstCache? = null): Module? {
     val import = Directive("%import", listOf(
             DirectiveArg("", name, 42, position = Position("<<<implicit-import>>>", 0, 0, 0))
     ), Position("<<<implicit-import>>>", 0, 0, 0))
-    return executeImportDirective(program, import, Paths.get(""))
+    return ModuleImporter(program, astCache).executeImportDirective(import, Paths.get(""))
 }
 
-internal fun importModule(program: Program, stream: CharStream, modulePath: Path, isLibrary: Boolean): Module {
+internal fun importModule(program: Program, stream: CharStream, modulePath: Path, isLibrary: Boolean, astCache: AstCache? = null): Module =
+        ModuleImporter(program, astCache).importModule(stream, modulePath, isLibrary)
+
+
+private class ModuleImporter(val program: Program, val astCache: AstCache?) {
+
+    // Modules that are being parsed in the background, by their source path.
+    // Only the importing thread touches this map, the worker threads just do the parsing.
+    private val prefetched = mutableMapOf<Path, CompletableFuture<ParsedModule>>()
+
+    fun importModule(filePath: Path): Module {
+        print("importing '${moduleName(filePath.fileName)}'")
+        if(filePath.parent!=null) {
+            var importloc = filePath.toString()
+            val curdir = Paths.get("").toAbsolutePath().toString()
+            if(importloc.startsWith(curdir))
+                importloc = "." + importloc.substring(curdir.length)
+            println(" (from '$importloc')")
+        }
+        else
+            println("")
+        return importModule(filePath, false) {
+            if(!Files.isReadable(filePath))
+                throw ParsingFailedError("No such file: $filePath")
+            CharStreams.fromPath(filePath)
+        }
+    }
+
+    fun importModule(stream: CharStream, modulePath: Path, isLibrary: Boolean) = importModule(modulePath, isLibrary) { stream }
+
+    private fun importModule(modulePath: Path, isLibrary: Boolean, input: () -> CharStream): Module {
+        val parsed = takePrefetched(modulePath) ?: parse(input(), modulePath, isLibrary)
+        return addModule(parsed, modulePath)
+    }
+
+    private fun parse(stream: CharStream, modulePath: Path, isLibrary: Boolean): ParsedModule {
+        val astCache = this.astCache ?: (if(isLibrary) AstCache.precompiledLibraries else null)
+        if(astCache==null)
+            return parseModule(stream, modulePath, isLibrary)
+        val key = astCache.key(stream.getText(Interval.of(0, stream.size()-1)), modulePath, isLibrary)
+        return astCache.load(key, modulePath) ?: parseModule(stream, modulePath, isLibrary).also { astCache.store(key, modulePath, it) }
+    }
+
+    private fun addModule(parsed: ParsedModule, modulePath: Path): Module {
+        // number the anonymous scopes only now, so they're the same whether the module came from the cache
+        // or another thread, and regardless of the order in which modules were parsed
+        AnonymousScope.assignSequenceNumbers(parsed.anonymousScopes)
+        val moduleAst = parsed.module
+        moduleAst.program = program
+        moduleAst.linkParents(program.namespace)
+        program.modules.add(moduleAst)
+
+        // accept additional imports
+        val lines = moduleAst.statements.toMutableList()
+        val imports = lines.mapNotNull { it as? Directive }.filter { it.directive == "%import" }
+        // sibling imports don't depend on each other, so they're parsed concurrently,
+        // but they're still added to the program one by one in their original order.
+        imports.forEach { prefetch(it, modulePath) }
+        imports.forEach { executeImportDirective(it, modulePath) }
+
+        moduleAst.statements = lines
+        return moduleAst
+    }
+
+    private fun prefetch(import: Directive, source: Path) {
+        val moduleName = import.args.singleOrNull()?.name ?: return
+        if(program.modules.any { it.name == moduleName })
+            return
+        val isLibrary = isEmbeddedResource("$moduleName.p8")
+        val modulePath = if(isLibrary) Paths.get("@embedded@/$moduleName") else {
+            try {
+                discoverImportedModuleFile(moduleName, source, import.position)
+            } catch(x: ParsingFailedError) {
+                return      // will be reported when the import is actually executed
+            }
+        }
+        if(modulePath in prefetched)
+            return
+        prefetched[modulePath] = CompletableFuture.supplyAsync(Supplier {
+            val stream = if(isLibrary) embeddedResourceStream("$moduleName.p8") else CharStreams.fromPath(modulePath)
+            parse(stream, modulePath, isLibrary)
+        }, ForkJoinPool.commonPool())
+    }
+
+    private fun takePrefetched(modulePath: Path): ParsedModule? {
+        val future = prefetched.remove(modulePath) ?: return null
+        try {
+            return future.join()
+        } catch(x: CompletionException) {
+            throw x.cause ?: x
+        }
+    }
+
+    fun executeImportDirective(import: Directive, source: Path): Module? {
+        if(import.directive!="%import" || import.args.size!=1 || import.args[0].name==null)
+            throw SyntaxError("invalid import directive", import.position)
+        val moduleName = import.args[0].name!!
+        if("$moduleName.p8" == import.position.file)
+            throw SyntaxError("cannot import self", import.position)
+
+        val existing = program.modules.singleOrNull { it.name == moduleName }
+        if(existing!=null)
+            return null
+
+        val importedModule =
+            if(isEmbeddedResource("$moduleName.p8")) {
+                // load the module from the embedded resource
+                if(import.args[0].int==42)
+                    println("importing '$moduleName' (library, auto)")
+                else
+                    println("importing '$moduleName' (library)")
+                importModule(Paths.get("@embedded@/$moduleName"), true) { embeddedResourceStream("$moduleName.p8") }
+            } else {
+                val modulePath = discoverImportedModuleFile(moduleName, source, import.position)
+                importModule(modulePath)
+            }
+
+        importedModule.checkImportedValid()
+        return importedModule
+    }
+}
+
+internal fun parseModule(stream: CharStream, modulePath: Path, isLibrary: Boolean): ParsedModule {
     val moduleName = moduleName(modulePath.fileName)
     val lexer = CustomLexer(modulePath, stream)
     val lexerErrors = LexerErrorListener()
     lexer.addErrorListener(lexerErrors)
     val tokens = CommentHandlingTokenStream(lexer)
     val parser = prog8Parser(tokens)
-    val parseTree = parser.module()
+    val parseTree = parseTwoStage(parser)
     val numberOfErrors = parser.numberOfSyntaxErrors + lexerErrors.numberOfErrors
     if(numberOfErrors > 0)
         throw ParsingFailedError("There are $numberOfErrors errors in '$moduleName'.")
@@ -74,20 +192,32 @@ internal fun importModule(program: Program, stream: CharStream, modulePath: Path
     // tokens.commentTokens().forEach { println(it) }
 
     // convert to Ast
-    val moduleAst = parseTree.toAst(moduleName, isLibrary, modulePath)
-    moduleAst.program = program
-    moduleAst.linkParents(program.namespace)
-    program.modules.add(moduleAst)
-
-    // accept additional imports
-    val lines = moduleAst.statements.toMutableList()
-    lines.asSequence()
-         .mapIndexed { i, it -> Pair(i, it) }
-         .filter { (it.second as? Directive)?.directive == "%import" }
-         .forEach { executeImportDirective(program, it.second as Directive, modulePath) }
-
-    moduleAst.statements = lines
-    return moduleAst
+    val (moduleAst, anonymousScopes) = AnonymousScope.withDeferredNumbering {
+        parseTree.toAst(moduleName, isLibrary, modulePath)
+    }
+    return ParsedModule(moduleAst, anonymousScopes)
+}
+
+/**
+ * Parses with the fast SLL prediction mode first, which is enough for nearly every valid source.
+ * Only if that fails, the input is parsed again with full LL prediction and the normal error reporting,
+ * so syntax errors are reported exactly as before.
+ * The DFA cache of the generated parser is static, so it is shared by all modules and all compilations in this JVM.
+ */
+private fun parseTwoStage(parser: prog8Parser): prog8Parser.ModuleContext {
+    val errorListeners = parser.errorListeners.toList()
+    parser.removeErrorListeners()
+    parser.errorHandler = BailErrorStrategy()
+    parser.interpreter.predictionMode = PredictionMode.SLL
+    try {
+        return parser.module()
+    } catch(x: ParseCancellationException) {
+        parser.reset()
+        errorListeners.forEach { parser.addErrorListener(it) }
+        parser.errorHandler = DefaultErrorStrategy()
+        parser.interpreter.predictionMode = PredictionMode.LL
+        return parser.module()
+    }
 }
 
 private fun discoverImportedModuleFile(name: String, source: Path, position: Position?): Path {
@@ -110,37 +240,10 @@ private fun discoverImportedModuleFile(name: String, source: Path, position: Pos
     throw ParsingFailedError("$position Import: no module source file '$fileName' found  (I've looked in: $locations)")
 }
 
-private fun executeImportDirective(program: Program, import: Directive, source: Path): Module? {
-    if(import.directive!="%import" || import.args.size!=1 || import.args[0].name==null)
-        throw SyntaxError("invalid import directive", import.position)
-    val moduleName = import.args[0].name!!
-    if("$moduleName.p8" == import.position.file)
-        throw SyntaxError("cannot import self", import.position)
-
-    val existing = program.modules.singleOrNull { it.name == moduleName }
-    if(existing!=null)
-        return null
-
-    val resource = tryGetEmbeddedResource("$moduleName.p8")
-    val importedModule =
-        if(resource!=null) {
-            // load the module from the embedded resource
-            resource.use {
-                if(import.args[0].int==42)
-                    println("importing '$moduleName' (library, auto)")
-                else
-                    println("importing '$moduleName' (library)")
-                importModule(program, CharStreams.fromStream(it), Paths.get("@embedded@/$moduleName"), true)
-            }
-        } else {
-            val modulePath = discoverImportedModuleFile(moduleName, source, import.position)
-            importModule(program, modulePath)
-        }
-
-    importedModule.checkImportedValid()
-    return importedModule
-}
-
 internal fun tryGetEmbeddedResource(name: String): InputStream? {
     return object{}.javaClass.getResourceAsStream("/prog8lib/$name")
 }
+
+private fun isEmbeddedResource(name: String) = object{}.javaClass.getResource("/prog8lib/$name") != null
+
+private fun embeddedResourceStream(name: String): CharStream = tryGetEmbeddedResource(name)!!.use { CharStreams.fromStream(it) }
@@ -129,12 +129,13 @@ class RuntimeVariables {
 }
 
 
-class AstVm(val program: Program, compilationTarget: String) {
+class AstVm(val program: Program, compilationTarget: String, val headless: Boolean = false) {
 
     val mem = Memory(::memread, ::memwrite)
     val statusflags = StatusFlags()
 
-    private var dialog = ScreenDialog("AstVM")
+    private val dialog = if(headless) null else ScreenDialog("AstVM")      // headless: no window, used for benchmarking
+    private val canvas = dialog?.canvas ?: BitmapScreenPanel()
     var instructionCounter = 0
     val bootTime = System.currentTimeMillis()
     var rtcOffset = bootTime
@@ -154,17 +155,19 @@ class AstVm(val program: Program, compilationTarget: String) {
         for(i in 1024..2023)
             mem.observe(i)
 
-        dialog.requestFocusInWindow()
+        if(dialog!=null) {
+            dialog.requestFocusInWindow()
 
-        EventQueue.invokeLater {
-            dialog.pack()
-            dialog.isVisible = true
-            dialog.start()
+            EventQueue.invokeLater {
+                dialog.pack()
+                dialog.isVisible = true
+                dialog.start()
+            }
         }
+    }
 
-        fixedRateTimer("60hz-irq", true, period=1000/60) {
-            irq(this.scheduledExecutionTime())
-        }
+    private val irqTimer = fixedRateTimer("60hz-irq", true, period=1000/60) {
+        irq(this.scheduledExecutionTime())
     }
 
     fun memread(address: Int, value: Short): Short {
@@ -184,7 +187,7 @@ class AstVm(val program: Program, compilationTarget: String) {
         if(address in 1024..2023) {
             // write to the screen matrix
             val scraddr = address-1024
-            dialog.canvas.setChar(scraddr % 40, scraddr / 40, value, 1)
+            canvas.setChar(scraddr % 40, scraddr / 40, value, 1)
         }
         return value
     }
@@ -240,14 +243,17 @@ class AstVm(val program: Program, compilationTarget: String) {
                     }
                 }
             }
-            dialog.canvas.printText("\n<program ended>", true)
+            canvas.printText("\n<program ended>", true)
             println("PROGRAM EXITED!")
-            dialog.title = "PROGRAM EXITED"
+            dialog?.title = "PROGRAM EXITED"
         } catch (tx: VmTerminationException) {
             println("Execution halted: ${tx.message}")
         } catch (xx: VmExecutionException) {
             println("Execution error: ${xx.message}")
             throw xx
+        } finally {
+            if(headless)
+                irqTimer.cancel()       // nobody is looking at the screen anymore
         }
     }
 
@@ -325,7 +331,7 @@ class AstVm(val program: Program, compilationTarget: String) {
 
     private fun executeStatement(sub: INameScope, stmt: Statement) {
         instructionCounter++
-        if (instructionCounter % 200 == 0)
+        if (instructionCounter % 200 == 0 && !headless)
             Thread.sleep(1)
         when (stmt) {
             is NopStatement, is Label, is Subroutine -> {
@@ -673,67 +679,67 @@ class AstVm(val program: Program, compilationTarget: String) {
                 // if the argument is an UWORD, consider it to be the "address" of the string (=heapId)
                 if (args[0].wordval != null) {
                     val encodedStr = getEncodedStringFromRuntimeVars(args[0].wordval!!)
-                    dialog.canvas.printText(encodedStr)
+                    canvas.printText(encodedStr)
                 } else
                     throw VmExecutionException("print non-heap string")
             }
             "c64scr.print_ub" -> {
-                dialog.canvas.printText(args[0].byteval!!.toString(), true)
+                canvas.printText(args[0].byteval!!.toString(), true)
             }
             "c64scr.print_ub0" -> {
-                dialog.canvas.printText("%03d".format(args[0].byteval!!), true)
+                canvas.printText("%03d".format(args[0].byteval!!), true)
             }
             "c64scr.print_b" -> {
-                dialog.canvas.printText(args[0].byteval!!.toString(), true)
+                canvas.printText(args[0].byteval!!.toString(), true)
             }
             "c64scr.print_uw" -> {
-                dialog.canvas.printText(args[0].wordval!!.toString(), true)
+                canvas.printText(args[0].wordval!!.toString(), true)
             }
             "c64scr.print_uw0" -> {
-                dialog.canvas.printText("%05d".format(args[0].wordval!!), true)
+                canvas.printText("%05d".format(args[0].wordval!!), true)
             }
             "c64scr.print_w" -> {
-                dialog.canvas.printText(args[0].wordval!!.toString(), true)
+                canvas.printText(args[0].wordval!!.toString(), true)
             }
             "c64scr.print_ubhex" -> {
                 val number = args[0].byteval!!
                 val prefix = if (args[1].asBoolean) "$" else ""
-                dialog.canvas.printText("$prefix${number.toString(16).padStart(2, '0')}", true)
+                canvas.printText("$prefix${number.toString(16).padStart(2, '0')}", true)
             }
             "c64scr.print_uwhex" -> {
                 val number = args[0].wordval!!
                 val prefix = if (args[1].asBoolean) "$" else ""
-                dialog.canvas.printText("$prefix${number.toString(16).padStart(4, '0')}", true)
+                canvas.printText("$prefix${number.toString(16).padStart(4, '0')}", true)
             }
             "c64scr.print_uwbin" -> {
                 val number = args[0].wordval!!
                 val prefix = if (args[1].asBoolean) "%" else ""
-                dialog.canvas.printText("$prefix${number.toString(2).padStart(16, '0')}", true)
+                canvas.printText("$prefix${number.toString(2).padStart(16, '0')}", true)
             }
             "c64scr.print_ubbin" -> {
                 val number = args[0].byteval!!
                 val prefix = if (args[1].asBoolean) "%" else ""
-                dialog.canvas.printText("$prefix${number.toString(2).padStart(8, '0')}", true)
+                canvas.printText("$prefix${number.toString(2).padStart(8, '0')}", true)
             }
             "c64scr.clear_screenchars" -> {
-                dialog.canvas.clearScreen(6)
+                canvas.clearScreen(6)
             }
             "c64scr.clear_screen" -> {
-                dialog.canvas.clearScreen(args[0].integerValue().toShort())
+                canvas.clearScreen(args[0].integerValue().toShort())
             }
             "c64scr.setcc" -> {
-                dialog.canvas.setChar(args[0].integerValue(), args[1].integerValue(), args[2].integerValue().toShort(), args[3].integerValue().toShort())
+                canvas.setChar(args[0].integerValue(), args[1].integerValue(), args[2].integerValue().toShort(), args[3].integerValue().toShort())
             }
             "c64scr.plot" -> {
-                dialog.canvas.setCursorPos(args[0].integerValue(), args[1].integerValue())
+                canvas.setCursorPos(args[0].integerValue(), args[1].integerValue())
             }
             "c64scr.input_chars" -> {
                 val input=mutableListOf<Char>()
                 for(i in 0 until 80) {
-                    while(dialog.keyboardBuffer.isEmpty()) {
+                    while(canvas.keyboardBuffer.isEmpty()) {
                         Thread.sleep(10)
                     }
-                    val char=dialog.keyboardBuffer.pop()
+                    val char=canvas.keyboardBuffer.pop()
                     if(char=='\n')
                         break
                     else {
@@ -743,7 +749,7 @@ class AstVm(val program: Program, compilationTarget: String) {
                         } catch (cv: CharConversionException) {
                             0x3f.toShort()
                         }
-                        dialog.canvas.printPetscii(printChar)
+                        canvas.printPetscii(printChar)
                     }
                 }
                 val inputStr = input.joinToString("")
@@ -755,19 +761,19 @@ class AstVm(val program: Program, compilationTarget: String) {
                 result = RuntimeValueNumeric(DataType.UBYTE, encodedStr.indexOf(0))
             }
             "c64flt.print_f" -> {
-                dialog.canvas.printText(args[0].floatval.toString(), false)
+                canvas.printText(args[0].floatval.toString(), false)
             }
             "c64.CHROUT" -> {
-                dialog.canvas.printPetscii(args[0].byteval!!)
+                canvas.printPetscii(args[0].byteval!!)
             }
             "c64.CLEARSCR" -> {
-                dialog.canvas.clearScreen(6)
+                canvas.clearScreen(6)
             }
             "c64.CHRIN" -> {
-                while(dialog.keyboardBuffer.isEmpty()) {
+                while(canvas.keyboardBuffer.isEmpty()) {
                     Thread.sleep(10)
                 }
-                val char=dialog.keyboardBuffer.pop()
+                val char=canvas.keyboardBuffer.pop()
                 result = RuntimeValueNumeric(DataType.UBYTE, char.toShort())
             }
             "c64utils.str2uword" -> {
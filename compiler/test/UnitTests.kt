@@ -5,18 +5,32 @@ import org.hamcrest.Matchers.closeTo
 import org.hamcrest.Matchers.equalTo
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.TestInstance
+import prog8.ast.Program
 import prog8.ast.base.DataType
 import prog8.ast.base.Position
 import prog8.ast.expressions.NumericLiteralValue
 import prog8.ast.expressions.StringLiteralValue
 import prog8.compiler.*
 import prog8.compiler.target.c64.C64MachineDefinition.C64Zeropage
+import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_HI_DEFAULT
+import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_LO_DEFAULT
+import prog8.compiler.target.c64.C64MachineDefinition.ESTACK_ZEROPAGE_SIZE
 import prog8.compiler.target.c64.C64MachineDefinition.FLOAT_MAX_NEGATIVE
 import prog8.compiler.target.c64.C64MachineDefinition.FLOAT_MAX_POSITIVE
 import prog8.compiler.target.c64.C64MachineDefinition.Mflpt5
 import prog8.compiler.target.c64.Petscii
+import prog8.compiler.target.c64.assembler.Assembler
+import prog8.compiler.target.c64.codegen.AsmGen
+import prog8.compiler.target.c64.codegen.ConstantArithmeticAsmGen
+import prog8.compiler.target.c64.codegen.ConstantArithmeticAsmGen.Step
+import prog8.setCompilationTarget
 import prog8.vm.RuntimeValueNumeric
 import java.io.CharConversionException
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.util.Locale
 import kotlin.test.*
 
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -182,9 +196,9 @@ class TestZeropage {
         val zp1 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.BASICSAFE, emptyList(), true))
         assertEquals(16, zp1.available())
         val zp2 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.FLOATSAFE, emptyList(), false))
-        assertEquals(91, zp2.available())
+        assertEquals(89, zp2.available())
         val zp3 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.KERNALSAFE, emptyList(), false))
-        assertEquals(125, zp3.available())
+        assertEquals(123, zp3.available())
         val zp4 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.FULL, emptyList(), false))
         assertEquals(238, zp4.available())
     }
@@ -193,22 +207,76 @@ class TestZeropage {
     fun testReservedSpace() {
         val zp1 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.FULL, emptyList(), false))
         assertEquals(238, zp1.available())
-        assertTrue(50 in zp1.free)
-        assertTrue(100 in zp1.free)
-        assertTrue(49 in zp1.free)
-        assertTrue(101 in zp1.free)
-        assertTrue(200 in zp1.free)
-        assertTrue(255 in zp1.free)
-        assertTrue(199 in zp1.free)
+        assertTrue(zp1.free[50])
+        assertTrue(zp1.free[100])
+        assertTrue(zp1.free[49])
+        assertTrue(zp1.free[101])
+        assertTrue(zp1.free[200])
+        assertTrue(zp1.free[255])
+        assertTrue(zp1.free[199])
         val zp2 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.FULL, listOf(50 .. 100, 200..255), false))
         assertEquals(139, zp2.available())
-        assertFalse(50 in zp2.free)
-        assertFalse(100 in zp2.free)
-        assertTrue(49 in zp2.free)
-        assertTrue(101 in zp2.free)
-        assertFalse(200 in zp2.free)
-        assertFalse(255 in zp2.free)
-        assertTrue(199 in zp2.free)
+        assertFalse(zp2.free[50])
+        assertFalse(zp2.free[100])
+        assertTrue(zp2.free[49])
+        assertTrue(zp2.free[101])
+        assertFalse(zp2.free[200])
+        assertFalse(zp2.free[255])
+        assertTrue(zp2.free[199])
+    }
+
+    @Test
+    fun testEvalStackInZeropage() {
+        val zp1 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.KERNALSAFE, emptyList(), false, EvalStackType.ZEROPAGE))
+        val estack1 = zp1.evalStack
+        assertEquals(123-2*ESTACK_ZEROPAGE_SIZE, zp1.available())
+        assertTrue(estack1.inZeropage)
+        assertTrue(estack1.lo < 255-2)
+        assertTrue(estack1.hi < 255-2)
+        assertNotEquals(estack1.lo, estack1.hi)
+        assertFalse(zp1.free[estack1.lo])
+        assertFalse(zp1.free[estack1.lo-ESTACK_ZEROPAGE_SIZE+2])
+        assertFalse(zp1.free[estack1.lo+1])
+        assertEquals("\$${estack1.lo.toString(16)}", estack1.loHex)
+
+        val zp2 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.FLOATSAFE, emptyList(), true, EvalStackType.ZEROPAGE_LSB))
+        assertEquals(89-ESTACK_ZEROPAGE_SIZE, zp2.available())
+        assertTrue(zp2.evalStack.lo < 255-2)
+        assertEquals(ESTACK_HI_DEFAULT, zp2.evalStack.hi)
+
+        assertFailsWith<CompilerException> {
+            C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.FLOATSAFE, emptyList(), true, EvalStackType.ZEROPAGE))
+        }
+        assertFailsWith<CompilerException> {
+            C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.BASICSAFE, emptyList(), false, EvalStackType.ZEROPAGE_LSB))
+        }
+
+        val zp3 = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.KERNALSAFE, emptyList(), false))
+        assertFalse(zp3.evalStack.inZeropage)
+        assertEquals(ESTACK_LO_DEFAULT, zp3.evalStack.lo)
+        assertEquals(ESTACK_HI_DEFAULT, zp3.evalStack.hi)
+        // every compilation has its own evaluation stack, the other ones are unaffected
+        assertTrue(estack1.inZeropage)
+        assertEquals(estack1.lo, zp1.evalStack.lo)
+    }
+
+    @Test
+    fun testEvalStackOptionWithoutRoomIsAnError() {
+        val dir = Files.createTempDirectory("prog8test")
+        val source = dir.resolve("estack.p8")
+        Files.write(source, listOf("%zeropage basicsafe", "%option zeropage_estack", "main {", "    sub start() {", "    }", "}"))
+        setCompilationTarget("c64")
+        val errors = ByteArrayOutputStream()
+        val stderr = System.err
+        System.setErr(PrintStream(errors, true))
+        val result = try {
+            compileProgram(source, optimize = false, writeAssembly = false, outputDir = dir)
+        } finally {
+            System.setErr(stderr)
+        }
+        assertFalse(result.success)
+        val message = errors.toString()
+        assertTrue("[estack.p8: line 2 col 1-" in message && "not enough free zeropage for the evaluation stack" in message, message)
     }
 
     @Test
@@ -240,7 +308,7 @@ class TestZeropage {
         assertEquals(238, zp.available())
         val loc = zp.allocate("", DataType.UWORD, null)
         assertTrue(loc > 3)
-        assertFalse(loc in zp.free)
+        assertFalse(zp.free[loc])
         val num = zp.available() / 2
 
         for(i in 0..num-4) {
@@ -268,15 +336,15 @@ class TestZeropage {
     fun testEfficientAllocation() {
         val zp = C64Zeropage(CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.BASICSAFE, emptyList(),  true))
         assertEquals(16, zp.available())
-        assertEquals(0x04, zp.allocate("", DataType.WORD, null))
-        assertEquals(0x06, zp.allocate("", DataType.UBYTE, null))
+        assertEquals(0x94, zp.allocate("", DataType.WORD, null))
         assertEquals(0x0a, zp.allocate("", DataType.UBYTE, null))
-        assertEquals(0x94, zp.allocate("", DataType.UWORD, null))
-        assertEquals(0xa7, zp.allocate("", DataType.UWORD, null))
-        assertEquals(0xa9, zp.allocate("", DataType.UWORD, null))
+        assertEquals(0x0e, zp.allocate("", DataType.UBYTE, null))
         assertEquals(0xb5, zp.allocate("", DataType.UWORD, null))
+        assertEquals(0x04, zp.allocate("", DataType.UWORD, null))
         assertEquals(0xf7, zp.allocate("", DataType.UWORD, null))
-        assertEquals(0x0e, zp.allocate("", DataType.UBYTE, null))
+        assertEquals(0xa7, zp.allocate("", DataType.UWORD, null))
+        assertEquals(0xa9, zp.allocate("", DataType.UWORD, null))
+        assertEquals(0x06, zp.allocate("", DataType.UBYTE, null))
         assertEquals(0xf9, zp.allocate("", DataType.UBYTE, null))
         assertEquals(0, zp.available())
     }
@@ -396,3 +464,223 @@ class TestPetscii {
         assertFalse(ten < ten)
     }
 }
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class TestAssembler {
+
+    private fun assemble(vararg lines: String): List<Int> {
+        val result = Assembler(listOf("* = \$1000") + lines, "test.asm", Paths.get(".")).assemble()
+        assertEquals(emptyList<String>(), result.errors)
+        return result.image.map { it.toInt() and 255 }
+    }
+
+    @Test
+    fun testAddressingModes() {
+        assertEquals(listOf(0xa9, 0x01, 0xa5, 0x02, 0xad, 0x00, 0xd0, 0xb5, 0x10, 0xb9, 0x10, 0x00), assemble(
+                "  lda  #1", "  lda  2", "  lda  \$d000", "  lda  16,x", "  lda  16,y"))
+        assertEquals(listOf(0xa1, 0xfb, 0xb1, 0xfb, 0x6c, 0x34, 0x12, 0x0a, 0x4a, 0x60), assemble(
+                "  lda  (251,x)", "  lda  (251),y", "  jmp  (\$1234)", "  asl  a", "  lsr", "  rts"))
+        assertEquals(listOf(0xa9, 0x34, 0xa0, 0x12), assemble("  lda  #<value", "  ldy  #>value", "value = \$1234"))
+    }
+
+    @Test
+    fun testLabelsAndBranches() {
+        assertEquals(listOf(0xa2, 0x05, 0xca, 0xd0, 0xfd, 0xf0, 0x00, 0x60), assemble(
+                "  ldx  #5", "- dex", "  bne  -", "  beq  +", "+ rts"))
+        // an out of range branch becomes the opposite branch over a jmp
+        val bytes = assemble("  beq  far", "  .fill 200", "far  rts")
+        assertEquals(listOf(0xd0, 0x03, 0x4c, 0xcd, 0x10), bytes.take(5))
+    }
+
+    @Test
+    fun testUnreferencedProcsAreLeftOut() {
+        assertEquals(listOf(0x20, 0x03, 0x10, 0x60), assemble(
+                "  jsr  used", "unused  .proc", "  nop", "  .pend", "used  .proc", "  rts", "  .pend"))
+    }
+
+    @Test
+    fun testData() {
+        assertEquals(listOf(0x01, 0xff, 0x34, 0x12, 0xfe, 0xff, 0x41, 0x42, 0x41, 0x00), assemble(
+                "  .byte  1, 255", "  .word  \$1234", "  .sint  -2", "  .text  'AB'", "  .null  \"A\""))
+    }
+}
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class TestConstantMultiplication {
+
+    private fun constantArithmetic(optimizeSize: Boolean): ConstantArithmeticAsmGen {
+        val options = CompilationOptions(OutputType.RAW, LauncherType.NONE, ZeropageType.FULL, emptyList(), false, optimizeSize = optimizeSize)
+        val asmgen = AsmGen(Program("test", mutableListOf()), C64Zeropage(options), options, Paths.get("."))
+        return ConstantArithmeticAsmGen(options, asmgen)
+    }
+
+    // does with the value what the generated code does
+    private fun multiply(value: Int, steps: List<Step>, mask: Int): Int {
+        var operand = value
+        var product = value
+        for(step in steps) {
+            product = when(step) {
+                Step.SHIFT -> product shl 1
+                Step.ADD -> product + operand
+                Step.SUBTRACT -> product - operand
+                Step.REBASE -> product
+                Step.NEGATE -> -product
+            }
+            product = product and mask
+            if(step==Step.REBASE)
+                operand = product
+        }
+        return product
+    }
+
+    private fun assertMultiplies(amount: Int, bits: Int, values: Iterable<Int>) {
+        val mask = (1 shl bits) - 1
+        for(optimizeSize in listOf(false, true)) {
+            val arithmetic = constantArithmetic(optimizeSize)
+            val plans = mutableListOf(arithmetic.plan(amount and mask, bits))
+            if(amount<0)
+                plans.add(arithmetic.plan(-amount and mask, bits) + Step.NEGATE)
+            for(steps in plans) {
+                for(value in values)
+                    assertEquals((value*amount) and mask, multiply(value, steps, mask), "$value * $amount in $bits bits with $steps")
+            }
+        }
+    }
+
+    @Test
+    fun testByteFactors() {
+        for(factor in 2..255)
+            assertMultiplies(factor, 8, 0..255)
+        for(factor in -128..-1)
+            assertMultiplies(factor, 8, 0..255)
+    }
+
+    @Test
+    fun testWordFactors() {
+        val values = listOf(0, 1, 2, 3, 7, 100, 127, 128, 255, 256, 1000, 0x1234, 0x7fff, 0x8000, 0xabcd, 0xfffe, 0xffff)
+        val factors = (2..300) + listOf(320, 1000, 1024, 4097, 10000, 0x5555, 0x7fff, 0x8000, 40000, 0xfff0, 0xffff)
+        for(factor in factors)
+            assertMultiplies(factor, 16, values)
+        for(factor in listOf(-1, -2, -3, -5, -10, -40, -100, -255, -256, -257, -1000, -0x5555, -32767, -32768))
+            assertMultiplies(factor, 16, values)
+    }
+}
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class TestCompilerStats {
+
+    // a minimal JSON reader: objects become maps, arrays lists, numbers doubles
+    private class JsonReader(private val text: String) {
+        private var pos = 0
+
+        fun read(): Any? {
+            val value = value()
+            skipSpace()
+            assertEquals(text.length, pos, "trailing characters in json")
+            return value
+        }
+
+        private fun skipSpace() {
+            while(pos < text.length && text[pos].isWhitespace())
+                pos++
+        }
+
+        private fun expect(c: Char) {
+            skipSpace()
+            assertEquals(c, text[pos], "json at $pos")
+            pos++
+        }
+
+        private fun value(): Any? {
+            skipSpace()
+            return when {
+                text[pos]=='{' -> {
+                    val result = mutableMapOf<String, Any?>()
+                    expect('{')
+                    skipSpace()
+                    if(text[pos]=='}') pos++
+                    else do {
+                        skipSpace()
+                        val key = string()
+                        expect(':')
+                        result[key] = value()
+                        skipSpace()
+                        val more = text[pos++]==','
+                    } while(more)
+                    result
+                }
+                text[pos]=='[' -> {
+                    val result = mutableListOf<Any?>()
+                    expect('[')
+                    skipSpace()
+                    if(text[pos]==']') pos++
+                    else do {
+                        result.add(value())
+                        skipSpace()
+                        val more = text[pos++]==','
+                    } while(more)
+                    result
+                }
+                text[pos]=='"' -> string()
+                text.startsWith("null", pos) -> { pos += 4; null }
+                else -> {
+                    val number = Regex("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?").find(text, pos)
+                    assertEquals(pos, number?.range?.first, "json number at $pos")
+                    pos = number!!.range.last + 1
+                    number.value.toDouble()
+                }
+            }
+        }
+
+        private fun string(): String {
+            expect('"')
+            val result = StringBuilder()
+            while(text[pos]!='"') {
+                val c = text[pos++]
+                assertTrue(c >= ' ', "unescaped control character in json string")
+                if(c=='\\') {
+                    val escaped = text[pos++]
+                    when(escaped) {
+                        'n' -> result.append('\n')
+                        'r' -> result.append('\r')
+                        't' -> result.append('\t')
+                        'u' -> { result.append(text.substring(pos, pos+4).toInt(16).toChar()); pos += 4 }
+                        '"', '\\', '/' -> result.append(escaped)
+                        else -> fail("invalid escape \\$escaped in json")
+                    }
+                } else
+                    result.append(c)
+            }
+            pos++
+            return result.toString()
+        }
+    }
+
+    @Test
+    fun testJsonIsValidInEveryLocale() {
+        val stats = CompilerStats()
+        stats.measure("parse \"main\"", null) { }
+        stats.measure("back\\slash\tand\u0001control", null) { }
+        stats.count("optimizations")
+        stats.count("quoted \"counter\"", 3)
+        val defaultLocale = Locale.getDefault()
+        Locale.setDefault(Locale.GERMANY)
+        val json = try {
+            stats.toJson("my \"program\"\n")
+        } finally {
+            Locale.setDefault(defaultLocale)
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        val parsed = JsonReader(json).read() as Map<String, Any?>
+        assertEquals("my \"program\"\n", parsed["program"])
+        @Suppress("UNCHECKED_CAST")
+        val phases = parsed["phases"] as List<Map<String, Any?>>
+        assertEquals(listOf("parse \"main\"", "back\\slash\tand\u0001control"), phases.map { it["name"] })
+        assertTrue(phases.all { it["millis"] is Double && it["astNodes"]==null })
+        assertEquals(mapOf("optimizations" to 1.0, "quoted \"counter\"" to 3.0), parsed["counters"])
+    }
+}